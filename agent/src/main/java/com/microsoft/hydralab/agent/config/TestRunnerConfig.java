@@ -42,8 +42,8 @@ public class TestRunnerConfig {
     );
 
     @Bean
-    public PerformanceTestManagementService performanceTestManagementService() {
-        PerformanceTestManagementService performanceTestManagementService = new PerformanceTestManagementService();
+    public PerformanceTestManagementService performanceTestManagementService(ADBOperateUtil adbOperateUtil) {
+        PerformanceTestManagementService performanceTestManagementService = new PerformanceTestManagementService(adbOperateUtil);
         performanceTestManagementService.initialize();
         return performanceTestManagementService;
     }
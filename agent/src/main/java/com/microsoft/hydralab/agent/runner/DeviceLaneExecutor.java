@@ -0,0 +1,108 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.runner;
+
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs device work on a bounded pool. Tasks of the same device (a lane) run one after another in submission order,
+ * and at most maxConcurrency lanes run at the same time. A lane waiting for a thread is queued in the pool
+ * instead of holding a thread, and it goes back to the end of the pool queue after each task,
+ * so a busy device cannot starve the others.
+ */
+public class DeviceLaneExecutor {
+    @SuppressWarnings("constantname")
+    static final Logger log = LoggerFactory.getLogger(DeviceLaneExecutor.class);
+    private final Executor executor;
+    // <laneKey, lane>, only lanes with queued or running tasks, guarded by this
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final AtomicInteger queuedTaskCount = new AtomicInteger();
+    private final AtomicInteger activeLaneCount = new AtomicInteger();
+
+    public DeviceLaneExecutor(int maxConcurrency, String threadNamePrefix) {
+        this(ThreadPoolUtil.newBoundedThreadPoolExecutor(new AtomicInteger(1), maxConcurrency, 60L, threadNamePrefix));
+    }
+
+    DeviceLaneExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void execute(String laneKey, Runnable task) {
+        Lane laneToStart = null;
+        synchronized (this) {
+            Lane lane = lanes.computeIfAbsent(laneKey, Lane::new);
+            lane.tasks.add(task);
+            queuedTaskCount.incrementAndGet();
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                laneToStart = lane;
+            }
+        }
+        if (laneToStart != null) {
+            schedule(laneToStart);
+        }
+    }
+
+    /**
+     * @return the number of tasks accepted but not started yet
+     */
+    public int getQueueDepth() {
+        return queuedTaskCount.get();
+    }
+
+    /**
+     * @return the number of lanes currently running a task
+     */
+    public int getActiveLaneCount() {
+        return activeLaneCount.get();
+    }
+
+    private void schedule(Lane lane) {
+        executor.execute(() -> runNext(lane));
+    }
+
+    private void runNext(Lane lane) {
+        Runnable task;
+        synchronized (this) {
+            task = lane.tasks.poll();
+        }
+        queuedTaskCount.decrementAndGet();
+        activeLaneCount.incrementAndGet();
+        try {
+            task.run();
+        } catch (Exception e) {
+            log.error("Task of lane {} failed: {}", lane.key, e.getMessage(), e);
+        } finally {
+            activeLaneCount.decrementAndGet();
+            // an interrupt meant for this task must not leak into the next task run by the thread
+            Thread.interrupted();
+        }
+        synchronized (this) {
+            if (lane.tasks.isEmpty()) {
+                lanes.remove(lane.key);
+                return;
+            }
+        }
+        schedule(lane);
+    }
+
+    private static final class Lane {
+        private final String key;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+
+        private Lane(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -5,10 +5,11 @@ package com.microsoft.hydralab.agent.runner;
 
 import com.microsoft.hydralab.common.entity.agent.DeviceTaskControl;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
-import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.Collection;
@@ -20,6 +21,24 @@ import java.util.concurrent.CountDownLatch;
 public class DeviceTaskControlExecutor {
     @SuppressWarnings("constantname")
     static final Logger log = LoggerFactory.getLogger(DeviceTaskControlExecutor.class);
+    private final DeviceLaneExecutor deviceLaneExecutor;
+
+    /**
+     * @param maxConcurrency the max number of devices running a task at the same time, the tasks of one device
+     *                       always run one after another
+     */
+    @Autowired
+    public DeviceTaskControlExecutor(@Value("${app.device.task-concurrency:32}") int maxConcurrency) {
+        this(new DeviceLaneExecutor(maxConcurrency, "TestExecutor"));
+    }
+
+    DeviceTaskControlExecutor(DeviceLaneExecutor deviceLaneExecutor) {
+        this.deviceLaneExecutor = deviceLaneExecutor;
+    }
+
+    public DeviceLaneExecutor getDeviceLaneExecutor() {
+        return deviceLaneExecutor;
+    }
 
     @Nullable
     public DeviceTaskControl runForAllDeviceAsync(Collection<DeviceInfo> allDevices, DeviceTask task,
@@ -87,7 +106,7 @@ public class DeviceTaskControlExecutor {
                     }
                 }
             };
-            ThreadPoolUtil.TEST_EXECUTOR.execute(run);
+            deviceLaneExecutor.execute(device.getSerialNum(), run);
         }
         return new DeviceTaskControl(count, devices);
     }
@@ -25,10 +25,10 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class TestRunner {
     protected final Logger log = LoggerFactory.getLogger(TestRunner.class);
@@ -55,34 +55,62 @@ public abstract class TestRunner {
         checkTestTaskCancel(testTask);
 
         try {
+            // a device starting after the task is terminated only reports the termination
+            Assert.isFalse(testTask.isTerminated(), "Task {} is terminated: {}", testTask.getId(), testTask.getTerminationReason());
             setUp(deviceInfo, testTask, testRun);
             checkTestTaskCancel(testTask);
-            runByFutureTask(deviceInfo, testTask, testRun);
+            runWithTimeout(deviceInfo, testTask, testRun);
         } catch (Exception e) {
             testRun.getLogger().error(deviceInfo.getSerialNum() + ": " + e.getMessage(), e);
             saveErrorSummary(testRun, e);
         } finally {
-            tearDown(deviceInfo, testTask, testRun);
+            if (testTask.isTerminated()) {
+                // the devices of a terminated task are stopped through an interrupt, not to be seen by the tear down
+                Thread.interrupted();
+            }
+            try {
+                tearDown(deviceInfo, testTask, testRun);
+            } finally {
+                // the tear down still needs the test run of this thread
+                TestRunThreadContext.clean();
+            }
         }
     }
 
-    private void runByFutureTask(DeviceInfo deviceInfo, TestTask testTask, TestRun testRun) throws Exception {
-        FutureTask<String> futureTask = new FutureTask<>(() -> {
-            loadTestRunToCurrentThread(testRun);
-            run(deviceInfo, testTask, testRun);
-            return null;
-        });
-        ThreadPoolUtil.TEST_EXECUTOR.execute(futureTask);
+    /**
+     * Run the test in the current thread. The timeout is enforced by a timer that stops the test and interrupts
+     * the thread, so no extra thread waits for the test to finish.
+     */
+    private void runWithTimeout(DeviceInfo deviceInfo, TestTask testTask, TestRun testRun) throws Exception {
+        Thread testThread = Thread.currentThread();
+        // 0: running, 1: finished, 2: timed out
+        AtomicInteger state = new AtomicInteger(0);
+        ScheduledFuture<?> timeout = null;
+        if (testTask.getTimeOutSecond() > 0) {
+            timeout = ThreadPoolUtil.TIMER_EXECUTOR.schedule(() -> {
+                if (state.compareAndSet(0, 2)) {
+                    testThread.interrupt();
+                    stopTest(deviceInfo);
+                }
+            }, testTask.getTimeOutSecond(), TimeUnit.SECONDS);
+        }
         try {
-            if (testTask.getTimeOutSecond() > 0) {
-                futureTask.get(testTask.getTimeOutSecond(), TimeUnit.SECONDS);
-            } else {
-                futureTask.get();
+            run(deviceInfo, testTask, testRun);
+        } catch (Exception e) {
+            if (state.get() != 2) {
+                stopTest(deviceInfo);
+                throw e;
+            }
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (!state.compareAndSet(0, 1)) {
+                Thread.interrupted();
             }
-        } catch (TimeoutException | InterruptedException | ExecutionException e) {
-            futureTask.cancel(true);
-            stopTest(deviceInfo);
-            throw e;
+        }
+        if (state.get() == 2) {
+            throw new TimeoutException("Test run timed out after " + testTask.getTimeOutSecond() + "s");
         }
     }
 
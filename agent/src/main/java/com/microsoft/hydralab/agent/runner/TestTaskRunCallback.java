@@ -16,4 +16,6 @@ public interface TestTaskRunCallback {
     void onOneDeviceComplete(TestTask testTask, DeviceInfo deviceControl, Logger logger, TestRun result);
 
     void onDeviceOffline(TestTask testTask);
+
+    void onTaskProgress(TestTask testTask, int crashCount, int failCount, int testCount);
 }
\ No newline at end of file
@@ -229,6 +229,7 @@ public class AppiumListener extends RunListener {
             testRun.addNewTimeTag("testRunFailed", System.currentTimeMillis() - recordingStartTimeMillis);
             testRun.setTestErrorMessage(errorMessage);
             if (errorMessage != null && errorMessage.toLowerCase(Locale.US).contains("process crash")) {
+                testRun.oneMoreCrash();
                 if (testRun.getCrashStack() == null) {
                     testRun.setCrashStack(errorMessage);
                 }
@@ -128,6 +128,7 @@ public class Junit5Listener extends SummaryGeneratingListener {
             testRun.addNewTimeTag("testRunFailed", System.currentTimeMillis() - recordingStartTimeMillis);
             testRun.setTestErrorMessage(errorMessage);
             if (errorMessage != null && errorMessage.toLowerCase(Locale.US).contains("process crash")) {
+                testRun.oneMoreCrash();
                 if (testRun.getCrashStack() == null) {
                     testRun.setCrashStack(errorMessage);
                 }
@@ -14,6 +14,7 @@ import com.microsoft.hydralab.common.management.AgentManagementService;
 import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.LogUtils;
+import com.microsoft.hydralab.common.util.TestShardUtil;
 import com.microsoft.hydralab.performance.PerformanceTestManagementService;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
@@ -21,6 +22,8 @@ import org.slf4j.Logger;
 
 import java.io.File;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class EspressoRunner extends TestRunner {
@@ -49,7 +52,7 @@ public class EspressoRunner extends TestRunner {
                     new InstrumentationResultParser(testTask.getTestSuite(), Collections.singletonList(listener)) {
                         @Override
                         public boolean isCancelled() {
-                            return testTask.isCanceled();
+                            return testTask.isCanceled() || testTask.isTerminated();
                         }
                     };
 
@@ -57,8 +60,25 @@ public class EspressoRunner extends TestRunner {
             reportLogger.info("Start instrumenting the test");
             checkTestTaskCancel(testTask);
             listener.startRecording(testTask.getTimeOutSecond());
-            String command = buildCommand(testTask.getTestSuite(), testTask.getTestPkgName(), testTask.getTestRunnerName(),
-                    testTask.getTestScope(), testTask.getInstrumentationArgs());
+            String testSuite = testTask.getTestSuite();
+            Map<String, String> instrumentationArgs = testTask.getInstrumentationArgs();
+            Integer shardIndex = testTask.getShardIndexes() == null ? null : testTask.getShardIndexes().get(deviceInfo.getSerialNum());
+            if (shardIndex != null) {
+                reportLogger.info("Run shard {} of {}", shardIndex, testTask.getShardCount());
+                List<String> classes = TestShardUtil.getClassList(testTask.getTestScope(), testSuite);
+                if (testTask.getShardTestSuites() != null && shardIndex < testTask.getShardTestSuites().size()) {
+                    // balanced by center from the past durations of the classes
+                    testSuite = testTask.getShardTestSuites().get(shardIndex);
+                } else if (classes.isEmpty()) {
+                    instrumentationArgs = instrumentationArgs == null ? new HashMap<>() : new HashMap<>(instrumentationArgs);
+                    instrumentationArgs.put(TestShardUtil.NUM_SHARDS_ARG, String.valueOf(testTask.getShardCount()));
+                    instrumentationArgs.put(TestShardUtil.SHARD_INDEX_ARG, String.valueOf(shardIndex));
+                } else {
+                    testSuite = TestShardUtil.getShardClasses(classes, testTask.getShardCount(), shardIndex);
+                }
+            }
+            String command = buildCommand(testSuite, testTask.getTestPkgName(), testTask.getTestRunnerName(),
+                    testTask.getTestScope(), instrumentationArgs);
             String result = startInstrument(deviceInfo, reportLogger,
                     instrumentationResultParser, testTask.getTimeOutSecond(), command);
             if (Const.TaskResult.ERROR_DEVICE_OFFLINE.equals(result)) {
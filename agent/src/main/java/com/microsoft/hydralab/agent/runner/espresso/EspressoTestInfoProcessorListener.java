@@ -218,6 +218,7 @@ public class EspressoTestInfoProcessorListener extends XmlTestRunListener {
         super.testRunFailed(errorMessage);
         testRun.setTestErrorMessage(errorMessage);
         if (errorMessage != null && errorMessage.toLowerCase(Locale.US).contains("process crash")) {
+            testRun.oneMoreCrash();
             if (testRun.getCrashStack() == null) {
                 testRun.setCrashStack(errorMessage);
             }
@@ -71,6 +71,7 @@ public class AdbMonkeyRunner extends TestRunner {
         if (checkTime > 0) {
             String crashStack = testRun.getCrashStack();
             if (crashStack != null && !"".equals(crashStack)) {
+                testRun.oneMoreCrash();
                 ongoingMonkeyTest.setStatusCode(AndroidTestUnit.StatusCodes.FAILURE);
                 ongoingMonkeyTest.setSuccess(false);
                 ongoingMonkeyTest.setStack(crashStack);
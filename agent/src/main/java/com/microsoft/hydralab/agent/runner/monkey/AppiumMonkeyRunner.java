@@ -90,6 +90,7 @@ public class AppiumMonkeyRunner extends AppiumRunner {
         // Success status
         if (logCollector.isCrashFound()) {
             // Fail
+            testRun.oneMoreCrash();
             ongoingMonkeyTest.setStatusCode(AndroidTestUnit.StatusCodes.FAILURE);
             ongoingMonkeyTest.setSuccess(false);
             ongoingMonkeyTest.setStack(e.toString());
@@ -69,7 +69,7 @@ public class SmartRunner extends TestRunner {
         smartTestParam = new SmartTestParam(testTask.getAppFile().getAbsolutePath(), deviceInfo, "0", "0",
                 testTask.getMaxStepCount(), smartTestUtil.getFolderPath(), smartTestUtil.getStringFolderPath());
 
-        for (int i = 1; i <= testTask.getDeviceTestCount(); i++) {
+        for (int i = 1; i <= testTask.getDeviceTestCount() && !testTask.isTerminated(); i++) {
             checkTestTaskCancel(testTask);
             runSmartTestOnce(i, deviceInfo, testRun, reportLogger);
         }
@@ -165,6 +165,7 @@ public class SmartRunner extends TestRunner {
                     System.currentTimeMillis() - recordingStartTimeMillis);
             testRun.oneMoreFailure();
         } else if (crashStack != null && crashStack.size() > 0) {
+            testRun.oneMoreCrash();
             ongoingSmartTest.setStatusCode(AndroidTestUnit.StatusCodes.FAILURE);
             ongoingSmartTest.setSuccess(false);
             ongoingSmartTest.setStack(crashStack.toJSONString());
@@ -5,6 +5,7 @@ package com.microsoft.hydralab.agent.scheduled;
 
 import com.microsoft.hydralab.agent.config.AppOptions;
 import com.microsoft.hydralab.agent.service.DeviceControlService;
+import com.microsoft.hydralab.agent.service.DevicePreviewService;
 import com.microsoft.hydralab.agent.socket.AgentWebSocketClient;
 import com.microsoft.hydralab.common.util.DateUtil;
 import com.microsoft.hydralab.common.util.FileUtil;
@@ -26,6 +27,8 @@ public class ScheduledDeviceControlTasks {
     @Resource
     DeviceControlService deviceControlService;
     @Resource
+    DevicePreviewService devicePreviewService;
+    @Resource
     AppOptions appOptions;
     @Resource
     AgentWebSocketClient agentWebSocketClient;
@@ -43,6 +46,15 @@ public class ScheduledDeviceControlTasks {
         agentWebSocketClient.reconnect();
     }
 
+    //refresh due device previews /5s, screenshots are uploaded with the storage access granted by center
+    @Scheduled(cron = "*/5 * * * * *")
+    public void scheduledRefreshDevicePreviews() {
+        if (!agentWebSocketClient.isConnectionActive()) {
+            return;
+        }
+        devicePreviewService.refreshPreviews();
+    }
+
     @Scheduled(cron = "0 10 6 ? * MON")
     public void scheduleCleanBuildSource() {
         logger.info("schedule clean build APK");
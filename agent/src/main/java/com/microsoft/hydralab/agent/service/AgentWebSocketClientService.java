@@ -5,6 +5,8 @@ package com.microsoft.hydralab.agent.service;
 
 import com.alibaba.fastjson.JSONObject;
 import com.microsoft.hydralab.agent.config.AppOptions;
+import com.microsoft.hydralab.agent.runner.DeviceLaneExecutor;
+import com.microsoft.hydralab.agent.runner.DeviceTaskControlExecutor;
 import com.microsoft.hydralab.agent.runner.TestTaskRunCallback;
 import com.microsoft.hydralab.agent.socket.AgentWebSocketClient;
 import com.microsoft.hydralab.common.entity.common.AgentMetadata;
@@ -19,6 +21,7 @@ import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
 import com.microsoft.hydralab.common.monitor.MetricPushGateway;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.GlobalConstant;
+import com.microsoft.hydralab.common.util.SerializeUtil;
 import com.microsoft.hydralab.common.util.ThreadUtils;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tags;
@@ -34,6 +37,8 @@ import javax.annotation.Resource;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
 
 @Service("WebSocketClient")
 @Slf4j
@@ -50,10 +55,14 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
     @Resource
     DeviceControlService deviceControlService;
     @Resource
+    DevicePreviewService devicePreviewService;
+    @Resource
     TestTaskEngineService testTaskEngineService;
     @Resource
     AgentManageService agentManageService;
     @Resource
+    DeviceTaskControlExecutor deviceTaskControlExecutor;
+    @Resource
     MeterRegistry meterRegistry;
     AgentUser agentUser;
     @Resource
@@ -97,14 +106,15 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
                     deviceControlService.deviceManagerInit();
                     isAgentInit = true;
                 }
-                deviceControlService.provideDeviceList(agentUser.getBatteryStrategy());
+                deviceControlService.requestFullDeviceState();
+                deviceControlService.provideDeviceList();
                 return;
             case Const.Path.HEARTBEAT:
                 if (!(message.getBody() instanceof AgentMetadata)) {
                     break;
                 }
                 heartbeatResponse(message);
-                deviceControlService.provideDeviceList(agentUser.getBatteryStrategy());
+                deviceControlService.provideDeviceList();
                 return;
             case Const.Path.DEVICE_UPDATE:
                 if (!(message.getBody() instanceof JSONObject)) {
@@ -131,12 +141,14 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
                 agentManageService.restartAgent(null, path);
                 break;
             case Const.Path.DEVICE_LIST:
+                Object centerSequence = message.getParams() == null ? null : message.getParams().get(Const.AgentConfig.DEVICE_STATE_SEQ_PARAM);
+                deviceControlService.onDeviceStateRequested(centerSequence instanceof Number ? ((Number) centerSequence).longValue() : null);
                 if (agentUser.getBatteryStrategy() == null) {
                     response = new Message();
                     response.setPath(Const.Path.HEARTBEAT);
                     response.setSessionId(message.getSessionId());
                 } else {
-                    deviceControlService.provideDeviceList(agentUser.getBatteryStrategy());
+                    deviceControlService.provideDeviceList();
                 }
                 break;
             case Const.Path.TEST_TASK_CANCEL:
@@ -146,22 +158,19 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
                 JSONObject data = (JSONObject) message.getBody();
                 testTaskEngineService.cancelTestTaskById(data.getString(Const.AgentConfig.TASK_ID_PARAM));
                 break;
+            case Const.Path.TEST_TASK_TERMINATE:
+                if (!(message.getBody() instanceof JSONObject)) {
+                    break;
+                }
+                JSONObject terminateData = (JSONObject) message.getBody();
+                testTaskEngineService.terminateTestTaskById(terminateData.getString(Const.AgentConfig.TASK_ID_PARAM),
+                        terminateData.getString(Const.AgentConfig.REASON_PARAM));
+                break;
             case Const.Path.TEST_TASK_RUN:
-                try {
-                    if (!(message.getBody() instanceof TestTaskSpec)) {
-                        break;
-                    }
-                    TestTask testTask = testTaskEngineService.runTestTask((TestTaskSpec) message.getBody());
-                    if (testTask == null) {
-                        response = Message.error(message, 404, "No device meet the requirement");
-                    } else {
-                        response = Message.response(message, testTask);
-                        response.setPath(Const.Path.TEST_TASK_UPDATE);
-                    }
-                } catch (Exception e) {
-                    log.error(e.getMessage(), e);
-                    response = Message.error(message, 500, e.getMessage() + e.getClass().getName());
+                if (!(message.getBody() instanceof TestTaskSpec)) {
+                    break;
                 }
+                response = runTestTask(message);
                 break;
             default:
                 break;
@@ -172,6 +181,21 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         send(response);
     }
 
+    private Message runTestTask(Message message) {
+        try {
+            TestTask testTask = testTaskEngineService.runTestTask((TestTaskSpec) message.getBody());
+            if (testTask == null) {
+                return Message.error(message, 404, "No device meet the requirement");
+            }
+            Message response = Message.response(message, testTask);
+            response.setPath(Const.Path.TEST_TASK_UPDATE);
+            return response;
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            return Message.error(message, 500, e.getMessage() + e.getClass().getName());
+        }
+    }
+
     private void heartbeatResponse(Message message) {
         AgentMetadata agentMetadata = (AgentMetadata) message.getBody();
 
@@ -180,6 +204,8 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
             isStorageClientInit = true;
         }
         storageServiceClientProxy.updateAccessToken(agentMetadata.getAccessToken());
+        agentWebSocketClient.setMessageCodec(SerializeUtil.getCodec(agentMetadata.getMessageCodec()));
+        deviceControlService.setDeviceStateDiffEnabled(agentMetadata.isDeviceStateDiffEnabled());
         syncAgentStatus(agentMetadata.getAgentUser());
         prometheusPushgatewayInit(agentMetadata);
     }
@@ -188,6 +214,7 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         agentUser.setTeamId(passedAgent.getTeamId());
         agentUser.setTeamName(passedAgent.getTeamName());
         agentUser.setBatteryStrategy(passedAgent.getBatteryStrategy());
+        devicePreviewService.setBatteryStrategy(passedAgent.getBatteryStrategy());
     }
 
     private void prometheusPushgatewayInit(AgentMetadata agentMetadata) {
@@ -222,6 +249,11 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         agentUser.setDeviceType(agentTypeValue);
         responseAuth.setBody(agentUser);
         responseAuth.setPath(message.getPath());
+        // answer with the codec to switch to, the center confirms it in AGENT_INIT
+        Object offeredCodecs = message.getParams() == null ? null : message.getParams().get(Const.AgentConfig.MESSAGE_CODEC_PARAM);
+        Map<String, Object> params = new HashMap<>();
+        params.put(Const.AgentConfig.MESSAGE_CODEC_PARAM, SerializeUtil.negotiateCodec(offeredCodecs == null ? null : offeredCodecs.toString()).getName());
+        responseAuth.setParams(params);
         send(responseAuth);
     }
 
@@ -256,6 +288,16 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         send(Message.ok(Const.Path.TEST_TASK_RETRY, testTask));
     }
 
+    @Override
+    public void onTaskProgress(TestTask testTask, int crashCount, int failCount, int testCount) {
+        JSONObject data = new JSONObject();
+        data.put(Const.AgentConfig.TASK_ID_PARAM, testTask.getId());
+        data.put(Const.AgentConfig.CRASH_COUNT_PARAM, crashCount);
+        data.put(Const.AgentConfig.FAIL_COUNT_PARAM, failCount);
+        data.put(Const.AgentConfig.TEST_COUNT_PARAM, testCount);
+        send(Message.ok(Const.Path.TEST_TASK_PROGRESS, data));
+    }
+
     public void registerAgentMetrics() {
         meterRegistry.config()
                 .commonTags("computerName", agentUser.getHostname(), "agentName", agentUser.getName(), "teamName",
@@ -264,6 +306,7 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         registerAgentDiskUsageRatio();
         registerAgentReconnectRetryTimes();
         registerAgentRunningTestTaskNum();
+        registerDeviceTaskExecutorMetrics();
     }
 
     public void registerAgentDiskUsageRatio() {
@@ -290,6 +333,19 @@ public class AgentWebSocketClientService implements TestTaskRunCallback {
         log.info("Metric of agent running test task number has been registered.");
     }
 
+    public void registerDeviceTaskExecutorMetrics() {
+        DeviceLaneExecutor deviceLaneExecutor = deviceTaskControlExecutor.getDeviceLaneExecutor();
+        meterRegistry.gauge(GlobalConstant.PROMETHEUS_METRIC_DEVICE_TASK_QUEUE_DEPTH,
+                Tags.empty(),
+                deviceLaneExecutor,
+                DeviceLaneExecutor::getQueueDepth);
+        meterRegistry.gauge(GlobalConstant.PROMETHEUS_METRIC_DEVICE_TASK_ACTIVE_LANES,
+                Tags.empty(),
+                deviceLaneExecutor,
+                DeviceLaneExecutor::getActiveLaneCount);
+        log.info("Metrics of device task executor have been registered.");
+    }
+
     private double getPCDiskUsageRatio(String appLocation) {
         File[] roots = File.listRoots();
         double diskUsageRatio = 0;
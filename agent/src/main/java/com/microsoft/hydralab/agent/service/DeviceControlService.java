@@ -3,17 +3,15 @@
 
 package com.microsoft.hydralab.agent.service;
 
+import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 import com.microsoft.hydralab.agent.repository.MobileDeviceRepository;
-import com.microsoft.hydralab.agent.runner.DeviceTaskControlExecutor;
-import com.microsoft.hydralab.common.entity.agent.DeviceTaskControl;
 import com.microsoft.hydralab.common.entity.agent.MobileDevice;
-import com.microsoft.hydralab.common.entity.common.AgentUser;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.DeviceStateDiff;
 import com.microsoft.hydralab.common.entity.common.Message;
 import com.microsoft.hydralab.common.management.AgentManagementService;
 import com.microsoft.hydralab.common.management.device.TestDeviceManager;
-import com.microsoft.hydralab.common.management.device.impl.WindowsTestDeviceManager;
 import com.microsoft.hydralab.common.management.listener.DeviceStatusListener;
 import com.microsoft.hydralab.common.management.listener.DeviceStatusListenerManager;
 import com.microsoft.hydralab.common.management.listener.impl.DeviceStabilityMonitor;
@@ -22,15 +20,16 @@ import com.microsoft.hydralab.common.util.Const;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
-import org.springframework.util.Assert;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import java.util.stream.Collectors;
 
 @Service
@@ -47,58 +46,124 @@ public class DeviceControlService {
     @Resource
     AgentWebSocketClientService agentWebSocketClientService;
     @Resource
-    DeviceTaskControlExecutor deviceTaskControlExecutor;
-    @Resource
     DeviceStabilityMonitor deviceStabilityMonitor;
     @Resource
     DeviceStatusListenerManager deviceStatusListenerManager;
+    // device states last sent to center <deviceSerial, fields>
+    private final Map<String, JSONObject> sentDeviceStates = new HashMap<>();
+    private long deviceStateSequence = 0;
+    private boolean fullDeviceStateRequired = true;
+    private volatile boolean deviceStateDiffEnabled = false;
 
     public Set<DeviceInfo> getAllConnectedDevice() {
         updateAllDeviceScope();
         return agentManagementService.getDeviceList(log);
     }
 
-    public void provideDeviceList(AgentUser.BatteryStrategy batteryStrategy) {
-        captureAllScreensSync(batteryStrategy);
+    /**
+     * Report the devices with their latest known screenshots, which are kept up to date by {@link DevicePreviewService}.
+     */
+    public void provideDeviceList() {
         Set<DeviceInfo> allConnectedDevices = getAllConnectedDevice();
         ArrayList<DeviceInfo> deviceInfos = new ArrayList<>(allConnectedDevices);
         deviceInfos.sort(Comparator.comparing(d -> d.getName() + d.getSerialNum()));
-        Message message = new Message();
-        message.setPath(Const.Path.DEVICE_LIST);
-        message.setBody(deviceInfos);
-        agentWebSocketClientService.send(message);
-        log.info("/api/device/list device SN: {}",
-                deviceInfos.stream().map(MobileDevice::getSerialNum).collect(Collectors.joining(",")));
+        sendDeviceState(deviceInfos);
     }
 
-    public void captureAllScreensSync(AgentUser.BatteryStrategy batteryStrategy) {
-        Set<DeviceInfo> allConnectedDevices = agentManagementService.getActiveDeviceList(log);
-        if (testDeviceManager instanceof WindowsTestDeviceManager) {
-            Assert.isTrue(allConnectedDevices.size() == 1, "expect only 1 device");
+    /**
+     * Send the full device list when the center needs it, otherwise only the fields changed since the last sent state.
+     */
+    private synchronized void sendDeviceState(List<DeviceInfo> deviceInfos) {
+        Map<String, JSONObject> latestDeviceStates = new HashMap<>();
+        for (DeviceInfo deviceInfo : deviceInfos) {
+            latestDeviceStates.put(deviceInfo.getSerialNum(), (JSONObject) JSON.toJSON(deviceInfo));
         }
-        captureDevicesScreenSync(allConnectedDevices, false, batteryStrategy);
+
+        if (!deviceStateDiffEnabled || fullDeviceStateRequired) {
+            deviceStateSequence++;
+            Message message = new Message();
+            message.setPath(Const.Path.DEVICE_LIST);
+            message.setBody(deviceInfos);
+            Map<String, Object> params = new HashMap<>();
+            params.put(Const.AgentConfig.DEVICE_STATE_SEQ_PARAM, deviceStateSequence);
+            message.setParams(params);
+            agentWebSocketClientService.send(message);
+            log.info("/api/device/list device SN: {}, sequence: {}",
+                    deviceInfos.stream().map(MobileDevice::getSerialNum).collect(Collectors.joining(",")), deviceStateSequence);
+        } else {
+            DeviceStateDiff diff = new DeviceStateDiff();
+            diff.setBaseSequence(deviceStateSequence);
+            for (Map.Entry<String, JSONObject> entry : latestDeviceStates.entrySet()) {
+                JSONObject previousState = sentDeviceStates.get(entry.getKey());
+                JSONObject changedFields = getChangedFields(previousState, entry.getValue());
+                if (!changedFields.isEmpty()) {
+                    diff.getChangedDevices().put(entry.getKey(), changedFields);
+                }
+                Set<String> clearedFields = getClearedFields(previousState, entry.getValue());
+                if (!clearedFields.isEmpty()) {
+                    diff.getClearedFields().put(entry.getKey(), clearedFields);
+                }
+            }
+            if (!diff.getChangedDevices().isEmpty() || !diff.getClearedFields().isEmpty()) {
+                deviceStateSequence++;
+                diff.setSequence(deviceStateSequence);
+                agentWebSocketClientService.send(Message.ok(Const.Path.DEVICE_DIFF, diff));
+                log.info("/api/device/diff device SN: {}, sequence: {}", String.join(",", diff.getChangedDevices().keySet()), deviceStateSequence);
+            }
+        }
+
+        sentDeviceStates.clear();
+        sentDeviceStates.putAll(latestDeviceStates);
+        fullDeviceStateRequired = false;
     }
 
-    private void captureDevicesScreenSync(Collection<DeviceInfo> allDevices, boolean logging,
-                                          AgentUser.BatteryStrategy batteryStrategy) {
-        DeviceTaskControl deviceTaskControl =
-                deviceTaskControlExecutor.runForAllDeviceAsync(allDevices, (deviceInfo, logger) -> {
-                    testDeviceManager.getScreenShotWithStrategy(deviceInfo, log, batteryStrategy);
-                    return true;
-                }, null, logging, true);
+    static JSONObject getChangedFields(JSONObject previousState, JSONObject latestState) {
+        if (previousState == null) {
+            return latestState;
+        }
+        JSONObject changedFields = new JSONObject();
+        for (Map.Entry<String, Object> field : latestState.entrySet()) {
+            if (!Objects.equals(previousState.get(field.getKey()), field.getValue())) {
+                changedFields.put(field.getKey(), field.getValue());
+            }
+        }
+        return changedFields;
+    }
 
-        if (deviceTaskControl == null) {
-            return;
+    // null values are dropped on the wire, so the fields set back to null are listed by name
+    static Set<String> getClearedFields(JSONObject previousState, JSONObject latestState) {
+        Set<String> clearedFields = new HashSet<>();
+        if (previousState == null) {
+            return clearedFields;
         }
+        for (Map.Entry<String, Object> field : previousState.entrySet()) {
+            if (field.getValue() != null && latestState.get(field.getKey()) == null) {
+                clearedFields.add(field.getKey());
+            }
+        }
+        return clearedFields;
+    }
 
-        CountDownLatch countDownLatch = deviceTaskControl.countDownLatch;
-        try {
-            countDownLatch.await();
-        } catch (InterruptedException e) {
-            log.error(e.getMessage(), e);
+    /**
+     * The next device state is sent as a full list, e.g. to the center of a new connection.
+     */
+    public synchronized void requestFullDeviceState() {
+        fullDeviceStateRequired = true;
+    }
+
+    /**
+     * @param centerSequence the latest device state sequence known by center, null if center lost track of it
+     */
+    public synchronized void onDeviceStateRequested(Long centerSequence) {
+        if (centerSequence == null || centerSequence != deviceStateSequence) {
+            fullDeviceStateRequired = true;
         }
     }
 
+    public void setDeviceStateDiffEnabled(boolean deviceStateDiffEnabled) {
+        this.deviceStateDiffEnabled = deviceStateDiffEnabled;
+    }
+
     private void updateAllDeviceScope() {
         List<MobileDevice> devices = mobileDeviceRepository.findAll();
         for (MobileDevice device : devices) {
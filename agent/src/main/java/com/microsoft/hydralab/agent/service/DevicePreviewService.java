@@ -0,0 +1,83 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.agent.service;
+
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.management.AgentManagementService;
+import com.microsoft.hydralab.common.management.device.TestDeviceManager;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the device screenshots shown on center up to date in the background, so that reporting the device list
+ * never waits for a capture. Idle devices are captured at the pace of the battery strategy, devices under test
+ * at least every {@link #TESTING_PREVIEW_INTERVAL_SECONDS}. Unchanged screenshots are not uploaded again,
+ * see {@link TestDeviceManager#uploadScreenshotIfChanged}.
+ */
+@Service
+public class DevicePreviewService {
+    @SuppressWarnings("constantname")
+    static final Logger log = LoggerFactory.getLogger(DevicePreviewService.class);
+    static final int TESTING_PREVIEW_INTERVAL_SECONDS = 15;
+    // devices without a preview yet are retried at this pace
+    static final int FAILED_PREVIEW_RETRY_SECONDS = 30;
+    @Resource
+    AgentManagementService agentManagementService;
+    @Resource
+    TestDeviceManager testDeviceManager;
+    Executor previewExecutor = ThreadPoolUtil.SCREENSHOT_EXECUTOR;
+    private final Set<String> capturingDevices = ConcurrentHashMap.newKeySet();
+    // <deviceSerial, start time of the last capture>
+    private final Map<String, Long> lastCaptureTimes = new ConcurrentHashMap<>();
+    private volatile AgentUser.BatteryStrategy batteryStrategy;
+
+    public void setBatteryStrategy(AgentUser.BatteryStrategy batteryStrategy) {
+        this.batteryStrategy = batteryStrategy;
+    }
+
+    /**
+     * Start capturing the devices whose preview is due, without waiting for the captures to finish.
+     */
+    public void refreshPreviews() {
+        long now = System.currentTimeMillis();
+        for (DeviceInfo deviceInfo : agentManagementService.getActiveDeviceList(log)) {
+            String serialNum = deviceInfo.getSerialNum();
+            long lastCaptureTime = Math.max(lastCaptureTimes.getOrDefault(serialNum, 0L), deviceInfo.getScreenshotUpdateTimeMilli());
+            if (!isPreviewDue(deviceInfo, batteryStrategy, lastCaptureTime, now) || !capturingDevices.add(serialNum)) {
+                continue;
+            }
+            lastCaptureTimes.put(serialNum, now);
+            previewExecutor.execute(() -> {
+                try {
+                    testDeviceManager.getScreenShot(deviceInfo, log);
+                } catch (Exception e) {
+                    log.warn("Failed to update the preview of device {}: {}", deviceInfo.getName(), e.getMessage());
+                } finally {
+                    capturingDevices.remove(serialNum);
+                }
+            });
+        }
+    }
+
+    static boolean isPreviewDue(DeviceInfo deviceInfo, AgentUser.BatteryStrategy batteryStrategy, long lastCaptureTime, long now) {
+        long intervalSeconds = batteryStrategy == null ? -1 : batteryStrategy.screenShotInterval;
+        if (deviceInfo.getScreenshotImageFile() == null || StringUtils.isEmpty(deviceInfo.getScreenshotImageUrl())) {
+            intervalSeconds = FAILED_PREVIEW_RETRY_SECONDS;
+        } else if (deviceInfo.isTesting() && (intervalSeconds <= 0 || intervalSeconds > TESTING_PREVIEW_INTERVAL_SECONDS)) {
+            intervalSeconds = TESTING_PREVIEW_INTERVAL_SECONDS;
+        }
+        return intervalSeconds > 0 && now - lastCaptureTime >= TimeUnit.SECONDS.toMillis(intervalSeconds);
+    }
+}
@@ -12,6 +12,7 @@ import com.microsoft.hydralab.common.entity.agent.DeviceTaskControl;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.entity.common.EntityType;
 import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
+import com.microsoft.hydralab.common.entity.common.TerminationPolicy;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
@@ -20,6 +21,7 @@ import com.microsoft.hydralab.common.util.AttachmentService;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.DateUtil;
 import com.microsoft.hydralab.common.util.FileUtil;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +38,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Service("TestTaskEngineService")
@@ -46,6 +50,7 @@ public class TestTaskEngineService implements TestTaskRunCallback {
     TestDataService testDataService;
     @SuppressWarnings("constantname")
     static final Logger log = LoggerFactory.getLogger(TestTaskEngineService.class);
+    private static final long TERMINATION_CHECK_INTERVAL_SECONDS = 5;
     @Resource
     ApplicationContext applicationContext;
     @Resource
@@ -72,6 +77,7 @@ public class TestTaskEngineService implements TestTaskRunCallback {
         Set<DeviceInfo> chosenDevices = chooseDevices(testTaskSpec, runner);
 
         onTaskStart(testTask);
+        ScheduledFuture<?> terminationCheck = scheduleTerminationCheck(testTask);
         DeviceTaskControl deviceTaskControl = deviceTaskControlExecutor.runForAllDeviceAsync(chosenDevices,
                 new DeviceTaskControlExecutor.DeviceTask() {
                     @Override
@@ -81,15 +87,24 @@ public class TestTaskEngineService implements TestTaskRunCallback {
                     }
                 },
                 () -> {
+                    if (terminationCheck != null) {
+                        terminationCheck.cancel(false);
+                    }
                     testTask.onFinished();
                     if (!testTask.isCanceled()) {
                         testTask.setStatus(TestTask.TestStatus.FINISHED);
                     }
+                    if (testTask.isTerminated()) {
+                        testTask.setTestErrorMsg("Terminated early: " + testTask.getTerminationReason());
+                    }
 
                     onTaskComplete(testTask);
                 });
 
         if (deviceTaskControl == null) {
+            if (terminationCheck != null) {
+                terminationCheck.cancel(false);
+            }
             testTask.setTestDevicesCount(0);
         } else {
             testTask.setTestDevicesCount(deviceTaskControl.devices.size());
@@ -166,6 +181,42 @@ public class TestTaskEngineService implements TestTaskRunCallback {
         return true;
     }
 
+    /**
+     * Stop the remaining tests of a task on the devices of this agent, the results of the tests run are still reported.
+     */
+    public boolean terminateTestTaskById(String testId, String reason) {
+        TestTask testTask = getRunningTestTask().get(testId);
+        if (testTask == null || testTask.isCanceled() || !testTask.terminate(reason)) {
+            return false;
+        }
+        log.warn("Terminate test task {}: {}", testId, reason);
+        // the test threads are interrupted and the running commands killed, the devices are released by the tear down
+        agentManagementService.getActiveDeviceList(log).stream()
+                .filter(deviceInfo -> testId.equals(deviceInfo.getRunningTaskId()))
+                .forEach(DeviceInfo::killAll);
+        return true;
+    }
+
+    private ScheduledFuture<?> scheduleTerminationCheck(TestTask testTask) {
+        TerminationPolicy terminationPolicy = testTask.getTerminationPolicy();
+        if (terminationPolicy == null || !terminationPolicy.hasRunLimit()) {
+            return null;
+        }
+        return ThreadPoolUtil.TIMER_EXECUTOR.scheduleWithFixedDelay(() -> {
+            int crashCount = 0;
+            int failCount = 0;
+            int testCount = 0;
+            // the runs are updated by the test threads meanwhile, the counts may be a bit behind
+            for (TestRun testRun : new ArrayList<>(testTask.getDeviceTestResults())) {
+                crashCount += testRun.getCrashCount();
+                failCount += testRun.getFailCount();
+                testCount += testRun.getTestUnitList().size();
+            }
+            // the limits are of the whole task, center sums up the counts of all the agents running it
+            onTaskProgress(testTask, crashCount, failCount, testCount);
+        }, TERMINATION_CHECK_INTERVAL_SECONDS, TERMINATION_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
     @Override
     public void onTaskStart(TestTask testTask) {
         fileLoadUtil.loadAttachments(testTask);
@@ -222,6 +273,13 @@ public class TestTaskEngineService implements TestTaskRunCallback {
         log.warn("device disconnected, test task {} will be re-queue, no data will be saved", testTask.getId());
     }
 
+    @Override
+    public void onTaskProgress(TestTask testTask, int crashCount, int failCount, int testCount) {
+        if (webSocketCallback != null) {
+            webSocketCallback.onTaskProgress(testTask, crashCount, failCount, testCount);
+        }
+    }
+
     private StorageFileInfo saveFileToBlob(File file, File folder, Logger logger) {
         StorageFileInfo storageFileInfo = new StorageFileInfo(file,
                 "test/result/" + folder.getParentFile().getName() + "/" + folder.getName(),
@@ -6,6 +6,7 @@ package com.microsoft.hydralab.agent.socket;
 import com.microsoft.hydralab.agent.service.AgentWebSocketClientService;
 import com.microsoft.hydralab.common.entity.common.Message;
 import com.microsoft.hydralab.common.util.Const;
+import com.microsoft.hydralab.common.util.MessageCodec;
 import com.microsoft.hydralab.common.util.SerializeUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.java_websocket.client.WebSocketClient;
@@ -22,12 +23,14 @@ public class AgentWebSocketClient extends WebSocketClient {
     private boolean connectionActive = false;
     private boolean shouldRetryConnection = true;
     private int reconnectTime = 0;
+    // every connection starts with the default codec until the center confirms another one in AGENT_INIT
+    private volatile MessageCodec messageCodec = SerializeUtil.DEFAULT_CODEC;
 
     public AgentWebSocketClient(URI serverUri, AgentWebSocketClientService agentWebSocketClientService) {
         super(serverUri);
         this.agentWebSocketClientService = agentWebSocketClientService;
         agentWebSocketClientService.setSendMessageCallback(message -> {
-            byte[] data = SerializeUtil.messageToByteArr(message);
+            byte[] data = SerializeUtil.messageToByteArr(message, messageCodec);
             log.info("send, path: {}, message data len: {}", message.getPath(), data.length);
             AgentWebSocketClient.this.send(data);
         });
@@ -36,6 +39,7 @@ public class AgentWebSocketClient extends WebSocketClient {
     @Override
     public void onOpen(ServerHandshake handShakeData) {
         connectionActive = true;
+        messageCodec = SerializeUtil.DEFAULT_CODEC;
         log.info("onOpen message {}, {}", handShakeData.getHttpStatus(), handShakeData.getHttpStatusMessage());
     }
 
@@ -83,4 +87,8 @@ public class AgentWebSocketClient extends WebSocketClient {
     public int getReconnectTime() {
         return reconnectTime;
     }
+
+    public void setMessageCodec(MessageCodec messageCodec) {
+        this.messageCodec = messageCodec;
+    }
 }
@@ -0,0 +1,60 @@
+package com.microsoft.hydralab.agent.runner;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DeviceLaneExecutorTest {
+    private final List<Runnable> poolQueue = new ArrayList<>();
+    private final List<String> executed = new ArrayList<>();
+    private final DeviceLaneExecutor deviceLaneExecutor = new DeviceLaneExecutor(poolQueue::add);
+
+    @Test
+    void testLanesRunInOrderAndTakeTurns() {
+        submit("A", "a1");
+        submit("A", "a2");
+        submit("A", "a3");
+        submit("B", "b1");
+        // a lane occupies at most one slot of the pool
+        Assertions.assertEquals(2, poolQueue.size());
+        Assertions.assertEquals(4, deviceLaneExecutor.getQueueDepth());
+
+        runQueuedLanes();
+        Assertions.assertEquals(List.of("a1", "b1", "a2", "a3"), executed);
+        Assertions.assertEquals(0, deviceLaneExecutor.getQueueDepth());
+        Assertions.assertEquals(0, deviceLaneExecutor.getActiveLaneCount());
+
+        // a drained lane is started again by the next task
+        submit("A", "a4");
+        Assertions.assertEquals(1, poolQueue.size());
+        runQueuedLanes();
+        Assertions.assertEquals("a4", executed.get(executed.size() - 1));
+    }
+
+    @Test
+    void testFailedTaskDoesNotBlockLane() {
+        deviceLaneExecutor.execute("A", () -> {
+            Assertions.assertEquals(1, deviceLaneExecutor.getActiveLaneCount());
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("device offline");
+        });
+        deviceLaneExecutor.execute("A", () -> {
+            Assertions.assertFalse(Thread.currentThread().isInterrupted());
+            executed.add("a2");
+        });
+        runQueuedLanes();
+        Assertions.assertEquals(List.of("a2"), executed);
+    }
+
+    private void submit(String lane, String name) {
+        deviceLaneExecutor.execute(lane, () -> executed.add(name));
+    }
+
+    private void runQueuedLanes() {
+        while (!poolQueue.isEmpty()) {
+            poolQueue.remove(0).run();
+        }
+    }
+}
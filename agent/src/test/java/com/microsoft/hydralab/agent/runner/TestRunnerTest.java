@@ -5,18 +5,27 @@ import com.microsoft.hydralab.agent.test.BaseTest;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.management.AgentManagementService;
+import com.microsoft.hydralab.common.management.device.TestDeviceManager;
+import com.microsoft.hydralab.performance.PerformanceTestManagementService;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mockito;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Resource;
 import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TestRunnerTest extends BaseTest {
     @Resource
     EspressoRunner espressoRunner;
+    @Resource
+    AgentManagementService agentManagementService;
+    @Resource
+    PerformanceTestManagementService performanceTestManagementService;
     final Logger logger = LoggerFactory.getLogger(TestRunnerTest.class);
 
     @Test
@@ -40,4 +49,45 @@ public class TestRunnerTest extends BaseTest {
 
         Assertions.assertTrue(new File(testRun.getInstrumentReportPath()).exists());
     }
+
+    @Test
+    public void runTestOnDeviceTearsDownWithTestRunContext(@TempDir File resourceDir) {
+        TestDeviceManager testDeviceManager = Mockito.mock(TestDeviceManager.class);
+        DeviceInfo deviceInfo = Mockito.mock(DeviceInfo.class);
+        Mockito.when(deviceInfo.getSerialNum()).thenReturn("serial");
+        Mockito.when(deviceInfo.getName()).thenReturn("Name");
+        Mockito.when(deviceInfo.getTestDeviceManager()).thenReturn(testDeviceManager);
+        TestTaskRunCallback testTaskRunCallback = Mockito.mock(TestTaskRunCallback.class);
+
+        TestTask testTask = new TestTask();
+        testTask.setId("task");
+        testTask.setResourceDir(resourceDir);
+        testTask.setTestSuite("TestSuite");
+        testTask.setTimeOutSecond(60);
+
+        AtomicReference<ITestRun> runContext = new AtomicReference<>();
+        TestRunner testRunner = new TestRunner(agentManagementService, testTaskRunCallback, performanceTestManagementService) {
+            @Override
+            protected void reInstallApp(DeviceInfo deviceInfo, TestTask testTask, Logger reportLogger) {
+            }
+
+            @Override
+            protected void reInstallTestApp(DeviceInfo deviceInfo, TestTask testTask, Logger reportLogger) {
+            }
+
+            @Override
+            protected void run(DeviceInfo deviceInfo, TestTask testTask, TestRun testRun) {
+                runContext.set(TestRunThreadContext.getTestRun());
+            }
+        };
+        testRunner.runTestOnDevice(testTask, deviceInfo, logger);
+
+        TestRun testRun = testTask.getDeviceTestResults().get(0);
+        Assertions.assertSame(testRun, runContext.get());
+        Assertions.assertNull(testRun.getErrorInProcess());
+        // the performance tear down found the test run, so the device was unset and reported
+        Mockito.verify(testDeviceManager).testDeviceUnset(Mockito.eq(deviceInfo), Mockito.any());
+        Mockito.verify(testTaskRunCallback).onOneDeviceComplete(Mockito.eq(testTask), Mockito.eq(deviceInfo), Mockito.any(), Mockito.eq(testRun));
+        Assertions.assertNull(TestRunThreadContext.getTestRun());
+    }
 }
@@ -0,0 +1,110 @@
+package com.microsoft.hydralab.agent.service;
+
+import com.microsoft.hydralab.agent.repository.MobileDeviceRepository;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.DeviceStateDiff;
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.management.AgentManagementService;
+import com.microsoft.hydralab.common.management.device.TestDeviceManager;
+import com.microsoft.hydralab.common.util.Const;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeviceControlServiceTest {
+    private final Set<DeviceInfo> devices = new HashSet<>();
+    private DeviceControlService deviceControlService;
+    private AgentWebSocketClientService agentWebSocketClientService;
+
+    @BeforeEach
+    void setUp() {
+        AgentManagementService agentManagementService = Mockito.mock(AgentManagementService.class);
+        when(agentManagementService.getDeviceList(any())).thenReturn(devices);
+        MobileDeviceRepository mobileDeviceRepository = Mockito.mock(MobileDeviceRepository.class);
+        when(mobileDeviceRepository.findAll()).thenReturn(new ArrayList<>());
+        agentWebSocketClientService = Mockito.mock(AgentWebSocketClientService.class);
+
+        deviceControlService = new DeviceControlService();
+        deviceControlService.agentManagementService = agentManagementService;
+        deviceControlService.mobileDeviceRepository = mobileDeviceRepository;
+        deviceControlService.agentWebSocketClientService = agentWebSocketClientService;
+        deviceControlService.testDeviceManager = Mockito.mock(TestDeviceManager.class);
+
+        for (int i = 0; i < 50; i++) {
+            DeviceInfo deviceInfo = new DeviceInfo();
+            deviceInfo.setSerialNum("serial-" + i);
+            deviceInfo.setName("Pixel " + i);
+            deviceInfo.setStatus(DeviceInfo.ONLINE);
+            deviceInfo.setRunningTestName("testCase" + i);
+            devices.add(deviceInfo);
+        }
+    }
+
+    @Test
+    void testDeviceStateDiff() {
+        deviceControlService.setDeviceStateDiffEnabled(true);
+        deviceControlService.provideDeviceList();
+        Message full = getLastSentMessage();
+        Assertions.assertEquals(Const.Path.DEVICE_LIST, full.getPath());
+        Assertions.assertEquals(1L, full.getParams().get(Const.AgentConfig.DEVICE_STATE_SEQ_PARAM));
+        Assertions.assertEquals(50, ((List<?>) full.getBody()).size());
+
+        // nothing changed, nothing to send
+        deviceControlService.provideDeviceList();
+        verify(agentWebSocketClientService, Mockito.times(1)).send(any(Message.class));
+
+        DeviceInfo changedDevice = devices.stream().filter(d -> "serial-7".equals(d.getSerialNum())).findFirst().get();
+        changedDevice.setStatus(DeviceInfo.OFFLINE);
+        changedDevice.setRunningTestName(null);
+        deviceControlService.provideDeviceList();
+        Message diffMessage = getLastSentMessage();
+        Assertions.assertEquals(Const.Path.DEVICE_DIFF, diffMessage.getPath());
+        DeviceStateDiff diff = (DeviceStateDiff) diffMessage.getBody();
+        Assertions.assertEquals(1, diff.getBaseSequence());
+        Assertions.assertEquals(2, diff.getSequence());
+        Assertions.assertEquals(Set.of("serial-7"), diff.getChangedDevices().keySet());
+        Assertions.assertEquals(DeviceInfo.OFFLINE, diff.getChangedDevices().get("serial-7").getString("status"));
+        Assertions.assertFalse(diff.getChangedDevices().get("serial-7").containsKey("serialNum"));
+        Assertions.assertEquals(Set.of("runningTestName"), diff.getClearedFields().get("serial-7"));
+
+        // center is in sync, so a list request is answered with a diff
+        deviceControlService.onDeviceStateRequested(2L);
+        changedDevice.setStatus(DeviceInfo.ONLINE);
+        deviceControlService.provideDeviceList();
+        Assertions.assertEquals(Const.Path.DEVICE_DIFF, getLastSentMessage().getPath());
+
+        // center lost track of the state
+        deviceControlService.onDeviceStateRequested(null);
+        deviceControlService.provideDeviceList();
+        Message resent = getLastSentMessage();
+        Assertions.assertEquals(Const.Path.DEVICE_LIST, resent.getPath());
+        Assertions.assertEquals(4L, resent.getParams().get(Const.AgentConfig.DEVICE_STATE_SEQ_PARAM));
+    }
+
+    @Test
+    void testFullListWithoutDiffSupport() {
+        deviceControlService.provideDeviceList();
+        deviceControlService.provideDeviceList();
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(agentWebSocketClientService, Mockito.times(2)).send(captor.capture());
+        captor.getAllValues().forEach(message -> Assertions.assertEquals(Const.Path.DEVICE_LIST, message.getPath()));
+    }
+
+    private Message getLastSentMessage() {
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(agentWebSocketClientService, atLeast(1)).send(captor.capture());
+        return captor.getValue();
+    }
+}
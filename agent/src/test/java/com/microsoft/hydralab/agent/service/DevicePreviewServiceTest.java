@@ -0,0 +1,96 @@
+package com.microsoft.hydralab.agent.service;
+
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.management.AgentManagementService;
+import com.microsoft.hydralab.common.management.device.TestDeviceManager;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DevicePreviewServiceTest {
+    private final Set<DeviceInfo> devices = new HashSet<>();
+    private final List<Runnable> pendingCaptures = new ArrayList<>();
+    private DevicePreviewService devicePreviewService;
+    private TestDeviceManager testDeviceManager;
+
+    @BeforeEach
+    void setUp() {
+        AgentManagementService agentManagementService = Mockito.mock(AgentManagementService.class);
+        when(agentManagementService.getActiveDeviceList(any())).thenReturn(devices);
+        testDeviceManager = Mockito.mock(TestDeviceManager.class);
+
+        devicePreviewService = new DevicePreviewService();
+        devicePreviewService.agentManagementService = agentManagementService;
+        devicePreviewService.testDeviceManager = testDeviceManager;
+        devicePreviewService.previewExecutor = pendingCaptures::add;
+    }
+
+    @Test
+    void testPreviewInterval() {
+        long now = System.currentTimeMillis();
+        DeviceInfo device = getDeviceWithPreview("serial");
+        long oneMinuteAgo = now - TimeUnit.MINUTES.toMillis(1);
+        Assertions.assertFalse(DevicePreviewService.isPreviewDue(device, AgentUser.BatteryStrategy.Normal, oneMinuteAgo, now));
+        Assertions.assertTrue(DevicePreviewService.isPreviewDue(device, AgentUser.BatteryStrategy.Aggressive, oneMinuteAgo, now));
+        Assertions.assertFalse(DevicePreviewService.isPreviewDue(device, AgentUser.BatteryStrategy.Economic, 0, now));
+        Assertions.assertFalse(DevicePreviewService.isPreviewDue(device, null, 0, now));
+
+        device.setStatus(DeviceInfo.TESTING);
+        Assertions.assertTrue(DevicePreviewService.isPreviewDue(device, AgentUser.BatteryStrategy.Economic, oneMinuteAgo, now));
+        Assertions.assertFalse(DevicePreviewService.isPreviewDue(device, AgentUser.BatteryStrategy.Economic, now - 1000, now));
+
+        DeviceInfo newDevice = new DeviceInfo();
+        newDevice.setSerialNum("new");
+        Assertions.assertTrue(DevicePreviewService.isPreviewDue(newDevice, AgentUser.BatteryStrategy.Economic, 0, now));
+        Assertions.assertFalse(DevicePreviewService.isPreviewDue(newDevice, AgentUser.BatteryStrategy.Economic, now - 1000, now));
+    }
+
+    @Test
+    void testRefreshPreviews() throws Exception {
+        DeviceInfo idleDevice = getDeviceWithPreview("idle");
+        idleDevice.setScreenshotUpdateTimeMilli(System.currentTimeMillis());
+        DeviceInfo newDevice = new DeviceInfo();
+        newDevice.setSerialNum("new");
+        devices.add(idleDevice);
+        devices.add(newDevice);
+        devicePreviewService.setBatteryStrategy(AgentUser.BatteryStrategy.Normal);
+
+        devicePreviewService.refreshPreviews();
+        Assertions.assertEquals(1, pendingCaptures.size());
+        // a device is never captured twice at the same time
+        devicePreviewService.refreshPreviews();
+        Assertions.assertEquals(1, pendingCaptures.size());
+
+        when(testDeviceManager.getScreenShot(eq(newDevice), any())).thenThrow(new IllegalStateException("adb failure"));
+        pendingCaptures.remove(0).run();
+        verify(testDeviceManager, times(1)).getScreenShot(eq(newDevice), any());
+        verify(testDeviceManager, times(0)).getScreenShot(eq(idleDevice), any());
+        // a failed capture is retried later, not on every refresh
+        devicePreviewService.refreshPreviews();
+        Assertions.assertTrue(pendingCaptures.isEmpty());
+    }
+
+    private DeviceInfo getDeviceWithPreview(String serialNum) {
+        DeviceInfo device = new DeviceInfo();
+        device.setSerialNum(serialNum);
+        device.setStatus(DeviceInfo.ONLINE);
+        device.setScreenshotImageFile(new File(serialNum + ".jpg"));
+        device.setScreenshotImageUrl("https://storage/" + serialNum + ".jpg");
+        return device;
+    }
+}
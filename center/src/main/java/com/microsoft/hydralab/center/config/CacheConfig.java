@@ -0,0 +1,118 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.config;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.microsoft.hydralab.center.repository.DeviceGroupRelationRepository;
+import com.microsoft.hydralab.center.service.DeviceGroupService;
+import com.microsoft.hydralab.center.util.MetricUtil;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.support.SimpleCacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches bounded by the estimated size of their entries rather than by their number, a task with thousands of
+ * units weighs as much as thousands of small entries. The hits, misses, evictions and load times of each cache are
+ * exported as metrics.
+ */
+@Configuration
+@Slf4j
+public class CacheConfig {
+    // a cache with a refresh time is reloaded by the bean named after it with this suffix
+    static final String LOADER_SUFFIX = "Loader";
+    private static final int OBJECT_BYTES = 256;
+    private static final int TASK_BYTES = 2048;
+    private static final int RUN_BYTES = 2048;
+    private static final int UNIT_BYTES = 1024;
+
+    @Bean
+    public CacheManager cacheManager(CacheProperty cacheProperty, MetricUtil metricUtil, ListableBeanFactory beanFactory) {
+        List<CaffeineCache> caches = new ArrayList<>();
+        for (Map.Entry<String, CacheProperty.Spec> entry : cacheProperty.getSpecs().entrySet()) {
+            CacheLoader<Object, Object> cacheLoader = getCacheLoader(beanFactory, entry.getKey());
+            CaffeineCache cache = buildCache(entry.getKey(), entry.getValue(), cacheLoader);
+            metricUtil.registerCacheMetrics(entry.getKey(), cache.getNativeCache());
+            caches.add(cache);
+        }
+        SimpleCacheManager cacheManager = new SimpleCacheManager();
+        cacheManager.setCaches(caches);
+        return cacheManager;
+    }
+
+    @Bean
+    public CacheLoader<Object, Object> groupCacheLoader(DeviceGroupRelationRepository deviceGroupRelationRepository) {
+        return key -> deviceGroupRelationRepository.findAllByDeviceSerial(((String) key).substring(DeviceGroupService.GROUP_CACHE_KEY_PREFIX.length()));
+    }
+
+    static CaffeineCache buildCache(String name, CacheProperty.Spec spec, CacheLoader<Object, Object> cacheLoader) {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                .maximumWeight(spec.getMaximumWeight().toBytes())
+                .weigher((key, value) -> estimateSize(value))
+                .recordStats();
+        if (spec.getExpireAfterAccess() != null) {
+            builder.expireAfterAccess(spec.getExpireAfterAccess());
+        }
+        if (spec.getExpireAfterWrite() != null) {
+            builder.expireAfterWrite(spec.getExpireAfterWrite());
+        }
+        if (spec.getRefreshAfterWrite() == null) {
+            return new CaffeineCache(name, builder.build());
+        }
+        if (cacheLoader == null) {
+            log.warn("Cache {} has no {} bean to refresh its entries, the refresh time is ignored", name, name + LOADER_SUFFIX);
+            return new CaffeineCache(name, builder.build());
+        }
+        // the entries are reloaded asynchronously, the old value is served until the new one is loaded
+        builder.refreshAfterWrite(spec.getRefreshAfterWrite());
+        return new CaffeineCache(name, builder.build(cacheLoader));
+    }
+
+    /**
+     * A rough size in bytes of a cached value, only its order of magnitude matters.
+     */
+    static int estimateSize(Object value) {
+        if (value instanceof TestTask) {
+            long size = TASK_BYTES;
+            for (TestRun testRun : ((TestTask) value).getDeviceTestResults()) {
+                size += RUN_BYTES + (long) testRun.getTestUnitList().size() * UNIT_BYTES;
+                if (testRun.getCrashStack() != null) {
+                    size += testRun.getCrashStack().length() * 2L;
+                }
+            }
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+        if (value instanceof Collection) {
+            long size = OBJECT_BYTES;
+            for (Object element : (Collection<?>) value) {
+                size += estimateSize(element);
+            }
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+        if (value instanceof String) {
+            return OBJECT_BYTES + ((String) value).length() * 2;
+        }
+        return OBJECT_BYTES;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CacheLoader<Object, Object> getCacheLoader(ListableBeanFactory beanFactory, String cacheName) {
+        String beanName = cacheName + LOADER_SUFFIX;
+        if (!beanFactory.containsBean(beanName)) {
+            return null;
+        }
+        return beanFactory.getBean(beanName, CacheLoader.class);
+    }
+}
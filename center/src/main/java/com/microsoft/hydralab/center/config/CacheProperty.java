@@ -0,0 +1,33 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.config;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "app.cache")
+@Component
+public class CacheProperty {
+    private Map<String, Spec> specs = new LinkedHashMap<>();
+
+    @Data
+    public static class Spec {
+        // the estimated size in memory of all the entries
+        private DataSize maximumWeight = DataSize.ofMegabytes(16);
+        private Duration expireAfterAccess;
+        private Duration expireAfterWrite;
+        // reloaded in the background once older, only for the caches with a loader
+        private Duration refreshAfterWrite;
+    }
+}
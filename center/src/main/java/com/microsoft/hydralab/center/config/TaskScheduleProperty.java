@@ -0,0 +1,40 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.config;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "app.task-schedule")
+@Component
+public class TaskScheduleProperty {
+    // of the teams not listed
+    private TeamShare defaults = new TeamShare();
+    // by team name, as people know the teams. The queue and the running devices are counted by team id, so a renamed
+    // team keeps its place and its devices, but gets the defaults until it is listed here under its new name
+    private Map<String, TeamShare> teams = new LinkedHashMap<>();
+
+    public TeamShare getTeamShare(String teamName) {
+        if (teamName == null) {
+            return defaults;
+        }
+        return teams.getOrDefault(teamName, defaults);
+    }
+
+    @Data
+    public static class TeamShare {
+        // relative to the other teams, a team of weight 2 gets twice the devices of a team of weight 1 when both wait
+        private double weight = 1;
+        // devices running the tasks of the team at the same time, 0 for no limit
+        private int maxRunningDevices;
+    }
+}
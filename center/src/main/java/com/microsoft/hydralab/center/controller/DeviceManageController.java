@@ -3,6 +3,7 @@
 
 package com.microsoft.hydralab.center.controller;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.alibaba.fastjson.JSONObject;
 import com.microsoft.hydralab.center.service.AgentManageService;
 import com.microsoft.hydralab.center.service.DeviceAgentManagementService;
@@ -57,18 +58,21 @@ public class DeviceManageController {
         deviceAgentManagementService.requestAllAgentDeviceListUpdate();
         List<AgentDeviceGroup> deviceGroupList = deviceAgentManagementService.getAgentDeviceGroups();
         if (!sysUserService.checkUserAdmin(requestor)) {
-            deviceGroupList.forEach(agentDeviceGroup -> {
-                if (!userTeamManagementService.checkRequestorTeamRelation(requestor, agentDeviceGroup.getTeamId())) {
-                    List<DeviceInfo> devices = agentDeviceGroup.getDevices();
-                    List<DeviceInfo> newDevices = new ArrayList<>();
-                    devices.forEach(device -> {
-                        if (!device.getIsPrivate()) {
-                            newDevices.add(device);
-                        }
-                    });
-                    agentDeviceGroup.setDevices(newDevices);
+            // the listed agents are shared, filter the devices on a copy
+            deviceGroupList = deviceGroupList.stream().map(agentDeviceGroup -> {
+                if (userTeamManagementService.checkRequestorTeamRelation(requestor, agentDeviceGroup.getTeamId())) {
+                    return agentDeviceGroup;
                 }
-            });
+                List<DeviceInfo> newDevices = new ArrayList<>();
+                agentDeviceGroup.getDevices().forEach(device -> {
+                    if (!device.getIsPrivate()) {
+                        newDevices.add(device);
+                    }
+                });
+                AgentDeviceGroup filteredAgentDeviceGroup = BeanUtil.copyProperties(agentDeviceGroup, AgentDeviceGroup.class);
+                filteredAgentDeviceGroup.setDevices(newDevices);
+                return filteredAgentDeviceGroup;
+            }).collect(Collectors.toList());
         }
         deviceGroupList = deviceGroupList.stream()
                 .filter(agentDeviceGroup -> agentDeviceGroup.getDevices() != null && agentDeviceGroup.getDevices().size() > 0)
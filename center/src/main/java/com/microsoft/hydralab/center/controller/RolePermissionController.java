@@ -3,6 +3,7 @@
 
 package com.microsoft.hydralab.center.controller;
 
+import com.microsoft.hydralab.center.service.AuthTokenService;
 import com.microsoft.hydralab.center.service.RolePermissionManagementService;
 import com.microsoft.hydralab.center.service.SecurityUserService;
 import com.microsoft.hydralab.center.service.SysPermissionService;
@@ -40,6 +41,8 @@ public class RolePermissionController {
     RolePermissionManagementService rolePermissionManagementService;
     @Resource
     SecurityUserService securityUserService;
+    @Resource
+    AuthTokenService authTokenService;
 
     @PreAuthorize("hasAnyAuthority('SUPER_ADMIN','ADMIN')")
     @PostMapping(value = {"/api/role/create"}, produces = MediaType.APPLICATION_JSON_VALUE)
@@ -122,6 +125,7 @@ public class RolePermissionController {
         }
 
         sysRoleService.updateRole(sysRole);
+        authTokenService.invalidateAllAuthentication();
         return Result.ok(sysRole);
     }
 
@@ -173,6 +177,7 @@ public class RolePermissionController {
         }
 
         sysPermissionService.deletePermission(permission);
+        authTokenService.invalidateAllAuthentication();
         return Result.ok("Delete Permission success!");
     }
 
@@ -197,6 +202,7 @@ public class RolePermissionController {
         }
 
         sysPermissionService.updatePermission(permission);
+        authTokenService.invalidateAllAuthentication();
         return Result.ok(permission);
     }
 
@@ -222,7 +228,9 @@ public class RolePermissionController {
             return Result.error(HttpStatus.FORBIDDEN.value(), "Relation exists.");
         }
 
-        return Result.ok(rolePermissionManagementService.addRolePermissionRelation(roleId, permissionId));
+        RolePermissionRelation newRelation = rolePermissionManagementService.addRolePermissionRelation(roleId, permissionId);
+        authTokenService.invalidateAllAuthentication();
+        return Result.ok(newRelation);
     }
 
     @PreAuthorize("hasAnyAuthority('SUPER_ADMIN','ADMIN')")
@@ -242,6 +250,7 @@ public class RolePermissionController {
         }
 
         rolePermissionManagementService.deleteRolePermissionRelation(relation);
+        authTokenService.invalidateAllAuthentication();
         return Result.ok("delete role-permission relation success!");
     }
 
@@ -4,10 +4,12 @@
 package com.microsoft.hydralab.center.controller;
 
 import com.azure.core.annotation.QueryParam;
+import com.microsoft.hydralab.center.service.LocalStorageUploadService;
 import com.microsoft.hydralab.center.service.StorageTokenManageService;
 import com.microsoft.hydralab.center.util.LocalStorageIOUtil;
 import com.microsoft.hydralab.common.entity.agent.Result;
 import com.microsoft.hydralab.common.entity.center.SysUser;
+import com.microsoft.hydralab.common.file.impl.local.ChunkedUpload;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
 import com.microsoft.hydralab.common.util.LogUtils;
@@ -18,6 +20,7 @@ import org.springframework.security.core.annotation.CurrentSecurityContext;
 import org.springframework.util.AntPathMatcher;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -42,6 +45,8 @@ public class StorageController {
 
     @javax.annotation.Resource
     private StorageTokenManageService storageTokenManageService;
+    @javax.annotation.Resource
+    private LocalStorageUploadService localStorageUploadService;
 
     @PostMapping(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD)
     public Result uploadFile(HttpServletRequest request,
@@ -75,7 +80,65 @@ public class StorageController {
     }
 
 
-    // used by center/agent
+    // chunked upload used by center/agent: initiate (or resume), PUT the chunks, then commit
+    @PostMapping(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD_INITIATE)
+    public Result<ChunkedUpload> initiateUpload(HttpServletRequest request,
+                                                @RequestParam("fileUri") String fileUri,
+                                                @RequestParam("size") long size) {
+        Result<ChunkedUpload> authError = checkStorageAccess(request);
+        if (authError != null) {
+            return authError;
+        }
+        if (!LogUtils.isLegalStr(fileUri, Const.RegexString.STORAGE_FILE_REL_PATH, false)) {
+            return Result.error(HttpStatus.BAD_REQUEST.value(), "Invalid file path!");
+        }
+
+        try {
+            return Result.ok(localStorageUploadService.initiate(fileUri, size));
+        } catch (HydraLabRuntimeException e) {
+            logger.error(e.getMessage(), e);
+            return Result.error(e.getCode(), e.getMessage());
+        }
+    }
+
+    @PutMapping(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD_CHUNK)
+    public Result<Long> uploadChunk(HttpServletRequest request,
+                                    @RequestParam("uploadId") String uploadId,
+                                    @RequestParam("offset") long offset) {
+        Result<Long> authError = checkStorageAccess(request);
+        if (authError != null) {
+            return authError;
+        }
+
+        try {
+            localStorageUploadService.writeChunk(uploadId, offset, request.getHeader("Content-MD5"), request.getInputStream());
+        } catch (HydraLabRuntimeException e) {
+            logger.error(e.getMessage(), e);
+            return Result.error(e.getCode(), e.getMessage());
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return Result.error(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
+        }
+        return Result.ok(offset);
+    }
+
+    @PostMapping(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD_COMMIT)
+    public Result<String> commitUpload(HttpServletRequest request,
+                                       @RequestParam("uploadId") String uploadId) {
+        Result<String> authError = checkStorageAccess(request);
+        if (authError != null) {
+            return authError;
+        }
+
+        try {
+            return Result.ok(localStorageUploadService.commit(uploadId));
+        } catch (HydraLabRuntimeException e) {
+            logger.error(e.getMessage(), e);
+            return Result.error(e.getCode(), e.getMessage());
+        }
+    }
+
+    // used by center/agent, supports Range requests to resume a download
     @PostMapping(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_DOWNLOAD)
     public void postDownloadFile(HttpServletRequest request,
                                  HttpServletResponse response,
@@ -94,26 +157,20 @@ public class StorageController {
         }
 
         File file = new File(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT + fileUri);
-        if (!file.exists()) {
+        if (!file.isFile()) {
             throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), String.format("File %s not exist!", fileUri));
         }
 
-        response.reset();
-        response.setContentType("application/octet-stream");
-        response.setCharacterEncoding("utf-8");
-        response.setContentLength((int) file.length());
-        response.setHeader("Content-Disposition", "attachment;filename=" + file.getName());
-
-        int resLen;
+        long resLen;
         try {
-            resLen = LocalStorageIOUtil.copyDownloadedStreamToResponse(file, response.getOutputStream());
+            resLen = LocalStorageIOUtil.writeFileToResponse(file, request, response);
         } catch (IOException e) {
             throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
         }
         logger.info(String.format("Output file: %s , size: %d!", fileUri, resLen));
     }
 
-    // for front end to download file
+    // for front end to download file, supports Range requests for seeking in videos
     @GetMapping("/api/storage/local/download/**")
     public void getDownloadFile(HttpServletRequest request,
                                 HttpServletResponse response,
@@ -132,25 +189,30 @@ public class StorageController {
         }
 
         File file = new File(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT + fileUri);
-        if (!file.exists()) {
+        if (!file.isFile()) {
             throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), String.format("File %s not exist!", fileUri));
         }
 
-        response.reset();
-        response.setContentType("application/octet-stream");
-        response.setCharacterEncoding("utf-8");
-        response.setContentLength((int) file.length());
-        response.setHeader("Content-Disposition", "attachment;filename=" + file.getName());
-
-        int resLen;
+        long resLen;
         try {
-            resLen = LocalStorageIOUtil.copyDownloadedStreamToResponse(file, response.getOutputStream());
+            resLen = LocalStorageIOUtil.writeFileToResponse(file, request, response);
         } catch (IOException e) {
             throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
         }
         logger.info(String.format("Output file: %s , size: %d!", fileUri, resLen));
     }
 
+    private <T> Result<T> checkStorageAccess(HttpServletRequest request) {
+        String storageToken = request.getHeader("Authorization");
+        if (storageToken == null) {
+            return Result.error(HttpStatus.UNAUTHORIZED.value(), "Invalid visit with no auth code");
+        }
+        if (!storageTokenManageService.validateAccessToken(storageToken.replaceAll("Bearer ", ""))) {
+            return Result.error(HttpStatus.UNAUTHORIZED.value(), "Unauthorized, error access token for storage actions.");
+        }
+        return null;
+    }
+
     @GetMapping("/api/storage/getToken")
     public Result generateReadToken(@CurrentSecurityContext SysUser requestor) {
         if (requestor == null) {
@@ -6,6 +6,7 @@ package com.microsoft.hydralab.center.controller;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.microsoft.hydralab.center.service.DeviceAgentManagementService;
+import com.microsoft.hydralab.center.service.FailedTestRetryService;
 import com.microsoft.hydralab.center.service.SysUserService;
 import com.microsoft.hydralab.center.service.TestDataService;
 import com.microsoft.hydralab.center.service.TestFileSetService;
@@ -23,7 +24,6 @@ import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
 import com.microsoft.hydralab.common.util.LogUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.Page;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.security.core.annotation.CurrentSecurityContext;
@@ -38,7 +38,6 @@ import org.springframework.web.bind.annotation.RestController;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
 import java.util.UUID;
 
 @RestController
@@ -54,6 +53,8 @@ public class TestTaskController {
     @Resource
     TestFileSetService testFileSetService;
     @Resource
+    FailedTestRetryService failedTestRetryService;
+    @Resource
     SysUserService sysUserService;
     @Resource
     private UserTeamManagementService userTeamManagementService;
@@ -86,8 +87,10 @@ public class TestTaskController {
                 }
                 testTaskService.checkTestTaskTeamConsistency(testTaskSpec);
             }
-            //if the queue is not empty, the task will be added to the queue directly
-            if (testTaskService.isQueueEmpty() || testTaskService.isDeviceFree(testTaskSpec.deviceIdentifier)) {
+            failedTestRetryService.register(testTaskSpec);
+            //if the queue is not empty or the team is using up its devices, the task will be added to the queue directly
+            if ((testTaskService.isQueueEmpty() || testTaskService.isDeviceFree(testTaskSpec.deviceIdentifier))
+                    && testTaskService.isUnderDeviceQuota(testTaskSpec)) {
                 result = deviceAgentManagementService.runTestTaskBySpec(testTaskSpec);
                 if (result.get(Const.Param.TEST_DEVICE_SN) == null) {
                     //if there is no alive device, the task will be added to the queue directly
@@ -95,6 +98,7 @@ public class TestTaskController {
                 } else {
                     TestTask testTask = TestTask.convertToTestTask(testTaskSpec);
                     testTask.setTestDevicesCount(result.getString(Const.Param.TEST_DEVICE_SN).split(",").length);
+                    testTaskService.onTaskDispatched(testTaskSpec, testTask.getTestDevicesCount());
                     testDataService.saveTestTaskData(testTask);
                 }
             } else {
@@ -146,6 +150,8 @@ public class TestTaskController {
             result.put("message", "Current position in queue: " + queuedInfo.getQueuedInfo()[0]);
             result.put("status", TestTask.TestStatus.WAITING);
             result.put("retryTime", queuedInfo.getQueuedInfo()[1]);
+            result.put("teamQueuedIndex", queuedInfo.getTeamQueuedIndex());
+            result.put("expectedWaitSeconds", queuedInfo.getExpectedWaitSeconds());
             return Result.ok(result);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
@@ -167,20 +173,10 @@ public class TestTaskController {
             }
             boolean isAdmin = sysUserService.checkUserAdmin(requestor);
             List<TestTaskQueuedInfo> result = new ArrayList<>();
-            Queue<TestTaskSpec> taskQueueCopy = testTaskService.getTestQueueCopy();
-            int index = 0;
-            while (!taskQueueCopy.isEmpty()) {
-                index++;
-                TestTaskSpec temp = taskQueueCopy.poll();
-                if (!isAdmin && !requestor.getTeamAdminMap().keySet().contains(temp.teamId)) {
+            for (TestTaskQueuedInfo taskQueuedInfo : testTaskService.getTestQueuedInfoList()) {
+                if (!isAdmin && !requestor.getTeamAdminMap().keySet().contains(taskQueuedInfo.getTestTaskSpec().teamId)) {
                     continue;
                 }
-                TestTaskQueuedInfo taskQueuedInfo = new TestTaskQueuedInfo();
-                int[] queuedInfo = new int[]{
-                        index, temp.retryTime
-                };
-                taskQueuedInfo.setQueuedInfo(queuedInfo);
-                taskQueuedInfo.setTestTaskSpec(temp);
                 result.add(taskQueuedInfo);
             }
             return Result.ok(result);
@@ -197,7 +193,7 @@ public class TestTaskController {
      * 2) For the rest users, return data that is in the user's TEAMs
      */
     @PostMapping(value = {"/api/test/task/list"}, produces = MediaType.APPLICATION_JSON_VALUE)
-    public Result<Page<TestTask>> getTaskList(@CurrentSecurityContext SysUser requestor,
+    public Result<Object> getTaskList(@CurrentSecurityContext SysUser requestor,
                                               @RequestBody JSONObject data) {
         try {
             if (requestor == null) {
@@ -226,7 +222,13 @@ public class TestTaskController {
                 }
             }
 
+            // browsed by cursor once the request has one, null for the first page
+            if (data.containsKey("cursor")) {
+                return Result.ok(testDataService.getTestTasksAfter(data.getString("cursor"), pageSize, criteriaTypes, data.getBooleanValue("withCount")));
+            }
             return Result.ok(testDataService.getTestTasks(page, pageSize, criteriaTypes));
+        } catch (HydraLabRuntimeException e) {
+            return Result.error(e.getCode(), e);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             return Result.error(HttpStatus.INTERNAL_SERVER_ERROR.value(), e);
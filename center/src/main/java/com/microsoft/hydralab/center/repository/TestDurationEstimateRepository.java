@@ -0,0 +1,16 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.repository;
+
+import com.microsoft.hydralab.common.entity.center.TestDurationEstimate;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface TestDurationEstimateRepository extends JpaRepository<TestDurationEstimate, String> {
+    List<TestDurationEstimate> findByTestSuiteAndTestClassIn(String testSuite, Collection<String> testClasses);
+}
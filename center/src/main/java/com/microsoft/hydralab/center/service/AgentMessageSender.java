@@ -0,0 +1,222 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.util.Const;
+import com.microsoft.hydralab.common.util.GlobalConstant;
+import com.microsoft.hydralab.common.util.MessageCodec;
+import com.microsoft.hydralab.common.util.SerializeUtil;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.websocket.CloseReason;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the messages to the agents without blocking the caller: each session has its own queue, written one message
+ * at a time through the asynchronous remote. A pending heartbeat is replaced by the next one, and a session whose
+ * queue keeps growing is closed so that the agent reconnects.
+ */
+@Service
+@Slf4j
+public class AgentMessageSender {
+    // messages only worth sending in their latest version
+    private static final Set<String> COALESCED_PATHS = Set.of(Const.Path.HEARTBEAT);
+    private final ConcurrentHashMap<String, Outbound> outbounds = new ConcurrentHashMap<>();
+    @Resource
+    MeterRegistry meterRegistry;
+    @Value("${app.agent-message.max-backlog:256}")
+    int maxBacklog;
+    @Value("${app.agent-message.send-timeout-seconds:30}")
+    long sendTimeoutSeconds;
+    private Timer sendLatency;
+    private Counter coalescedCount;
+    private Counter evictedCount;
+
+    @PostConstruct
+    public void init() {
+        sendLatency = Timer.builder(GlobalConstant.PROMETHEUS_METRIC_WEBSOCKET_SEND_LATENCY)
+                .description("Time from queueing a message for an agent to its write completing")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        coalescedCount = meterRegistry.counter(GlobalConstant.PROMETHEUS_METRIC_WEBSOCKET_COALESCED_NUM);
+        evictedCount = meterRegistry.counter(GlobalConstant.PROMETHEUS_METRIC_WEBSOCKET_EVICTED_NUM);
+        meterRegistry.gauge(GlobalConstant.PROMETHEUS_METRIC_WEBSOCKET_BACKLOG, outbounds, AgentMessageSender::getBacklog);
+    }
+
+    public void send(Session session, MessageCodec codec, Message message) {
+        send(session, codec, message, null);
+    }
+
+    /**
+     * @param onSent run once the message is written, not if it is replaced by a newer one or the session is closed
+     */
+    public void send(Session session, MessageCodec codec, Message message, Runnable onSent) {
+        // serialized right away, the callers reuse and modify their messages
+        byte[] array = SerializeUtil.messageToByteArr(message, codec);
+        log.info("sendMessageToSession[{}], path: {}, message data len: {}", session.getId(), message.getPath(), array.length);
+        if (!session.isOpen()) {
+            log.warn("Session {} is closed, message {} is dropped", session.getId(), message.getPath());
+            return;
+        }
+        Outbound outbound = outbounds.computeIfAbsent(session.getId(), id -> new Outbound(session));
+        String coalesceKey = COALESCED_PATHS.contains(message.getPath()) ? message.getPath() : null;
+        outbound.enqueue(new Frame(ByteBuffer.wrap(array), coalesceKey, onSent));
+    }
+
+    public void remove(Session session) {
+        Outbound outbound = outbounds.remove(session.getId());
+        if (outbound != null) {
+            outbound.close();
+        }
+    }
+
+    private void evict(Outbound outbound, String reason) {
+        outbounds.remove(outbound.session.getId(), outbound);
+        outbound.close();
+        evictedCount.increment();
+        log.warn("Session {} is closed: {}", outbound.session.getId(), reason);
+        // closing writes to the connection as well, not on the sending thread
+        ThreadPoolUtil.TIMER_EXECUTOR.execute(() -> {
+            try {
+                outbound.session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, reason));
+            } catch (IOException e) {
+                log.warn("Failed to close session {}", outbound.session.getId(), e);
+            }
+        });
+    }
+
+    private static double getBacklog(ConcurrentHashMap<String, Outbound> outbounds) {
+        int backlog = 0;
+        for (Outbound outbound : outbounds.values()) {
+            backlog += outbound.getBacklog();
+        }
+        return backlog;
+    }
+
+    private static final class Frame {
+        final ByteBuffer data;
+        final String coalesceKey;
+        final Runnable onSent;
+        final long queuedTime = System.nanoTime();
+
+        Frame(ByteBuffer data, String coalesceKey, Runnable onSent) {
+            this.data = data;
+            this.coalesceKey = coalesceKey;
+            this.onSent = onSent;
+        }
+    }
+
+    private final class Outbound {
+        final Session session;
+        // guarded by this
+        private final List<Frame> pending = new LinkedList<>();
+        private boolean isWriting;
+        private boolean isClosed;
+
+        Outbound(Session session) {
+            this.session = session;
+            session.getAsyncRemote().setSendTimeout(TimeUnit.SECONDS.toMillis(sendTimeoutSeconds));
+        }
+
+        void enqueue(Frame frame) {
+            boolean isOverflowed;
+            Frame next = null;
+            synchronized (this) {
+                if (isClosed || replacePending(frame)) {
+                    return;
+                }
+                isOverflowed = pending.size() >= maxBacklog;
+                if (!isOverflowed) {
+                    pending.add(frame);
+                    next = pollNext();
+                }
+            }
+            if (isOverflowed) {
+                evict(this, "Too many pending messages, the agent is not reading them");
+            } else if (next != null) {
+                write(next);
+            }
+        }
+
+        // guarded by this
+        private boolean replacePending(Frame frame) {
+            if (frame.coalesceKey == null) {
+                return false;
+            }
+            ListIterator<Frame> iterator = pending.listIterator();
+            while (iterator.hasNext()) {
+                if (frame.coalesceKey.equals(iterator.next().coalesceKey)) {
+                    iterator.set(frame);
+                    coalescedCount.increment();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // guarded by this
+        private Frame pollNext() {
+            if (isWriting || isClosed) {
+                return null;
+            }
+            Frame next = pending.isEmpty() ? null : pending.remove(0);
+            isWriting = next != null;
+            return next;
+        }
+
+        private void write(Frame frame) {
+            try {
+                session.getAsyncRemote().sendBinary(frame.data, result -> onWritten(frame, result));
+            } catch (Exception e) {
+                onWritten(frame, new SendResult(e));
+            }
+        }
+
+        private void onWritten(Frame frame, SendResult result) {
+            sendLatency.record(System.nanoTime() - frame.queuedTime, TimeUnit.NANOSECONDS);
+            if (!result.isOK()) {
+                evict(this, "Failed to send message: " + result.getException());
+                return;
+            }
+            if (frame.onSent != null) {
+                frame.onSent.run();
+            }
+            Frame next;
+            synchronized (this) {
+                isWriting = false;
+                next = pollNext();
+            }
+            if (next != null) {
+                write(next);
+            }
+        }
+
+        synchronized int getBacklog() {
+            return pending.size();
+        }
+
+        synchronized void close() {
+            isClosed = true;
+            pending.clear();
+        }
+    }
+}
@@ -3,27 +3,58 @@
 
 package com.microsoft.hydralab.center.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.microsoft.hydralab.center.repository.AuthTokenRepository;
+import com.microsoft.hydralab.center.util.MetricUtil;
 import com.microsoft.hydralab.common.entity.center.AuthToken;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 
+/**
+ * The authentication of a bearer token is cached for a short time, the clients polling with the same token don't
+ * load the token, user, teams and permissions again on every request. The cached authentications are invalidated
+ * as soon as the token is deleted or the role, teams or permissions of its user change.
+ */
 @Service
 public class AuthTokenService {
-
+    static final String AUTH_TOKEN_CACHE_NAME = "authTokenCache";
+    private static final int AUTH_TOKEN_CACHE_SIZE = 10000;
     @Resource
     AuthTokenRepository authTokenRepository;
     @Resource
     SecurityUserService securityUserService;
+    @Resource
+    MetricUtil metricUtil;
+    @Value("${app.auth-token-cache.ttl-seconds:60}")
+    long authTokenCacheTtlSeconds;
+    // token to its authentication, empty for an unknown token
+    private Cache<String, Optional<Authentication>> authTokenCache;
+
+    @PostConstruct
+    public void init() {
+        authTokenCache = Caffeine.newBuilder()
+                .maximumSize(AUTH_TOKEN_CACHE_SIZE)
+                .expireAfterWrite(Duration.ofSeconds(authTokenCacheTtlSeconds))
+                .recordStats()
+                .build();
+        metricUtil.registerCacheMetrics(AUTH_TOKEN_CACHE_NAME, authTokenCache);
+    }
 
     public AuthToken saveAuthToken(AuthToken authToken) {
-        return authTokenRepository.save(authToken);
+        AuthToken savedAuthToken = authTokenRepository.save(authToken);
+        // an unknown token may have been cached before it was created
+        authTokenCache.invalidate(savedAuthToken.getToken());
+        return savedAuthToken;
     }
 
     public AuthToken getAuthToken(Long tokenId) {
@@ -36,6 +67,7 @@ public class AuthTokenService {
 
     public void deleteAuthToken(AuthToken authToken) {
         authTokenRepository.delete(authToken);
+        authTokenCache.invalidate(authToken.getToken());
     }
 
     public List<AuthToken> queryAuthTokenByName(String name) {
@@ -51,17 +83,35 @@ public class AuthTokenService {
     }
 
     public boolean checkAuthToken(String authToken) {
-        List<AuthToken> authTokens = authTokenRepository.queryByToken(authToken);
-        if (authTokens.size() > 0) {
-            Authentication authObj = securityUserService.loadUserAuthentication(authTokens.get(0).getCreator(), null);
-            if (authObj == null) {
-                return false;
-            }
-            SecurityContextHolder.getContext().setAuthentication(authObj);
-            return true;
-        } else {
+        Optional<Authentication> authObj = authTokenCache.get(authToken, this::loadAuthentication);
+        if (authObj.isEmpty()) {
             return false;
         }
+        SecurityContextHolder.getContext().setAuthentication(authObj.get());
+        return true;
+    }
+
+    private Optional<Authentication> loadAuthentication(String authToken) {
+        List<AuthToken> authTokens = authTokenRepository.queryByToken(authToken);
+        if (authTokens.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(securityUserService.loadUserAuthentication(authTokens.get(0).getCreator(), null));
+    }
+
+    /**
+     * Drop the cached authentications of the tokens created by the user, to be called once the role or teams of
+     * the user change.
+     */
+    public void invalidateUserAuthentication(String mailAddress) {
+        authTokenCache.asMap().values().removeIf(authObj -> authObj.isPresent() && mailAddress.equals(authObj.get().getPrincipal()));
+    }
+
+    /**
+     * Drop all the cached authentications, to be called once the permissions of a role change.
+     */
+    public void invalidateAllAuthentication() {
+        authTokenCache.invalidateAll();
     }
 
     public void loadDefaultUser(HttpSession session) {
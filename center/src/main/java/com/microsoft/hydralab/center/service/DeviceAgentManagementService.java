@@ -3,12 +3,13 @@
 
 package com.microsoft.hydralab.center.service;
 
-import cn.hutool.core.bean.BeanUtil;
+import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
 import com.microsoft.hydralab.center.repository.AgentUserRepository;
 import com.microsoft.hydralab.center.util.MetricUtil;
+import com.microsoft.hydralab.common.datasource.GroupCommitWriter;
 import com.microsoft.hydralab.common.entity.agent.MobileDevice;
 import com.microsoft.hydralab.common.entity.center.AgentDeviceGroup;
 import com.microsoft.hydralab.common.entity.center.DeviceGroup;
@@ -19,12 +20,15 @@ import com.microsoft.hydralab.common.entity.common.AgentMetadata;
 import com.microsoft.hydralab.common.entity.common.AgentUpdateTask;
 import com.microsoft.hydralab.common.entity.common.AgentUser;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.DeviceStateDiff;
 import com.microsoft.hydralab.common.entity.common.Message;
 import com.microsoft.hydralab.common.entity.common.StatisticData;
 import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
+import com.microsoft.hydralab.common.entity.common.TerminationPolicy;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.file.AccessToken;
 import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
 import com.microsoft.hydralab.common.repository.StatisticDataRepository;
 import com.microsoft.hydralab.common.repository.StorageFileInfoRepository;
@@ -32,11 +36,15 @@ import com.microsoft.hydralab.common.util.AttachmentService;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.GlobalConstant;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import com.microsoft.hydralab.common.util.MessageCodec;
 import com.microsoft.hydralab.common.util.SerializeUtil;
+import com.microsoft.hydralab.common.util.TestShardUtil;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import com.microsoft.hydralab.t2c.runner.DriverInfo;
 import com.microsoft.hydralab.t2c.runner.T2CJsonParser;
 import com.microsoft.hydralab.t2c.runner.TestInfo;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
@@ -49,9 +57,9 @@ import javax.websocket.CloseReason;
 import javax.websocket.Session;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -60,6 +68,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -69,32 +78,33 @@ import static com.microsoft.hydralab.center.util.CenterConstant.CENTER_FILE_BASE
 @Slf4j
 @Component
 public class DeviceAgentManagementService {
+    private static final String SERIAL_NUM_FIELD = "serialNum";
     /**
      * Connected session count
      */
     private final AtomicInteger onlineCount = new AtomicInteger(0);
 
-    //save agent session <sessionId,session&agentUser>
-    private final ConcurrentHashMap<String, AgentSessionInfo> agentSessionMap = new ConcurrentHashMap<>();
-    //save agent info <agentId,agentInfo>
-    private final ConcurrentHashMap<String, AgentDeviceGroup> agentDeviceGroups = new ConcurrentHashMap<>();
-    //save group&device relation <groupName,deviceSerials>
-    private final ConcurrentHashMap<String, Set<String>> deviceGroupListMap = new ConcurrentHashMap<>();
-    //save device info <deviceSerial,deviceInfo>
-    private final ConcurrentHashMap<String, DeviceInfo> deviceListMap = new ConcurrentHashMap<>();
     //save access info <deviceSerial/groupName,accessInfo>
     private final ConcurrentHashMap<String, AccessInfo> accessInfoMap = new ConcurrentHashMap<>();
     //save agent update info <agentId,updateTask>
     private final ConcurrentHashMap<String, AgentUpdateTask> agentUpdateMap = new ConcurrentHashMap<>();
+    // <taskId, timer terminating the task when its device minutes are used up>
+    final ConcurrentHashMap<String, ScheduledFuture<?>> deviceTimeBudgets = new ConcurrentHashMap<>();
+    // <taskId, run counts of the task on each of its agents, checked together against its crash and failure limits>
+    final ConcurrentHashMap<String, TaskRunProgress> taskRunProgress = new ConcurrentHashMap<>();
     @Resource
     MetricUtil metricUtil;
     @Resource
     StatisticDataRepository statisticDataRepository;
     @Resource
+    GroupCommitWriter groupCommitWriter;
+    @Resource
     AgentUserRepository agentUserRepository;
     @Resource
     TestDataService testDataService;
     @Resource
+    TestResultIngestionService testResultIngestionService;
+    @Resource
     DeviceGroupService deviceGroupService;
     @Resource
     TestTaskService testTaskService;
@@ -108,6 +118,15 @@ public class DeviceAgentManagementService {
     StorageServiceClientProxy storageServiceClientProxy;
     @Resource
     StorageTokenManageService storageTokenManageService;
+    @Resource
+    DeviceAvailabilityEventBus deviceAvailabilityEventBus;
+    //agent sessions, agents, devices and groups
+    @Resource
+    DeviceAgentRegistry deviceAgentRegistry;
+    @Resource
+    AgentMessageSender agentMessageSender;
+    @Resource
+    TestDurationHistoryService testDurationHistoryService;
     @Value("${app.storage.type}")
     private String storageType;
 
@@ -135,39 +154,53 @@ public class DeviceAgentManagementService {
             lastTimeRequest = System.currentTimeMillis();
         }
 
-        for (AgentSessionInfo value : agentSessionMap.values()) {
-            requestList(value.session);
+        for (AgentSessionInfo value : deviceAgentRegistry.getSessions()) {
+            requestList(value, false);
         }
     }
 
     @Scheduled(cron = "*/10 * * * * *")
     public void heartbeatAll() {
-        for (AgentSessionInfo value : agentSessionMap.values()) {
-            sendAgentMetadata(value.session, value.agentUser, Const.Path.HEARTBEAT);
+        for (AgentSessionInfo value : deviceAgentRegistry.getSessions()) {
+            sendAgentMetadata(value, Const.Path.HEARTBEAT);
         }
     }
 
-    private void sendAgentMetadata(Session session, AgentUser agentUser, String signalName) {
+    private void sendAgentMetadata(AgentSessionInfo sessionInfo, String signalName) {
+        AgentUser agentUser = sessionInfo.agentUser;
         agentUser.setBatteryStrategy(AgentUser.BatteryStrategy.valueOf(batteryStrategy));
         AgentMetadata data = new AgentMetadata();
         data.setStorageType(storageType);
-        data.setAccessToken(storageTokenManageService.generateWriteToken(agentUser.getId()));
+        // the agent keeps using the token it was sent until a renewed one comes
+        AccessToken accessToken = storageTokenManageService.generateWriteToken(agentUser.getId());
+        boolean isTokenRenewed = !accessToken.getToken().equals(sessionInfo.sentAccessToken);
+        if (isTokenRenewed) {
+            data.setAccessToken(accessToken);
+        }
         data.setAgentUser(agentUser);
         data.setPushgatewayUsername(pushgatewayUsername);
         data.setPushgatewayPassword(pushgatewayPassword);
+        data.setMessageCodec(sessionInfo.messageCodec.getName());
+        data.setDeviceStateDiffEnabled(true);
 
         Message message = new Message();
         message.setPath(signalName);
         message.setBody(data);
-        sendMessageToSession(session, message);
+        // a heartbeat replaced by a newer one before being written doesn't count as sent
+        agentMessageSender.send(sessionInfo.session, sessionInfo.messageCodec, message,
+                isTokenRenewed ? () -> sessionInfo.sentAccessToken = accessToken.getToken() : null);
     }
 
     private void requestAuth(Session session) {
-        sendMessageToSession(session, Message.auth());
+        Message message = Message.auth();
+        Map<String, Object> params = new HashMap<>();
+        params.put(Const.AgentConfig.MESSAGE_CODEC_PARAM, SerializeUtil.getSupportedCodecs());
+        message.setParams(params);
+        sendMessageToSession(session, message);
     }
 
     public void onMessage(Message message, Session session) {
-        AgentSessionInfo savedSession = agentSessionMap.get(session.getId());
+        AgentSessionInfo savedSession = deviceAgentRegistry.getSession(session.getId());
         if (savedSession == null) {
             AgentUser agentUser = searchQualifiedAgent(message);
             if (agentUser == null) {
@@ -177,7 +210,7 @@ public class DeviceAgentManagementService {
                     throw new RuntimeException(e);
                 }
             } else {
-                if (agentDeviceGroups.get(agentUser.getId()) != null && checkIsSessionAliveByAgentId(agentUser.getId())) {
+                if (deviceAgentRegistry.getAgentDeviceGroup(agentUser.getId()) != null && checkIsSessionAliveByAgentId(agentUser.getId())) {
                     try {
                         session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "AgentID has been used"));
                         return;
@@ -185,7 +218,11 @@ public class DeviceAgentManagementService {
                         throw new RuntimeException(e);
                     }
                 }
-                agentSessionMap.put(session.getId(), new AgentSessionInfo(session, agentUser));
+                AgentSessionInfo sessionInfo = new AgentSessionInfo(session, agentUser);
+                // agents not aware of codecs don't answer with one and stay on the default codec
+                Object acceptedCodec = message.getParams() == null ? null : message.getParams().get(Const.AgentConfig.MESSAGE_CODEC_PARAM);
+                sessionInfo.messageCodec = SerializeUtil.negotiateCodec(acceptedCodec == null ? null : acceptedCodec.toString());
+                deviceAgentRegistry.addSession(session.getId(), sessionInfo);
                 metricUtil.registerAgentAliveStatusMetric(agentUser);
 
                 log.info("Session {} is saved to map as registered agent, associated agent {}", session.getId(), message.getBody());
@@ -207,7 +244,7 @@ public class DeviceAgentManagementService {
 
                     tempTask.getUpdateMsgs().add(updateMag);
                 }
-                sendAgentMetadata(session, agentUser, Const.Path.AGENT_INIT);
+                sendAgentMetadata(sessionInfo, Const.Path.AGENT_INIT);
             }
         } else {
             handleQualifiedAgentMessage(message, savedSession);
@@ -220,6 +257,14 @@ public class DeviceAgentManagementService {
                 if (message.getBody() instanceof JSONArray) {
                     List<DeviceInfo> latestDeviceInfos = ((JSONArray) message.getBody()).toJavaList(DeviceInfo.class);
                     updateAgentDeviceGroup(savedSession, latestDeviceInfos);
+                    // agents not sending diffs don't number their device lists
+                    Object sequence = message.getParams() == null ? null : message.getParams().get(Const.AgentConfig.DEVICE_STATE_SEQ_PARAM);
+                    savedSession.deviceStateSequence = sequence instanceof Number ? ((Number) sequence).longValue() : -1;
+                }
+                break;
+            case Const.Path.DEVICE_DIFF:
+                if (message.getBody() instanceof DeviceStateDiff) {
+                    applyDeviceStateDiff(savedSession, (DeviceStateDiff) message.getBody());
                 }
                 break;
             case Const.Path.DEVICE_UPDATE:
@@ -241,7 +286,7 @@ public class DeviceAgentManagementService {
                     tempTask.getUpdateMsgs().add(updateMsg);
                     if (!updateMsg.isProceed) {
                         tempTask.setUpdateStatus(AgentUpdateTask.TaskConst.STATUS_FAIL);
-                        agentDeviceGroups.get(savedSession.agentUser.getId()).setAgentStatus(AgentDeviceGroup.Status.HEALTHY);
+                        deviceAgentRegistry.updateAgentStatus(savedSession.agentUser.getId(), AgentDeviceGroup.Status.HEALTHY);
                     }
                 }
                 break;
@@ -262,16 +307,16 @@ public class DeviceAgentManagementService {
                 if (message.getBody() instanceof TestTask) {
                     TestTask testTask = (TestTask) message.getBody();
                     boolean isFinished = testTask.getStatus().equals(TestTask.TestStatus.FINISHED);
-                    testDataService.saveTestTaskDataFromAgent(testTask, isFinished, savedSession.agentUser.getId());
+                    testResultIngestionService.ingest(testTask, isFinished, savedSession.agentUser.getId());
 
                     //after the task finishing, update the status of device used
                     if (isFinished) {
                         List<TestRun> deviceTestResults = testTask.getDeviceTestResults();
+                        //the released devices will trigger the dispatch of the tasks saved in queue
                         for (TestRun deviceTestResult : deviceTestResults) {
                             updateDeviceStatus(deviceTestResult.getDeviceSerialNumber(), DeviceInfo.ONLINE, null);
                         }
-                        //run the task saved in queue
-                        testTaskService.runTask();
+                        releaseRunLimitsIfDone(testTask.getId());
                     }
                 }
                 break;
@@ -279,30 +324,56 @@ public class DeviceAgentManagementService {
                 log.info("Message from agent {}", message);
                 break;
             case Const.Path.TEST_TASK_RETRY:
-                if (message.getBody() instanceof TestTask) {
-                    TestTask testTask = (TestTask) message.getBody();
-                    if (testTask.getRetryTime() == Const.AgentConfig.RETRY_TIME) {
-                        testTask.setStatus(TestTask.TestStatus.EXCEPTION);
-                        testTask.setTestErrorMsg("Device offline!");
-                        testDataService.saveTestTaskData(testTask);
-                    } else {
-                        TestTaskSpec taskSpec = TestTask.convertToTestTaskSpec(testTask);
-                        taskSpec.retryTime++;
-                        testTaskService.addTask(taskSpec);
-                        cancelTestTaskById(testTask.getId(), "Retry time limit!");
-                        //run the task saved in queue
-                        testTaskService.runTask();
-                    }
-                }
+                onTestTaskRetry(message.getBody());
+                break;
+            case Const.Path.TEST_TASK_PROGRESS:
+                onTestTaskProgress(savedSession.agentUser.getId(), message.getBody());
                 break;
             case Const.Path.HEARTBEAT:
-                sendAgentMetadata(savedSession.session, savedSession.agentUser, Const.Path.HEARTBEAT);
+                sendAgentMetadata(savedSession, Const.Path.HEARTBEAT);
                 break;
             default:
                 break;
         }
     }
 
+    private void onTestTaskRetry(Object body) {
+        if (!(body instanceof TestTask)) {
+            return;
+        }
+        TestTask testTask = (TestTask) body;
+        // the task is given up or queued again, a new run gets a new budget
+        releaseRunLimits(testTask.getId());
+        if (testTask.getRetryTime() == Const.AgentConfig.RETRY_TIME) {
+            testTask.setStatus(TestTask.TestStatus.EXCEPTION);
+            testTask.setTestErrorMsg("Device offline!");
+            testDataService.saveTestTaskData(testTask);
+        } else {
+            TestTaskSpec taskSpec = TestTask.convertToTestTaskSpec(testTask);
+            taskSpec.retryTime++;
+            testTaskService.addTask(taskSpec);
+            cancelTestTaskById(testTask.getId(), "Retry time limit!");
+        }
+    }
+
+    void onTestTaskProgress(String agentId, Object body) {
+        if (!(body instanceof JSONObject)) {
+            return;
+        }
+        JSONObject data = (JSONObject) body;
+        String taskId = data.getString(Const.AgentConfig.TASK_ID_PARAM);
+        TaskRunProgress progress = taskRunProgress.get(taskId);
+        if (progress == null) {
+            return;
+        }
+        String reason = progress.update(agentId, data.getIntValue(Const.AgentConfig.CRASH_COUNT_PARAM),
+                data.getIntValue(Const.AgentConfig.FAIL_COUNT_PARAM), data.getIntValue(Const.AgentConfig.TEST_COUNT_PARAM));
+        // the agents keep reporting until they stop, terminate the task only once
+        if (reason != null && taskRunProgress.remove(taskId, progress)) {
+            terminateTestTaskById(taskId, reason);
+        }
+    }
+
     public void updateAccessInfo(AccessInfo accessInfo) {
         if (accessInfo != null) {
             accessInfoMap.put(accessInfo.getName(), accessInfo);
@@ -310,6 +381,7 @@ public class DeviceAgentManagementService {
     }
 
     public void cancelTestTaskById(String taskId, String reason) {
+        releaseRunLimits(taskId);
         Set<String> agentIds = testDataService.cancelTaskById(taskId, reason);
         JSONObject data = new JSONObject();
         Message message = new Message();
@@ -322,19 +394,46 @@ public class DeviceAgentManagementService {
                 continue;
             }
             sendMessageToSession(agentSession.session, message);
-            for (DeviceInfo deviceInfo : agentDeviceGroups.get(agentId).getDevices()) {
+            AgentDeviceGroup agentDeviceGroup = deviceAgentRegistry.getAgentDeviceGroup(agentId);
+            if (agentDeviceGroup == null) {
+                continue;
+            }
+            for (DeviceInfo deviceInfo : agentDeviceGroup.getDevices()) {
                 if (taskId.equals(deviceInfo.getRunningTaskId())) {
-                    deviceInfo.setStatus(DeviceInfo.ONLINE);
-                    deviceInfo.setRunningTaskId(null);
-
-                    DeviceInfo device = deviceListMap.get(deviceInfo.getSerialNum());
-                    device.setStatus(DeviceInfo.ONLINE);
-                    deviceInfo.setRunningTaskId(null);
-                    break;
+                    updateDeviceStatus(deviceInfo.getSerialNum(), DeviceInfo.ONLINE, null);
                 }
             }
         }
-        testTaskService.runTask();
+        //run the task saved in queue
+        testTaskService.requestDispatch();
+    }
+
+    /**
+     * Stop the remaining tests of a running task, unlike a canceled task the results of the tests run are kept.
+     */
+    public void terminateTestTaskById(String taskId, String reason) {
+        Set<String> agentIds = new HashSet<>();
+        for (DeviceInfo deviceInfo : getAllDevice()) {
+            if (taskId.equals(deviceInfo.getRunningTaskId())) {
+                agentIds.add(deviceInfo.getAgentId());
+            }
+        }
+        if (agentIds.isEmpty()) {
+            return;
+        }
+        log.info("Terminate test task {} on agents {}: {}", taskId, agentIds, reason);
+        JSONObject data = new JSONObject();
+        data.put(Const.AgentConfig.TASK_ID_PARAM, taskId);
+        data.put(Const.AgentConfig.REASON_PARAM, reason);
+        Message message = new Message();
+        message.setPath(Const.Path.TEST_TASK_TERMINATE);
+        message.setBody(data);
+        for (String agentId : agentIds) {
+            AgentSessionInfo agentSession = getAgentSessionInfoByAgentId(agentId);
+            if (agentSession != null && agentSession.session != null) {
+                sendMessageToSession(agentSession.session, message);
+            }
+        }
     }
 
     public void checkAccessInfo(String name, String key) {
@@ -355,59 +454,72 @@ public class DeviceAgentManagementService {
     }
 
     private void updateAgentDeviceGroup(AgentSessionInfo savedSession, List<DeviceInfo> latestDeviceInfos) {
-
-        updateDeviceGroup(latestDeviceInfos, savedSession.agentUser.getId());
-
-        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(savedSession.agentUser.getId());
-        if (agentDeviceGroup != null) {
-            // update
-            updateAgentDevices(latestDeviceInfos, agentDeviceGroup);
+        boolean isNewAgent = deviceAgentRegistry.getAgentDeviceGroup(savedSession.agentUser.getId()) == null;
+        AgentDeviceGroup agentDeviceGroup = deviceAgentRegistry.updateAgentDevices(savedSession.agentUser, latestDeviceInfos);
+        String deviceSerials = latestDeviceInfos.stream().map(MobileDevice::getSerialNum).collect(Collectors.joining(","));
+        if (isNewAgent) {
+            log.info("Adding info of new agent: {}, device SN: {}", agentDeviceGroup.getAgentName(), deviceSerials);
         } else {
-            AgentDeviceGroup newAgentDeviceGroup = new AgentDeviceGroup();
-            newAgentDeviceGroup.initWithAgentUser(savedSession.agentUser);
-            newAgentDeviceGroup.setDevices(new ArrayList<>(latestDeviceInfos));
-            agentDeviceGroups.put(savedSession.agentUser.getId(), newAgentDeviceGroup);
-            log.info("Adding info of new agent: {}, device SN: {}", newAgentDeviceGroup.getAgentName(),
-                    latestDeviceInfos.stream().map(MobileDevice::getSerialNum).collect(Collectors.joining(",")));
+            log.info("Updating device info of agent: {}, device SN: {}", agentDeviceGroup.getAgentName(), deviceSerials);
         }
-    }
-
-    public void updateDeviceGroup(List<DeviceInfo> deviceInfos, String agentId) {
-        for (DeviceInfo deviceInfo : deviceInfos) {
-            //init agent info
-            deviceInfo.setAgentId(agentId);
-
-            //if the status saved in master is testing, the value will not be covered
-            if (deviceListMap.get(deviceInfo.getSerialNum()) != null && deviceListMap.get(deviceInfo.getSerialNum()).isTesting()) {
-                deviceInfo.setStatus(DeviceInfo.TESTING);
-            }
-
-            deviceListMap.put(deviceInfo.getSerialNum(), deviceInfo);
 
-            //init group info
+        //init group info
+        for (DeviceInfo deviceInfo : latestDeviceInfos) {
             List<DeviceGroupRelation> groups = deviceGroupService.getGroupByDevice(deviceInfo.getSerialNum());
             for (DeviceGroupRelation group : groups) {
                 addDeviceToGroup(group.getGroupName(), group.getDeviceSerial());
             }
         }
+
+        List<String> onlineDeviceSerials = latestDeviceInfos.stream().filter(DeviceInfo::isOnline).map(MobileDevice::getSerialNum).collect(Collectors.toList());
+        deviceAvailabilityEventBus.onDevicesAvailable(savedSession.agentUser.getId(), onlineDeviceSerials);
+    }
+
+    private void applyDeviceStateDiff(AgentSessionInfo savedSession, DeviceStateDiff diff) {
+        if (diff.getBaseSequence() != savedSession.deviceStateSequence) {
+            log.warn("Device state of agent {} is out of sync, expected sequence {} but diff is based on {}, requesting full list",
+                    savedSession.agentUser.getName(), savedSession.deviceStateSequence, diff.getBaseSequence());
+            requestList(savedSession, true);
+            return;
+        }
+
+        Set<String> serials = new HashSet<>(diff.getChangedDevices().keySet());
+        serials.addAll(diff.getClearedFields().keySet());
+        List<DeviceInfo> changedDevices = new ArrayList<>();
+        for (String serial : serials) {
+            JSONObject changedFields = diff.getChangedDevices().getOrDefault(serial, new JSONObject());
+            DeviceInfo device = deviceAgentRegistry.getDevice(serial);
+            JSONObject deviceState;
+            if (device != null && savedSession.agentUser.getId().equals(device.getAgentId())) {
+                deviceState = (JSONObject) JSON.toJSON(device);
+            } else if (changedFields.containsKey(SERIAL_NUM_FIELD)) {
+                // a new device comes with all of its fields
+                deviceState = new JSONObject();
+            } else {
+                log.warn("Device {} of agent {} is unknown, requesting full list", serial, savedSession.agentUser.getName());
+                requestList(savedSession, true);
+                return;
+            }
+            deviceState.putAll(changedFields);
+            diff.getClearedFields().getOrDefault(serial, Collections.emptySet()).forEach(deviceState::remove);
+            changedDevices.add(deviceState.toJavaObject(DeviceInfo.class));
+        }
+        savedSession.deviceStateSequence = diff.getSequence();
+        updateAgentDeviceGroup(savedSession, changedDevices);
     }
 
     //update Device Status : start task,complete task,device offline,device online
     public void updateDeviceStatus(String serialNum, String status, String testTaskId) {
-        DeviceInfo device = deviceListMap.get(serialNum);
+        DeviceInfo device = deviceAgentRegistry.updateDeviceStatus(serialNum, status, testTaskId);
         if (device == null) {
             return;
         }
-        device.setStatus(status);
-        device.setRunningTaskId(testTaskId);
-        for (DeviceInfo deviceInfo : agentDeviceGroups.get(device.getAgentId()).getDevices()) {
-            if (serialNum.equals(deviceInfo.getSerialNum())) {
-                deviceInfo.setStatus(status);
-                deviceInfo.setRunningTaskId(testTaskId);
-                break;
-            }
-        }
 
+        if (device.isOnline()) {
+            deviceAvailabilityEventBus.onDevicesAvailable(device.getAgentId(), Collections.singletonList(serialNum));
+        } else if (!device.isAlive()) {
+            deviceAvailabilityEventBus.onDevicesUnavailable(device.getAgentId(), Collections.singletonList(serialNum));
+        }
     }
 
     //query devices by groupName
@@ -416,7 +528,7 @@ public class DeviceAgentManagementService {
         List<DeviceGroupRelation> relations = deviceGroupService.getDeviceByGroup(groupName);
         for (DeviceGroupRelation relation : relations) {
             String serialNum = relation.getDeviceSerial();
-            DeviceInfo device = deviceListMap.get(serialNum);
+            DeviceInfo device = deviceAgentRegistry.getDevice(serialNum);
             if (device == null) {
                 device = new DeviceInfo();
                 device.setSerialNum(serialNum);
@@ -429,30 +541,30 @@ public class DeviceAgentManagementService {
 
     //add group&device relation
     public void addDeviceToGroup(String group, String serialNum) {
-        Set<String> serials = deviceGroupListMap.computeIfAbsent(group, k -> new HashSet<>());
-        serials.add(serialNum);
-        DeviceInfo device = deviceListMap.get(serialNum);
-        device.getDeviceGroup().add(group);
+        deviceAgentRegistry.addDeviceToGroup(group, serialNum);
     }
 
     public Set<String> queryDeviceByGroup(String group) {
-        Set<String> serials = deviceGroupListMap.get(group);
-        if (serials == null) {
-            return new HashSet<>();
-        }
-        return new HashSet<>(serials);
+        return deviceAgentRegistry.getDevicesOfGroup(group);
+    }
+
+    public Set<String> queryDeviceByAgent(String agentId) {
+        return deviceAgentRegistry.getDevicesOfAgent(agentId);
     }
 
     public List<DeviceInfo> queryDeviceInfoByGroup(String groupName) {
         List<DeviceInfo> devices = new ArrayList<>();
-        Set<String> serials = deviceGroupListMap.get(groupName);
-        serials.forEach(serial -> devices.add(deviceListMap.get(serial)));
-
+        for (String serial : deviceAgentRegistry.getDevicesOfGroup(groupName)) {
+            DeviceInfo device = deviceAgentRegistry.getDevice(serial);
+            if (device != null) {
+                devices.add(device);
+            }
+        }
         return devices;
     }
 
     public Set<String> queryGroupByDevice(String deviceSerial) {
-        DeviceInfo deviceInfo = deviceListMap.get(deviceSerial);
+        DeviceInfo deviceInfo = deviceAgentRegistry.getDevice(deviceSerial);
         if (deviceInfo == null || deviceInfo.getDeviceGroup() == null) {
             return new HashSet<>();
         }
@@ -461,7 +573,7 @@ public class DeviceAgentManagementService {
 
     //add group&device relation and check device access
     public void addDeviceToGroup(String group, String serialNum, String accessKey) {
-        DeviceInfo device = deviceListMap.get(serialNum);
+        DeviceInfo device = deviceAgentRegistry.getDevice(serialNum);
         if (device.getIsPrivate()) {
             checkAccessInfo(serialNum, accessKey);
         }
@@ -470,49 +582,21 @@ public class DeviceAgentManagementService {
 
     //delete group&device relation
     public void deleteDeviceFromGroup(String group, String serialNum) {
-        Set<String> serials = deviceGroupListMap.get(group);
-        if (serials != null) {
-            serials.remove(serialNum);
-        }
-        DeviceInfo device = deviceListMap.get(serialNum);
-        if (device != null) {
-            device.getDeviceGroup().remove(group);
-        }
-
-    }
-
-    //delete device and group&device relation
-    public void removeDevices(List<DeviceInfo> devices) {
-        for (DeviceInfo device : devices) {
-            Set<String> groups = device.getDeviceGroup();
-            for (String group : groups) {
-                Set<String> serials = deviceGroupListMap.get(group);
-                if (serials != null) {
-                    serials.remove(device.getSerialNum());
-                }
-            }
-            deviceListMap.remove(device.getSerialNum());
-        }
+        deviceAgentRegistry.deleteDeviceFromGroup(group, serialNum);
     }
 
     //delete group and group&device relation
     public void removeGroup(String groupName) {
-        Set<String> devices = deviceGroupListMap.remove(groupName);
-        if (devices == null) {
-            return;
-        }
-        for (String device : devices) {
-            deviceListMap.get(device).getDeviceGroup().remove(groupName);
-        }
+        deviceAgentRegistry.removeGroup(groupName);
     }
 
     //check the serialNum is correct
     public boolean checkDeviceInfo(String serialNum) {
-        return deviceListMap.get(serialNum) != null;
+        return deviceAgentRegistry.getDevice(serialNum) != null;
     }
 
     public boolean checkDeviceAuthorization(SysUser requestor, String serialNum) throws IllegalArgumentException {
-        DeviceInfo deviceInfo = deviceListMap.get(serialNum);
+        DeviceInfo deviceInfo = deviceAgentRegistry.getDevice(serialNum);
         if (deviceInfo == null) {
             throw new IllegalArgumentException("deviceIdentifier is incorrect");
         }
@@ -521,7 +605,8 @@ public class DeviceAgentManagementService {
     }
 
     public void updateDeviceScope(String deviceSerial, Boolean isPrivate) {
-        DeviceInfo deviceInfo = deviceListMap.get(deviceSerial);
+        DeviceInfo deviceInfo = deviceAgentRegistry.getDevice(deviceSerial);
+        Assert.notNull(deviceInfo, "deviceIdentifier is incorrect");
         AgentSessionInfo agentSession = getAgentSessionInfoByAgentId(deviceInfo.getAgentId());
         Assert.notNull(agentSession, "agent session error");
         Assert.notNull(agentSession.session, "agent session error");
@@ -537,35 +622,18 @@ public class DeviceAgentManagementService {
         sendMessageToSession(agentSession.session, message);
     }
 
-    private void updateAgentDevices(List<DeviceInfo> latestDeviceInfos, AgentDeviceGroup agentDeviceGroup) {
-        for (DeviceInfo newDeviceInfo : latestDeviceInfos) {
-            boolean hasDevice = false;
-            for (DeviceInfo device : agentDeviceGroup.getDevices()) {
-                //if the status saved in master is testing, the value will not be covered
-                if (deviceListMap.get(device.getSerialNum()) != null && deviceListMap.get(device.getSerialNum()).isTesting()) {
-                    device.setStatus(DeviceInfo.TESTING);
-                    hasDevice = true;
-                    log.info("Updating device status of agent: {}, device SN: {}", agentDeviceGroup.getAgentName(), newDeviceInfo.getSerialNum());
-                    break;
-                }
-                if (device.getSerialNum().equals(newDeviceInfo.getSerialNum())) {
-                    hasDevice = true;
-                    BeanUtil.copyProperties(newDeviceInfo, device);
-                    log.info("Updating device info of agent: {}, device SN: {}", agentDeviceGroup.getAgentName(), newDeviceInfo.getSerialNum());
-                    break;
-                }
-            }
-            if (!hasDevice) {
-                log.info("Adding device info of agent: {}, device SN: {}", agentDeviceGroup.getAgentName(), newDeviceInfo.getSerialNum());
-                agentDeviceGroup.getDevices().add(newDeviceInfo);
-            }
-        }
-    }
-
-    private void requestList(Session session) {
+    /**
+     * @param isStateLost whether the device state of the agent has to be resent in full
+     */
+    private void requestList(AgentSessionInfo sessionInfo, boolean isStateLost) {
         Message message = new Message();
         message.setPath(Const.Path.DEVICE_LIST);
-        sendMessageToSession(session, message);
+        if (!isStateLost && sessionInfo.deviceStateSequence >= 0) {
+            Map<String, Object> params = new HashMap<>();
+            params.put(Const.AgentConfig.DEVICE_STATE_SEQ_PARAM, sessionInfo.deviceStateSequence);
+            message.setParams(params);
+        }
+        sendMessageToSession(sessionInfo.session, message);
     }
 
     private AgentUser searchQualifiedAgent(Message message) {
@@ -606,82 +674,62 @@ public class DeviceAgentManagementService {
     }
 
     public void deleteSessionAndDevice(Session session) {
-        if (!agentSessionMap.containsKey(session.getId())) {
-            return;
-        }
-        AgentSessionInfo removed = agentSessionMap.remove(session.getId());
+        agentMessageSender.remove(session);
+        AgentSessionInfo removed = deviceAgentRegistry.removeSession(session.getId());
         if (removed == null || removed.agentUser == null) {
             return;
         }
         log.info("Session of agent {} is closed.", removed.agentUser.getName());
         metricUtil.updateAgentAliveStatus(removed.agentUser.getId(), GlobalConstant.AgentLiveStatus.OFFLINE.getStatus());
+        storageTokenManageService.releaseWriteToken(removed.agentUser.getId());
 
-        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.remove(removed.agentUser.getId());
+        removeAgentDevices(removed.agentUser.getId());
+    }
+
+    private void removeAgentDevices(String agentId) {
+        AgentDeviceGroup agentDeviceGroup = deviceAgentRegistry.removeAgent(agentId);
         if (agentDeviceGroup == null || agentDeviceGroup.getDevices() == null) {
             return;
         }
-        removeDevices(agentDeviceGroup.getDevices());
+        deviceAvailabilityEventBus.onDevicesUnavailable(agentId,
+                agentDeviceGroup.getDevices().stream().map(MobileDevice::getSerialNum).collect(Collectors.toList()));
     }
 
     private void sendMessageToSession(Session toSession, Message message) {
-        try {
-            byte[] array = SerializeUtil.messageToByteArr(message);
-            log.info("sendMessageToSession[{}], path: {}, message data len: {}", toSession.getId(), message.getPath(), array.length);
-            toSession.getBasicRemote().sendBinary(ByteBuffer.wrap(array));
-        } catch (IOException e) {
-            throw new RuntimeException("Error in sendMessageToSession", e);
-        }
+        AgentSessionInfo sessionInfo = deviceAgentRegistry.getSession(toSession.getId());
+        agentMessageSender.send(toSession, sessionInfo == null ? null : sessionInfo.messageCodec, message);
     }
 
+    /**
+     * The returned list and its agents are shared with other readers, copy an agent before changing it.
+     */
     public List<AgentDeviceGroup> getAgentDeviceGroups() {
-        return new ArrayList<>(agentDeviceGroups.values());
+        return deviceAgentRegistry.snapshot().getAgentDeviceGroups();
     }
 
     public List<DeviceGroup> getAllGroup() {
         List<DeviceGroup> res = new ArrayList<>();
-        Set<String> keys = deviceGroupListMap.keySet();
-        for (String key : keys) {
-            DeviceGroup group = deviceGroupService.getGroupByName(key);
+        for (Map.Entry<String, Set<String>> entry : deviceAgentRegistry.snapshot().getGroupDevices().entrySet()) {
+            DeviceGroup group = deviceGroupService.getGroupByName(entry.getKey());
             if (group == null) {
                 continue;
             }
-            group.setSerialNums(deviceGroupListMap.get(key).toString());
+            group.setSerialNums(entry.getValue().toString());
             res.add(group);
         }
-        return new ArrayList<>(res);
+        return res;
     }
 
     public List<DeviceInfo> getAllDevice() {
-        List<DeviceInfo> res = new ArrayList<>();
-        Set<String> keys = deviceListMap.keySet();
-        for (String key : keys) {
-            DeviceInfo device = deviceListMap.get(key);
-            if (device.isAlive()) {
-                res.add(deviceListMap.get(key));
-            }
-        }
-        return new ArrayList<>(res);
+        return deviceAgentRegistry.snapshot().getAliveDevices();
     }
 
     public DeviceInfo getDevice(String deviceId) {
-        return deviceListMap.get(deviceId);
+        return deviceAgentRegistry.getDevice(deviceId);
     }
 
     public List<AgentDeviceGroup> getAllAppiumAgents() {
-        List<AgentDeviceGroup> res = new ArrayList<>();
-        Set<String> keys = agentDeviceGroups.keySet();
-        for (String key : keys) {
-            AgentDeviceGroup agent = agentDeviceGroups.get(key);
-            if (agent.getAgentDeviceType() != AgentUser.DeviceType.WINDOWS) {
-                continue;
-            }
-            List<DeviceInfo> devices = agent.getDevices();
-            if (devices.size() != 1 || !devices.get(0).isAlive()) {
-                continue;
-            }
-            res.add(agent);
-        }
-        return new ArrayList<>(res);
+        return deviceAgentRegistry.snapshot().getAppiumAgents();
     }
 
     // Todo: Get agent list for android and ios agent
@@ -700,9 +748,58 @@ public class DeviceAgentManagementService {
                 result = runTestTaskByDevice(testTaskSpec);
             }
         }
+        if (result.get(Const.Param.TEST_DEVICE_SN) != null) {
+            scheduleDeviceTimeBudget(testTaskSpec, result.getString(Const.Param.TEST_DEVICE_SN).split(",").length);
+            if (testTaskSpec.terminationPolicy != null && testTaskSpec.terminationPolicy.hasRunLimit()) {
+                taskRunProgress.put(testTaskSpec.testTaskId, new TaskRunProgress(testTaskSpec.terminationPolicy));
+            }
+        }
         return result;
     }
 
+    /**
+     * Terminate the task once its devices used up its device minutes, they all run it from now on.
+     */
+    private void scheduleDeviceTimeBudget(TestTaskSpec testTaskSpec, int deviceCount) {
+        TerminationPolicy terminationPolicy = testTaskSpec.terminationPolicy;
+        if (terminationPolicy == null || terminationPolicy.getMaxDeviceMinutes() <= 0) {
+            return;
+        }
+        String taskId = testTaskSpec.testTaskId;
+        long delayMillis = TimeUnit.MINUTES.toMillis(terminationPolicy.getMaxDeviceMinutes()) / deviceCount;
+        String reason = String.format("The %d devices used up the budget of %d device minutes", deviceCount, terminationPolicy.getMaxDeviceMinutes());
+        ScheduledFuture<?> previous = deviceTimeBudgets.put(taskId, ThreadPoolUtil.TIMER_EXECUTOR.schedule(() -> {
+            deviceTimeBudgets.remove(taskId);
+            terminateTestTaskById(taskId, reason);
+        }, delayMillis, TimeUnit.MILLISECONDS));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private void releaseRunLimits(String taskId) {
+        taskRunProgress.remove(taskId);
+        ScheduledFuture<?> deviceTimeBudget = deviceTimeBudgets.remove(taskId);
+        if (deviceTimeBudget != null) {
+            deviceTimeBudget.cancel(false);
+        }
+    }
+
+    /**
+     * Release the limits of a task once none of its devices runs it any more, the devices of a group finish one by one.
+     */
+    private void releaseRunLimitsIfDone(String taskId) {
+        if (!deviceTimeBudgets.containsKey(taskId) && !taskRunProgress.containsKey(taskId)) {
+            return;
+        }
+        for (DeviceInfo deviceInfo : getAllDevice()) {
+            if (taskId.equals(deviceInfo.getRunningTaskId())) {
+                return;
+            }
+        }
+        releaseRunLimits(taskId);
+    }
+
     private JSONObject runT2CTest(TestTaskSpec testTaskSpec) {
         // TODO: upgrade to assign task to agent and check the available device count on the agent
         JSONObject result = new JSONObject();
@@ -739,7 +836,7 @@ public class DeviceAgentManagementService {
         }
 
         // Todo: leveraged current E2E agent, need to update to agent level test
-        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(testTaskSpec.deviceIdentifier);
+        AgentDeviceGroup agentDeviceGroup = deviceAgentRegistry.getAgentDeviceGroup(testTaskSpec.deviceIdentifier);
         Assert.notNull(agentDeviceGroup, "Error identifier or agent offline");
         List<DeviceInfo> devices = agentDeviceGroup.getDevices();
         Assert.notNull(devices, "Agent has no device");
@@ -771,7 +868,7 @@ public class DeviceAgentManagementService {
     private JSONObject runAppiumTestTask(TestTaskSpec testTaskSpec) {
         JSONObject result = new JSONObject();
 
-        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(testTaskSpec.deviceIdentifier);
+        AgentDeviceGroup agentDeviceGroup = deviceAgentRegistry.getAgentDeviceGroup(testTaskSpec.deviceIdentifier);
         Assert.notNull(agentDeviceGroup, "Error identifier or agent offline");
         List<DeviceInfo> devices = agentDeviceGroup.getDevices();
         Assert.notNull(devices, "Agent has no device");
@@ -803,22 +900,30 @@ public class DeviceAgentManagementService {
     private JSONObject runTestTaskByGroup(TestTaskSpec testTaskSpec) {
         JSONObject result = new JSONObject();
         boolean isAllOffline = true;
-        Set<String> deviceSerials = deviceGroupListMap.get(testTaskSpec.deviceIdentifier);
-        Assert.notNull(deviceSerials, "error deviceIdentifier or there is no devices in the group!");
+        Set<String> deviceSerials = deviceAgentRegistry.getDevicesOfGroup(testTaskSpec.deviceIdentifier);
         Assert.isTrue(deviceSerials.size() > 0, "error deviceIdentifier or there is no devices in the group!");
         DeviceGroup deviceGroup = deviceGroupService.getGroupByName(testTaskSpec.deviceIdentifier);
         Assert.notNull(deviceGroup, "error deviceIdentifier !");
         Map<String, List<String>> testAgentDevicesMap = new HashMap<>();
         boolean isSingle = Const.DeviceGroup.SINGLE_TYPE.equals(testTaskSpec.groupTestType);
         boolean isAll = Const.DeviceGroup.ALL_TYPE.equals(testTaskSpec.groupTestType);
+        boolean isShard = Const.DeviceGroup.SHARD_TYPE.equals(testTaskSpec.groupTestType);
+        Assert.isTrue(!isShard || StringUtils.isEmpty(testTaskSpec.runningType) || TestTask.TestRunningType.INSTRUMENTATION.equals(testTaskSpec.runningType),
+                "Only instrumentation tests can be sharded!");
+        int maxShardCount = isShard ? TestShardUtil.getMaxShardCount(testTaskSpec.testScope, testTaskSpec.testSuiteClass) : Integer.MAX_VALUE;
+        int chosenDeviceCount = 0;
         Message message = new Message();
         message.setPath(Const.Path.TEST_TASK_RUN);
 
         ArrayList<String> deviceSerialList = new ArrayList<>(deviceSerials);
         Collections.shuffle(deviceSerialList);
+        if (testTaskSpec.avoidedDeviceSerials != null) {
+            // the sort is stable, the other devices stay shuffled
+            deviceSerialList.sort(Comparator.comparing(testTaskSpec.avoidedDeviceSerials::contains));
+        }
 
         for (String deviceSerial : deviceSerialList) {
-            DeviceInfo device = deviceListMap.get(deviceSerial);
+            DeviceInfo device = deviceAgentRegistry.getDevice(deviceSerial);
             if (device == null || !device.isAlive() || isAgentUpdating(device.getAgentId())) {
                 Assert.isTrue(!isAll, "Device/Agent Offline!");
                 continue;
@@ -829,7 +934,8 @@ public class DeviceAgentManagementService {
                 devices.add(device.getSerialNum());
                 testAgentDevicesMap.put(device.getAgentId(), devices);
                 testTaskSpec.agentIds.add(device.getAgentId());
-                if (isSingle) {
+                chosenDeviceCount++;
+                if (isSingle || chosenDeviceCount >= maxShardCount) {
                     break;
                 }
             } else if (isAll) {
@@ -837,6 +943,22 @@ public class DeviceAgentManagementService {
             }
         }
         Assert.isTrue(!isAllOffline, "All Device/Agent Offline!");
+        if (chosenDeviceCount == 0) {
+            // all the devices are busy, the task waits in the queue
+            return result;
+        }
+        if (isShard) {
+            // one shard for each free device, the busy ones are not waited for
+            Map<String, Integer> shardIndexes = new HashMap<>();
+            for (List<String> testDeviceSerials : testAgentDevicesMap.values()) {
+                for (String testDeviceSerial : testDeviceSerials) {
+                    shardIndexes.put(testDeviceSerial, shardIndexes.size());
+                }
+            }
+            testTaskSpec.shardIndexes = shardIndexes;
+            testTaskSpec.shardCount = shardIndexes.size();
+            testTaskSpec.shardTestSuites = planShardTestSuites(testTaskSpec);
+        }
         for (String agentId : testAgentDevicesMap.keySet()) {
             AgentSessionInfo agentSessionInfoByAgentId = getAgentSessionInfoByAgentId(agentId);
             List<String> testDeviceSerials = testAgentDevicesMap.get(agentId);
@@ -858,10 +980,28 @@ public class DeviceAgentManagementService {
         return result;
     }
 
+    /**
+     * @return the classes of each shard, null to let the runner split the suite
+     */
+    private List<String> planShardTestSuites(TestTaskSpec testTaskSpec) {
+        List<String> classes = TestShardUtil.getClassList(testTaskSpec.testScope, testTaskSpec.testSuiteClass);
+        if (classes.isEmpty()) {
+            return null;
+        }
+        Map<String, Double> classEstimates = testDurationHistoryService.getClassEstimates(testTaskSpec.testPkgName, classes);
+        List<String> shardTestSuites = new ArrayList<>();
+        for (List<String> shardClasses : TestShardUtil.planShards(classes, classEstimates, testTaskSpec.shardCount)) {
+            shardTestSuites.add(String.join(",", shardClasses));
+        }
+        log.info("Split {} classes of task {} into {} shards, {} of them with a known duration", classes.size(), testTaskSpec.testTaskId,
+                shardTestSuites.size(), classEstimates.size());
+        return shardTestSuites;
+    }
+
     private JSONObject runTestTaskByDevice(TestTaskSpec testTaskSpec) {
         JSONObject result = new JSONObject();
 
-        DeviceInfo device = deviceListMap.get(testTaskSpec.deviceIdentifier);
+        DeviceInfo device = deviceAgentRegistry.getDevice(testTaskSpec.deviceIdentifier);
         Assert.notNull(device, "error deviceIdentifier!");
         Message message = new Message();
         message.setBody(testTaskSpec);
@@ -883,41 +1023,26 @@ public class DeviceAgentManagementService {
     }
 
     private AgentSessionInfo getAgentSessionInfoByAgentId(String agentId) {
-        for (Map.Entry<String, AgentSessionInfo> entry : agentSessionMap.entrySet()) {
-            AgentSessionInfo sessionInfo = entry.getValue();
-            if (sessionInfo.agentUser.getId().equals(agentId)) {
-                return sessionInfo;
-            }
-        }
-        return null;
+        return deviceAgentRegistry.getSessionByAgentId(agentId);
     }
 
     private boolean checkIsSessionAliveByAgentId(String agentId) {
-
-        for (Map.Entry<String, AgentSessionInfo> entry : agentSessionMap.entrySet()) {
-            AgentSessionInfo sessionInfo = entry.getValue();
-            if (sessionInfo.agentUser.getId().equals(agentId)) {
-                if (sessionInfo.session != null && sessionInfo.session.isOpen()) {
-                    return true;
-                } else {
-                    agentSessionMap.remove(entry.getKey());
-                    log.info("Session of agent {} is not alive.", entry.getValue().agentUser.getName());
-                    metricUtil.updateAgentAliveStatus(entry.getValue().agentUser.getId(), GlobalConstant.AgentLiveStatus.OFFLINE.getStatus());
-                }
+        AgentSessionInfo sessionInfo = deviceAgentRegistry.getSessionByAgentId(agentId);
+        if (sessionInfo != null) {
+            if (sessionInfo.session != null && sessionInfo.session.isOpen()) {
+                return true;
             }
+            deviceAgentRegistry.removeSessionByAgentId(agentId);
+            log.info("Session of agent {} is not alive.", sessionInfo.agentUser.getName());
+            metricUtil.updateAgentAliveStatus(agentId, GlobalConstant.AgentLiveStatus.OFFLINE.getStatus());
         }
 
-        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.remove(agentId);
-        if (agentDeviceGroup == null || agentDeviceGroup.getDevices() == null) {
-            return false;
-        }
-        removeDevices(agentDeviceGroup.getDevices());
-
+        removeAgentDevices(agentId);
         return false;
     }
 
     public Boolean isAgentBusy(String agentId) {
-        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(agentId);
+        AgentDeviceGroup agentDeviceGroup = deviceAgentRegistry.getAgentDeviceGroup(agentId);
         if (agentDeviceGroup == null) {
             return false;
         }
@@ -951,7 +1076,7 @@ public class DeviceAgentManagementService {
         Assert.isTrue(!isAgentBusy(agentId), "Agent Is Busy! Please Wait For A Second!");
 
         //Start update agent
-        agentDeviceGroups.get(agentId).setAgentStatus(AgentDeviceGroup.Status.UPDATING);
+        Assert.isTrue(deviceAgentRegistry.updateAgentStatus(agentId, AgentDeviceGroup.Status.UPDATING), "Agent Offline!");
         AgentUpdateTask updateTask = new AgentUpdateTask();
         agentUpdateMap.put(agentId, updateTask);
 
@@ -996,18 +1121,15 @@ public class DeviceAgentManagementService {
     }
 
     public void updateAgentDeviceGroupTeam(String teamId, String teamName) {
-        List<AgentUser> agents = agentManageService.getAgentsByTeamId(teamId);
-        synchronized (agentDeviceGroups) {
-            agents.forEach(agent -> agentDeviceGroups.get(agent.getId()).setTeamName(teamName));
-        }
+        deviceAgentRegistry.updateTeamName(teamId, teamName);
     }
 
     public int getAliveAgentNum() {
-        return agentSessionMap.size();
+        return deviceAgentRegistry.getSessionCount();
     }
 
     public int getAliveDeviceNum() {
-        return (int) deviceListMap.values().stream().filter(DeviceInfo::isAlive).count();
+        return deviceAgentRegistry.snapshot().getAliveDevices().size();
     }
 
     @Scheduled(cron = "0 * * * * *")
@@ -1015,15 +1137,47 @@ public class DeviceAgentManagementService {
         int currentAgentNum = getAliveAgentNum();
         int currentDeviceNum = getAliveDeviceNum();
 
-        statisticDataRepository.save(new StatisticData("agent_num", currentAgentNum));
+        groupCommitWriter.write(() -> statisticDataRepository.saveAll(List.of(
+                new StatisticData("agent_num", currentAgentNum), new StatisticData("device_num", currentDeviceNum))));
         log.info("Storing current online agent number {}.", currentAgentNum);
-        statisticDataRepository.save(new StatisticData("device_num", currentDeviceNum));
         log.info("Storing current online device number {}.", currentDeviceNum);
     }
 
+    /**
+     * Run counts of a task reported by the agents running it, the limits of the task apply to their sum.
+     */
+    static class TaskRunProgress {
+        private final TerminationPolicy terminationPolicy;
+        // <agentId, {crashCount, failCount, testCount}>
+        private final Map<String, int[]> agentCounts = new HashMap<>();
+
+        TaskRunProgress(TerminationPolicy terminationPolicy) {
+            this.terminationPolicy = terminationPolicy;
+        }
+
+        /**
+         * @return why the task has to stop, null if it can go on
+         */
+        synchronized String update(String agentId, int crashCount, int failCount, int testCount) {
+            agentCounts.put(agentId, new int[]{crashCount, failCount, testCount});
+            int[] total = new int[3];
+            for (int[] counts : agentCounts.values()) {
+                for (int i = 0; i < total.length; i++) {
+                    total[i] += counts[i];
+                }
+            }
+            return terminationPolicy.check(total[0], total[1], total[2]);
+        }
+    }
+
     static class AgentSessionInfo {
         Session session;
         AgentUser agentUser;
+        MessageCodec messageCodec = SerializeUtil.DEFAULT_CODEC;
+        // sequence of the latest device state received from the agent, -1 if the agent doesn't number them
+        volatile long deviceStateSequence = -1;
+        // the storage token last sent to the agent, heartbeats only carry a token when it changed
+        volatile String sentAccessToken;
 
         public AgentSessionInfo(Session session, AgentUser agentUser) {
             this.session = session;
@@ -0,0 +1,393 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.microsoft.hydralab.common.entity.agent.MobileDevice;
+import com.microsoft.hydralab.common.entity.center.AgentDeviceGroup;
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory registry of connected agents and their devices, indexed by session id, agent id, device serial, group and team.
+ * <p>
+ * Updates come from the WebSocket threads and are serialized on the registry. The agent and device entries are never
+ * modified once registered: an update replaces them with an updated copy, in the serial index and in the device list of
+ * the agent alike, so readers can use an entry freely. Listings are served from a {@link Snapshot} which is rebuilt
+ * lazily after the registry changed, from the entries of the time.
+ */
+@Component
+public class DeviceAgentRegistry {
+    // <sessionId, session&agentUser>
+    private final ConcurrentHashMap<String, DeviceAgentManagementService.AgentSessionInfo> sessionsById = new ConcurrentHashMap<>();
+    // <agentId, session&agentUser>
+    private final ConcurrentHashMap<String, DeviceAgentManagementService.AgentSessionInfo> sessionsByAgentId = new ConcurrentHashMap<>();
+    // <agentId, agentInfo>
+    private final ConcurrentHashMap<String, AgentDeviceGroup> agentDeviceGroups = new ConcurrentHashMap<>();
+    // <deviceSerial, deviceInfo>
+    private final ConcurrentHashMap<String, DeviceInfo> devicesBySerial = new ConcurrentHashMap<>();
+    // <groupName, deviceSerials>
+    private final ConcurrentHashMap<String, Set<String>> groupDevices = new ConcurrentHashMap<>();
+    // <teamId, agentIds>
+    private final ConcurrentHashMap<String, Set<String>> teamAgents = new ConcurrentHashMap<>();
+
+    private final AtomicLong version = new AtomicLong();
+    private final Object snapshotLock = new Object();
+    private volatile Snapshot snapshot = new Snapshot(-1, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+    /**
+     * @return the previous session of the same agent, if it has been replaced
+     */
+    public synchronized DeviceAgentManagementService.AgentSessionInfo addSession(String sessionId, DeviceAgentManagementService.AgentSessionInfo sessionInfo) {
+        DeviceAgentManagementService.AgentSessionInfo previous = sessionsByAgentId.put(sessionInfo.agentUser.getId(), sessionInfo);
+        if (previous != null && previous.session != null && !sessionId.equals(previous.session.getId())) {
+            sessionsById.remove(previous.session.getId(), previous);
+        }
+        sessionsById.put(sessionId, sessionInfo);
+        return previous == sessionInfo ? null : previous;
+    }
+
+    public synchronized DeviceAgentManagementService.AgentSessionInfo removeSession(String sessionId) {
+        DeviceAgentManagementService.AgentSessionInfo removed = sessionsById.remove(sessionId);
+        if (removed != null && removed.agentUser != null) {
+            sessionsByAgentId.remove(removed.agentUser.getId(), removed);
+        }
+        return removed;
+    }
+
+    public synchronized DeviceAgentManagementService.AgentSessionInfo removeSessionByAgentId(String agentId) {
+        DeviceAgentManagementService.AgentSessionInfo removed = sessionsByAgentId.remove(agentId);
+        if (removed != null && removed.session != null) {
+            sessionsById.remove(removed.session.getId(), removed);
+        }
+        return removed;
+    }
+
+    public DeviceAgentManagementService.AgentSessionInfo getSession(String sessionId) {
+        return sessionsById.get(sessionId);
+    }
+
+    public DeviceAgentManagementService.AgentSessionInfo getSessionByAgentId(String agentId) {
+        return sessionsByAgentId.get(agentId);
+    }
+
+    public Collection<DeviceAgentManagementService.AgentSessionInfo> getSessions() {
+        return Collections.unmodifiableCollection(sessionsById.values());
+    }
+
+    public int getSessionCount() {
+        return sessionsById.size();
+    }
+
+    public AgentDeviceGroup getAgentDeviceGroup(String agentId) {
+        return agentDeviceGroups.get(agentId);
+    }
+
+    public DeviceInfo getDevice(String serialNum) {
+        return devicesBySerial.get(serialNum);
+    }
+
+    /**
+     * Merge the devices reported by an agent into its device list, registering the agent on its first report.
+     * A device the center has marked as testing keeps its status and running task until the task is released.
+     */
+    public synchronized AgentDeviceGroup updateAgentDevices(AgentUser agentUser, List<DeviceInfo> latestDeviceInfos) {
+        String agentId = agentUser.getId();
+        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(agentId);
+        if (agentDeviceGroup == null) {
+            agentDeviceGroup = new AgentDeviceGroup();
+            agentDeviceGroup.initWithAgentUser(agentUser);
+            agentDeviceGroup.setDevices(Collections.emptyList());
+            if (agentDeviceGroup.getTeamId() != null) {
+                teamAgents.computeIfAbsent(agentDeviceGroup.getTeamId(), k -> ConcurrentHashMap.newKeySet()).add(agentId);
+            }
+        } else {
+            agentDeviceGroup = copyAgentDeviceGroup(agentDeviceGroup);
+        }
+
+        Map<String, DeviceInfo> devices = new LinkedHashMap<>();
+        for (DeviceInfo device : agentDeviceGroup.getDevices()) {
+            devices.put(device.getSerialNum(), device);
+        }
+        for (DeviceInfo deviceInfo : latestDeviceInfos) {
+            deviceInfo.setAgentId(agentId);
+            DeviceInfo previous = devicesBySerial.get(deviceInfo.getSerialNum());
+            if (previous != null) {
+                if (previous.isTesting()) {
+                    deviceInfo.setStatus(DeviceInfo.TESTING);
+                    deviceInfo.setRunningTaskId(previous.getRunningTaskId());
+                }
+                deviceInfo.setDeviceGroup(previous.getDeviceGroup());
+            }
+            devicesBySerial.put(deviceInfo.getSerialNum(), deviceInfo);
+            devices.put(deviceInfo.getSerialNum(), deviceInfo);
+        }
+        agentDeviceGroup.setDevices(Collections.unmodifiableList(new ArrayList<>(devices.values())));
+        agentDeviceGroups.put(agentId, agentDeviceGroup);
+        version.incrementAndGet();
+        return agentDeviceGroup;
+    }
+
+    /**
+     * @return the updated device, or null if the serial is unknown
+     */
+    public synchronized DeviceInfo updateDeviceStatus(String serialNum, String status, String testTaskId) {
+        DeviceInfo device = devicesBySerial.get(serialNum);
+        if (device == null) {
+            return null;
+        }
+        DeviceInfo updated = copyDevice(device);
+        updated.setStatus(status);
+        updated.setRunningTaskId(testTaskId);
+        replaceDevice(updated);
+        version.incrementAndGet();
+        return updated;
+    }
+
+    /**
+     * @return false if the agent is not registered
+     */
+    public synchronized boolean updateAgentStatus(String agentId, String agentStatus) {
+        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(agentId);
+        if (agentDeviceGroup == null) {
+            return false;
+        }
+        AgentDeviceGroup updated = copyAgentDeviceGroup(agentDeviceGroup);
+        updated.setAgentStatus(agentStatus);
+        agentDeviceGroups.put(agentId, updated);
+        version.incrementAndGet();
+        return true;
+    }
+
+    public synchronized void updateTeamName(String teamId, String teamName) {
+        Set<String> agentIds = teamAgents.get(teamId);
+        if (agentIds == null) {
+            return;
+        }
+        for (String agentId : agentIds) {
+            AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(agentId);
+            if (agentDeviceGroup != null) {
+                AgentDeviceGroup updated = copyAgentDeviceGroup(agentDeviceGroup);
+                updated.setTeamName(teamName);
+                agentDeviceGroups.put(agentId, updated);
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Remove the agent together with its devices and their group relations.
+     *
+     * @return the removed agent, or null if it was not registered
+     */
+    public synchronized AgentDeviceGroup removeAgent(String agentId) {
+        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.remove(agentId);
+        if (agentDeviceGroup == null) {
+            return null;
+        }
+        if (agentDeviceGroup.getTeamId() != null) {
+            Set<String> agentIds = teamAgents.get(agentDeviceGroup.getTeamId());
+            if (agentIds != null) {
+                agentIds.remove(agentId);
+            }
+        }
+        if (agentDeviceGroup.getDevices() != null) {
+            for (DeviceInfo device : agentDeviceGroup.getDevices()) {
+                for (String group : device.getDeviceGroup()) {
+                    Set<String> serials = groupDevices.get(group);
+                    if (serials != null) {
+                        serials.remove(device.getSerialNum());
+                    }
+                }
+                devicesBySerial.remove(device.getSerialNum(), device);
+            }
+        }
+        version.incrementAndGet();
+        return agentDeviceGroup;
+    }
+
+    public synchronized void addDeviceToGroup(String group, String serialNum) {
+        groupDevices.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet()).add(serialNum);
+        DeviceInfo device = devicesBySerial.get(serialNum);
+        if (device != null && !device.getDeviceGroup().contains(group)) {
+            DeviceInfo updated = copyDevice(device);
+            updated.getDeviceGroup().add(group);
+            replaceDevice(updated);
+        }
+        version.incrementAndGet();
+    }
+
+    public synchronized void deleteDeviceFromGroup(String group, String serialNum) {
+        Set<String> serials = groupDevices.get(group);
+        if (serials != null) {
+            serials.remove(serialNum);
+        }
+        removeGroupOfDevice(serialNum, group);
+        version.incrementAndGet();
+    }
+
+    public synchronized void removeGroup(String group) {
+        Set<String> serials = groupDevices.remove(group);
+        if (serials == null) {
+            return;
+        }
+        for (String serialNum : serials) {
+            removeGroupOfDevice(serialNum, group);
+        }
+        version.incrementAndGet();
+    }
+
+    private void removeGroupOfDevice(String serialNum, String group) {
+        DeviceInfo device = devicesBySerial.get(serialNum);
+        if (device != null && device.getDeviceGroup().contains(group)) {
+            DeviceInfo updated = copyDevice(device);
+            updated.getDeviceGroup().remove(group);
+            replaceDevice(updated);
+        }
+    }
+
+    // in the serial index and in the device list of its agent
+    private void replaceDevice(DeviceInfo device) {
+        devicesBySerial.put(device.getSerialNum(), device);
+        AgentDeviceGroup agentDeviceGroup = device.getAgentId() == null ? null : agentDeviceGroups.get(device.getAgentId());
+        if (agentDeviceGroup == null || agentDeviceGroup.getDevices() == null) {
+            return;
+        }
+        List<DeviceInfo> devices = new ArrayList<>(agentDeviceGroup.getDevices());
+        devices.replaceAll(agentDevice -> agentDevice.getSerialNum().equals(device.getSerialNum()) ? device : agentDevice);
+        AgentDeviceGroup updated = copyAgentDeviceGroup(agentDeviceGroup);
+        updated.setDevices(Collections.unmodifiableList(devices));
+        agentDeviceGroups.put(updated.getAgentId(), updated);
+    }
+
+    public Set<String> getDevicesOfGroup(String group) {
+        Set<String> serials = groupDevices.get(group);
+        return serials == null ? new HashSet<>() : new HashSet<>(serials);
+    }
+
+    public Set<String> getDevicesOfAgent(String agentId) {
+        AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(agentId);
+        if (agentDeviceGroup == null || agentDeviceGroup.getDevices() == null) {
+            return new HashSet<>();
+        }
+        return agentDeviceGroup.getDevices().stream().map(MobileDevice::getSerialNum).collect(Collectors.toSet());
+    }
+
+    public List<AgentDeviceGroup> getAgentDeviceGroupsOfTeam(String teamId) {
+        Set<String> agentIds = teamAgents.get(teamId);
+        if (agentIds == null) {
+            return new ArrayList<>();
+        }
+        List<AgentDeviceGroup> res = new ArrayList<>();
+        for (String agentId : agentIds) {
+            AgentDeviceGroup agentDeviceGroup = agentDeviceGroups.get(agentId);
+            if (agentDeviceGroup != null) {
+                res.add(agentDeviceGroup);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return a consistent view of the registry, rebuilt only if something changed since the last call
+     */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current.version == version.get()) {
+            return current;
+        }
+        synchronized (snapshotLock) {
+            current = snapshot;
+            long latestVersion;
+            Map<String, AgentDeviceGroup> agents;
+            Map<String, DeviceInfo> devices;
+            Map<String, Set<String>> groups;
+            synchronized (this) {
+                latestVersion = version.get();
+                if (current.version == latestVersion) {
+                    return current;
+                }
+                // the entries are replaced rather than modified, the references are enough
+                devices = new LinkedHashMap<>(devicesBySerial);
+                agents = new LinkedHashMap<>(agentDeviceGroups);
+                groups = new HashMap<>();
+                groupDevices.forEach((group, serials) -> groups.put(group, Collections.unmodifiableSet(new HashSet<>(serials))));
+            }
+            current = new Snapshot(latestVersion, agents, devices, groups);
+            snapshot = current;
+            return current;
+        }
+    }
+
+    private static DeviceInfo copyDevice(DeviceInfo device) {
+        DeviceInfo copy = BeanUtil.copyProperties(device, DeviceInfo.class);
+        copy.setDeviceGroup(new HashSet<>(device.getDeviceGroup()));
+        return copy;
+    }
+
+    private static AgentDeviceGroup copyAgentDeviceGroup(AgentDeviceGroup agentDeviceGroup) {
+        return BeanUtil.copyProperties(agentDeviceGroup, AgentDeviceGroup.class);
+    }
+
+    /**
+     * A view of the registry at one point, the later updates replace the entries rather than modify them.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final List<AgentDeviceGroup> agentDeviceGroups;
+        private final List<AgentDeviceGroup> appiumAgents;
+        private final List<DeviceInfo> aliveDevices;
+        private final Map<String, Set<String>> groupDevices;
+
+        private Snapshot(long version, Map<String, AgentDeviceGroup> agents, Map<String, DeviceInfo> devices, Map<String, Set<String>> groups) {
+            this.version = version;
+            this.agentDeviceGroups = Collections.unmodifiableList(new ArrayList<>(agents.values()));
+            List<AgentDeviceGroup> appiumAgentList = new ArrayList<>();
+            for (AgentDeviceGroup agent : agents.values()) {
+                if (agent.getAgentDeviceType() != AgentUser.DeviceType.WINDOWS) {
+                    continue;
+                }
+                List<DeviceInfo> agentDevices = agent.getDevices();
+                if (agentDevices.size() != 1 || !agentDevices.get(0).isAlive()) {
+                    continue;
+                }
+                appiumAgentList.add(agent);
+            }
+            this.appiumAgents = Collections.unmodifiableList(appiumAgentList);
+            this.aliveDevices = Collections.unmodifiableList(devices.values().stream().filter(DeviceInfo::isAlive).collect(Collectors.toList()));
+            this.groupDevices = Collections.unmodifiableMap(groups);
+        }
+
+        public List<AgentDeviceGroup> getAgentDeviceGroups() {
+            return agentDeviceGroups;
+        }
+
+        // WINDOWS agents with exactly one alive device
+        public List<AgentDeviceGroup> getAppiumAgents() {
+            return appiumAgents;
+        }
+
+        public List<DeviceInfo> getAliveDevices() {
+            return aliveDevices;
+        }
+
+        public Map<String, Set<String>> getGroupDevices() {
+            return groupDevices;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Fan out device availability changes seen by {@link DeviceAgentManagementService} to the interested services,
+ * e.g. the test task scheduler. Listeners are called on the publishing thread and are expected to return quickly.
+ */
+@Slf4j
+@Service
+public class DeviceAvailabilityEventBus implements DeviceAvailabilityListener {
+    private final List<DeviceAvailabilityListener> listeners = new CopyOnWriteArrayList<>();
+
+    private void notifyEach(Consumer<DeviceAvailabilityListener> consumer) {
+        listeners.forEach(listener -> {
+            try {
+                consumer.accept(listener);
+            } catch (Exception e) {
+                log.error("Failed to notify device availability listener {}", listener.getClass().getSimpleName(), e);
+            }
+        });
+    }
+
+    public void registerListener(@NotNull DeviceAvailabilityListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void onDevicesAvailable(String agentId, Collection<String> deviceSerials) {
+        if (deviceSerials.isEmpty()) {
+            return;
+        }
+        notifyEach(listener -> listener.onDevicesAvailable(agentId, deviceSerials));
+    }
+
+    @Override
+    public void onDevicesUnavailable(String agentId, Collection<String> deviceSerials) {
+        if (deviceSerials.isEmpty()) {
+            return;
+        }
+        notifyEach(listener -> listener.onDevicesUnavailable(agentId, deviceSerials));
+    }
+}
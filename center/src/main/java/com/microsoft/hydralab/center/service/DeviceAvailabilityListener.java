@@ -0,0 +1,18 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import java.util.Collection;
+
+public interface DeviceAvailabilityListener {
+    /**
+     * Devices turned ONLINE: connected, reported by a (re-)registered agent or released by a finished/cancelled task.
+     */
+    void onDevicesAvailable(String agentId, Collection<String> deviceSerials);
+
+    /**
+     * Devices went away with their agent session or left the ONLINE state.
+     */
+    void onDevicesUnavailable(String agentId, Collection<String> deviceSerials);
+}
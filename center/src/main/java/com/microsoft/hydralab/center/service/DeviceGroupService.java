@@ -26,6 +26,8 @@ import java.util.regex.Pattern;
 @Service
 @CacheConfig(cacheNames = "groupCache")
 public class DeviceGroupService {
+    // the prefix of the keys in the cache annotations below
+    public static final String GROUP_CACHE_KEY_PREFIX = "groups-";
     @Resource
     DeviceGroupRepository deviceGroupRepository;
     @Resource
@@ -102,7 +104,7 @@ public class DeviceGroupService {
         return deviceGroupRelationRepository.findAllByGroupName(groupName);
     }
 
-    @Cacheable(key = "'groups-'+#deviceSerial")
+    @Cacheable(key = "'groups-'+#deviceSerial", sync = true)
     public List<DeviceGroupRelation> getGroupByDevice(String deviceSerial) {
         return deviceGroupRelationRepository.findAllByDeviceSerial(deviceSerial);
     }
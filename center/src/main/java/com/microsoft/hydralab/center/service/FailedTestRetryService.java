@@ -0,0 +1,159 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.util.Const;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Runs the failed tests of a finished task again rather than the whole suite, and marks the tests passing on the
+ * rerun as flaky in the results of the task. Only instrumentation tests can be run method by method.
+ */
+@Service
+@Slf4j
+public class FailedTestRetryService {
+    private static final int MAX_RETRIABLE_TASK_NUM = 10000;
+    // longer than a task can wait in the queue and run
+    private static final Duration RETRIABLE_TASK_TTL = Duration.ofDays(1);
+    @Resource
+    TestTaskService testTaskService;
+    @Resource
+    TestDataService testDataService;
+    // the running tasks whose failed tests are to be run again, with the reruns, by task id
+    private final Cache<String, RetryState> retriableTasks = Caffeine.newBuilder()
+            .maximumSize(MAX_RETRIABLE_TASK_NUM)
+            .expireAfterWrite(RETRIABLE_TASK_TTL)
+            .build();
+
+    /**
+     * Remember the spec of a submitted task to run its failed tests again once it finishes.
+     */
+    public void register(TestTaskSpec testTaskSpec) {
+        if (testTaskSpec.failedTestRetryTime <= 0) {
+            return;
+        }
+        if (StringUtils.isNotEmpty(testTaskSpec.runningType) && !TestTask.TestRunningType.INSTRUMENTATION.equals(testTaskSpec.runningType)) {
+            log.warn("Failed tests of task {} can't be run again, only instrumentation tests can", testTaskSpec.testTaskId);
+            return;
+        }
+        retriableTasks.put(testTaskSpec.testTaskId, new RetryState(testTaskSpec, testTaskSpec.failedTestRetryTime));
+    }
+
+    /**
+     * Merge the results of a finished rerun into the task it retried, and queue a rerun of the tests still failing.
+     */
+    public void onTaskFinished(TestTask testTask) {
+        RetryState retryState = retriableTasks.getIfPresent(testTask.getId());
+        if (retryState == null) {
+            return;
+        }
+        retriableTasks.invalidate(testTask.getId());
+        if (!retryState.taskSpec.testTaskId.equals(testTask.getId())) {
+            markFlakyTests(retryState.taskSpec.testTaskId, testTask);
+        }
+        if (testTask.isTerminated()) {
+            log.info("Task {} is terminated, its failed tests are not run again", testTask.getId());
+            return;
+        }
+
+        Set<String> failedTests = new LinkedHashSet<>();
+        Set<String> failedDeviceSerials = new HashSet<>();
+        for (TestRun testRun : testTask.getDeviceTestResults()) {
+            for (AndroidTestUnit testUnit : testRun.getTestUnitList()) {
+                if (testUnit.isFailed()) {
+                    failedTests.add(getTestKey(testUnit));
+                    failedDeviceSerials.add(testRun.getDeviceSerialNumber());
+                }
+            }
+        }
+        if (failedTests.isEmpty() || retryState.retriesLeft <= 0) {
+            return;
+        }
+
+        TestTaskSpec retrySpec = createRetrySpec(retryState.taskSpec, String.join(",", failedTests), failedDeviceSerials);
+        retriableTasks.put(retrySpec.testTaskId, new RetryState(retryState.taskSpec, retryState.retriesLeft - 1));
+        log.info("Run the {} failed tests of task {} again as task {}", failedTests.size(), retryState.taskSpec.testTaskId, retrySpec.testTaskId);
+        testTaskService.addTask(retrySpec);
+        testTaskService.requestDispatch();
+    }
+
+    private static TestTaskSpec createRetrySpec(TestTaskSpec taskSpec, String testSuite, Set<String> failedDeviceSerials) {
+        TestTaskSpec retrySpec = TestTask.convertToTestTaskSpec(TestTask.convertToTestTask(taskSpec));
+        retrySpec.testTaskId = UUID.randomUUID().toString();
+        retrySpec.frameworkType = taskSpec.frameworkType;
+        retrySpec.testScope = TestTask.TestScope.CLASS;
+        retrySpec.testSuiteClass = testSuite;
+        retrySpec.failedTestRetryTime = 0;
+        retrySpec.retriedTaskId = taskSpec.testTaskId;
+        if (taskSpec.deviceIdentifier.startsWith(Const.DeviceGroup.GROUP_NAME_PREFIX)) {
+            // a few tests, not worth several devices
+            retrySpec.groupTestType = Const.DeviceGroup.SINGLE_TYPE;
+            retrySpec.avoidedDeviceSerials = failedDeviceSerials;
+        }
+        return retrySpec;
+    }
+
+    private void markFlakyTests(String taskId, TestTask retryTask) {
+        TestTask testTask = testDataService.getTestTaskDetail(taskId);
+        if (testTask == null) {
+            log.warn("Task {} retried by task {} is not found", taskId, retryTask.getId());
+            return;
+        }
+        Set<String> passedTests = new HashSet<>();
+        for (TestRun testRun : retryTask.getDeviceTestResults()) {
+            for (AndroidTestUnit testUnit : testRun.getTestUnitList()) {
+                if (testUnit.getStatusCode() == AndroidTestUnit.StatusCodes.OK) {
+                    passedTests.add(getTestKey(testUnit));
+                }
+            }
+        }
+        int flakyCount = 0;
+        for (TestRun testRun : testTask.getDeviceTestResults()) {
+            for (AndroidTestUnit testUnit : testRun.getTestUnitList()) {
+                if (testUnit.isFailed() && !Boolean.TRUE.equals(testUnit.getFlaky()) && passedTests.contains(getTestKey(testUnit))) {
+                    testUnit.setFlaky(true);
+                    testRun.setFailCount(testRun.getFailCount() - 1);
+                    testRun.setSuccess(testRun.getFailCount() <= 0 && testRun.getTotalCount() > 0);
+                    flakyCount++;
+                }
+            }
+        }
+        if (flakyCount == 0) {
+            return;
+        }
+        testTask.setTotalFailCount(Math.max(0, testTask.getTotalFailCount() - flakyCount));
+        testDataService.saveTestTaskData(testTask);
+        log.info("{} failed tests of task {} passed when run again", flakyCount, taskId);
+    }
+
+    private static String getTestKey(AndroidTestUnit testUnit) {
+        return testUnit.getTestedClass() + "#" + testUnit.getTestName();
+    }
+
+    private static final class RetryState {
+        // the spec of the task first submitted
+        final TestTaskSpec taskSpec;
+        final int retriesLeft;
+
+        RetryState(TestTaskSpec taskSpec, int retriesLeft) {
+            this.taskSpec = taskSpec;
+            this.retriesLeft = retriesLeft;
+        }
+    }
+}
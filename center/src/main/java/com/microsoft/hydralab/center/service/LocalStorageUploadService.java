@@ -0,0 +1,244 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.file.impl.local.ChunkedUpload;
+import com.microsoft.hydralab.common.util.Const;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunked uploads to the local storage: an upload is initiated with the file size, chunks are written by offset
+ * straight into a preallocated file, and the commit moves the file to its place once every byte is received.
+ * An unfinished upload of the same file and size is resumed instead of started over.
+ * The uploads are only kept in memory, so the files left by the uploads of a previous run are deleted once expired.
+ */
+@Service
+@Slf4j
+public class LocalStorageUploadService {
+    static final long UPLOAD_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // <uploadId, upload>
+    private final Map<String, UploadState> uploads = new ConcurrentHashMap<>();
+    File uploadingDir = new File(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOADING_DIR);
+    File storageRoot = new File(Const.LocalStorageURL.CENTER_LOCAL_STORAGE_ROOT);
+
+    public synchronized ChunkedUpload initiate(String fileUri, long size) {
+        if (size < 0) {
+            throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), "Invalid file size!");
+        }
+        for (UploadState upload : uploads.values()) {
+            if (upload.fileUri.equals(fileUri) && upload.size == size && upload.tempFile.exists()) {
+                log.info("Resume upload {} of {}, {} chunks received", upload.uploadId, fileUri, upload.chunks.size());
+                upload.lastAccessTime = System.currentTimeMillis();
+                return upload.toChunkedUpload();
+            }
+        }
+
+        String uploadId = UUID.randomUUID().toString();
+        File tempFile = new File(uploadingDir, uploadId);
+        if (!uploadingDir.exists() && !uploadingDir.mkdirs()) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "mkdirs failed!");
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw")) {
+            randomAccessFile.setLength(size);
+        } catch (IOException e) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to allocate the upload file!", e);
+        }
+        UploadState upload = new UploadState(uploadId, fileUri, size, tempFile);
+        uploads.put(uploadId, upload);
+        return upload.toChunkedUpload();
+    }
+
+    /**
+     * Write the chunk at the offset of the upload. The chunk is recorded only if its MD5 matches contentMd5,
+     * otherwise the client has to send it again.
+     */
+    public void writeChunk(String uploadId, long offset, String contentMd5, InputStream inputStream) {
+        UploadState upload = getUpload(uploadId);
+        if (offset < 0 || offset > upload.size) {
+            throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), "Invalid chunk offset!");
+        }
+
+        MessageDigest digest = getMd5Digest();
+        long length = 0;
+        try (FileChannel fileChannel = FileChannel.open(upload.tempFile.toPath(), StandardOpenOption.WRITE)) {
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                if (offset + length + buffer.remaining() > upload.size) {
+                    throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), "Chunk exceeds the file size!");
+                }
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    length += fileChannel.write(buffer, offset + length);
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to write the chunk: " + e.getMessage(), e);
+        }
+
+        String md5 = Base64.getEncoder().encodeToString(digest.digest());
+        if (contentMd5 != null && !contentMd5.equals(md5)) {
+            throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), String.format("Checksum mismatch of the chunk at %d!", offset));
+        }
+        synchronized (upload) {
+            upload.chunks.put(offset, new Chunk(length, md5));
+            upload.lastAccessTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Move the uploaded file to the fileUri of the upload.
+     *
+     * @return fileUri
+     */
+    public String commit(String uploadId) {
+        UploadState upload = getUpload(uploadId);
+        synchronized (upload) {
+            long missingFrom = upload.getFirstMissingOffset();
+            if (missingFrom < upload.size) {
+                throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), String.format("Upload is incomplete, missing the data from %d!", missingFrom));
+            }
+            File file = new File(storageRoot, upload.fileUri);
+            File parentDirFile = file.getParentFile();
+            if (!parentDirFile.exists() && !parentDirFile.mkdirs()) {
+                throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "mkdirs failed!");
+            }
+            try {
+                Files.move(upload.tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "upload file failed!", e);
+            }
+            uploads.remove(uploadId);
+        }
+        log.info("Upload {} of {} committed, size {}", uploadId, upload.fileUri, upload.size);
+        return upload.fileUri;
+    }
+
+    @PostConstruct
+    @Scheduled(cron = "0 0 * * * *")
+    public void cleanExpiredUploads() {
+        long now = System.currentTimeMillis();
+        uploads.values().removeIf(upload -> {
+            if (now - upload.lastAccessTime < UPLOAD_EXPIRY_MILLIS) {
+                return false;
+            }
+            log.info("Upload {} of {} expired", upload.uploadId, upload.fileUri);
+            if (upload.tempFile.exists() && !upload.tempFile.delete()) {
+                log.warn("Failed to delete {}", upload.tempFile);
+            }
+            return true;
+        });
+        cleanOrphanedUploadFiles(now);
+    }
+
+    /**
+     * Delete the expired files of the uploads no longer known, e.g. the uploads of the center before a restart.
+     */
+    private void cleanOrphanedUploadFiles(long now) {
+        File[] files = uploadingDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (uploads.containsKey(file.getName()) || now - file.lastModified() < UPLOAD_EXPIRY_MILLIS) {
+                continue;
+            }
+            log.info("Delete the orphaned upload file {}", file);
+            if (!file.delete()) {
+                log.warn("Failed to delete {}", file);
+            }
+        }
+    }
+
+    private UploadState getUpload(String uploadId) {
+        UploadState upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw new HydraLabRuntimeException(HttpStatus.NOT_FOUND.value(), String.format("Upload %s not found!", uploadId));
+        }
+        return upload;
+    }
+
+    private static MessageDigest getMd5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Chunk {
+        private final long length;
+        private final String md5;
+
+        private Chunk(long length, String md5) {
+            this.length = length;
+            this.md5 = md5;
+        }
+    }
+
+    private static final class UploadState {
+        private final String uploadId;
+        private final String fileUri;
+        private final long size;
+        private final File tempFile;
+        // <offset, chunk>, guarded by this
+        private final TreeMap<Long, Chunk> chunks = new TreeMap<>();
+        private volatile long lastAccessTime = System.currentTimeMillis();
+
+        private UploadState(String uploadId, String fileUri, long size, File tempFile) {
+            this.uploadId = uploadId;
+            this.fileUri = fileUri;
+            this.size = size;
+            this.tempFile = tempFile;
+        }
+
+        private long getFirstMissingOffset() {
+            long covered = 0;
+            for (Map.Entry<Long, Chunk> entry : chunks.entrySet()) {
+                if (entry.getKey() > covered) {
+                    break;
+                }
+                covered = Math.max(covered, entry.getKey() + entry.getValue().length);
+            }
+            return covered;
+        }
+
+        private synchronized ChunkedUpload toChunkedUpload() {
+            ChunkedUpload chunkedUpload = new ChunkedUpload();
+            chunkedUpload.setUploadId(uploadId);
+            chunkedUpload.setFileUri(fileUri);
+            chunkedUpload.setSize(size);
+            chunks.forEach((offset, chunk) -> chunkedUpload.getUploadedChunks().put(offset, chunk.md5));
+            return chunkedUpload;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import com.microsoft.hydralab.common.util.Const;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -50,6 +51,9 @@ public class SecurityUserService {
     SessionManageService sessionManageService;
     @Resource
     SessionRegistry sessionRegistry;
+    @Lazy
+    @Resource
+    AuthTokenService authTokenService;
     @Value("${app.default-user}")
     String defaultUser;
     @Value("${spring.security.oauth2.enabled}")
@@ -132,6 +136,7 @@ public class SecurityUserService {
     }
 
     public void reloadUserAuthentication(String mailAddress, String updateContent) {
+        authTokenService.invalidateUserAuthentication(mailAddress);
         List<HttpSession> sessions = sessionManageService.getUserSessions(mailAddress);
         sessions.forEach(session -> reloadUserAuthenticationToSession(session, updateContent));
     }
@@ -3,77 +3,130 @@
 
 package com.microsoft.hydralab.center.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import com.microsoft.hydralab.common.file.AccessToken;
 import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
 import com.microsoft.hydralab.common.util.Const;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
 import javax.annotation.Resource;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Each agent or user keeps the same token until it is about to expire, then gets a new one. The previous token
+ * stays valid until its own expiry time, so the transfers started with it are not interrupted. The tokens issued
+ * since the start are checked against the issued ones, the others, e.g. issued before a restart, by their signature.
+ *
  * @author Li Shen
  * @date 2/21/2023
  */
 
 @Service
 public class StorageTokenManageService {
+    // the token value of the LOCAL storage, as sent in the Authorization header
+    static final String TOKEN_VAL_PREFIX = "token=";
     @Resource
     StorageServiceClientProxy storageServiceClientProxy;
+    // used by center itself to reach the LOCAL storage, never expires
+    @Value("${app.storage.local.token:}")
+    String centerToken;
+    // the current token of each agent or user, by permission
     private final ConcurrentMap<String, AccessToken> accessTokenMap = new ConcurrentHashMap<>();
+    // the expiry time in milliseconds of every token issued, until it is reached
+    private final Cache<String, Long> issuedTokens = Caffeine.newBuilder()
+            .expireAfter(new Expiry<String, Long>() {
+                @Override
+                public long expireAfterCreate(String token, Long expiredTime, long currentTime) {
+                    return TimeUnit.MILLISECONDS.toNanos(Math.max(0, expiredTime - System.currentTimeMillis()));
+                }
+
+                @Override
+                public long expireAfterUpdate(String token, Long expiredTime, long currentTime, long currentDuration) {
+                    return expireAfterCreate(token, expiredTime, currentTime);
+                }
+
+                @Override
+                public long expireAfterRead(String token, Long expiredTime, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .build();
 
     public AccessToken generateReadToken(String uniqueId) {
-        Assert.notNull(uniqueId, "The key of access token can't be null!");
-        AccessToken accessToken = accessTokenMap.get(uniqueId);
-
-        if (accessToken == null || storageServiceClientProxy.isAccessTokenExpired(accessToken)) {
-            accessToken = storageServiceClientProxy.generateAccessToken(Const.FilePermission.READ);
-            Assert.notNull(accessToken, "Current storage service doesn't config READ permission!");
-            accessTokenMap.put(uniqueId, accessToken);
-        }
-
-        return accessToken;
+        return getOrIssueToken(uniqueId, Const.FilePermission.READ);
     }
 
     public AccessToken generateWriteToken(String uniqueId) {
-        Assert.notNull(uniqueId, "The key of access token can't be null!");
-        AccessToken accessToken = accessTokenMap.get(uniqueId);
-
-        if (accessToken == null || storageServiceClientProxy.isAccessTokenExpired(accessToken)) {
-            accessToken = storageServiceClientProxy.generateAccessToken(Const.FilePermission.WRITE);
-            Assert.notNull(accessToken, "Current storage service doesn't config WRITE permission!");
-            accessTokenMap.put(uniqueId, accessToken);
-        }
+        return getOrIssueToken(uniqueId, Const.FilePermission.WRITE);
+    }
 
-        return accessToken;
+    /**
+     * Forget the current write token of a disconnected agent, it gets a new one when it connects again.
+     */
+    public void releaseWriteToken(String uniqueId) {
+        accessTokenMap.remove(getTokenKey(uniqueId, Const.FilePermission.WRITE));
     }
 
-    // todo: to be updated when needed: check token in the format of "token=xxx&expiryTime=yyy&permission=zzz"
     public boolean validateAccessToken(String accessToken) {
-        return !StringUtils.isBlank(accessToken);
+        if (StringUtils.isBlank(accessToken)) {
+            return false;
+        }
+        if (accessToken.equals(centerToken)) {
+            return true;
+        }
+        Long expiredTime = issuedTokens.getIfPresent(accessToken);
+        if (expiredTime != null) {
+            return expiredTime > System.currentTimeMillis();
+        }
+        return storageServiceClientProxy.verifyAccessToken(accessToken);
     }
 
-    // todo: specify content
     // for subfield "token" of AccessToken of storage type LOCAL. Differentiate validation method here as AccessToken is split by HTTP PATH EXTRACTION from frontend request already
     public boolean validateTokenVal(String token) {
-        return !StringUtils.isBlank(token);
+        return !StringUtils.isBlank(token) && validateAccessToken(TOKEN_VAL_PREFIX + token);
     }
 
     @Deprecated
     public AccessToken temporaryGetReadSAS(String uniqueId) {
+        AccessToken accessToken = getOrIssueToken(uniqueId, Const.FilePermission.READ);
+        accessToken.copySignature();
+        return accessToken;
+    }
+
+    // the tokens of the users who left are not renewed, drop them once expired
+    @Scheduled(cron = "0 */10 * * * *")
+    public void removeExpiredTokens() {
+        long now = System.currentTimeMillis();
+        accessTokenMap.values().removeIf(accessToken -> getExpiredTime(accessToken) <= now);
+        issuedTokens.cleanUp();
+    }
+
+    private AccessToken getOrIssueToken(String uniqueId, String permission) {
         Assert.notNull(uniqueId, "The key of access token can't be null!");
-        AccessToken accessToken = accessTokenMap.get(uniqueId);
+        return accessTokenMap.compute(getTokenKey(uniqueId, permission), (key, accessToken) -> {
+            if (accessToken != null && !storageServiceClientProxy.isAccessTokenExpired(accessToken)) {
+                return accessToken;
+            }
+            AccessToken issuedToken = storageServiceClientProxy.generateAccessToken(permission);
+            Assert.notNull(issuedToken, "Current storage service doesn't config " + permission + " permission!");
+            issuedTokens.put(issuedToken.getToken(), getExpiredTime(issuedToken));
+            return issuedToken;
+        });
+    }
 
-        if (accessToken == null || storageServiceClientProxy.isAccessTokenExpired(accessToken)) {
-            accessToken = storageServiceClientProxy.generateAccessToken(Const.FilePermission.READ);
-            Assert.notNull(accessToken, "Current storage service doesn't config READ permission!");
-            accessTokenMap.put(uniqueId, accessToken);
-        }
+    private static String getTokenKey(String uniqueId, String permission) {
+        return permission + ":" + uniqueId;
+    }
 
-        accessToken.copySignature();
-        return accessToken;
+    private static long getExpiredTime(AccessToken accessToken) {
+        return accessToken.getExpiredTime() == null ? 0 : accessToken.getExpiredTime().toInstant().toEpochMilli();
     }
 }
@@ -0,0 +1,157 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.microsoft.hydralab.center.config.TaskScheduleProperty;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.util.GlobalConstant;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the devices between the teams queueing tasks: the team using the fewest devices for its weight goes first,
+ * and a team can't go over its quota of devices. The devices of a team are counted from the tasks running on them.
+ * Teams are counted by id, as in the queue, see {@link TestTaskQueue#getTeam(TestTaskSpec)}, and get the share configured
+ * for their name.
+ */
+@Service
+@Slf4j
+public class TeamFairShareService {
+    private static final int MAX_TRACKED_TASK_NUM = 10000;
+    // longer than a task can wait in the queue and run
+    private static final Duration TRACKED_TASK_TTL = Duration.ofDays(1);
+    // weight of the latest wait in the expected wait
+    private static final double WAIT_EWMA_WEIGHT = 0.2;
+    @Resource
+    DeviceAgentManagementService deviceAgentManagementService;
+    @Resource
+    TaskScheduleProperty taskScheduleProperty;
+    @Resource
+    MeterRegistry meterRegistry;
+    // team of the dispatched tasks, by task id
+    private final Cache<String, String> runningTaskTeams = Caffeine.newBuilder()
+            .maximumSize(MAX_TRACKED_TASK_NUM)
+            .expireAfterWrite(TRACKED_TASK_TTL)
+            .build();
+    private final Cache<String, QueuedTask> queuedTasks = Caffeine.newBuilder()
+            .maximumSize(MAX_TRACKED_TASK_NUM)
+            .expireAfterWrite(TRACKED_TASK_TTL)
+            .build();
+    // <team + priority class, seconds the tasks needed lately to move up one position in the queue of the team>
+    private final Map<String, Double> waitPerPosition = new ConcurrentHashMap<>();
+
+    /**
+     * @return devices running the tasks of each team, by team
+     */
+    public Map<String, Integer> countRunningDevices() {
+        Map<String, Integer> runningDevices = new HashMap<>();
+        for (DeviceInfo deviceInfo : deviceAgentManagementService.getAllDevice()) {
+            if (!deviceInfo.isTesting() || deviceInfo.getRunningTaskId() == null) {
+                continue;
+            }
+            String team = runningTaskTeams.getIfPresent(deviceInfo.getRunningTaskId());
+            if (team != null) {
+                runningDevices.merge(team, 1, Integer::sum);
+            }
+        }
+        return runningDevices;
+    }
+
+    /**
+     * @return devices used by the team of the task for each unit of its weight, the lower the sooner it runs
+     */
+    public double getShare(TestTaskSpec testTaskSpec, Map<String, Integer> runningDevices) {
+        String team = TestTaskQueue.getTeam(testTaskSpec);
+        double weight = taskScheduleProperty.getTeamShare(testTaskSpec.teamName).getWeight();
+        return runningDevices.getOrDefault(team, 0) / (weight > 0 ? weight : 1);
+    }
+
+    /**
+     * A team just under its quota may start one more task on several devices, the devices of a group task are
+     * only known once it runs.
+     */
+    public boolean isUnderQuota(TestTaskSpec testTaskSpec, Map<String, Integer> runningDevices) {
+        String team = TestTaskQueue.getTeam(testTaskSpec);
+        int maxRunningDevices = taskScheduleProperty.getTeamShare(testTaskSpec.teamName).getMaxRunningDevices();
+        return maxRunningDevices <= 0 || runningDevices.getOrDefault(team, 0) < maxRunningDevices;
+    }
+
+    public void onTaskQueued(TestTaskSpec testTaskSpec, int teamPosition) {
+        if (testTaskSpec.testTaskId != null) {
+            queuedTasks.put(testTaskSpec.testTaskId, new QueuedTask(System.currentTimeMillis(), Math.max(1, teamPosition)));
+        }
+    }
+
+    public void onTaskRemoved(String testTaskId) {
+        queuedTasks.invalidate(testTaskId);
+    }
+
+    /**
+     * @param runningDevices counts of the running pass to add the devices of the task to, null if none
+     */
+    public void onTaskDispatched(TestTaskSpec testTaskSpec, int deviceCount, Map<String, Integer> runningDevices) {
+        String team = TestTaskQueue.getTeam(testTaskSpec);
+        if (runningDevices != null) {
+            runningDevices.merge(team, deviceCount, Integer::sum);
+        }
+        if (testTaskSpec.testTaskId == null) {
+            return;
+        }
+        runningTaskTeams.put(testTaskSpec.testTaskId, team);
+
+        QueuedTask queuedTask = queuedTasks.getIfPresent(testTaskSpec.testTaskId);
+        queuedTasks.invalidate(testTaskSpec.testTaskId);
+        long waitMillis = queuedTask == null ? 0 : System.currentTimeMillis() - queuedTask.queuedTimeMillis;
+        String priority = getPriority(testTaskSpec);
+        Timer.builder(GlobalConstant.PROMETHEUS_METRIC_TEST_TASK_QUEUE_WAIT)
+                .description("Time from queueing a test task to its devices being assigned")
+                .tags("team", team, "priority", priority)
+                .publishPercentiles(0.5, 0.95)
+                .register(meterRegistry)
+                .record(waitMillis, TimeUnit.MILLISECONDS);
+        if (queuedTask != null) {
+            double sample = waitMillis / 1000.0 / queuedTask.teamPosition;
+            waitPerPosition.merge(team + "\n" + priority, sample, (estimate, latest) -> WAIT_EWMA_WEIGHT * latest + (1 - WAIT_EWMA_WEIGHT) * estimate);
+        }
+    }
+
+    /**
+     * @return seconds the task is expected to wait from the recent waits of its team, -1 if unknown
+     */
+    public long getExpectedWaitSeconds(TestTaskSpec testTaskSpec, int teamPosition) {
+        Double estimate = waitPerPosition.get(TestTaskQueue.getTeam(testTaskSpec) + "\n" + getPriority(testTaskSpec));
+        if (estimate == null || teamPosition <= 0) {
+            return -1;
+        }
+        return Math.round(estimate * teamPosition);
+    }
+
+    private static String getPriority(TestTaskSpec testTaskSpec) {
+        return TestTaskQueue.isBatchTask(testTaskSpec) ? TestTask.TestPriority.BATCH : TestTask.TestPriority.INTERACTIVE;
+    }
+
+    private static final class QueuedTask {
+        final long queuedTimeMillis;
+        // when queued
+        final int teamPosition;
+
+        QueuedTask(long queuedTimeMillis, int teamPosition) {
+            this.queuedTimeMillis = queuedTimeMillis;
+            this.teamPosition = teamPosition;
+        }
+    }
+}
@@ -3,13 +3,18 @@
 
 package com.microsoft.hydralab.center.service;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.alibaba.fastjson.JSONArray;
 import com.microsoft.hydralab.center.repository.StabilityDataRepository;
+import com.microsoft.hydralab.common.datasource.BatchUpsertUtil;
+import com.microsoft.hydralab.common.datasource.GroupCommitWriter;
 import com.microsoft.hydralab.common.entity.center.StabilityData;
 import com.microsoft.hydralab.common.entity.center.SysUser;
 import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
 import com.microsoft.hydralab.common.entity.common.CriteriaType;
 import com.microsoft.hydralab.common.entity.common.EntityType;
+import com.microsoft.hydralab.common.entity.common.KeysetPage;
+import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.repository.AndroidTestUnitRepository;
@@ -19,8 +24,12 @@ import com.microsoft.hydralab.common.repository.TestTaskRepository;
 import com.microsoft.hydralab.common.util.AttachmentService;
 import com.microsoft.hydralab.common.util.CriteriaTypeUtil;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheConfig;
 import org.springframework.cache.annotation.CachePut;
 import org.springframework.cache.annotation.Cacheable;
@@ -36,15 +45,29 @@ import javax.annotation.Resource;
 import javax.persistence.EntityManager;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
-@CacheConfig(cacheNames = "taskCache")
+@CacheConfig(cacheNames = TestDataService.TASK_CACHE_NAME)
 public class TestDataService {
+    static final String TASK_CACHE_NAME = "taskCache";
+    static final int APPROXIMATE_COUNT_LIMIT = 10000;
+    private static final String CURSOR_SEPARATOR = ":";
     private static final Logger LOGGER = LoggerFactory.getLogger(TestDataService.class);
     private final Sort sortByStartMillis = Sort.by(Sort.Direction.DESC, "startTimeMillis");
     private final Sort sortByStartDate = Sort.by(Sort.Direction.DESC, "startDate");
@@ -66,6 +89,10 @@ public class TestDataService {
     UserTeamManagementService userTeamManagementService;
     @Resource
     EntityManager entityManager;
+    @Resource
+    GroupCommitWriter groupCommitWriter;
+    @Resource
+    CacheManager cacheManager;
     @Lazy
     @Resource
     private TestDataService testDataServiceCache;
@@ -73,9 +100,14 @@ public class TestDataService {
     public List<AndroidTestUnit> getAllTestUnit(int page, int size) {
         List<AndroidTestUnit> testUnits = androidTestUnitRepository.findBySuccess(false, PageRequest.of(page, size, sortByStartMillis)).getContent();
 
+        Set<String> testRunIds = testUnits.stream().map(AndroidTestUnit::getDeviceTestResultId).collect(Collectors.toSet());
+        Map<String, TestRun> testRunMap = testRunRepository.findAllById(testRunIds).stream()
+                .collect(Collectors.toMap(TestRun::getId, Function.identity()));
         for (AndroidTestUnit testUnit : testUnits) {
-            Optional<TestRun> deviceTestTask = testRunRepository.findById(testUnit.getDeviceTestResultId());
-            deviceTestTask.ifPresent(testUnit::setDeviceTestTask);
+            TestRun deviceTestTask = testRunMap.get(testUnit.getDeviceTestResultId());
+            if (deviceTestTask != null) {
+                testUnit.setDeviceTestTask(deviceTestTask);
+            }
         }
 
         return testUnits;
@@ -86,7 +118,7 @@ public class TestDataService {
         return testUnits;
     }
 
-    @Cacheable(key = "#testId")
+    @Cacheable(key = "#testId", sync = true)
     public TestTask getTestTaskDetail(String testId) {
         Optional<TestTask> taskOpt = testTaskRepository.findById(testId);
         if (taskOpt.isEmpty()) {
@@ -100,10 +132,14 @@ public class TestDataService {
         }
 
         testTask.getDeviceTestResults().addAll(byTestTaskId);
+        // load the units and attachments of all the runs at once rather than run by run
+        List<String> testRunIds = byTestTaskId.stream().map(TestRun::getId).collect(Collectors.toList());
+        Map<String, List<AndroidTestUnit>> testUnitMap = androidTestUnitRepository.findByDeviceTestResultIdIn(testRunIds).stream()
+                .collect(Collectors.groupingBy(AndroidTestUnit::getDeviceTestResultId));
+        Map<String, List<StorageFileInfo>> attachmentMap = attachmentService.getAttachments(testRunIds, EntityType.TEST_RESULT);
         for (TestRun deviceTestResult : byTestTaskId) {
-            List<AndroidTestUnit> byDeviceTestResultId = androidTestUnitRepository.findByDeviceTestResultId(deviceTestResult.getId());
-            deviceTestResult.getTestUnitList().addAll(byDeviceTestResultId);
-            deviceTestResult.setAttachments(attachmentService.getAttachments(deviceTestResult.getId(), EntityType.TEST_RESULT));
+            deviceTestResult.getTestUnitList().addAll(testUnitMap.getOrDefault(deviceTestResult.getId(), new ArrayList<>()));
+            deviceTestResult.setAttachments(attachmentMap.getOrDefault(deviceTestResult.getId(), new ArrayList<>()));
         }
         return testTask;
     }
@@ -126,6 +162,66 @@ public class TestDataService {
         return pageObj;
     }
 
+    /**
+     * Browse the tasks newest first by cursor, seeking to the (startDate, id) of the last task of the previous page
+     * with the index on them instead of skipping the tasks before it.
+     *
+     * @param cursor    the next cursor of the previous page, null for the first page
+     * @param withCount whether to count the tasks matching the query, up to {@link #APPROXIMATE_COUNT_LIMIT}
+     */
+    public KeysetPage<TestTask> getTestTasksAfter(String cursor, int pageSize, List<CriteriaType> queryParams, boolean withCount) {
+        CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<TestTask> query = criteriaBuilder.createQuery(TestTask.class);
+        Root<TestTask> root = query.from(TestTask.class);
+        List<Predicate> predicates = new ArrayList<>();
+        if (queryParams != null && queryParams.size() > 0) {
+            predicates.addAll(Arrays.asList(new CriteriaTypeUtil<TestTask>().transferToPredicate(root, criteriaBuilder, queryParams)));
+        }
+        if (StringUtils.isNotBlank(cursor)) {
+            Pair<Date, String> position = decodeCursor(cursor);
+            Path<Date> startDate = root.get("startDate");
+            Path<String> id = root.get("id");
+            predicates.add(criteriaBuilder.or(criteriaBuilder.lessThan(startDate, position.getLeft()),
+                    criteriaBuilder.and(criteriaBuilder.equal(startDate, position.getLeft()), criteriaBuilder.lessThan(id, position.getRight()))));
+        }
+        query.where(predicates.toArray(new Predicate[0]));
+        query.orderBy(criteriaBuilder.desc(root.get("startDate")), criteriaBuilder.desc(root.get("id")));
+
+        // one more task tells whether there is a next page
+        List<TestTask> testTasks = entityManager.createQuery(query).setMaxResults(pageSize + 1).getResultList();
+        String nextCursor = null;
+        if (testTasks.size() > pageSize) {
+            testTasks = new ArrayList<>(testTasks.subList(0, pageSize));
+            nextCursor = encodeCursor(testTasks.get(pageSize - 1));
+        }
+        KeysetPage<TestTask> keysetPage = new KeysetPage<>(testTasks, nextCursor);
+        if (withCount) {
+            CriteriaQuery<String> countQuery = criteriaBuilder.createQuery(String.class);
+            Root<TestTask> countRoot = countQuery.from(TestTask.class);
+            if (queryParams != null && queryParams.size() > 0) {
+                countQuery.where(new CriteriaTypeUtil<TestTask>().transferToPredicate(countRoot, criteriaBuilder, queryParams));
+            }
+            countQuery.select(countRoot.get("id"));
+            keysetPage.setApproximateCount((long) entityManager.createQuery(countQuery).setMaxResults(APPROXIMATE_COUNT_LIMIT).getResultList().size());
+        }
+        return keysetPage;
+    }
+
+    static String encodeCursor(TestTask testTask) {
+        String position = testTask.getStartDate().getTime() + CURSOR_SEPARATOR + testTask.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Pair<Date, String> decodeCursor(String cursor) {
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separatorIndex = position.indexOf(CURSOR_SEPARATOR);
+            return Pair.of(new Date(Long.parseLong(position.substring(0, separatorIndex))), position.substring(separatorIndex + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new HydraLabRuntimeException(HttpStatus.BAD_REQUEST.value(), "Invalid cursor: " + cursor, e);
+        }
+    }
+
     public List<TestTask> getTestTaskSuites(List<CriteriaType> queryParams) {
 
         CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
@@ -152,72 +248,117 @@ public class TestDataService {
         return oldTestTask.getAgentIds();
     }
 
-    public void saveTestTaskDataFromAgent(TestTask testTask, boolean persistence, String agentId) {
-        TestTask oldTestTask = testDataServiceCache.getTestTaskDetail(testTask.getId());
+    /**
+     * Merge a result reported by an agent into a copy of its task. The task in the cache stays as it is until
+     * the merged one is saved, so that a result not saved is merged again when the journal is replayed.
+     *
+     * @param unsavedTestTasks tasks merged but not saved yet, by id
+     * @return the task to save, null if there is nothing to save: the result is already merged or older than the task
+     */
+    public TestTask mergeTestTaskDataFromAgent(TestTask testTask, boolean persistence, String agentId, Map<String, TestTask> unsavedTestTasks) {
+        TestTask oldTestTask = unsavedTestTasks.get(testTask.getId());
+        if (oldTestTask == null) {
+            oldTestTask = copyTestTask(testDataServiceCache.getTestTaskDetail(testTask.getId()));
+        }
         //run by device
+        if (oldTestTask == null) {
+            return testTask;
+        }
         if (oldTestTask.agentIds.size() == 0) {
-            testDataServiceCache.saveTestTaskData(testTask);
-            return;
+            return isOlderThan(testTask, oldTestTask) ? null : testTask;
         }
-        //run by group
-        if (!persistence) {
-            return;
+        //run by group, a result already merged is ignored
+        if (!persistence || !oldTestTask.agentIds.remove(agentId)) {
+            return null;
         }
 
         oldTestTask.getDeviceTestResults().addAll(testTask.getDeviceTestResults());
         oldTestTask.setTotalTestCount(oldTestTask.getTotalTestCount() + testTask.getTotalTestCount());
         oldTestTask.setTotalFailCount(oldTestTask.getTotalFailCount() + testTask.getTotalFailCount());
         oldTestTask.setTestSuite(testTask.getTestSuite());
-        oldTestTask.agentIds.remove(agentId);
+        if (testTask.isTerminated()) {
+            oldTestTask.setTerminationReason(testTask.getTerminationReason());
+            oldTestTask.setTestErrorMsg(testTask.getTestErrorMsg());
+        }
 
         boolean isAllFinish = oldTestTask.agentIds.size() == 0;
         if (isAllFinish) {
             oldTestTask.setStatus(TestTask.TestStatus.FINISHED);
             oldTestTask.setEndDate(testTask.getEndDate());
         }
-        testDataServiceCache.saveTestTaskData(oldTestTask);
+        return oldTestTask;
     }
 
-    @CachePut(key = "#testTask.id")
-    public TestTask saveTestTaskData(TestTask testTask) {
-        testTaskRepository.save(testTask);
-        List<TestRun> deviceTestResults = testTask.getDeviceTestResults();
-        if (deviceTestResults.isEmpty()) {
-            return testTask;
+    /**
+     * A finished task only changes for a later end, the progress or the end replayed from the journal are older.
+     */
+    private static boolean isOlderThan(TestTask testTask, TestTask savedTestTask) {
+        if (!TestTask.TestStatus.FINISHED.equals(savedTestTask.getStatus())) {
+            return false;
         }
+        return !TestTask.TestStatus.FINISHED.equals(testTask.getStatus()) || savedTestTask.getEndDate() == null
+                || testTask.getEndDate() == null || !testTask.getEndDate().after(savedTestTask.getEndDate());
+    }
 
-        testRunRepository.saveAll(deviceTestResults);
-
-        List<AndroidTestUnit> list = new ArrayList<>();
-        for (TestRun deviceTestResult : deviceTestResults) {
-            attachmentService.saveAttachments(deviceTestResult.getId(), EntityType.TEST_RESULT, deviceTestResult.getAttachments());
+    private static TestTask copyTestTask(TestTask testTask) {
+        if (testTask == null) {
+            return null;
+        }
+        TestTask copy = BeanUtil.copyProperties(testTask, TestTask.class);
+        copy.agentIds = new HashSet<>(testTask.agentIds);
+        copy.setDeviceTestResults(new ArrayList<>(testTask.getDeviceTestResults()));
+        return copy;
+    }
 
-            List<AndroidTestUnit> testUnitList = deviceTestResult.getTestUnitList();
-            list.addAll(testUnitList);
+    @CachePut(key = "#testTask.id")
+    public TestTask saveTestTaskData(TestTask testTask) {
+        return groupCommitWriter.write(() -> {
+            persistTestTasks(List.of(testTask));
+            return testTask;
+        });
+    }
 
-            // only save failed cases
-            for (AndroidTestUnit androidTestUnit : testUnitList) {
-                if (androidTestUnit.isSuccess()) {
-                    continue;
-                }
-                LOGGER.warn("one more failed cases saved: {}", androidTestUnit.getTitle());
-                keyValueRepository.saveAndroidTestUnit(androidTestUnit);
-            }
-            keyValueRepository.saveDeviceTestResultResInfo(deviceTestResult);
+    /**
+     * Save the tasks in one transaction and put them in the cache.
+     */
+    public void saveTestTasksData(Collection<TestTask> testTasks) {
+        groupCommitWriter.write(() -> {
+            persistTestTasks(testTasks);
+            return testTasks;
+        });
+        Cache taskCache = cacheManager.getCache(TASK_CACHE_NAME);
+        if (taskCache != null) {
+            testTasks.forEach(testTask -> taskCache.put(testTask.getId(), testTask));
+        }
+    }
 
-            String crashStack = deviceTestResult.getCrashStack();
-            if (crashStack == null) {
-                continue;
+    /**
+     * Save the tasks with their runs, units, attachments and key values, to be called within a transaction.
+     * The rows are written in JDBC batches rather than one statement after a SELECT each.
+     */
+    private void persistTestTasks(Collection<TestTask> testTasks) {
+        List<TestRun> testRuns = new ArrayList<>();
+        List<AndroidTestUnit> testUnits = new ArrayList<>();
+        for (TestTask testTask : testTasks) {
+            for (TestRun deviceTestResult : testTask.getDeviceTestResults()) {
+                attachmentService.saveAttachments(deviceTestResult.getId(), EntityType.TEST_RESULT, deviceTestResult.getAttachments());
+                testRuns.add(deviceTestResult);
+                testUnits.addAll(deviceTestResult.getTestUnitList());
             }
-            keyValueRepository.saveCrashStack(deviceTestResult.getCrashStackId(), deviceTestResult.getCrashStack());
         }
-        androidTestUnitRepository.saveAll(list);
-        LOGGER.info("All saved {}", testTask.getId());
-        return testTask;
+        BatchUpsertUtil.upsertAll(entityManager, testTaskRepository, testTasks, TestTask::getId);
+        BatchUpsertUtil.upsertAll(entityManager, testRunRepository, testRuns, TestRun::getId);
+        BatchUpsertUtil.upsertAll(entityManager, androidTestUnitRepository, testUnits, AndroidTestUnit::getId);
+        // only save failed cases
+        int failedUnitCount = keyValueRepository.saveTestRunsKeyValues(testRuns);
+        LOGGER.info("All saved {}: {} runs, {} units, {} failed", testTasks.stream().map(TestTask::getId).collect(Collectors.toList()),
+                testRuns.size(), testUnits.size(), failedUnitCount);
     }
 
     public TestRun getTestRunWithVideoInfo(String dttId) {
-        TestRun testRun = testRunRepository.getOne(dttId);
+        // loaded rather than a lazy reference, the request has no open session to initialize it later
+        TestRun testRun = testRunRepository.findById(dttId).orElseThrow(
+                () -> new HydraLabRuntimeException(HttpStatus.NOT_FOUND.value(), "The TestRun doesn't exist!"));
         JSONArray deviceTestResInfo = keyValueRepository.getDeviceTestResInfo(dttId);
         testRun.setVideoTimeTagArr(deviceTestResInfo);
         testRun.setVideoBlobUrl();
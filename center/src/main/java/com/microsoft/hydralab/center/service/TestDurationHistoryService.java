@@ -0,0 +1,119 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.center.repository.TestDurationEstimateRepository;
+import com.microsoft.hydralab.common.datasource.BatchUpsertUtil;
+import com.microsoft.hydralab.common.datasource.GroupCommitWriter;
+import com.microsoft.hydralab.common.entity.center.TestDurationEstimate;
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the expected duration of each test from the results of the finished runs, to split the suites into shards
+ * that end at the same time.
+ */
+@Service
+@Slf4j
+public class TestDurationHistoryService {
+    // ids per IN query, well below the limit of bound parameters of SQLite
+    private static final int ID_QUERY_CHUNK_SIZE = 500;
+    @Resource
+    TestDurationEstimateRepository testDurationEstimateRepository;
+    @Resource
+    EntityManager entityManager;
+    @Resource
+    GroupCommitWriter groupCommitWriter;
+    // weight of the latest duration in the moving average
+    @Value("${app.test-duration.ewma-weight:0.3}")
+    double ewmaWeight;
+
+    /**
+     * Update the estimates with the durations of the tests of the tasks.
+     */
+    public void recordDurations(Collection<TestTask> testTasks) {
+        Map<String, List<AndroidTestUnit>> unitsById = new LinkedHashMap<>();
+        Map<String, String> suitesById = new HashMap<>();
+        for (TestTask testTask : testTasks) {
+            // the test package, the suite of a task varies with the classes or the shard it runs
+            String testSuite = testTask.getTestPkgName();
+            if (StringUtils.isBlank(testSuite)) {
+                continue;
+            }
+            for (TestRun testRun : testTask.getDeviceTestResults()) {
+                for (AndroidTestUnit testUnit : testRun.getTestUnitList()) {
+                    if (testUnit.getTestedClass() == null || testUnit.getStartTimeMillis() <= 0 || testUnit.getEndTimeMillis() < testUnit.getStartTimeMillis()) {
+                        continue;
+                    }
+                    String id = TestDurationEstimate.getId(testSuite, testUnit.getTestedClass(), testUnit.getTestName());
+                    unitsById.computeIfAbsent(id, key -> new ArrayList<>()).add(testUnit);
+                    suitesById.put(id, testSuite);
+                }
+            }
+        }
+        if (unitsById.isEmpty()) {
+            return;
+        }
+
+        groupCommitWriter.write(() -> {
+            Map<String, TestDurationEstimate> estimates = new HashMap<>();
+            List<String> ids = new ArrayList<>(unitsById.keySet());
+            for (int from = 0; from < ids.size(); from += ID_QUERY_CHUNK_SIZE) {
+                testDurationEstimateRepository.findAllById(ids.subList(from, Math.min(from + ID_QUERY_CHUNK_SIZE, ids.size())))
+                        .forEach(estimate -> estimates.put(estimate.getId(), estimate));
+            }
+            Date now = new Date();
+            unitsById.forEach((id, testUnits) -> {
+                TestDurationEstimate estimate = estimates.computeIfAbsent(id, key -> {
+                    AndroidTestUnit testUnit = testUnits.get(0);
+                    TestDurationEstimate created = new TestDurationEstimate();
+                    created.setId(key);
+                    created.setTestSuite(suitesById.get(key));
+                    created.setTestClass(testUnit.getTestedClass());
+                    created.setTestMethod(testUnit.getTestName());
+                    return created;
+                });
+                for (AndroidTestUnit testUnit : testUnits) {
+                    long duration = testUnit.getEndTimeMillis() - testUnit.getStartTimeMillis();
+                    estimate.setDurationMillis(estimate.getSampleCount() == 0 ? duration
+                            : ewmaWeight * duration + (1 - ewmaWeight) * estimate.getDurationMillis());
+                    estimate.setSampleCount(estimate.getSampleCount() + 1);
+                }
+                estimate.setUpdateTime(now);
+            });
+            BatchUpsertUtil.upsertAll(entityManager, testDurationEstimateRepository, estimates.values(), TestDurationEstimate::getId);
+            return estimates.size();
+        });
+        log.info("Updated the duration estimates of {} tests", unitsById.size());
+    }
+
+    /**
+     * @return the expected duration in milliseconds of each class with a known test, the sum of its tests
+     */
+    public Map<String, Double> getClassEstimates(String testSuite, Collection<String> testClasses) {
+        Map<String, Double> classEstimates = new HashMap<>();
+        if (StringUtils.isBlank(testSuite) || testClasses.isEmpty()) {
+            return classEstimates;
+        }
+        for (TestDurationEstimate estimate : testDurationEstimateRepository.findByTestSuiteAndTestClassIn(testSuite, testClasses)) {
+            classEstimates.merge(estimate.getTestClass(), estimate.getDurationMillis(), Double::sum);
+        }
+        return classEstimates;
+    }
+}
@@ -0,0 +1,355 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.center.util.CenterConstant;
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.util.Const;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import com.microsoft.hydralab.common.util.SerializeUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind of the test results reported by agents. A result is appended to the journal and queued, so the
+ * agent message handler returns at once; the flusher thread merges the queued results into their tasks and saves
+ * them in one transaction per batch. Once all of its results are flushed, a journal segment is deleted, or rewritten
+ * with only the results not saved; the segments left behind are replayed on startup. The agents still to report are
+ * saved with the task, and a result older than the saved task is skipped, so a result replayed is merged as it would
+ * have been before the crash, and a result already saved is not merged twice. A result failing
+ * {@link #MAX_ATTEMPTS} times is moved to the dead letter file instead of being replayed forever.
+ */
+@Service
+@Slf4j
+public class TestResultIngestionService {
+    static final int QUEUE_CAPACITY = 1024;
+    static final int MAX_BATCH_SIZE = 128;
+    static final int MAX_ATTEMPTS = 5;
+    static final String DEAD_LETTER_FILE_NAME = "dead-letter.log";
+    private static final String PERSISTENCE_PARAM = "persistence";
+    private static final String ATTEMPTS_PARAM = "attempts";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    @Resource
+    TestDataService testDataService;
+    @Resource
+    TestDurationHistoryService testDurationHistoryService;
+    @Resource
+    FailedTestRetryService failedTestRetryService;
+    File journalDir = new File(CenterConstant.CENTER_INGESTION_JOURNAL_DIR);
+    // guards the queue and the journal segment being written
+    private final Object lock = new Object();
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private final Thread flusherThread = new Thread(this::flushLoop, "TestResultFlusher");
+    private volatile boolean running = true;
+    private FileOutputStream segmentStream;
+    private long segmentNumber;
+    // the results of the segment being flushed that were not saved, accessed by the flusher thread only
+    private final List<Message> segmentFailedRecords = new ArrayList<>();
+
+    @PostConstruct
+    public void start() {
+        replayJournal();
+        flusherThread.setDaemon(true);
+        flusherThread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        flusherThread.join(SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Queue the result of a task reported by an agent. Waits only if the queue is full.
+     *
+     * @param persistence whether the result is final and has to be saved for a task run by a group
+     */
+    public void ingest(TestTask testTask, boolean persistence, String agentId) {
+        Message record = Message.ok(Const.Path.TEST_TASK_UPDATE, testTask);
+        record.setAgentId(agentId);
+        Map<String, Object> params = new HashMap<>();
+        params.put(PERSISTENCE_PARAM, persistence);
+        record.setParams(params);
+        byte[] data = SerializeUtil.messageToByteArr(record);
+
+        synchronized (lock) {
+            while (queue.size() >= QUEUE_CAPACITY) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Interrupted while queueing the test result", e);
+                }
+            }
+            appendToJournal(data);
+            queue.add(record);
+            lock.notifyAll();
+        }
+    }
+
+    public int getQueueSize() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    private void flushLoop() {
+        List<Message> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            File flushedSegment;
+            synchronized (lock) {
+                while (queue.isEmpty() && running) {
+                    try {
+                        lock.wait(TimeUnit.SECONDS.toMillis(1));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                while (!queue.isEmpty() && batch.size() < MAX_BATCH_SIZE) {
+                    batch.add(queue.poll());
+                }
+                // every journaled result is in this batch or an earlier one, so the segment is done after this flush
+                flushedSegment = queue.isEmpty() ? closeSegment() : null;
+                lock.notifyAll();
+            }
+
+            segmentFailedRecords.addAll(flush(batch));
+            batch.clear();
+            if (flushedSegment != null) {
+                checkpointSegment(flushedSegment, segmentFailedRecords);
+                segmentFailedRecords.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the results not merged or not saved, to be kept in the journal
+     */
+    List<Message> flush(List<Message> batch) {
+        Map<String, TestTask> testTasks = new LinkedHashMap<>();
+        // the final results of each agent applied by this flush, for their test durations: the merged tasks hold the
+        // results of the agents merged before too, and a result replayed after being saved merges to nothing
+        List<TestTask> agentTestTasks = new ArrayList<>();
+        List<Message> mergedRecords = new ArrayList<>();
+        List<Message> failedRecords = new ArrayList<>();
+        for (Message record : batch) {
+            TestTask testTask = (TestTask) record.getBody();
+            boolean persistence = Boolean.TRUE.equals(record.getParams().get(PERSISTENCE_PARAM));
+            try {
+                TestTask mergedTestTask = testDataService.mergeTestTaskDataFromAgent(testTask, persistence, record.getAgentId(), testTasks);
+                if (mergedTestTask != null) {
+                    testTasks.put(mergedTestTask.getId(), mergedTestTask);
+                    mergedRecords.add(record);
+                }
+                if (mergedTestTask != null && persistence) {
+                    agentTestTasks.add(testTask);
+                }
+            } catch (Exception e) {
+                log.error("Failed to merge the result of task {} from agent {}", testTask.getId(), record.getAgentId(), e);
+                failedRecords.add(record);
+            }
+        }
+        if (testTasks.isEmpty()) {
+            return failedRecords;
+        }
+        try {
+            testDataService.saveTestTasksData(testTasks.values());
+        } catch (Exception e) {
+            log.error("Failed to save the results of tasks {}", testTasks.keySet(), e);
+            failedRecords.addAll(mergedRecords);
+            return failedRecords;
+        }
+        try {
+            testDurationHistoryService.recordDurations(agentTestTasks);
+        } catch (Exception e) {
+            log.warn("Failed to update the test durations of tasks {}", testTasks.keySet(), e);
+        }
+        for (TestTask testTask : testTasks.values()) {
+            if (!TestTask.TestStatus.FINISHED.equals(testTask.getStatus())) {
+                continue;
+            }
+            try {
+                failedTestRetryService.onTaskFinished(testTask);
+            } catch (Exception e) {
+                log.warn("Failed to run the failed tests of task {} again", testTask.getId(), e);
+            }
+        }
+        return failedRecords;
+    }
+
+    private void appendToJournal(byte[] data) {
+        try {
+            if (segmentStream == null) {
+                if (!journalDir.exists() && !journalDir.mkdirs()) {
+                    throw new IOException("mkdirs failed: " + journalDir);
+                }
+                segmentStream = new FileOutputStream(getSegmentFile(++segmentNumber), true);
+            }
+            writeRecord(segmentStream, data);
+        } catch (IOException e) {
+            log.error("Failed to journal the test result, it is lost if the center stops before it is saved", e);
+        }
+    }
+
+    // a record in a single write, a crash can only cut off the last one
+    private static void writeRecord(FileOutputStream outputStream, byte[] data) throws IOException {
+        outputStream.write(ByteBuffer.allocate(Integer.BYTES + data.length).putInt(data.length).put(data).array());
+    }
+
+    /**
+     * Delete the segment once its results are flushed, or replace it with the ones not saved, so that a result saved
+     * is never replayed. The results failing too many times are moved to the dead letter file.
+     */
+    private void checkpointSegment(File segment, List<Message> failedRecords) {
+        List<Message> keptRecords = new ArrayList<>();
+        for (Message record : failedRecords) {
+            int attempts = getAttempts(record) + 1;
+            record.getParams().put(ATTEMPTS_PARAM, attempts);
+            if (attempts < MAX_ATTEMPTS) {
+                keptRecords.add(record);
+                continue;
+            }
+            log.error("Move the result of task {} from agent {} to {} after {} failed attempts",
+                    ((TestTask) record.getBody()).getId(), record.getAgentId(), DEAD_LETTER_FILE_NAME, attempts);
+            try (FileOutputStream outputStream = new FileOutputStream(new File(journalDir, DEAD_LETTER_FILE_NAME), true)) {
+                writeRecord(outputStream, SerializeUtil.messageToByteArr(record));
+            } catch (IOException e) {
+                log.error("Failed to move the result to {}, keep it in {}", DEAD_LETTER_FILE_NAME, segment, e);
+                keptRecords.add(record);
+            }
+        }
+        if (keptRecords.isEmpty()) {
+            if (!segment.delete()) {
+                log.warn("Failed to delete {}", segment);
+            }
+            return;
+        }
+        log.warn("Keep {} test results in {} to replay them on the next start", keptRecords.size(), segment);
+        File tempSegment = new File(segment.getPath() + TEMP_SUFFIX);
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tempSegment)) {
+                for (Message record : keptRecords) {
+                    writeRecord(outputStream, SerializeUtil.messageToByteArr(record));
+                }
+                outputStream.getFD().sync();
+            }
+            // the segment has either all its results or only the ones not saved, whenever the center stops
+            Files.move(tempSegment.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to rewrite {}, all of its results are replayed on the next start", segment, e);
+        }
+    }
+
+    private static int getAttempts(Message record) {
+        Object attempts = record.getParams().get(ATTEMPTS_PARAM);
+        return attempts instanceof Number ? ((Number) attempts).intValue() : 0;
+    }
+
+    /**
+     * @return the segment closed, null if nothing was journaled since the last one
+     */
+    private File closeSegment() {
+        if (segmentStream == null) {
+            return null;
+        }
+        try {
+            segmentStream.close();
+        } catch (IOException e) {
+            log.warn("Failed to close the journal segment {}", segmentNumber, e);
+        }
+        segmentStream = null;
+        return getSegmentFile(segmentNumber);
+    }
+
+    void replayJournal() {
+        // left by a crash while rewriting a segment, the segment itself is still complete
+        File[] tempSegments = journalDir.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX + TEMP_SUFFIX));
+        if (tempSegments != null) {
+            for (File tempSegment : tempSegments) {
+                if (!tempSegment.delete()) {
+                    log.warn("Failed to delete {}", tempSegment);
+                }
+            }
+        }
+        File[] segments = journalDir.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null || segments.length == 0) {
+            return;
+        }
+        Arrays.sort(segments, Comparator.comparingLong(TestResultIngestionService::getSegmentNumber));
+        segmentNumber = getSegmentNumber(segments[segments.length - 1]);
+        for (File segment : segments) {
+            List<Message> records = readSegment(segment);
+            log.info("Replay {} test results of {}", records.size(), segment);
+            List<Message> failedRecords = new ArrayList<>();
+            for (int from = 0; from < records.size(); from += MAX_BATCH_SIZE) {
+                failedRecords.addAll(flush(records.subList(from, Math.min(from + MAX_BATCH_SIZE, records.size()))));
+            }
+            checkpointSegment(segment, failedRecords);
+        }
+    }
+
+    private static List<Message> readSegment(File segment) {
+        List<Message> records = new ArrayList<>();
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            while (inputStream.available() > 0) {
+                int length = inputStream.readInt();
+                if (length < 0 || length > segment.length()) {
+                    throw new EOFException();
+                }
+                byte[] data = new byte[length];
+                inputStream.readFully(data);
+                records.add(SerializeUtil.byteArrToMessage(data));
+            }
+        } catch (EOFException e) {
+            log.warn("Ignore the incomplete last record of {}", segment);
+        } catch (Exception e) {
+            log.error("Failed to read the journal segment {}", segment, e);
+        }
+        return records;
+    }
+
+    private File getSegmentFile(long number) {
+        return new File(journalDir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    private static long getSegmentNumber(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,286 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Pending test tasks, kept both in global arrival order and in one sub-queue per target
+ * (device serial, group name or agent id, i.e. {@link TestTaskSpec#deviceIdentifier}).
+ * The tasks of a target are further split into lanes by priority class and team, a team being known by its id.
+ * <p>
+ * Writes are serialized on the queue itself so the views stay consistent, reads never lock.
+ * {@link #dispatch(ToDoubleFunction, Function)} walks the heads of all lanes, interactive tasks first, then by
+ * rank and arrival order, and only skips the lane whose head can't be placed, so a busy target or a team over
+ * its quota doesn't hold back the others.
+ */
+public class TestTaskQueue {
+    private final AtomicLong sequence = new AtomicLong();
+    // <sequence, task> in arrival order
+    private final ConcurrentSkipListMap<Long, TestTaskSpec> orderedTasks = new ConcurrentSkipListMap<>();
+    // <testTaskId, sequence>
+    private final ConcurrentHashMap<String, Long> taskIdIndex = new ConcurrentHashMap<>();
+    // <deviceIdentifier, <sequence, task>>
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, TestTaskSpec>> targetQueues = new ConcurrentHashMap<>();
+    // <priority class + team + deviceIdentifier, <sequence, task>>
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, TestTaskSpec>> laneQueues = new ConcurrentHashMap<>();
+    // <priority class + team, count of tasks>
+    private final ConcurrentHashMap<String, Integer> teamTaskCounts = new ConcurrentHashMap<>();
+
+    /**
+     * @return 1-based position of the task among the ones of its team, see {@link #getTeamPositions()}
+     */
+    public synchronized int offer(TestTaskSpec testTaskSpec) {
+        long seq = sequence.incrementAndGet();
+        orderedTasks.put(seq, testTaskSpec);
+        if (testTaskSpec.testTaskId != null) {
+            taskIdIndex.put(testTaskSpec.testTaskId, seq);
+        }
+        targetQueues.computeIfAbsent(getTarget(testTaskSpec), k -> new ConcurrentSkipListMap<>()).put(seq, testTaskSpec);
+        laneQueues.computeIfAbsent(getLane(testTaskSpec), k -> new ConcurrentSkipListMap<>()).put(seq, testTaskSpec);
+        int position = teamTaskCounts.merge(getTeamClass(testTaskSpec), 1, Integer::sum);
+        if (isBatchTask(testTaskSpec)) {
+            position += teamTaskCounts.getOrDefault(TestTask.TestPriority.INTERACTIVE + "\n" + getTeam(testTaskSpec), 0);
+        }
+        return position;
+    }
+
+    public boolean isEmpty() {
+        return orderedTasks.isEmpty();
+    }
+
+    public int size() {
+        return orderedTasks.size();
+    }
+
+    public TestTaskSpec getByTaskId(String testTaskId) {
+        Long seq = taskIdIndex.get(testTaskId);
+        return seq == null ? null : orderedTasks.get(seq);
+    }
+
+    /**
+     * @return 1-based position in arrival order, or -1 if the task is not queued
+     */
+    public int getPosition(String testTaskId) {
+        Long seq = taskIdIndex.get(testTaskId);
+        if (seq == null || !orderedTasks.containsKey(seq)) {
+            return -1;
+        }
+        return orderedTasks.headMap(seq).size() + 1;
+    }
+
+    public TestTaskSpec removeByTaskId(String testTaskId) {
+        Long seq = taskIdIndex.get(testTaskId);
+        if (seq == null) {
+            return null;
+        }
+        return remove(seq);
+    }
+
+    public boolean hasWaitingTask(Collection<String> deviceIdentifiers) {
+        for (String deviceIdentifier : deviceIdentifiers) {
+            Map<Long, TestTaskSpec> targetQueue = targetQueues.get(deviceIdentifier);
+            if (targetQueue != null && !targetQueue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<TestTaskSpec> getWaitingTasks(String deviceIdentifier) {
+        Map<Long, TestTaskSpec> targetQueue = targetQueues.get(deviceIdentifier);
+        return targetQueue == null ? new ArrayList<>() : new ArrayList<>(targetQueue.values());
+    }
+
+    public List<TestTaskSpec> snapshot() {
+        return new ArrayList<>(orderedTasks.values());
+    }
+
+    /**
+     * @return 1-based position of each queued task among the ones of its team, the interactive tasks before the
+     * batch ones, by task id
+     */
+    public Map<String, Integer> getTeamPositions() {
+        List<TestTaskSpec> testTaskSpecs = snapshot();
+        Map<String, Integer> interactiveCounts = new HashMap<>();
+        for (TestTaskSpec testTaskSpec : testTaskSpecs) {
+            if (!isBatchTask(testTaskSpec)) {
+                interactiveCounts.merge(getTeam(testTaskSpec), 1, Integer::sum);
+            }
+        }
+        Map<String, Integer> positions = new HashMap<>();
+        Map<String, Integer> interactivePositions = new HashMap<>();
+        Map<String, Integer> batchPositions = new HashMap<>();
+        for (TestTaskSpec testTaskSpec : testTaskSpecs) {
+            String team = getTeam(testTaskSpec);
+            int position = isBatchTask(testTaskSpec)
+                    ? interactiveCounts.getOrDefault(team, 0) + batchPositions.merge(team, 1, Integer::sum)
+                    : interactivePositions.merge(team, 1, Integer::sum);
+            if (testTaskSpec.testTaskId != null) {
+                positions.put(testTaskSpec.testTaskId, position);
+            }
+        }
+        return positions;
+    }
+
+    public int dispatch(Function<TestTaskSpec, DispatchResult> dispatcher) {
+        return dispatch(testTaskSpec -> 0, dispatcher);
+    }
+
+    /**
+     * Offer the head of every lane to the dispatcher, the interactive ones before the batch ones, then by rank and
+     * arrival order. A dispatched or dropped head is removed and the next task of the same lane takes its place;
+     * a blocked head parks its lane until the next pass.
+     *
+     * @param ranker rank of a task, e.g. the share of the devices its team uses. It may only grow during a pass,
+     *               a head whose rank grew since it was queued for the pass goes back behind the lower ranks.
+     * @return count of tasks removed from the queue
+     */
+    public int dispatch(ToDoubleFunction<TestTaskSpec> ranker, Function<TestTaskSpec, DispatchResult> dispatcher) {
+        PriorityQueue<LaneHead> heads = new PriorityQueue<>();
+        for (ConcurrentSkipListMap<Long, TestTaskSpec> laneQueue : laneQueues.values()) {
+            Map.Entry<Long, TestTaskSpec> head = laneQueue.firstEntry();
+            if (head != null) {
+                heads.add(new LaneHead(head.getKey(), head.getValue(), ranker.applyAsDouble(head.getValue())));
+            }
+        }
+
+        int removed = 0;
+        while (!heads.isEmpty()) {
+            LaneHead head = heads.poll();
+            TestTaskSpec testTaskSpec = head.testTaskSpec;
+            // cancelled while the pass was running
+            if (!orderedTasks.containsKey(head.seq)) {
+                enqueueNext(heads, ranker, testTaskSpec, head.seq);
+                continue;
+            }
+            double rank = ranker.applyAsDouble(testTaskSpec);
+            if (rank > head.rank) {
+                heads.add(new LaneHead(head.seq, testTaskSpec, rank));
+                continue;
+            }
+            if (dispatcher.apply(testTaskSpec) == DispatchResult.BLOCKED) {
+                continue;
+            }
+            if (remove(head.seq) != null) {
+                removed++;
+            }
+            enqueueNext(heads, ranker, testTaskSpec, head.seq);
+        }
+        return removed;
+    }
+
+    private void enqueueNext(PriorityQueue<LaneHead> heads, ToDoubleFunction<TestTaskSpec> ranker, TestTaskSpec testTaskSpec, long seq) {
+        ConcurrentSkipListMap<Long, TestTaskSpec> laneQueue = laneQueues.get(getLane(testTaskSpec));
+        if (laneQueue == null) {
+            return;
+        }
+        Map.Entry<Long, TestTaskSpec> next = laneQueue.higherEntry(seq);
+        if (next != null) {
+            heads.add(new LaneHead(next.getKey(), next.getValue(), ranker.applyAsDouble(next.getValue())));
+        }
+    }
+
+    private synchronized TestTaskSpec remove(long seq) {
+        TestTaskSpec testTaskSpec = orderedTasks.remove(seq);
+        if (testTaskSpec == null) {
+            return null;
+        }
+        if (testTaskSpec.testTaskId != null) {
+            taskIdIndex.remove(testTaskSpec.testTaskId, seq);
+        }
+        removeFromSubQueue(targetQueues, getTarget(testTaskSpec), seq);
+        removeFromSubQueue(laneQueues, getLane(testTaskSpec), seq);
+        teamTaskCounts.computeIfPresent(getTeamClass(testTaskSpec), (key, count) -> count > 1 ? count - 1 : null);
+        return testTaskSpec;
+    }
+
+    private static void removeFromSubQueue(ConcurrentHashMap<String, ConcurrentSkipListMap<Long, TestTaskSpec>> subQueues, String key, long seq) {
+        ConcurrentSkipListMap<Long, TestTaskSpec> subQueue = subQueues.get(key);
+        if (subQueue != null) {
+            subQueue.remove(seq);
+            if (subQueue.isEmpty()) {
+                subQueues.remove(key, subQueue);
+            }
+        }
+    }
+
+    private static String getTarget(TestTaskSpec testTaskSpec) {
+        return testTaskSpec.deviceIdentifier == null ? "" : testTaskSpec.deviceIdentifier;
+    }
+
+    /**
+     * @return the key of the team of the task in the queue, the quota and the fair share: its team id, which stays
+     * the same when the team is renamed, the name for a task without one, empty if none
+     */
+    public static String getTeam(TestTaskSpec testTaskSpec) {
+        if (testTaskSpec.teamId != null) {
+            return testTaskSpec.teamId;
+        }
+        return testTaskSpec.teamName == null ? "" : testTaskSpec.teamName;
+    }
+
+    private static String getTeamClass(TestTaskSpec testTaskSpec) {
+        return (isBatchTask(testTaskSpec) ? TestTask.TestPriority.BATCH : TestTask.TestPriority.INTERACTIVE) + "\n" + getTeam(testTaskSpec);
+    }
+
+    private static String getLane(TestTaskSpec testTaskSpec) {
+        return getTeamClass(testTaskSpec) + "\n" + getTarget(testTaskSpec);
+    }
+
+    /**
+     * @return whether the task gives way to the interactive ones, the scheduled tasks do unless told otherwise
+     */
+    public static boolean isBatchTask(TestTaskSpec testTaskSpec) {
+        if (testTaskSpec.priority == null) {
+            return TestTask.TestType.Schedule.equals(testTaskSpec.type);
+        }
+        return TestTask.TestPriority.BATCH.equals(testTaskSpec.priority);
+    }
+
+    private static final class LaneHead implements Comparable<LaneHead> {
+        final long seq;
+        final TestTaskSpec testTaskSpec;
+        final boolean isBatch;
+        final double rank;
+
+        LaneHead(long seq, TestTaskSpec testTaskSpec, double rank) {
+            this.seq = seq;
+            this.testTaskSpec = testTaskSpec;
+            this.isBatch = isBatchTask(testTaskSpec);
+            this.rank = rank;
+        }
+
+        @Override
+        public int compareTo(LaneHead other) {
+            if (isBatch != other.isBatch) {
+                return isBatch ? 1 : -1;
+            }
+            int byRank = Double.compare(rank, other.rank);
+            return byRank != 0 ? byRank : Long.compare(seq, other.seq);
+        }
+    }
+
+    public enum DispatchResult {
+        // the task has been sent to agents
+        DISPATCHED,
+        // the target of the task is busy, keep it and the ones behind it for a later pass
+        BLOCKED,
+        // the task can't be run at all and has been handled by the dispatcher
+        DROPPED
+    }
+}
@@ -12,6 +12,7 @@ import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,20 +20,33 @@ import org.springframework.http.HttpStatus;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 @Component
-public class TestTaskService {
-    private static volatile AtomicBoolean isRunning = new AtomicBoolean(false);
+public class TestTaskService implements DeviceAvailabilityListener {
+    // wait a moment after a device event so a burst of heartbeats results in a single dispatch pass
+    private static final long DISPATCH_DELAY_MILLIS = 200;
     private final Logger logger = LoggerFactory.getLogger(TestTaskService.class);
-    private final Queue<TestTaskSpec> taskQueue = new LinkedList<>();
+    private final TestTaskQueue taskQueue = new TestTaskQueue();
+    // count of dispatch requests that arrived since the running pass started, 0 means no pass is running
+    private final AtomicInteger dispatchRequests = new AtomicInteger(0);
+    private final AtomicBoolean isDispatchScheduled = new AtomicBoolean(false);
+    // runs the requested dispatch passes, tests replace it to run them on their own thread
+    ScheduledExecutorService dispatchExecutor = ThreadPoolUtil.TIMER_EXECUTOR;
     @Resource
     DeviceAgentManagementService deviceAgentManagementService;
     @Resource
@@ -41,9 +55,33 @@ public class TestTaskService {
     DeviceGroupService deviceGroupService;
     @Resource
     TestDataService testDataService;
+    @Resource
+    DeviceAvailabilityEventBus deviceAvailabilityEventBus;
+    @Resource
+    TeamFairShareService teamFairShareService;
+
+    @PostConstruct
+    public void registerDeviceAvailabilityListener() {
+        deviceAvailabilityEventBus.registerListener(this);
+    }
 
     public void addTask(TestTaskSpec task) {
-        taskQueue.offer(task);
+        int teamPosition = taskQueue.offer(task);
+        teamFairShareService.onTaskQueued(task, teamPosition);
+    }
+
+    /**
+     * @return whether the team of the task may use more devices, a task submitted over the quota is queued
+     */
+    public boolean isUnderDeviceQuota(TestTaskSpec testTaskSpec) {
+        return teamFairShareService.isUnderQuota(testTaskSpec, teamFairShareService.countRunningDevices());
+    }
+
+    /**
+     * Count the devices of a task run right away, without going through the queue, in the share of its team.
+     */
+    public void onTaskDispatched(TestTaskSpec testTaskSpec, int deviceCount) {
+        teamFairShareService.onTaskDispatched(testTaskSpec, deviceCount, null);
     }
 
     public Boolean isQueueEmpty() {
@@ -58,68 +96,123 @@ public class TestTaskService {
         } else {
             relatedIdentifiers.addAll(deviceAgentManagementService.queryGroupByDevice(deviceIdentifier));
         }
-        synchronized (taskQueue) {
-            Queue<TestTaskSpec> taskQueueCopy = new LinkedList<>(taskQueue);
-            while (!taskQueueCopy.isEmpty()) {
-                TestTaskSpec temp = taskQueueCopy.poll();
-                if (relatedIdentifiers.contains(temp.deviceIdentifier)) {
-                    return false;
-                }
-            }
+        return !taskQueue.hasWaitingTask(relatedIdentifiers);
+    }
+
+    @Override
+    public void onDevicesAvailable(String agentId, Collection<String> deviceSerials) {
+        if (taskQueue.isEmpty()) {
+            return;
         }
-        return true;
+        Set<String> relatedIdentifiers = new HashSet<>(deviceSerials);
+        if (agentId != null) {
+            relatedIdentifiers.add(agentId);
+        }
+        for (String deviceSerial : deviceSerials) {
+            relatedIdentifiers.addAll(deviceAgentManagementService.queryGroupByDevice(deviceSerial));
+        }
+        if (taskQueue.hasWaitingTask(relatedIdentifiers)) {
+            requestDispatch();
+        }
+    }
+
+    @Override
+    public void onDevicesUnavailable(String agentId, Collection<String> deviceSerials) {
+        // tasks waiting on these devices stay queued, the agent may reconnect soon
+    }
+
+    /**
+     * Schedule a dispatch pass in the background, requests that come in before it starts share the same pass.
+     */
+    public void requestDispatch() {
+        if (taskQueue.isEmpty() || !isDispatchScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        dispatchExecutor.schedule(() -> {
+            isDispatchScheduled.set(false);
+            runTask();
+        }, DISPATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
     }
 
+    // fallback of the device availability events
     @Scheduled(cron = "0 */3 * * * *")
     public void runTask() {
-        //only run one task at the same time
-        if (isRunning.get()) {
+        //only run one pass at the same time, requests that come in meanwhile are merged into one more pass
+        if (dispatchRequests.getAndIncrement() != 0) {
             return;
         }
-        isRunning.set(true);
-        while (!taskQueue.isEmpty()) {
-            TestTaskSpec testTaskSpec = taskQueue.peek();
+        int handledRequests;
+        do {
+            handledRequests = dispatchRequests.get();
+            try {
+                dispatchQueuedTasks();
+            } catch (Exception e) {
+                logger.error("Failed to dispatch queued test tasks", e);
+            }
+        } while (dispatchRequests.addAndGet(-handledRequests) != 0);
+    }
+
+    private void dispatchQueuedTasks() {
+        // devices wanted by a task ahead that is still waiting, the tasks behind must not take them over
+        Set<String> reservedDevices = new HashSet<>();
+        // devices of each team, the team using the fewest for its weight goes first
+        Map<String, Integer> teamRunningDevices = teamFairShareService.countRunningDevices();
+        int dispatchedCount = taskQueue.dispatch(testTaskSpec -> teamFairShareService.getShare(testTaskSpec, teamRunningDevices), testTaskSpec -> {
+            if (!teamFairShareService.isUnderQuota(testTaskSpec, teamRunningDevices)) {
+                // not reserving its devices, the other teams may use them meanwhile
+                return TestTaskQueue.DispatchResult.BLOCKED;
+            }
+            Set<String> relatedDevices = getRelatedDevices(testTaskSpec);
+            if (!Collections.disjoint(relatedDevices, reservedDevices)) {
+                reservedDevices.addAll(relatedDevices);
+                return TestTaskQueue.DispatchResult.BLOCKED;
+            }
             TestTask testTask = TestTask.convertToTestTask(testTaskSpec);
             try {
                 JSONObject result = deviceAgentManagementService.runTestTaskBySpec(testTaskSpec);
                 if (result.get(Const.Param.TEST_DEVICE_SN) == null) {
-                    break;
-                } else {
-                    testTask.setTestDevicesCount(result.getString(Const.Param.TEST_DEVICE_SN).split(",").length);
-                    testDataService.saveTestTaskData(testTask);
-                    taskQueue.poll();
+                    reservedDevices.addAll(relatedDevices);
+                    return TestTaskQueue.DispatchResult.BLOCKED;
                 }
+                int deviceCount = result.getString(Const.Param.TEST_DEVICE_SN).split(",").length;
+                testTask.setTestDevicesCount(deviceCount);
+                teamFairShareService.onTaskDispatched(testTaskSpec, deviceCount, teamRunningDevices);
+                testDataService.saveTestTaskData(testTask);
+                return TestTaskQueue.DispatchResult.DISPATCHED;
             } catch (Exception e) {
                 logger.error(e.getMessage(), e);
                 //the task will be saved in memory if taskSpec is error
                 testTask.setStatus(TestTask.TestStatus.EXCEPTION);
                 testTask.setTestErrorMsg(e.getMessage());
                 testDataService.saveTestTaskData(testTask);
-                taskQueue.poll();
+                teamFairShareService.onTaskRemoved(testTaskSpec.testTaskId);
+                return TestTaskQueue.DispatchResult.DROPPED;
             }
+        });
+        if (dispatchedCount > 0) {
+            logger.info("{} queued test tasks are handled, {} tasks left in queue", dispatchedCount, taskQueue.size());
         }
-        isRunning.set(false);
     }
 
-    public void cancelTask(String testTaskId) {
-        synchronized (taskQueue) {
-            Queue<TestTaskSpec> taskQueueCopy = getTestQueueCopy();
-            TestTaskSpec tempTask = null;
-            while (!taskQueueCopy.isEmpty()) {
-                TestTaskSpec temp = taskQueueCopy.poll();
-                if (testTaskId.equals(temp.testTaskId)) {
-                    tempTask = temp;
-                    break;
-                }
-            }
-            if (tempTask != null) {
-                taskQueue.remove(tempTask);
-            }
+    private Set<String> getRelatedDevices(TestTaskSpec testTaskSpec) {
+        String deviceIdentifier = testTaskSpec.deviceIdentifier;
+        if (TestTask.TestRunningType.APPIUM_CROSS.equals(testTaskSpec.runningType)
+                || TestTask.TestRunningType.T2C_JSON_TEST.equals(testTaskSpec.runningType)) {
+            return deviceAgentManagementService.queryDeviceByAgent(deviceIdentifier);
+        }
+        if (deviceIdentifier.startsWith(Const.DeviceGroup.GROUP_NAME_PREFIX)) {
+            return deviceAgentManagementService.queryDeviceByGroup(deviceIdentifier);
         }
+        return Collections.singleton(deviceIdentifier);
+    }
+
+    public void cancelTask(String testTaskId) {
+        taskQueue.removeByTaskId(testTaskId);
+        teamFairShareService.onTaskRemoved(testTaskId);
     }
 
     public LinkedList<TestTaskSpec> getTestQueueCopy() {
-        return new LinkedList<>(taskQueue);
+        return new LinkedList<>(taskQueue.snapshot());
     }
 
     public TestTaskQueuedInfo getTestQueuedInfo(String testTaskId) {
@@ -130,21 +223,40 @@ public class TestTaskService {
         queuedInfo[1] = 0;
         taskQueuedInfo.setQueuedInfo(queuedInfo);
 
-        Queue<TestTaskSpec> taskQueueCopy = getTestQueueCopy();
-        int index = 1;
-        while (!taskQueueCopy.isEmpty()) {
-            TestTaskSpec temp = taskQueueCopy.poll();
-            if (testTaskId.equals(temp.testTaskId)) {
-                queuedInfo[0] = index;
-                queuedInfo[1] = temp.retryTime;
-                taskQueuedInfo.setTestTaskSpec(temp);
-                break;
-            }
-            index++;
+        TestTaskSpec temp = taskQueue.getByTaskId(testTaskId);
+        int index = taskQueue.getPosition(testTaskId);
+        if (temp != null && index > 0) {
+            queuedInfo[0] = index;
+            queuedInfo[1] = temp.retryTime;
+            taskQueuedInfo.setTestTaskSpec(temp);
+            setTeamQueuedInfo(taskQueuedInfo, taskQueue.getTeamPositions().getOrDefault(testTaskId, -1));
         }
         return taskQueuedInfo;
     }
 
+    /**
+     * @return the queued tasks in arrival order
+     */
+    public List<TestTaskQueuedInfo> getTestQueuedInfoList() {
+        Map<String, Integer> teamPositions = taskQueue.getTeamPositions();
+        List<TestTaskQueuedInfo> queuedInfos = new ArrayList<>();
+        int index = 0;
+        for (TestTaskSpec testTaskSpec : taskQueue.snapshot()) {
+            index++;
+            TestTaskQueuedInfo taskQueuedInfo = new TestTaskQueuedInfo();
+            taskQueuedInfo.setQueuedInfo(new int[]{index, testTaskSpec.retryTime});
+            taskQueuedInfo.setTestTaskSpec(testTaskSpec);
+            setTeamQueuedInfo(taskQueuedInfo, teamPositions.getOrDefault(testTaskSpec.testTaskId, -1));
+            queuedInfos.add(taskQueuedInfo);
+        }
+        return queuedInfos;
+    }
+
+    private void setTeamQueuedInfo(TestTaskQueuedInfo taskQueuedInfo, int teamPosition) {
+        taskQueuedInfo.setTeamQueuedIndex(teamPosition);
+        taskQueuedInfo.setExpectedWaitSeconds(teamFairShareService.getExpectedWaitSeconds(taskQueuedInfo.getTestTaskSpec(), teamPosition));
+    }
+
     public void checkTestTaskTeamConsistency(TestTaskSpec testTaskSpec) throws HydraLabRuntimeException {
         if (TestTask.TestRunningType.APPIUM_CROSS.equals(testTaskSpec.runningType)
                 || TestTask.TestRunningType.T2C_JSON_TEST.equals(testTaskSpec.runningType)) {
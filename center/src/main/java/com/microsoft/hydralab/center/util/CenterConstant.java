@@ -6,6 +6,7 @@ package com.microsoft.hydralab.center.util;
 public final class CenterConstant {
     public static final String CENTER_FILE_BASE_DIR = "storage/test/package/";
     public static final String CENTER_TEMP_FILE_DIR = "storage/temp/";
+    public static final String CENTER_INGESTION_JOURNAL_DIR = "storage/journal/";
 
     private CenterConstant() {
 
@@ -7,15 +7,24 @@ import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 
-import java.io.BufferedInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 /**
  * @author Li Shen
@@ -24,6 +33,14 @@ import java.io.OutputStream;
 
 @Slf4j
 public final class LocalStorageIOUtil {
+    // request attributes of the Tomcat connector for serving a file with sendfile, see org.apache.catalina.Globals
+    static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_FILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_FILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+    // below this size sendfile costs more than it saves, same threshold as the Tomcat default servlet
+    static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
     private LocalStorageIOUtil() {
     }
 
@@ -41,13 +58,153 @@ public final class LocalStorageIOUtil {
         }
     }
 
-    public static int copyDownloadedStreamToResponse(File file, OutputStream os) {
-        int resLen;
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-            resLen = IOUtils.copy(bis, os);
+    /**
+     * Write the file, or the byte range asked by the Range header, to the response. Supports conditional
+     * requests with If-None-Match and If-Range against the ETag of the file. The content is handed to the
+     * connector as sendfile when supported, otherwise transferred from the file channel.
+     *
+     * @return the number of bytes of the response body
+     */
+    public static long writeFileToResponse(File file, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long fileLength = file.length();
+        long lastModified = file.lastModified();
+        String eTag = getETag(fileLength, lastModified);
+
+        response.reset();
+        response.setHeader(HttpHeaders.ETAG, eTag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (matchesETag(request.getHeader(HttpHeaders.IF_NONE_MATCH), eTag)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return 0;
+        }
+
+        response.setContentType(getContentType(file));
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment;filename=" + file.getName());
+        long start = 0;
+        long end = fileLength - 1;
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && isRangeApplicable(request, eTag, lastModified)) {
+            long[] range = getRange(rangeHeader, fileLength);
+            if (range != null && (range[0] >= fileLength || range[0] > range[1])) {
+                response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + fileLength);
+                return 0;
+            }
+            if (range != null) {
+                start = range[0];
+                end = range[1];
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + fileLength);
+            }
+        }
+        long length = end - start + 1;
+        response.setContentLengthLong(length);
+        if (length <= 0) {
+            return 0;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR)) && length >= SENDFILE_MIN_SIZE) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_FILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_FILE_END_ATTR, end + 1);
+            return length;
+        }
+        return copyFileRangeToStream(file, start, length, response.getOutputStream());
+    }
+
+    /**
+     * Copy count bytes of the file starting from position to the stream, without copying them through a buffer
+     * of the JVM heap when the stream is backed by a channel.
+     *
+     * @return the number of bytes copied, less than count if the file is shorter
+     */
+    public static long copyFileRangeToStream(File file, long position, long count, OutputStream os) {
+        long transferred = 0;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(os);
+            while (transferred < count) {
+                long n = fileChannel.transferTo(position + transferred, count - transferred, target);
+                if (n <= 0) {
+                    break;
+                }
+                transferred += n;
+            }
+            os.flush();
         } catch (IOException e) {
-            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage(), e);
+        }
+        return transferred;
+    }
+
+    /**
+     * Media files get their own type so that browsers can play them in place, everything else stays a binary
+     * download, which the server never compresses.
+     */
+    private static String getContentType(File file) {
+        MediaType mediaType = MediaTypeFactory.getMediaType(file.getName()).orElse(MediaType.APPLICATION_OCTET_STREAM);
+        String type = mediaType.getType();
+        if ("video".equals(type) || "audio".equals(type) || "image".equals(type)) {
+            return mediaType.toString();
+        }
+        return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+    }
+
+    static String getETag(long fileLength, long lastModified) {
+        return "\"" + Long.toHexString(fileLength) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * @return the first and last byte position of a single byte range, null if the header should be ignored:
+     * it is malformed or asks for several ranges, which are served as the whole file
+     */
+    static long[] getRange(String rangeHeader, long fileLength) {
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignore invalid range {}: {}", rangeHeader, e.getMessage());
+            return null;
+        }
+        if (ranges.size() != 1) {
+            return null;
+        }
+        HttpRange range = ranges.get(0);
+        return new long[]{range.getRangeStart(fileLength), range.getRangeEnd(fileLength)};
+    }
+
+    /**
+     * A range is served only if the client's copy is still the current file, as told by If-Range.
+     */
+    private static boolean isRangeApplicable(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(eTag);
+        }
+        try {
+            // HTTP dates have a precision of seconds
+            return request.getDateHeader(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean matchesETag(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if ("*".equals(value) || eTag.equals(value)) {
+                return true;
+            }
         }
-        return resLen;
+        return false;
     }
 }
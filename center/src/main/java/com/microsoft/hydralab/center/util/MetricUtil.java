@@ -3,11 +3,13 @@
 
 package com.microsoft.hydralab.center.util;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.microsoft.hydralab.center.service.DeviceAgentManagementService;
 import com.microsoft.hydralab.common.entity.common.AgentUser;
 import com.microsoft.hydralab.common.util.GlobalConstant;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
@@ -52,6 +54,11 @@ public class MetricUtil {
         log.info("Status metric of agent {} has been registered.", agentUser.getName());
     }
 
+    public void registerCacheMetrics(String cacheName, Cache<?, ?> cache) {
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, cacheName);
+        log.info("Metric of cache {} has been registered.", cacheName);
+    }
+
     public void updateAgentAliveStatus(String agentId, String status) {
         agentAliveStatusMap.put(agentId, status);
     }
@@ -0,0 +1,71 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CacheConfigTest {
+
+    @Test
+    void testLargeTasksWeighMore() {
+        CacheProperty.Spec spec = new CacheProperty.Spec();
+        spec.setMaximumWeight(DataSize.ofKilobytes(256));
+        CaffeineCache cache = CacheConfig.buildCache("taskCache", spec, null);
+        Cache<Object, Object> nativeCache = cache.getNativeCache();
+
+        for (int i = 0; i < 20; i++) {
+            TestTask testTask = createTestTask(0);
+            cache.put(testTask.getId(), testTask);
+        }
+        nativeCache.cleanUp();
+        Assertions.assertEquals(20, nativeCache.estimatedSize());
+
+        // a single task with a thousand units is beyond the weight of the cache
+        TestTask largeTestTask = createTestTask(1000);
+        Assertions.assertTrue(CacheConfig.estimateSize(largeTestTask) > spec.getMaximumWeight().toBytes());
+        cache.put(largeTestTask.getId(), largeTestTask);
+        nativeCache.cleanUp();
+        Assertions.assertNull(cache.get(largeTestTask.getId()));
+        Assertions.assertTrue(nativeCache.stats().evictionCount() > 0);
+    }
+
+    @Test
+    void testEntriesAreRefreshedByLoader() throws InterruptedException {
+        CacheProperty.Spec spec = new CacheProperty.Spec();
+        spec.setRefreshAfterWrite(Duration.ofMillis(10));
+        AtomicInteger loadCount = new AtomicInteger();
+        CaffeineCache cache = CacheConfig.buildCache("groupCache", spec, key -> key + "-" + loadCount.incrementAndGet());
+
+        Assertions.assertEquals("key-1", cache.get("key").get());
+        Thread.sleep(50);
+        // the stale value is served while it is reloaded in the background
+        Assertions.assertEquals("key-1", cache.get("key").get());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!"key-2".equals(cache.get("key").get())) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "entry not refreshed");
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(2, cache.getNativeCache().stats().loadCount());
+    }
+
+    private static TestTask createTestTask(int unitCount) {
+        TestTask testTask = new TestTask();
+        TestRun testRun = new TestRun("serial", "device", testTask.getId());
+        for (int i = 0; i < unitCount; i++) {
+            testRun.getTestUnitList().add(new AndroidTestUnit());
+        }
+        testTask.getDeviceTestResults().add(testRun);
+        return testTask;
+    }
+}
@@ -8,11 +8,17 @@ import com.microsoft.hydralab.center.util.LocalStorageIOUtil;
 import com.microsoft.hydralab.common.util.Const;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
 
 /**
  * @author Li Shen
@@ -40,11 +46,61 @@ public class LocalStorageIOTest extends BaseTest {
         File outputFile = new File("src/test/resources/outputStream.ipa");
         FileOutputStream fileOutputStream = new FileOutputStream(outputFile);
 
-        int inputLen = (int) downloadedFile.length();
-        int resLen = LocalStorageIOUtil.copyDownloadedStreamToResponse(downloadedFile, fileOutputStream);
+        long inputLen = downloadedFile.length();
+        long resLen = LocalStorageIOUtil.copyFileRangeToStream(downloadedFile, 0, inputLen, fileOutputStream);
         Assertions.assertEquals(inputLen, resLen, "Download stream failed!");
 
         fileOutputStream.close();
         outputFile.delete();
     }
+
+    @Test
+    public void downloadRange() throws IOException {
+        byte[] content = Files.readAllBytes(sampleFile.toPath());
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        Assertions.assertEquals(100, LocalStorageIOUtil.writeFileToResponse(sampleFile, request, response));
+        Assertions.assertEquals(HttpStatus.PARTIAL_CONTENT.value(), response.getStatus());
+        Assertions.assertEquals("bytes 100-199/" + content.length, response.getHeader(HttpHeaders.CONTENT_RANGE));
+        Assertions.assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.getContentAsByteArray());
+
+        // a resumed download of a file that changed meanwhile gets the whole file
+        request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=-10");
+        request.addHeader(HttpHeaders.IF_RANGE, "\"outdated\"");
+        response = new MockHttpServletResponse();
+        LocalStorageIOUtil.writeFileToResponse(sampleFile, request, response);
+        Assertions.assertEquals(HttpStatus.OK.value(), response.getStatus());
+        Assertions.assertArrayEquals(content, response.getContentAsByteArray());
+        String eTag = response.getHeader(HttpHeaders.ETAG);
+
+        request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.RANGE, "bytes=" + content.length + "-");
+        request.addHeader(HttpHeaders.IF_RANGE, eTag);
+        response = new MockHttpServletResponse();
+        LocalStorageIOUtil.writeFileToResponse(sampleFile, request, response);
+        Assertions.assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value(), response.getStatus());
+        Assertions.assertEquals("bytes */" + content.length, response.getHeader(HttpHeaders.CONTENT_RANGE));
+
+        request = new MockHttpServletRequest();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, eTag);
+        response = new MockHttpServletResponse();
+        LocalStorageIOUtil.writeFileToResponse(sampleFile, request, response);
+        Assertions.assertEquals(HttpStatus.NOT_MODIFIED.value(), response.getStatus());
+        Assertions.assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void downloadWithSendfile() throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        LocalStorageIOUtil.writeFileToResponse(sampleFile, request, response);
+        Assertions.assertEquals(sampleFile.getAbsolutePath(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+        Assertions.assertEquals(0L, request.getAttribute("org.apache.tomcat.sendfile.start"));
+        Assertions.assertEquals(sampleFile.length(), request.getAttribute("org.apache.tomcat.sendfile.end"));
+        Assertions.assertEquals(sampleFile.length(), response.getContentLengthLong());
+        Assertions.assertEquals(0, response.getContentAsByteArray().length);
+    }
 }
@@ -0,0 +1,64 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.repository;
+
+import com.microsoft.hydralab.center.test.BaseTest;
+import com.microsoft.hydralab.common.entity.common.BlobIndex;
+import com.microsoft.hydralab.common.entity.common.KeyValue;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.repository.BlobIndexRepository;
+import com.microsoft.hydralab.common.repository.KeyValueDBRepository;
+import com.microsoft.hydralab.common.repository.KeyValueRepository;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.UUID;
+
+public class KeyValueRepositoryTest extends BaseTest {
+    @Resource
+    KeyValueRepository keyValueRepository;
+    @Resource
+    KeyValueDBRepository keyValueDBRepository;
+    @Resource
+    BlobIndexRepository blobIndexRepository;
+
+    @Test
+    public void testCrashStacksOfSameContentShareBlob() {
+        String crashStack = "java.lang.IllegalStateException: " + UUID.randomUUID() + "\n\tat com.microsoft.Sample.run(Sample.java:1)";
+        TestRun firstTestRun = createTestRun(crashStack);
+        TestRun secondTestRun = createTestRun(crashStack);
+        keyValueRepository.saveTestRunsKeyValues(List.of(firstTestRun, secondTestRun));
+
+        BlobIndex first = blobIndexRepository.findById(KeyValueRepository.CRASH_STACK_IN_DEVICE + firstTestRun.getCrashStackId()).orElseThrow();
+        BlobIndex second = blobIndexRepository.findById(KeyValueRepository.CRASH_STACK_IN_DEVICE + secondTestRun.getCrashStackId()).orElseThrow();
+        Assertions.assertEquals(first.getSegment(), second.getSegment());
+        Assertions.assertEquals(first.getOffset(), second.getOffset());
+
+        // saved again by the agent, the content is not appended a second time
+        String crashStackId = UUID.randomUUID().toString();
+        keyValueRepository.saveCrashStack(crashStackId, crashStack);
+        BlobIndex third = blobIndexRepository.findById(KeyValueRepository.CRASH_STACK_IN_DEVICE + crashStackId).orElseThrow();
+        Assertions.assertEquals(first.getOffset(), third.getOffset());
+
+        Assertions.assertEquals(crashStack.replace("\n", "<br>"), keyValueRepository.getCrashStack(crashStackId));
+    }
+
+    @Test
+    public void testLegacyKeyValueIsRead() {
+        String crashStackId = UUID.randomUUID().toString();
+        keyValueDBRepository.save(new KeyValue(KeyValueRepository.CRASH_STACK_IN_DEVICE + crashStackId, "legacy<br>stack"));
+
+        Assertions.assertEquals("legacy<br>stack", keyValueRepository.getCrashStack(crashStackId));
+        Assertions.assertNull(keyValueRepository.getCrashStack(UUID.randomUUID().toString()));
+    }
+
+    private static TestRun createTestRun(String crashStack) {
+        TestRun testRun = new TestRun("serial", "device", UUID.randomUUID().toString());
+        testRun.setCrashStackId(UUID.randomUUID().toString());
+        testRun.setCrashStack(crashStack);
+        return testRun;
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.repository;
+
+import com.microsoft.hydralab.center.test.BaseTest;
+import com.microsoft.hydralab.common.entity.common.KeyValue;
+import com.microsoft.hydralab.common.repository.KeyValueDBRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import javax.transaction.Transactional;
+import java.util.UUID;
+
+/**
+ * A request reading in a read-only transaction and then writing has to get the writer connection for the write,
+ * not keep the reader connection of the read for the whole request.
+ */
+// goes through the handler interceptors of a request, the security filters are not the point here
+@AutoConfigureMockMvc(addFilters = false)
+@Import(ReadThenWriteRequestTest.KeyValueCounterController.class)
+public class ReadThenWriteRequestTest extends BaseTest {
+    @Resource
+    MockMvc mockMvc;
+    @Resource
+    KeyValueDBRepository keyValueDBRepository;
+    private final String key = "read-then-write-" + UUID.randomUUID();
+
+    @AfterEach
+    void cleanUp() {
+        keyValueDBRepository.findById(key).ifPresent(keyValueDBRepository::delete);
+    }
+
+    @Test
+    // the request has to run its own transactions
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public void testReadThenWriteInOneRequest() throws Exception {
+        for (int i = 1; i <= 2; i++) {
+            MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/api/test/counter/" + key)
+                    .accept(MediaType.APPLICATION_JSON)).andReturn();
+            Assertions.assertEquals(HttpStatus.OK.value(), result.getResponse().getStatus());
+            Assertions.assertEquals(String.valueOf(i), keyValueDBRepository.findById(key).orElseThrow().getValue());
+        }
+    }
+
+    @RestController
+    static class KeyValueCounterController {
+        @Resource
+        KeyValueDBRepository keyValueDBRepository;
+
+        @PostMapping("/api/test/counter/{key}")
+        public int increase(@PathVariable String key) {
+            // findById runs in a read-only transaction, save in a read-write one
+            int count = keyValueDBRepository.findById(key).map(keyValue -> Integer.parseInt(keyValue.getValue())).orElse(0) + 1;
+            keyValueDBRepository.save(new KeyValue(key, String.valueOf(count)));
+            return count;
+        }
+    }
+}
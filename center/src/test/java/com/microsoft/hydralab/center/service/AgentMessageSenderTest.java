@@ -0,0 +1,114 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.util.Const;
+import com.microsoft.hydralab.common.util.GlobalConstant;
+import com.microsoft.hydralab.common.util.SerializeUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+
+public class AgentMessageSenderTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AgentMessageSender agentMessageSender = new AgentMessageSender();
+    private final Session session = Mockito.mock(Session.class);
+    // the writes started on the session, not completed until their handler is called
+    private final List<SendHandler> pendingWrites = new ArrayList<>();
+    private final List<String> writtenPaths = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        agentMessageSender.meterRegistry = meterRegistry;
+        agentMessageSender.maxBacklog = 4;
+        agentMessageSender.sendTimeoutSeconds = 30;
+        agentMessageSender.init();
+
+        RemoteEndpoint.Async asyncRemote = Mockito.mock(RemoteEndpoint.Async.class);
+        Mockito.doAnswer(invocation -> {
+            ByteBuffer data = invocation.getArgument(0);
+            writtenPaths.add(SerializeUtil.byteArrToMessage(data.array()).getPath());
+            pendingWrites.add(invocation.getArgument(1));
+            return null;
+        }).when(asyncRemote).sendBinary(any(ByteBuffer.class), any(SendHandler.class));
+        Mockito.when(session.getId()).thenReturn("session-1");
+        Mockito.when(session.isOpen()).thenReturn(true);
+        Mockito.when(session.getAsyncRemote()).thenReturn(asyncRemote);
+    }
+
+    @Test
+    void testMessagesAreWrittenInOrder() {
+        AtomicInteger sentCount = new AtomicInteger();
+        // none of these wait for the agent
+        agentMessageSender.send(session, null, message(Const.Path.AGENT_INIT), sentCount::incrementAndGet);
+        agentMessageSender.send(session, null, message(Const.Path.DEVICE_LIST));
+        agentMessageSender.send(session, null, message(Const.Path.HEARTBEAT), sentCount::incrementAndGet);
+        agentMessageSender.send(session, null, message(Const.Path.HEARTBEAT), sentCount::incrementAndGet);
+        Assertions.assertEquals(List.of(Const.Path.AGENT_INIT), writtenPaths);
+
+        completeWrites();
+        // the first heartbeat was replaced by the second one before being written
+        Assertions.assertEquals(List.of(Const.Path.AGENT_INIT, Const.Path.DEVICE_LIST, Const.Path.HEARTBEAT), writtenPaths);
+        Assertions.assertEquals(2, sentCount.get());
+        Assertions.assertEquals(1, meterRegistry.get(GlobalConstant.PROMETHEUS_METRIC_WEBSOCKET_COALESCED_NUM).counter().count());
+        Assertions.assertEquals(3, meterRegistry.get(GlobalConstant.PROMETHEUS_METRIC_WEBSOCKET_SEND_LATENCY).timer().count());
+    }
+
+    @Test
+    void testSlowSessionIsEvicted() throws Exception {
+        agentMessageSender.send(session, null, message(Const.Path.AGENT_INIT));
+        for (int i = 0; i < 100; i++) {
+            agentMessageSender.send(session, null, message(Const.Path.HEARTBEAT));
+        }
+        // the heartbeats take a single place in the queue
+        Assertions.assertEquals(1, meterRegistry.get(GlobalConstant.PROMETHEUS_METRIC_WEBSOCKET_BACKLOG).gauge().value());
+        for (int i = 0; i < 4; i++) {
+            agentMessageSender.send(session, null, message(Const.Path.DEVICE_LIST));
+        }
+
+        Assertions.assertEquals(1, meterRegistry.get(GlobalConstant.PROMETHEUS_METRIC_WEBSOCKET_EVICTED_NUM).counter().count());
+        Assertions.assertEquals(0, meterRegistry.get(GlobalConstant.PROMETHEUS_METRIC_WEBSOCKET_BACKLOG).gauge().value());
+        Mockito.verify(session, Mockito.timeout(5000)).close(any());
+        completeWrites();
+        Assertions.assertEquals(List.of(Const.Path.AGENT_INIT), writtenPaths);
+    }
+
+    @Test
+    void testFailedWriteEvictsSession() throws Exception {
+        agentMessageSender.send(session, null, message(Const.Path.AGENT_INIT));
+        agentMessageSender.send(session, null, message(Const.Path.DEVICE_LIST));
+        pendingWrites.remove(0).onResult(new SendResult(new SocketTimeoutException("write timed out")));
+
+        Mockito.verify(session, Mockito.timeout(5000)).close(any());
+        Assertions.assertEquals(List.of(Const.Path.AGENT_INIT), writtenPaths);
+        Assertions.assertTrue(pendingWrites.isEmpty());
+    }
+
+    private void completeWrites() {
+        while (!pendingWrites.isEmpty()) {
+            pendingWrites.remove(0).onResult(new SendResult());
+        }
+    }
+
+    private static Message message(String path) {
+        Message message = new Message();
+        message.setPath(path);
+        return message;
+    }
+}
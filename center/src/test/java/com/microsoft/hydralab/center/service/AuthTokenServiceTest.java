@@ -0,0 +1,92 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.center.repository.AuthTokenRepository;
+import com.microsoft.hydralab.center.util.MetricUtil;
+import com.microsoft.hydralab.common.entity.center.AuthToken;
+import com.microsoft.hydralab.common.entity.center.SysUser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+
+public class AuthTokenServiceTest {
+    private static final String MAIL_ADDRESS = "test@test.com";
+    private final AuthTokenRepository authTokenRepository = Mockito.mock(AuthTokenRepository.class);
+    private final SecurityUserService securityUserService = Mockito.mock(SecurityUserService.class);
+    private final List<AuthToken> storedTokens = new ArrayList<>();
+    private final AuthTokenService authTokenService = new AuthTokenService();
+
+    @BeforeEach
+    void setUp() {
+        authTokenService.authTokenRepository = authTokenRepository;
+        authTokenService.securityUserService = securityUserService;
+        authTokenService.metricUtil = Mockito.mock(MetricUtil.class);
+        authTokenService.authTokenCacheTtlSeconds = 60;
+        authTokenService.init();
+        Mockito.when(authTokenRepository.save(any())).thenAnswer(invocation -> {
+            storedTokens.add(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        Mockito.when(authTokenRepository.queryByToken(any())).thenAnswer(invocation -> {
+            List<AuthToken> authTokens = new ArrayList<>();
+            storedTokens.stream().filter(authToken -> authToken.getToken().equals(invocation.getArgument(0))).forEach(authTokens::add);
+            return authTokens;
+        });
+        Mockito.doAnswer(invocation -> storedTokens.remove((AuthToken) invocation.getArgument(0))).when(authTokenRepository).delete(any());
+        Mockito.when(securityUserService.loadUserAuthentication(Mockito.eq(MAIL_ADDRESS), any())).thenAnswer(invocation -> {
+            SysUser sysUser = new SysUser();
+            sysUser.setMailAddress(MAIL_ADDRESS);
+            return sysUser;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void testAuthenticationIsCached() {
+        AuthToken authToken = authTokenService.saveAuthToken(createAuthToken());
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertTrue(authTokenService.checkAuthToken(authToken.getToken()));
+        }
+        Assertions.assertEquals(MAIL_ADDRESS, SecurityContextHolder.getContext().getAuthentication().getPrincipal());
+        Mockito.verify(authTokenRepository, Mockito.times(1)).queryByToken(authToken.getToken());
+        Mockito.verify(securityUserService, Mockito.times(1)).loadUserAuthentication(MAIL_ADDRESS, null);
+
+        // the role or teams of the user changed
+        authTokenService.invalidateUserAuthentication(MAIL_ADDRESS);
+        Assertions.assertTrue(authTokenService.checkAuthToken(authToken.getToken()));
+        Mockito.verify(securityUserService, Mockito.times(2)).loadUserAuthentication(MAIL_ADDRESS, null);
+    }
+
+    @Test
+    void testRevokedTokenIsRejected() {
+        AuthToken authToken = createAuthToken();
+        // unknown until it is created
+        Assertions.assertFalse(authTokenService.checkAuthToken(authToken.getToken()));
+        authTokenService.saveAuthToken(authToken);
+        Assertions.assertTrue(authTokenService.checkAuthToken(authToken.getToken()));
+
+        authTokenService.deleteAuthToken(authToken);
+        Assertions.assertFalse(authTokenService.checkAuthToken(authToken.getToken()));
+    }
+
+    private static AuthToken createAuthToken() {
+        AuthToken authToken = new AuthToken();
+        authToken.setToken("token-" + System.nanoTime());
+        authToken.setCreator(MAIL_ADDRESS);
+        return authToken;
+    }
+}
@@ -5,6 +5,7 @@ package com.microsoft.hydralab.center.service;
 
 import com.microsoft.hydralab.center.test.BaseTest;
 import com.microsoft.hydralab.common.entity.common.TestTask;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.cache.Cache;
@@ -20,6 +21,8 @@ import javax.annotation.Resource;
 public class CacheServiceTest extends BaseTest {
     @Resource
     CacheManager cacheManager;
+    @Resource
+    MeterRegistry meterRegistry;
 
     @Test
     void putData() {
@@ -29,4 +32,12 @@ public class CacheServiceTest extends BaseTest {
         TestTask taskB = (TestTask) container.get(taskA.getId()).get();
         Assertions.assertEquals(taskA.getId(), taskB.getId(), "Put data into cache error!");
     }
+
+    @Test
+    void exportMetrics() {
+        cacheManager.getCache("taskCache").get("none");
+        Assertions.assertTrue(meterRegistry.get("cache.gets").tag("cache", "taskCache").tag("result", "miss").functionCounter().count() > 0,
+                "Cache metrics not exported!");
+        Assertions.assertNotNull(meterRegistry.get("cache.evictions").tag("cache", "groupCache").functionCounter());
+    }
 }
@@ -0,0 +1,147 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.microsoft.hydralab.common.entity.center.DeviceGroup;
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.entity.common.TerminationPolicy;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.util.Const;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import javax.websocket.Session;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class DeviceAgentManagementServiceTest {
+    private static final String GROUP_NAME = Const.DeviceGroup.GROUP_NAME_PREFIX + "group";
+    private DeviceAgentManagementService deviceAgentManagementService;
+    private DeviceAgentRegistry deviceAgentRegistry;
+
+    @BeforeEach
+    void setUp() {
+        AgentUser agentUser = new AgentUser();
+        agentUser.setId("agent-1");
+        agentUser.setName("agent");
+        agentUser.setDeviceType(AgentUser.DeviceType.ANDROID);
+        deviceAgentRegistry = new DeviceAgentRegistry();
+        deviceAgentRegistry.updateAgentDevices(agentUser, Arrays.asList(createDevice("device-1"), createDevice("device-2")));
+        deviceAgentRegistry.addDeviceToGroup(GROUP_NAME, "device-1");
+        deviceAgentRegistry.addDeviceToGroup(GROUP_NAME, "device-2");
+
+        DeviceGroup deviceGroup = new DeviceGroup();
+        deviceGroup.setGroupName(GROUP_NAME);
+        DeviceGroupService deviceGroupService = Mockito.mock(DeviceGroupService.class);
+        Mockito.when(deviceGroupService.getGroupByName(GROUP_NAME)).thenReturn(deviceGroup);
+
+        deviceAgentManagementService = new DeviceAgentManagementService();
+        deviceAgentManagementService.deviceAgentRegistry = deviceAgentRegistry;
+        deviceAgentManagementService.deviceGroupService = deviceGroupService;
+        deviceAgentManagementService.testDurationHistoryService = Mockito.mock(TestDurationHistoryService.class);
+        deviceAgentManagementService.agentMessageSender = Mockito.mock(AgentMessageSender.class);
+        deviceAgentManagementService.deviceAvailabilityEventBus = Mockito.mock(DeviceAvailabilityEventBus.class);
+        deviceAgentManagementService.testTaskService = Mockito.mock(TestTaskService.class);
+        deviceAgentManagementService.testDataService = Mockito.mock(TestDataService.class);
+        Mockito.when(deviceAgentManagementService.testDataService.cancelTaskById(anyString(), anyString())).thenReturn(Set.of("agent-1"));
+        Session session = Mockito.mock(Session.class);
+        Mockito.when(session.getId()).thenReturn("session-1");
+        deviceAgentRegistry.addSession("session-1", new DeviceAgentManagementService.AgentSessionInfo(session, agentUser));
+    }
+
+    @Test
+    void testGroupTaskWaitsWhenAllDevicesAreBusy() {
+        deviceAgentRegistry.updateDeviceStatus("device-1", DeviceInfo.TESTING, "task-1");
+        deviceAgentRegistry.updateDeviceStatus("device-2", DeviceInfo.TESTING, "task-2");
+
+        for (String groupTestType : Arrays.asList(Const.DeviceGroup.SHARD_TYPE, Const.DeviceGroup.SINGLE_TYPE, Const.DeviceGroup.ALL_TYPE)) {
+            TestTaskSpec testTaskSpec = createGroupSpec(groupTestType);
+            // no device is chosen, so the task is left in the queue rather than failed
+            JSONObject result = deviceAgentManagementService.runTestTaskBySpec(testTaskSpec);
+            Assertions.assertNull(result.get(Const.Param.TEST_DEVICE_SN), groupTestType);
+            Assertions.assertTrue(testTaskSpec.agentIds.isEmpty(), groupTestType);
+        }
+        Assertions.assertEquals("task-1", deviceAgentRegistry.getDevice("device-1").getRunningTaskId());
+    }
+
+    @Test
+    void testDeviceTimeBudgetIsCanceledWithTask() {
+        TestTaskSpec testTaskSpec = createGroupSpec(Const.DeviceGroup.SHARD_TYPE);
+        TerminationPolicy terminationPolicy = new TerminationPolicy();
+        terminationPolicy.setMaxDeviceMinutes(60);
+        testTaskSpec.terminationPolicy = terminationPolicy;
+        JSONObject result = deviceAgentManagementService.runTestTaskBySpec(testTaskSpec);
+        Assertions.assertEquals(2, result.getString(Const.Param.TEST_DEVICE_SN).split(",").length);
+        ScheduledFuture<?> deviceTimeBudget = deviceAgentManagementService.deviceTimeBudgets.get(testTaskSpec.testTaskId);
+        Assertions.assertNotNull(deviceTimeBudget);
+
+        deviceAgentManagementService.cancelTestTaskById(testTaskSpec.testTaskId, "canceled");
+        Assertions.assertTrue(deviceTimeBudget.isCancelled());
+        Assertions.assertTrue(deviceAgentManagementService.deviceTimeBudgets.isEmpty());
+    }
+
+    @Test
+    void testRunLimitsApplyToTheWholeTask() {
+        TestTaskSpec testTaskSpec = createGroupSpec(Const.DeviceGroup.SHARD_TYPE);
+        TerminationPolicy terminationPolicy = new TerminationPolicy();
+        terminationPolicy.setMaxFailurePercent(50);
+        testTaskSpec.terminationPolicy = terminationPolicy;
+        deviceAgentManagementService.runTestTaskBySpec(testTaskSpec);
+        AgentMessageSender agentMessageSender = deviceAgentManagementService.agentMessageSender;
+        Mockito.clearInvocations(agentMessageSender);
+
+        // neither agent alone reaches half of its tests failed
+        deviceAgentManagementService.onTestTaskProgress("agent-1", createProgress(testTaskSpec.testTaskId, 4, 10));
+        deviceAgentManagementService.onTestTaskProgress("agent-2", createProgress(testTaskSpec.testTaskId, 0, 10));
+        Mockito.verifyNoInteractions(agentMessageSender);
+
+        // a newer count of an agent replaces its previous one, 4 + 6 of 20 tests failed
+        deviceAgentManagementService.onTestTaskProgress("agent-2", createProgress(testTaskSpec.testTaskId, 6, 10));
+        ArgumentCaptor<Message> message = ArgumentCaptor.forClass(Message.class);
+        Mockito.verify(agentMessageSender).send(Mockito.any(), Mockito.any(), message.capture());
+        Assertions.assertEquals(Const.Path.TEST_TASK_TERMINATE, message.getValue().getPath());
+        Assertions.assertEquals("10 of 20 tests failed",
+                ((JSONObject) message.getValue().getBody()).getString(Const.AgentConfig.REASON_PARAM));
+
+        // the task is terminated once, not again on each later report
+        deviceAgentManagementService.onTestTaskProgress("agent-1", createProgress(testTaskSpec.testTaskId, 5, 10));
+        Mockito.verifyNoMoreInteractions(agentMessageSender);
+        Assertions.assertTrue(deviceAgentManagementService.taskRunProgress.isEmpty());
+    }
+
+    private static JSONObject createProgress(String taskId, int failCount, int testCount) {
+        JSONObject data = new JSONObject();
+        data.put(Const.AgentConfig.TASK_ID_PARAM, taskId);
+        data.put(Const.AgentConfig.CRASH_COUNT_PARAM, 0);
+        data.put(Const.AgentConfig.FAIL_COUNT_PARAM, failCount);
+        data.put(Const.AgentConfig.TEST_COUNT_PARAM, testCount);
+        return data;
+    }
+
+    private static TestTaskSpec createGroupSpec(String groupTestType) {
+        TestTaskSpec testTaskSpec = new TestTaskSpec();
+        testTaskSpec.testTaskId = UUID.randomUUID().toString();
+        testTaskSpec.deviceIdentifier = GROUP_NAME;
+        testTaskSpec.groupTestType = groupTestType;
+        testTaskSpec.testSuiteClass = "com.a.ATest,com.a.BTest,com.a.CTest";
+        return testTaskSpec;
+    }
+
+    private static DeviceInfo createDevice(String serialNum) {
+        DeviceInfo deviceInfo = new DeviceInfo();
+        deviceInfo.setSerialNum(serialNum);
+        deviceInfo.setStatus(DeviceInfo.ONLINE);
+        return deviceInfo;
+    }
+}
@@ -0,0 +1,171 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.entity.center.AgentDeviceGroup;
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.websocket.Session;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.mockito.Mockito.when;
+
+public class DeviceAgentRegistryTest {
+    private DeviceAgentRegistry registry;
+    private AgentUser agentUser;
+
+    @BeforeEach
+    void setUp() {
+        registry = new DeviceAgentRegistry();
+        agentUser = new AgentUser();
+        agentUser.setId("agent-1");
+        agentUser.setName("agent");
+        agentUser.setTeamId("team-1");
+        agentUser.setDeviceType(AgentUser.DeviceType.ANDROID);
+    }
+
+    @Test
+    void testSessionIndexes() {
+        DeviceAgentManagementService.AgentSessionInfo first = new DeviceAgentManagementService.AgentSessionInfo(mockSession("session-1"), agentUser);
+        registry.addSession("session-1", first);
+        Assertions.assertSame(first, registry.getSession("session-1"));
+        Assertions.assertSame(first, registry.getSessionByAgentId("agent-1"));
+
+        // a reconnected agent replaces its stale session, closing the stale one later must not remove the new one
+        DeviceAgentManagementService.AgentSessionInfo second = new DeviceAgentManagementService.AgentSessionInfo(mockSession("session-2"), agentUser);
+        Assertions.assertSame(first, registry.addSession("session-2", second));
+        Assertions.assertNull(registry.removeSession("session-1"));
+        Assertions.assertSame(second, registry.getSessionByAgentId("agent-1"));
+        Assertions.assertEquals(1, registry.getSessionCount());
+
+        Assertions.assertSame(second, registry.removeSessionByAgentId("agent-1"));
+        Assertions.assertNull(registry.getSession("session-2"));
+        Assertions.assertEquals(0, registry.getSessionCount());
+    }
+
+    @Test
+    void testDeviceUpdatesKeepTestingState() {
+        registry.updateAgentDevices(agentUser, Arrays.asList(createDevice("device-1", DeviceInfo.ONLINE), createDevice("device-2", DeviceInfo.ONLINE)));
+        registry.addDeviceToGroup("TestGroup_1", "device-1");
+        registry.updateDeviceStatus("device-1", DeviceInfo.TESTING, "task-1");
+
+        // a report from the agent replaces the entry but not the status owned by the center
+        registry.updateAgentDevices(agentUser, Collections.singletonList(createDevice("device-1", DeviceInfo.ONLINE)));
+        DeviceInfo device = registry.getDevice("device-1");
+        Assertions.assertEquals(DeviceInfo.TESTING, device.getStatus());
+        Assertions.assertEquals("task-1", device.getRunningTaskId());
+        Assertions.assertEquals("agent-1", device.getAgentId());
+        Assertions.assertEquals(Set.of("TestGroup_1"), device.getDeviceGroup());
+
+        // the agent's device list and the serial index share the same entry
+        AgentDeviceGroup agentDeviceGroup = registry.getAgentDeviceGroup("agent-1");
+        Assertions.assertEquals(2, agentDeviceGroup.getDevices().size());
+        Assertions.assertSame(device, agentDeviceGroup.getDevices().get(0));
+        Assertions.assertEquals(Set.of("device-1", "device-2"), registry.getDevicesOfAgent("agent-1"));
+
+        // an update replaces the entry in both, the entries already handed out stay as they were
+        registry.updateDeviceStatus("device-1", DeviceInfo.ONLINE, null);
+        Assertions.assertEquals(DeviceInfo.ONLINE, registry.getAgentDeviceGroup("agent-1").getDevices().get(0).getStatus());
+        Assertions.assertSame(registry.getDevice("device-1"), registry.getAgentDeviceGroup("agent-1").getDevices().get(0));
+        Assertions.assertEquals(DeviceInfo.TESTING, device.getStatus());
+    }
+
+    @Test
+    void testGroupAndTeamIndexes() {
+        registry.updateAgentDevices(agentUser, Arrays.asList(createDevice("device-1", DeviceInfo.ONLINE), createDevice("device-2", DeviceInfo.ONLINE)));
+        registry.addDeviceToGroup("TestGroup_1", "device-1");
+        registry.addDeviceToGroup("TestGroup_1", "device-2");
+        Assertions.assertEquals(Set.of("device-1", "device-2"), registry.getDevicesOfGroup("TestGroup_1"));
+
+        registry.deleteDeviceFromGroup("TestGroup_1", "device-2");
+        Assertions.assertEquals(Set.of("device-1"), registry.getDevicesOfGroup("TestGroup_1"));
+        Assertions.assertTrue(registry.getDevice("device-2").getDeviceGroup().isEmpty());
+
+        registry.removeGroup("TestGroup_1");
+        Assertions.assertTrue(registry.getDevicesOfGroup("TestGroup_1").isEmpty());
+        Assertions.assertTrue(registry.getDevice("device-1").getDeviceGroup().isEmpty());
+
+        Assertions.assertEquals(1, registry.getAgentDeviceGroupsOfTeam("team-1").size());
+        Assertions.assertTrue(registry.getAgentDeviceGroupsOfTeam("team-2").isEmpty());
+
+        registry.addDeviceToGroup("TestGroup_2", "device-1");
+        Assertions.assertNotNull(registry.removeAgent("agent-1"));
+        Assertions.assertNull(registry.getDevice("device-1"));
+        Assertions.assertTrue(registry.getDevicesOfGroup("TestGroup_2").isEmpty());
+        Assertions.assertTrue(registry.getAgentDeviceGroupsOfTeam("team-1").isEmpty());
+    }
+
+    @Test
+    void testSnapshotIsRebuiltOnlyOnChange() {
+        AgentUser windowsAgent = new AgentUser();
+        windowsAgent.setId("agent-2");
+        windowsAgent.setDeviceType(AgentUser.DeviceType.WINDOWS);
+        registry.updateAgentDevices(agentUser, Arrays.asList(createDevice("device-1", DeviceInfo.ONLINE), createDevice("device-2", DeviceInfo.OFFLINE)));
+        registry.updateAgentDevices(windowsAgent, Collections.singletonList(createDevice("windows-1", DeviceInfo.ONLINE)));
+
+        DeviceAgentRegistry.Snapshot snapshot = registry.snapshot();
+        Assertions.assertSame(snapshot, registry.snapshot());
+        Assertions.assertEquals(2, snapshot.getAgentDeviceGroups().size());
+        Assertions.assertEquals(2, snapshot.getAliveDevices().size());
+        Assertions.assertEquals(1, snapshot.getAppiumAgents().size());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.getAliveDevices().clear());
+
+        registry.updateDeviceStatus("windows-1", DeviceInfo.OFFLINE, null);
+        DeviceAgentRegistry.Snapshot updated = registry.snapshot();
+        Assertions.assertNotSame(snapshot, updated);
+        Assertions.assertEquals(1, updated.getAliveDevices().size());
+        Assertions.assertTrue(updated.getAppiumAgents().isEmpty());
+        // readers holding the previous snapshot are not affected
+        Assertions.assertEquals(2, snapshot.getAliveDevices().size());
+        Assertions.assertEquals(1, snapshot.getAppiumAgents().size());
+        Assertions.assertTrue(snapshot.getAliveDevices().stream().allMatch(DeviceInfo::isOnline));
+
+        registry.updateDeviceStatus("device-1", DeviceInfo.TESTING, "task-1");
+        registry.addDeviceToGroup("TestGroup_1", "device-1");
+        DeviceInfo snapshotDevice = updated.getAliveDevices().stream().filter(device -> "device-1".equals(device.getSerialNum())).findFirst().get();
+        Assertions.assertEquals(DeviceInfo.ONLINE, snapshotDevice.getStatus());
+        Assertions.assertNull(snapshotDevice.getRunningTaskId());
+        Assertions.assertTrue(snapshotDevice.getDeviceGroup().isEmpty());
+        Assertions.assertTrue(registry.snapshot().getAliveDevices().stream().anyMatch(DeviceInfo::isTesting));
+    }
+
+    @Test
+    void testAgentChangesShowInNextSnapshot() {
+        registry.updateAgentDevices(agentUser, Collections.singletonList(createDevice("device-1", DeviceInfo.ONLINE)));
+        DeviceAgentRegistry.Snapshot snapshot = registry.snapshot();
+        Assertions.assertEquals(AgentDeviceGroup.Status.HEALTHY, snapshot.getAgentDeviceGroups().get(0).getAgentStatus());
+
+        Assertions.assertTrue(registry.updateAgentStatus("agent-1", AgentDeviceGroup.Status.UPDATING));
+        Assertions.assertFalse(registry.updateAgentStatus("agent-2", AgentDeviceGroup.Status.UPDATING));
+        DeviceAgentRegistry.Snapshot updated = registry.snapshot();
+        Assertions.assertEquals(AgentDeviceGroup.Status.UPDATING, updated.getAgentDeviceGroups().get(0).getAgentStatus());
+        Assertions.assertEquals(AgentDeviceGroup.Status.HEALTHY, snapshot.getAgentDeviceGroups().get(0).getAgentStatus());
+
+        registry.updateTeamName("team-1", "renamed team");
+        Assertions.assertEquals("renamed team", registry.snapshot().getAgentDeviceGroups().get(0).getTeamName());
+        Assertions.assertEquals("renamed team", registry.getAgentDeviceGroupsOfTeam("team-1").get(0).getTeamName());
+        Assertions.assertNull(updated.getAgentDeviceGroups().get(0).getTeamName());
+        Assertions.assertEquals(1, registry.snapshot().getAgentDeviceGroups().get(0).getDevices().size());
+    }
+
+    private static Session mockSession(String sessionId) {
+        Session session = Mockito.mock(Session.class);
+        when(session.getId()).thenReturn(sessionId);
+        return session;
+    }
+
+    private static DeviceInfo createDevice(String serialNum, String status) {
+        DeviceInfo deviceInfo = new DeviceInfo();
+        deviceInfo.setSerialNum(serialNum);
+        deviceInfo.setStatus(status);
+        return deviceInfo;
+    }
+}
@@ -0,0 +1,126 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.TestFileSet;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.util.Const;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Set;
+import java.util.UUID;
+
+public class FailedTestRetryServiceTest {
+    private final FailedTestRetryService failedTestRetryService = new FailedTestRetryService();
+    private final TestTaskService testTaskService = Mockito.mock(TestTaskService.class);
+    private final TestDataService testDataService = Mockito.mock(TestDataService.class);
+
+    @BeforeEach
+    void setUp() {
+        failedTestRetryService.testTaskService = testTaskService;
+        failedTestRetryService.testDataService = testDataService;
+    }
+
+    @Test
+    void testOnlyFailedTestsAreRunAgain() {
+        TestTaskSpec taskSpec = createTaskSpec(2);
+        failedTestRetryService.register(taskSpec);
+        TestTask testTask = createTestTask(taskSpec.testTaskId, "device-1",
+                AndroidTestUnit.StatusCodes.OK, AndroidTestUnit.StatusCodes.FAILURE, AndroidTestUnit.StatusCodes.ERROR);
+        failedTestRetryService.onTaskFinished(testTask);
+
+        TestTaskSpec retrySpec = captureQueuedTask();
+        Assertions.assertEquals("com.a.ATest#test1,com.a.ATest#test2", retrySpec.testSuiteClass);
+        Assertions.assertEquals(TestTask.TestScope.CLASS, retrySpec.testScope);
+        Assertions.assertEquals(taskSpec.testTaskId, retrySpec.retriedTaskId);
+        Assertions.assertEquals(Const.DeviceGroup.SINGLE_TYPE, retrySpec.groupTestType);
+        Assertions.assertEquals(Set.of("device-1"), retrySpec.avoidedDeviceSerials);
+        Assertions.assertNotEquals(taskSpec.testTaskId, retrySpec.testTaskId);
+
+        // test1 passes on the rerun, test2 fails again
+        Mockito.when(testDataService.getTestTaskDetail(taskSpec.testTaskId)).thenReturn(testTask);
+        failedTestRetryService.onTaskFinished(createRetryTask(retrySpec.testTaskId, AndroidTestUnit.StatusCodes.OK, AndroidTestUnit.StatusCodes.FAILURE));
+
+        Mockito.verify(testDataService).saveTestTaskData(testTask);
+        TestRun testRun = testTask.getDeviceTestResults().get(0);
+        Assertions.assertEquals(Boolean.TRUE, testRun.getTestUnitList().get(1).getFlaky());
+        Assertions.assertEquals(Boolean.FALSE, testRun.getTestUnitList().get(2).getFlaky());
+        Assertions.assertEquals(1, testRun.getFailCount());
+        Assertions.assertEquals(1, testTask.getTotalFailCount());
+        // one more round for the test still failing
+        Assertions.assertEquals("com.a.ATest#test2", captureQueuedTask().testSuiteClass);
+    }
+
+    @Test
+    void testRetriesAreLimited() {
+        TestTaskSpec taskSpec = createTaskSpec(1);
+        failedTestRetryService.register(taskSpec);
+        failedTestRetryService.onTaskFinished(createTestTask(taskSpec.testTaskId, "device-1", AndroidTestUnit.StatusCodes.FAILURE));
+        TestTaskSpec retrySpec = captureQueuedTask();
+
+        Mockito.when(testDataService.getTestTaskDetail(taskSpec.testTaskId))
+                .thenReturn(createTestTask(taskSpec.testTaskId, "device-1", AndroidTestUnit.StatusCodes.FAILURE));
+        failedTestRetryService.onTaskFinished(createRetryTask(retrySpec.testTaskId, AndroidTestUnit.StatusCodes.FAILURE));
+        // a task finishing twice is handled once
+        failedTestRetryService.onTaskFinished(createTestTask(taskSpec.testTaskId, "device-1", AndroidTestUnit.StatusCodes.FAILURE));
+
+        Mockito.verify(testTaskService, Mockito.times(1)).addTask(Mockito.any());
+        Mockito.verify(testDataService, Mockito.never()).saveTestTaskData(Mockito.any());
+    }
+
+    private TestTaskSpec captureQueuedTask() {
+        ArgumentCaptor<TestTaskSpec> captor = ArgumentCaptor.forClass(TestTaskSpec.class);
+        Mockito.verify(testTaskService, Mockito.atLeastOnce()).addTask(captor.capture());
+        return captor.getValue();
+    }
+
+    private static TestTaskSpec createTaskSpec(int failedTestRetryTime) {
+        TestTaskSpec taskSpec = new TestTaskSpec();
+        taskSpec.testTaskId = UUID.randomUUID().toString();
+        taskSpec.deviceIdentifier = Const.DeviceGroup.GROUP_NAME_PREFIX + "group";
+        taskSpec.groupTestType = Const.DeviceGroup.ALL_TYPE;
+        taskSpec.testFileSet = new TestFileSet();
+        taskSpec.testScope = TestTask.TestScope.TEST_APP;
+        taskSpec.failedTestRetryTime = failedTestRetryTime;
+        return taskSpec;
+    }
+
+    private static TestTask createRetryTask(String taskId, int... statusCodes) {
+        TestTask testTask = createTestTask(taskId, "device-2", statusCodes);
+        // the rerun only has the failed tests
+        testTask.getDeviceTestResults().get(0).getTestUnitList().forEach(testUnit -> testUnit.setTestName("test" + (testUnit.getCurrentIndexNum() + 1)));
+        return testTask;
+    }
+
+    private static TestTask createTestTask(String taskId, String deviceSerial, int... statusCodes) {
+        TestTask testTask = new TestTask();
+        testTask.setId(taskId);
+        testTask.setStatus(TestTask.TestStatus.FINISHED);
+        TestRun testRun = new TestRun();
+        testRun.setDeviceSerialNumber(deviceSerial);
+        for (int i = 0; i < statusCodes.length; i++) {
+            AndroidTestUnit testUnit = new AndroidTestUnit();
+            testUnit.setCurrentIndexNum(i);
+            testUnit.setTestedClass("com.a.ATest");
+            testUnit.setTestName("test" + i);
+            testUnit.setStatusCode(statusCodes[i]);
+            testRun.getTestUnitList().add(testUnit);
+            if (testUnit.isFailed()) {
+                testRun.oneMoreFailure();
+            }
+        }
+        testRun.setTotalCount(statusCodes.length);
+        testTask.addTestedDeviceResult(testRun);
+        testTask.setTotalTestCount(testRun.getTotalCount());
+        testTask.setTotalFailCount(testRun.getFailCount());
+        return testTask;
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.file.impl.local.ChunkedUpload;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+public class LocalStorageUploadServiceTest {
+    @TempDir
+    File tempDir;
+    private LocalStorageUploadService uploadService;
+    private final byte[] content = new byte[250_000];
+
+    @BeforeEach
+    void setUp() {
+        uploadService = new LocalStorageUploadService();
+        uploadService.uploadingDir = new File(tempDir, "uploading");
+        uploadService.storageRoot = new File(tempDir, "local");
+        new Random(42).nextBytes(content);
+    }
+
+    @Test
+    void testResumeAndCommit() throws IOException {
+        ChunkedUpload upload = uploadService.initiate("videos/record.mp4", content.length);
+        writeChunk(upload.getUploadId(), 200_000, 50_000);
+        writeChunk(upload.getUploadId(), 0, 100_000);
+        Assertions.assertThrows(HydraLabRuntimeException.class, () -> uploadService.commit(upload.getUploadId()));
+
+        // the connection dropped, the client starts the upload again
+        ChunkedUpload resumed = uploadService.initiate("videos/record.mp4", content.length);
+        Assertions.assertEquals(upload.getUploadId(), resumed.getUploadId());
+        Assertions.assertEquals(md5(0, 100_000), resumed.getUploadedChunks().get(0L));
+        Assertions.assertEquals(md5(200_000, 50_000), resumed.getUploadedChunks().get(200_000L));
+        Assertions.assertFalse(resumed.getUploadedChunks().containsKey(100_000L));
+
+        writeChunk(resumed.getUploadId(), 100_000, 100_000);
+        Assertions.assertEquals("videos/record.mp4", uploadService.commit(resumed.getUploadId()));
+        Assertions.assertArrayEquals(content, Files.readAllBytes(new File(uploadService.storageRoot, "videos/record.mp4").toPath()));
+        Assertions.assertNotEquals(upload.getUploadId(), uploadService.initiate("videos/record.mp4", content.length).getUploadId());
+    }
+
+    @Test
+    void testCorruptedChunkIsRejected() {
+        ChunkedUpload upload = uploadService.initiate("logs/device.log", content.length);
+        String md5 = md5(0, 1000);
+        byte[] corrupted = Arrays.copyOfRange(content, 0, 1000);
+        corrupted[10]++;
+        Assertions.assertThrows(HydraLabRuntimeException.class,
+                () -> uploadService.writeChunk(upload.getUploadId(), 0, md5, new ByteArrayInputStream(corrupted)));
+        Assertions.assertThrows(HydraLabRuntimeException.class,
+                () -> uploadService.writeChunk(upload.getUploadId(), content.length - 10, null, new ByteArrayInputStream(corrupted)));
+        Assertions.assertTrue(uploadService.initiate("logs/device.log", content.length).getUploadedChunks().isEmpty());
+    }
+
+    @Test
+    void testOrphanedUploadFilesAreCleaned() throws IOException {
+        ChunkedUpload upload = uploadService.initiate("videos/record.mp4", content.length);
+        File expiredPartFile = new File(uploadService.uploadingDir, "expired-part");
+        File recentPartFile = new File(uploadService.uploadingDir, "recent-part");
+        Files.write(expiredPartFile.toPath(), new byte[10]);
+        Files.write(recentPartFile.toPath(), new byte[10]);
+        long expiredTime = System.currentTimeMillis() - LocalStorageUploadService.UPLOAD_EXPIRY_MILLIS - 1000;
+        Assertions.assertTrue(expiredPartFile.setLastModified(expiredTime));
+        Assertions.assertTrue(new File(uploadService.uploadingDir, upload.getUploadId()).setLastModified(expiredTime));
+
+        // the files left by the previous run of the center are swept at startup
+        uploadService.cleanExpiredUploads();
+        Assertions.assertFalse(expiredPartFile.exists());
+        Assertions.assertTrue(recentPartFile.exists());
+        // a known upload expires by its last access, not by its file
+        Assertions.assertTrue(new File(uploadService.uploadingDir, upload.getUploadId()).exists());
+    }
+
+    private void writeChunk(String uploadId, int offset, int length) {
+        uploadService.writeChunk(uploadId, offset, md5(offset, length), new ByteArrayInputStream(content, offset, length));
+    }
+
+    private String md5(int offset, int length) {
+        return Base64.getEncoder().encodeToString(DigestUtils.md5Digest(Arrays.copyOfRange(content, offset, offset + length)));
+    }
+}
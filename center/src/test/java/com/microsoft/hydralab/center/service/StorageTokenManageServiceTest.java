@@ -0,0 +1,111 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.file.AccessToken;
+import com.microsoft.hydralab.common.file.StorageServiceClientProxy;
+import com.microsoft.hydralab.common.file.impl.local.LocalStorageClientAdapter;
+import com.microsoft.hydralab.common.file.impl.local.LocalStorageProperty;
+import com.microsoft.hydralab.common.file.impl.local.LocalStorageToken;
+import com.microsoft.hydralab.common.util.Const;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.time.OffsetDateTime;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class StorageTokenManageServiceTest {
+    private static final String CENTER_TOKEN = "token=CENTER_LOCAL_STORAGE_TOKEN";
+    private StorageServiceClientProxy storageServiceClientProxy;
+    private final StorageTokenManageService storageTokenManageService = new StorageTokenManageService();
+
+    @BeforeEach
+    void setUp() {
+        storageServiceClientProxy = createStorageServiceClientProxy(CENTER_TOKEN, 120);
+        storageTokenManageService.storageServiceClientProxy = storageServiceClientProxy;
+        storageTokenManageService.centerToken = CENTER_TOKEN;
+    }
+
+    @Test
+    void testTokenIsReusedUntilRenewed() {
+        AccessToken accessToken = storageTokenManageService.generateWriteToken("agent-1");
+        // a heartbeat every 10 seconds for an hour
+        for (int i = 0; i < 360; i++) {
+            Assertions.assertSame(accessToken, storageTokenManageService.generateWriteToken("agent-1"));
+        }
+        Mockito.verify(storageServiceClientProxy, Mockito.times(1)).generateAccessToken(anyString());
+        Assertions.assertNotEquals(accessToken.getToken(), storageTokenManageService.generateWriteToken("agent-2").getToken());
+        Assertions.assertNotEquals(accessToken.getToken(), storageTokenManageService.generateReadToken("agent-1").getToken());
+
+        // about to expire
+        ((LocalStorageToken) accessToken).setExpiredTime(OffsetDateTime.now().plusMinutes(1));
+        AccessToken renewedToken = storageTokenManageService.generateWriteToken("agent-1");
+        Assertions.assertNotEquals(accessToken.getToken(), renewedToken.getToken());
+        Assertions.assertTrue(storageTokenManageService.validateAccessToken(renewedToken.getToken()));
+        Assertions.assertTrue(storageTokenManageService.validateAccessToken(accessToken.getToken()));
+    }
+
+    @Test
+    void testValidateAccessToken() {
+        AccessToken accessToken = storageTokenManageService.generateReadToken("test@test.com");
+        Assertions.assertTrue(storageTokenManageService.validateAccessToken(accessToken.getToken()));
+        Assertions.assertTrue(storageTokenManageService.validateTokenVal(accessToken.getToken().substring(StorageTokenManageService.TOKEN_VAL_PREFIX.length())));
+        Assertions.assertTrue(storageTokenManageService.validateAccessToken(CENTER_TOKEN));
+
+        Assertions.assertFalse(storageTokenManageService.validateAccessToken(""));
+        Assertions.assertFalse(storageTokenManageService.validateAccessToken("token=unknown"));
+        Assertions.assertFalse(storageTokenManageService.validateTokenVal("unknown"));
+        Assertions.assertFalse(storageTokenManageService.validateTokenVal(null));
+    }
+
+    @Test
+    void testReleasedTokenStaysValid() {
+        AccessToken accessToken = storageTokenManageService.generateWriteToken("agent-1");
+        storageTokenManageService.releaseWriteToken("agent-1");
+        storageTokenManageService.removeExpiredTokens();
+
+        Assertions.assertTrue(storageTokenManageService.validateAccessToken(accessToken.getToken()));
+        Assertions.assertNotEquals(accessToken.getToken(), storageTokenManageService.generateWriteToken("agent-1").getToken());
+    }
+
+    @Test
+    void testIssuedTokenStaysValidAfterRestart() {
+        AccessToken accessToken = storageTokenManageService.generateWriteToken("agent-1");
+
+        StorageTokenManageService restartedService = new StorageTokenManageService();
+        restartedService.storageServiceClientProxy = createStorageServiceClientProxy(CENTER_TOKEN, 120);
+        restartedService.centerToken = CENTER_TOKEN;
+        Assertions.assertTrue(restartedService.validateAccessToken(accessToken.getToken()));
+        Assertions.assertTrue(restartedService.validateTokenVal(accessToken.getToken().substring(StorageTokenManageService.TOKEN_VAL_PREFIX.length())));
+
+        // tampered with, signed by another center or expired
+        String token = accessToken.getToken();
+        Assertions.assertFalse(restartedService.validateAccessToken(token.substring(0, token.length() - 1) + (token.endsWith("A") ? "B" : "A")));
+        Assertions.assertFalse(restartedService.validateAccessToken("token=" + (System.currentTimeMillis() + 60000) + token.substring(token.indexOf('.'))));
+        Assertions.assertFalse(restartedService.validateAccessToken(createStorageServiceClientProxy("token=OTHER_CENTER_TOKEN", 120)
+                .generateAccessToken(Const.FilePermission.WRITE).getToken()));
+        Assertions.assertFalse(restartedService.validateAccessToken(createStorageServiceClientProxy(CENTER_TOKEN, -1)
+                .generateAccessToken(Const.FilePermission.WRITE).getToken()));
+    }
+
+    private static StorageServiceClientProxy createStorageServiceClientProxy(String centerToken, long tokenExpiryTime) {
+        LocalStorageProperty localStorageProperty = new LocalStorageProperty();
+        localStorageProperty.setEndpoint("http://localhost:9886/");
+        localStorageProperty.setToken(centerToken);
+        localStorageProperty.setTokenExpiryTime(tokenExpiryTime);
+        LocalStorageClientAdapter localStorageClientAdapter = new LocalStorageClientAdapter(localStorageProperty);
+        StorageServiceClientProxy storageServiceClientProxy = Mockito.mock(StorageServiceClientProxy.class);
+        Mockito.when(storageServiceClientProxy.generateAccessToken(anyString()))
+                .thenAnswer(invocation -> localStorageClientAdapter.generateAccessToken(invocation.getArgument(0)));
+        Mockito.when(storageServiceClientProxy.isAccessTokenExpired(any()))
+                .thenAnswer(invocation -> localStorageClientAdapter.isAccessTokenExpired(invocation.getArgument(0)));
+        Mockito.when(storageServiceClientProxy.verifyAccessToken(any()))
+                .thenAnswer(invocation -> localStorageClientAdapter.verifyAccessToken(invocation.getArgument(0)));
+        return storageServiceClientProxy;
+    }
+}
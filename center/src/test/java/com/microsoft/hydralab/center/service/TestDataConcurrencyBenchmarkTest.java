@@ -0,0 +1,134 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.center.test.BaseTest;
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.repository.AndroidTestUnitRepository;
+import com.microsoft.hydralab.common.repository.TestRunRepository;
+import com.microsoft.hydralab.common.repository.TestTaskRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Resource;
+import javax.transaction.Transactional;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dashboard reads of the task list while large test results are saved.
+ */
+public class TestDataConcurrencyBenchmarkTest extends BaseTest {
+    private static final int READER_THREADS = 4;
+    private static final int WRITER_THREADS = 2;
+    private static final long DURATION_MILLIS = 3000;
+    @Resource
+    TestDataService testDataService;
+    @Resource
+    TestTaskRepository testTaskRepository;
+    @Resource
+    TestRunRepository testRunRepository;
+    @Resource
+    AndroidTestUnitRepository androidTestUnitRepository;
+    private final ConcurrentLinkedQueue<TestTask> savedTasks = new ConcurrentLinkedQueue<>();
+
+    @AfterEach
+    void cleanUp() {
+        for (TestTask testTask : savedTasks) {
+            for (TestRun testRun : testTask.getDeviceTestResults()) {
+                androidTestUnitRepository.deleteAll(testRun.getTestUnitList());
+            }
+            testRunRepository.deleteAll(testTask.getDeviceTestResults());
+            testTaskRepository.delete(testTask);
+        }
+    }
+
+    @Test
+    // outside of a test transaction, the reads and writes need their own transactions and connections
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public void testReadsWhileSavingResults() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(READER_THREADS + WRITER_THREADS);
+        long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+        List<Future<List<Long>>> readers = new ArrayList<>();
+        List<Future<List<Long>>> writers = new ArrayList<>();
+        try {
+            for (int i = 0; i < WRITER_THREADS; i++) {
+                writers.add(executorService.submit(() -> measureUntil(deadline, () -> {
+                    TestTask testTask = createTestTask();
+                    testDataService.saveTestTaskData(testTask);
+                    savedTasks.add(testTask);
+                })));
+            }
+            for (int i = 0; i < READER_THREADS; i++) {
+                readers.add(executorService.submit(() -> measureUntil(deadline,
+                        () -> testDataService.getTestTasks(0, 20, null).getContent())));
+            }
+            List<Long> readLatencies = collect(readers);
+            List<Long> writeLatencies = collect(writers);
+
+            baseLogger.info("{} reads, p50 {} ms, p99 {} ms; {} writes, p50 {} ms, p99 {} ms in {} ms",
+                    readLatencies.size(), percentile(readLatencies, 50), percentile(readLatencies, 99),
+                    writeLatencies.size(), percentile(writeLatencies, 50), percentile(writeLatencies, 99), DURATION_MILLIS);
+            Assertions.assertFalse(readLatencies.isEmpty());
+            Assertions.assertFalse(writeLatencies.isEmpty());
+            Assertions.assertEquals(writeLatencies.size(), savedTasks.size());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static List<Long> measureUntil(long deadline, Runnable operation) {
+        List<Long> latencies = new ArrayList<>();
+        while (System.currentTimeMillis() < deadline) {
+            long start = System.nanoTime();
+            operation.run();
+            latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return latencies;
+    }
+
+    private static List<Long> collect(List<Future<List<Long>>> futures) throws Exception {
+        List<Long> latencies = new ArrayList<>();
+        for (Future<List<Long>> future : futures) {
+            latencies.addAll(future.get(DURATION_MILLIS * 10, TimeUnit.MILLISECONDS));
+        }
+        Collections.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentile(List<Long> sortedLatencies, int percentile) {
+        if (sortedLatencies.isEmpty()) {
+            return 0;
+        }
+        return sortedLatencies.get((sortedLatencies.size() - 1) * percentile / 100);
+    }
+
+    private static TestTask createTestTask() {
+        TestTask testTask = new TestTask();
+        testTask.setId(UUID.randomUUID().toString());
+        for (int i = 0; i < 4; i++) {
+            TestRun testRun = new TestRun("serial-" + i, "device-" + i, testTask.getId());
+            for (int j = 0; j < 100; j++) {
+                AndroidTestUnit testUnit = new AndroidTestUnit();
+                testUnit.setDeviceTestResultId(testRun.getId());
+                testUnit.setTestTaskId(testTask.getId());
+                testUnit.setSuccess(true);
+                testUnit.setStartTimeMillis(System.currentTimeMillis());
+                testRun.getTestUnitList().add(testUnit);
+            }
+            testTask.getDeviceTestResults().add(testRun);
+        }
+        return testTask;
+    }
+}
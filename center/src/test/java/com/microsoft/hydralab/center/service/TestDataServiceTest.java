@@ -0,0 +1,313 @@
+package com.microsoft.hydralab.center.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.microsoft.hydralab.center.repository.TestDurationEstimateRepository;
+import com.microsoft.hydralab.center.test.BaseTest;
+import com.microsoft.hydralab.common.entity.center.TestDurationEstimate;
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.CriteriaType;
+import com.microsoft.hydralab.common.entity.common.EntityType;
+import com.microsoft.hydralab.common.entity.common.KeysetPage;
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.repository.AndroidTestUnitRepository;
+import com.microsoft.hydralab.common.repository.TestRunRepository;
+import com.microsoft.hydralab.common.repository.TestTaskRepository;
+import com.microsoft.hydralab.common.util.AttachmentService;
+import com.microsoft.hydralab.common.util.Const;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.cache.CacheManager;
+
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+public class TestDataServiceTest extends BaseTest {
+    private static final int RUN_COUNT = 8;
+    private static final int UNIT_COUNT_PER_RUN = 25;
+    @Resource
+    TestDataService testDataService;
+    @Resource
+    TestTaskRepository testTaskRepository;
+    @Resource
+    TestRunRepository testRunRepository;
+    @Resource
+    AndroidTestUnitRepository androidTestUnitRepository;
+    @Resource
+    AttachmentService attachmentService;
+    @Resource
+    EntityManager entityManager;
+    @Resource
+    CacheManager cacheManager;
+    @Resource
+    TestDurationHistoryService testDurationHistoryService;
+    @Resource
+    FailedTestRetryService failedTestRetryService;
+    @Resource
+    TestDurationEstimateRepository testDurationEstimateRepository;
+
+    @Test
+    public void testTaskDetailQueryCount() {
+        TestTask testTask = saveTestTask();
+        Statistics statistics = startCountingQueries();
+
+        TestTask detail = testDataService.getTestTaskDetail(testTask.getId());
+        // task, runs, units, attachment relations and files, no matter how many runs
+        Assertions.assertEquals(5, statistics.getPrepareStatementCount());
+        Assertions.assertEquals(RUN_COUNT, detail.getDeviceTestResults().size());
+        for (TestRun testRun : detail.getDeviceTestResults()) {
+            Assertions.assertEquals(UNIT_COUNT_PER_RUN, testRun.getTestUnitList().size());
+            testRun.getTestUnitList().forEach(unit -> Assertions.assertEquals(testRun.getId(), unit.getDeviceTestResultId()));
+            Assertions.assertEquals(2, testRun.getAttachments().size());
+            testRun.getAttachments().forEach(attachment -> Assertions.assertTrue(attachment.getFileName().startsWith(testRun.getId())));
+        }
+    }
+
+    @Test
+    public void testFailedTestUnitQueryCount() {
+        saveTestTask();
+        Statistics statistics = startCountingQueries();
+
+        List<AndroidTestUnit> testUnits = testDataService.getAllTestUnit(0, 50);
+        // units, page count and runs
+        Assertions.assertTrue(statistics.getPrepareStatementCount() <= 3);
+        Assertions.assertFalse(testUnits.isEmpty());
+        testUnits.forEach(unit -> Assertions.assertEquals(unit.getDeviceTestResultId(), unit.getDeviceTestTask().getId()));
+    }
+
+    @Test
+    public void testSaveTestTasksDataInBatches() {
+        TestTask testTask = new TestTask();
+        testTask.setId(UUID.randomUUID().toString());
+        List<String> testRunIds = new ArrayList<>();
+        for (int i = 0; i < RUN_COUNT; i++) {
+            TestRun testRun = new TestRun("serial-" + i, "device-" + i, testTask.getId());
+            for (int j = 0; j < UNIT_COUNT_PER_RUN; j++) {
+                AndroidTestUnit testUnit = new AndroidTestUnit();
+                testUnit.setDeviceTestResultId(testRun.getId());
+                testUnit.setTestTaskId(testTask.getId());
+                testUnit.setSuccess(j % 5 != 0);
+                testUnit.setTestedClass("com.microsoft.test.SampleTest");
+                testUnit.setTestName("test" + j);
+                testRun.getTestUnitList().add(testUnit);
+            }
+            testTask.getDeviceTestResults().add(testRun);
+            testRunIds.add(testRun.getId());
+        }
+        Statistics statistics = startCountingQueries();
+
+        testDataService.saveTestTasksData(List.of(testTask));
+        entityManager.flush();
+        // the id lookups of tasks, runs, units and blob indexes and the blob hash lookup, then a batch of inserts for each of them
+        Assertions.assertTrue(statistics.getPrepareStatementCount() <= 9, "statements: " + statistics.getPrepareStatementCount());
+        int failedUnitCount = RUN_COUNT * UNIT_COUNT_PER_RUN / 5;
+        // task, runs with their video time tags, units and failed units
+        Assertions.assertEquals(1 + RUN_COUNT * 2 + RUN_COUNT * UNIT_COUNT_PER_RUN + failedUnitCount, statistics.getEntityInsertCount());
+
+        // saving it again updates the rows instead of inserting them
+        testTask.getDeviceTestResults().get(0).getTestUnitList().get(0).setSuccess(true);
+        testDataService.saveTestTasksData(List.of(testTask));
+        entityManager.flush();
+        entityManager.clear();
+        Assertions.assertEquals(RUN_COUNT * UNIT_COUNT_PER_RUN, androidTestUnitRepository.findByDeviceTestResultIdIn(testRunIds).size());
+        Assertions.assertEquals(failedUnitCount - 1, androidTestUnitRepository.findByDeviceTestResultIdIn(testRunIds).stream()
+                .filter(unit -> !unit.isSuccess()).count());
+    }
+
+    @Test
+    public void testGetTestTasksByCursor() {
+        String teamId = UUID.randomUUID().toString();
+        Date startDate = new Date();
+        List<String> expectedIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            TestTask testTask = new TestTask();
+            testTask.setTeamId(teamId);
+            // tasks started at the same time are ordered by id
+            testTask.setStartDate(new Date(startDate.getTime() - i / 2 * 1000));
+            testTaskRepository.save(testTask);
+        }
+        entityManager.flush();
+        testTaskRepository.findAllByTeamId(teamId).stream()
+                .sorted(Comparator.comparing(TestTask::getStartDate).thenComparing(TestTask::getId).reversed())
+                .forEach(testTask -> expectedIds.add(testTask.getId()));
+        CriteriaType teamCriteria = new CriteriaType();
+        teamCriteria.setKey("teamId");
+        teamCriteria.setOp(CriteriaType.OpType.Equal);
+        teamCriteria.setValue(teamId);
+
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            Statistics statistics = startCountingQueries();
+            KeysetPage<TestTask> keysetPage = testDataService.getTestTasksAfter(cursor, 2, List.of(teamCriteria), false);
+            // no count query
+            Assertions.assertEquals(1, statistics.getPrepareStatementCount());
+            Assertions.assertNull(keysetPage.getApproximateCount());
+            keysetPage.getContent().forEach(testTask -> ids.add(testTask.getId()));
+            cursor = keysetPage.getNextCursor();
+        } while (cursor != null);
+        Assertions.assertEquals(expectedIds, ids);
+
+        KeysetPage<TestTask> keysetPage = testDataService.getTestTasksAfter(null, 2, List.of(teamCriteria), true);
+        Assertions.assertEquals(5, keysetPage.getApproximateCount());
+        Assertions.assertThrows(HydraLabRuntimeException.class, () -> testDataService.getTestTasksAfter("not a cursor", 2, null, false));
+    }
+
+    @Test
+    public void testGroupRunReplayedAfterRestart(@TempDir File journalDir) {
+        TestTask groupTestTask = new TestTask();
+        groupTestTask.setId(UUID.randomUUID().toString());
+        groupTestTask.agentIds.addAll(List.of("agent1", "agent2"));
+        testDataService.saveTestTaskData(groupTestTask);
+
+        // the result of agent1 is saved, the one of agent2 is only journaled when the center stops
+        createIngestionService(journalDir).ingest(createAgentTestTask(groupTestTask.getId(), 3), true, "agent1");
+        createIngestionService(journalDir).replayJournal();
+        createIngestionService(journalDir).ingest(createAgentTestTask(groupTestTask.getId(), 5), true, "agent2");
+        entityManager.flush();
+        entityManager.clear();
+        Objects.requireNonNull(cacheManager.getCache(TestDataService.TASK_CACHE_NAME)).clear();
+
+        createIngestionService(journalDir).replayJournal();
+        entityManager.flush();
+        entityManager.clear();
+        TestTask savedTestTask = testTaskRepository.findById(groupTestTask.getId()).orElseThrow();
+        Assertions.assertEquals(TestTask.TestStatus.FINISHED, savedTestTask.getStatus());
+        Assertions.assertEquals(8, savedTestTask.getTotalTestCount());
+        Assertions.assertTrue(savedTestTask.agentIds.isEmpty());
+        Assertions.assertEquals(2, testRunRepository.findByTestTaskId(groupTestTask.getId()).size());
+        Assertions.assertEquals(0, Objects.requireNonNull(journalDir.listFiles()).length);
+    }
+
+    @Test
+    public void testOlderDeviceRunResultIsSkipped(@TempDir File journalDir) {
+        String testTaskId = UUID.randomUUID().toString();
+        TestTask runningTestTask = createAgentTestTask(testTaskId, 3);
+        runningTestTask.setStatus(TestTask.TestStatus.RUNNING);
+        TestTask finishedTestTask = createAgentTestTask(testTaskId, 5);
+        finishedTestTask.setEndDate(new Date());
+
+        // both results are saved, then replayed after a crash before their segment is deleted
+        TestResultIngestionService ingestionService = createIngestionService(journalDir);
+        ingestionService.flush(List.of(createRecord(runningTestTask), createRecord(finishedTestTask)));
+        Assertions.assertNull(testDataService.mergeTestTaskDataFromAgent(runningTestTask, false, "agent", new HashMap<>()));
+        Assertions.assertNull(testDataService.mergeTestTaskDataFromAgent(finishedTestTask, true, "agent", new HashMap<>()));
+
+        TestTask laterTestTask = createAgentTestTask(testTaskId, 5);
+        laterTestTask.setEndDate(new Date(finishedTestTask.getEndDate().getTime() + 1000));
+        Assertions.assertSame(laterTestTask, testDataService.mergeTestTaskDataFromAgent(laterTestTask, true, "agent", new HashMap<>()));
+        Assertions.assertEquals(TestTask.TestStatus.FINISHED, testDataService.getTestTaskDetail(testTaskId).getStatus());
+    }
+
+    @Test
+    public void testReplayedResultDurationsAreRecordedOnce(@TempDir File journalDir) {
+        TestTask groupTestTask = new TestTask();
+        groupTestTask.setId(UUID.randomUUID().toString());
+        groupTestTask.agentIds.addAll(List.of("agent", "agent2"));
+        testDataService.saveTestTaskData(groupTestTask);
+        TestTask groupAgentTestTask = createAgentTestTask(groupTestTask.getId(), 1);
+        TestTask deviceTestTask = createAgentTestTask(UUID.randomUUID().toString(), 1);
+        deviceTestTask.setEndDate(new Date());
+        String testSuite = "com.microsoft.replay." + UUID.randomUUID();
+        for (TestTask testTask : List.of(groupAgentTestTask, deviceTestTask)) {
+            testTask.setTestPkgName(testSuite);
+            AndroidTestUnit testUnit = new AndroidTestUnit();
+            testUnit.setTestedClass("com.a.ATest");
+            testUnit.setTestName("test" + testTask.getId());
+            testUnit.setStartTimeMillis(System.currentTimeMillis());
+            testUnit.setEndTimeMillis(testUnit.getStartTimeMillis() + 1000);
+            testTask.getDeviceTestResults().get(0).getTestUnitList().add(testUnit);
+        }
+
+        // saved, then replayed after a crash before their segment is deleted
+        List<Message> records = List.of(createRecord(groupAgentTestTask), createRecord(deviceTestTask));
+        TestResultIngestionService ingestionService = createIngestionService(journalDir);
+        Assertions.assertTrue(ingestionService.flush(records).isEmpty());
+        Assertions.assertTrue(ingestionService.flush(records).isEmpty());
+        for (TestTask testTask : List.of(groupAgentTestTask, deviceTestTask)) {
+            String id = TestDurationEstimate.getId(testSuite, "com.a.ATest", "test" + testTask.getId());
+            Assertions.assertEquals(1, testDurationEstimateRepository.findById(id).orElseThrow().getSampleCount());
+        }
+    }
+
+    private static Message createRecord(TestTask testTask) {
+        Message record = Message.ok(Const.Path.TEST_TASK_UPDATE, testTask);
+        record.setAgentId("agent");
+        Map<String, Object> params = new HashMap<>();
+        params.put("persistence", TestTask.TestStatus.FINISHED.equals(testTask.getStatus()));
+        record.setParams(params);
+        return record;
+    }
+
+    private TestResultIngestionService createIngestionService(File journalDir) {
+        TestResultIngestionService ingestionService = new TestResultIngestionService();
+        ingestionService.testDataService = testDataService;
+        ingestionService.testDurationHistoryService = testDurationHistoryService;
+        ingestionService.failedTestRetryService = failedTestRetryService;
+        ingestionService.journalDir = journalDir;
+        return ingestionService;
+    }
+
+    private static TestTask createAgentTestTask(String testTaskId, int testCount) {
+        TestTask testTask = new TestTask();
+        testTask.setId(testTaskId);
+        testTask.setStatus(TestTask.TestStatus.FINISHED);
+        testTask.setTotalTestCount(testCount);
+        testTask.getDeviceTestResults().add(new TestRun("serial", "device", testTaskId));
+        return testTask;
+    }
+
+    private TestTask saveTestTask() {
+        TestTask testTask = new TestTask();
+        testTask.setId(UUID.randomUUID().toString());
+        testTaskRepository.save(testTask);
+        List<AndroidTestUnit> testUnits = new ArrayList<>();
+        for (int i = 0; i < RUN_COUNT; i++) {
+            TestRun testRun = new TestRun("serial-" + i, "device-" + i, testTask.getId());
+            testRunRepository.save(testRun);
+            for (int j = 0; j < UNIT_COUNT_PER_RUN; j++) {
+                AndroidTestUnit testUnit = new AndroidTestUnit();
+                testUnit.setDeviceTestResultId(testRun.getId());
+                testUnit.setTestTaskId(testTask.getId());
+                testUnit.setSuccess(j % 5 != 0);
+                testUnit.setStartTimeMillis(System.currentTimeMillis());
+                testUnits.add(testUnit);
+            }
+            List<StorageFileInfo> attachments = new ArrayList<>();
+            for (String name : List.of("video.mp4", "logcat.log")) {
+                StorageFileInfo attachment = new StorageFileInfo();
+                attachment.setFileId(UUID.randomUUID().toString());
+                attachment.setFileName(testRun.getId() + "_" + name);
+                attachment.setFileParser(new JSONObject());
+                attachments.add(attachment);
+            }
+            attachmentService.saveAttachments(testRun.getId(), EntityType.TEST_RESULT, attachments);
+        }
+        androidTestUnitRepository.saveAll(testUnits);
+        entityManager.flush();
+        entityManager.clear();
+        return testTask;
+    }
+
+    private Statistics startCountingQueries() {
+        Statistics statistics = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+        return statistics;
+    }
+}
@@ -0,0 +1,54 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.center.test.BaseTest;
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+
+public class TestDurationHistoryServiceTest extends BaseTest {
+    private static final String TEST_PKG_NAME = "com.microsoft.test";
+    @Resource
+    TestDurationHistoryService testDurationHistoryService;
+
+    @Test
+    public void testDurationsAreAveraged() {
+        testDurationHistoryService.recordDurations(List.of(createTestTask(1000, 2000)));
+        Map<String, Double> classEstimates = testDurationHistoryService.getClassEstimates(TEST_PKG_NAME, List.of("com.a.ATest", "com.a.BTest"));
+        Assertions.assertEquals(Map.of("com.a.ATest", 3000.0), classEstimates);
+
+        // the latest run weighs ewma-weight in the average
+        testDurationHistoryService.recordDurations(List.of(createTestTask(2000, 2000)));
+        classEstimates = testDurationHistoryService.getClassEstimates(TEST_PKG_NAME, List.of("com.a.ATest"));
+        double expected = 1000 + testDurationHistoryService.ewmaWeight * 1000 + 2000;
+        Assertions.assertEquals(expected, classEstimates.get("com.a.ATest"), 0.001);
+        Assertions.assertTrue(testDurationHistoryService.getClassEstimates("com.microsoft.other", List.of("com.a.ATest")).isEmpty());
+    }
+
+    private static TestTask createTestTask(long firstDuration, long secondDuration) {
+        TestTask testTask = new TestTask();
+        testTask.setTestPkgName(TEST_PKG_NAME);
+        TestRun testRun = new TestRun();
+        testRun.getTestUnitList().add(createTestUnit("testFirst", firstDuration));
+        testRun.getTestUnitList().add(createTestUnit("testSecond", secondDuration));
+        testTask.addTestedDeviceResult(testRun);
+        return testTask;
+    }
+
+    private static AndroidTestUnit createTestUnit(String testName, long duration) {
+        AndroidTestUnit testUnit = new AndroidTestUnit();
+        testUnit.setTestedClass("com.a.ATest");
+        testUnit.setTestName(testName);
+        testUnit.setStartTimeMillis(System.currentTimeMillis());
+        testUnit.setEndTimeMillis(testUnit.getStartTimeMillis() + duration);
+        return testUnit;
+    }
+}
@@ -0,0 +1,165 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+
+public class TestResultIngestionServiceTest {
+    @TempDir
+    File tempDir;
+    private final TestDataService testDataService = Mockito.mock(TestDataService.class);
+    private final List<TestResultIngestionService> services = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        Mockito.when(testDataService.mergeTestTaskDataFromAgent(any(), anyBoolean(), anyString(), any()))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        for (TestResultIngestionService service : services) {
+            service.stop();
+        }
+    }
+
+    @Test
+    void testQueuedResultsAreSavedAndJournalDeleted() {
+        TestResultIngestionService ingestionService = createService();
+        ingestionService.start();
+        TestTask testTask = createTestTask();
+        ingestionService.ingest(testTask, true, "agent");
+
+        Mockito.verify(testDataService, Mockito.timeout(5000)).saveTestTasksData(Mockito.argThat(testTasks ->
+                testTasks.size() == 1 && testTasks.iterator().next().getId().equals(testTask.getId())));
+        waitForJournalDeleted();
+        Assertions.assertEquals(0, ingestionService.getQueueSize());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testJournalIsReplayedAfterCrash() {
+        // the results are journaled and queued, the center stops before they are saved
+        TestResultIngestionService crashedService = createService();
+        TestTask firstTestTask = createTestTask();
+        TestTask secondTestTask = createTestTask();
+        crashedService.ingest(firstTestTask, false, "agent1");
+        crashedService.ingest(secondTestTask, true, "agent2");
+        Mockito.verify(testDataService, Mockito.never()).saveTestTasksData(any());
+
+        TestResultIngestionService restartedService = createService();
+        restartedService.replayJournal();
+        Mockito.verify(testDataService).mergeTestTaskDataFromAgent(any(), Mockito.eq(false), Mockito.eq("agent1"), any());
+        Mockito.verify(testDataService).mergeTestTaskDataFromAgent(any(), Mockito.eq(true), Mockito.eq("agent2"), any());
+        ArgumentCaptor<Collection<TestTask>> captor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(testDataService).saveTestTasksData(captor.capture());
+        List<TestTask> savedTestTasks = new ArrayList<>(captor.getValue());
+        Assertions.assertEquals(2, savedTestTasks.size());
+        Assertions.assertEquals(firstTestTask.getId(), savedTestTasks.get(0).getId());
+        Assertions.assertEquals(secondTestTask.getId(), savedTestTasks.get(1).getId());
+        Assertions.assertEquals(firstTestTask.getDeviceTestResults().get(0).getId(), savedTestTasks.get(0).getDeviceTestResults().get(0).getId());
+        Assertions.assertEquals(0, Objects.requireNonNull(tempDir.listFiles()).length);
+    }
+
+    @Test
+    void testJournalIsKeptIfSaveFails() {
+        Mockito.doThrow(new IllegalStateException("disk full")).when(testDataService).saveTestTasksData(any());
+        TestResultIngestionService ingestionService = createService();
+        ingestionService.ingest(createTestTask(), true, "agent");
+
+        TestResultIngestionService restartedService = createService();
+        restartedService.replayJournal();
+        Assertions.assertEquals(1, Objects.requireNonNull(tempDir.listFiles()).length);
+    }
+
+    @Test
+    void testJournalIsKeptIfMergeFails() {
+        TestTask testTask = createTestTask();
+        Mockito.when(testDataService.mergeTestTaskDataFromAgent(Mockito.argThat(task -> task != null && task.getId().equals(testTask.getId())),
+                anyBoolean(), anyString(), any())).thenThrow(new IllegalStateException("database is locked"));
+        TestResultIngestionService ingestionService = createService();
+        ingestionService.ingest(testTask, true, "agent");
+
+        TestTask otherTestTask = createTestTask();
+        ingestionService.ingest(otherTestTask, true, "agent");
+
+        TestResultIngestionService restartedService = createService();
+        restartedService.replayJournal();
+        // the other result is saved, the segment is kept for the one not merged
+        Mockito.verify(testDataService).saveTestTasksData(any());
+        Assertions.assertEquals(1, Objects.requireNonNull(tempDir.listFiles()).length);
+
+        // only the result not merged is replayed again
+        createService().replayJournal();
+        Mockito.verify(testDataService, Mockito.times(2)).mergeTestTaskDataFromAgent(
+                Mockito.argThat(task -> task != null && task.getId().equals(testTask.getId())), anyBoolean(), anyString(), any());
+        Mockito.verify(testDataService, Mockito.times(1)).mergeTestTaskDataFromAgent(
+                Mockito.argThat(task -> task != null && task.getId().equals(otherTestTask.getId())), anyBoolean(), anyString(), any());
+    }
+
+    @Test
+    void testResultFailingTooOftenIsMovedToDeadLetter() {
+        Mockito.when(testDataService.mergeTestTaskDataFromAgent(any(), anyBoolean(), anyString(), any())).thenThrow(new IllegalStateException("bad result"));
+        createService().ingest(createTestTask(), true, "agent");
+
+        for (int i = 1; i < TestResultIngestionService.MAX_ATTEMPTS; i++) {
+            createService().replayJournal();
+            Assertions.assertEquals(1, Objects.requireNonNull(tempDir.listFiles()).length);
+        }
+        createService().replayJournal();
+        File[] files = Objects.requireNonNull(tempDir.listFiles());
+        Assertions.assertEquals(1, files.length);
+        Assertions.assertEquals(TestResultIngestionService.DEAD_LETTER_FILE_NAME, files[0].getName());
+        Mockito.verify(testDataService, Mockito.times(TestResultIngestionService.MAX_ATTEMPTS)).mergeTestTaskDataFromAgent(any(), anyBoolean(), anyString(), any());
+
+        // not replayed anymore
+        createService().replayJournal();
+        Mockito.verify(testDataService, Mockito.times(TestResultIngestionService.MAX_ATTEMPTS)).mergeTestTaskDataFromAgent(any(), anyBoolean(), anyString(), any());
+    }
+
+    private TestResultIngestionService createService() {
+        TestResultIngestionService ingestionService = new TestResultIngestionService();
+        ingestionService.testDataService = testDataService;
+        ingestionService.testDurationHistoryService = Mockito.mock(TestDurationHistoryService.class);
+        ingestionService.failedTestRetryService = Mockito.mock(FailedTestRetryService.class);
+        ingestionService.journalDir = tempDir;
+        services.add(ingestionService);
+        return ingestionService;
+    }
+
+    private void waitForJournalDeleted() {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Objects.requireNonNull(tempDir.listFiles()).length > 0) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "journal segment not deleted");
+            Thread.onSpinWait();
+        }
+    }
+
+    private static TestTask createTestTask() {
+        TestTask testTask = new TestTask();
+        testTask.setId(UUID.randomUUID().toString());
+        testTask.setStatus(TestTask.TestStatus.FINISHED);
+        testTask.getDeviceTestResults().add(new TestRun("serial", "device", testTask.getId()));
+        return testTask;
+    }
+}
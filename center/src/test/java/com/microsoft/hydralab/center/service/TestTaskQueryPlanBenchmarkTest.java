@@ -0,0 +1,116 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.microsoft.hydralab.center.test.BaseTest;
+import com.microsoft.hydralab.common.entity.common.CriteriaType;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.util.CriteriaTypeUtil;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.query.Query;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query plans and latencies of the task list filters over a large synthetic table.
+ */
+public class TestTaskQueryPlanBenchmarkTest extends BaseTest {
+    private static final int TASK_COUNT = 20000;
+    private static final int TEAM_COUNT = 50;
+    @Resource
+    EntityManager entityManager;
+
+    @Test
+    public void testFiltersUseIndexes() {
+        long startTime = System.currentTimeMillis();
+        insertTestTasks(startTime);
+
+        // the task list of a team in the last day, and the previous runs of a task in the report
+        assertIndexUsed(List.of(criteria("teamId", CriteriaType.OpType.In, "[\"team-1\",\"team-2\"]"),
+                criteria("startDate", CriteriaType.OpType.GreaterThan, String.valueOf(startTime - TimeUnit.DAYS.toMillis(1)))));
+        assertIndexUsed(List.of(criteria("startDate", CriteriaType.OpType.Equal, String.valueOf(startTime))));
+        CriteriaType teamPrefix = criteria("teamId", CriteriaType.OpType.Like, "team-1");
+        teamPrefix.setLikeRule(CriteriaType.LikeRuleType.End);
+        assertIndexUsed(List.of(teamPrefix));
+    }
+
+    // the SQL of the query is only exposed by the query plan cache
+    @SuppressWarnings("deprecation")
+    private void assertIndexUsed(List<CriteriaType> criteriaTypes) {
+        CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<TestTask> query = criteriaBuilder.createQuery(TestTask.class);
+        Root<TestTask> root = query.from(TestTask.class);
+        query.where(new CriteriaTypeUtil<TestTask>().transferToPredicate(root, criteriaBuilder, criteriaTypes));
+        query.orderBy(criteriaBuilder.desc(root.get("startDate")));
+
+        long start = System.nanoTime();
+        int resultCount = entityManager.createQuery(query).setMaxResults(30).getResultList().size();
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+        String hql = entityManager.createQuery(query).unwrap(Query.class).getQueryString();
+        String sql = entityManager.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class).getQueryPlanCache()
+                .getHQLQueryPlan(hql, false, Collections.emptyMap()).getSqlStrings()[0];
+        List<String> plan = explain(sql);
+        baseLogger.info("{} rows in {} us over {} tasks, plan {} for {}", resultCount, latencyMicros, TASK_COUNT, plan, sql);
+        Assertions.assertTrue(plan.stream().anyMatch(step -> step.startsWith("SEARCH") && step.contains("INDEX")), plan.toString());
+        Assertions.assertTrue(plan.stream().noneMatch(step -> step.startsWith("SCAN")), plan.toString());
+    }
+
+    private List<String> explain(String sql) {
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            List<String> plan = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+                for (int i = 1; i <= statement.getParameterMetaData().getParameterCount(); i++) {
+                    statement.setObject(i, null);
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        plan.add(resultSet.getString("detail"));
+                    }
+                }
+            }
+            return plan;
+        });
+    }
+
+    private void insertTestTasks(long startTime) {
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO test_task (id, team_id, start_date, status, test_devices_count, total_test_count, total_fail_count, time_out_second) "
+                            + "VALUES (?, ?, ?, ?, 0, 0, ?, 0)")) {
+                for (int i = 0; i < TASK_COUNT; i++) {
+                    statement.setString(1, UUID.randomUUID().toString());
+                    statement.setString(2, "team-" + i % TEAM_COUNT);
+                    statement.setLong(3, startTime - TimeUnit.MINUTES.toMillis(i));
+                    statement.setString(4, TestTask.TestStatus.FINISHED);
+                    statement.setInt(5, i % 7);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        });
+    }
+
+    private static CriteriaType criteria(String key, String op, String value) {
+        CriteriaType criteriaType = new CriteriaType();
+        criteriaType.setKey(key);
+        criteriaType.setOp(op);
+        criteriaType.setValue(value);
+        return criteriaType;
+    }
+}
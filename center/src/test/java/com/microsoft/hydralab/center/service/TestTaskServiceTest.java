@@ -0,0 +1,345 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.center.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.microsoft.hydralab.center.config.TaskScheduleProperty;
+import com.microsoft.hydralab.common.entity.center.TestTaskQueuedInfo;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.TestFileSet;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.util.Const;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestTaskServiceTest {
+    private final Logger logger = LoggerFactory.getLogger(TestTaskServiceTest.class);
+    private final Set<String> busyDevices = ConcurrentHashMap.newKeySet();
+    private final Set<String> dispatchedTaskIds = ConcurrentHashMap.newKeySet();
+    // <device, task>
+    private final Map<String, String> runningTaskIds = new ConcurrentHashMap<>();
+    private final TaskScheduleProperty taskScheduleProperty = new TaskScheduleProperty();
+    private TestTaskService testTaskService;
+    private DeviceAgentManagementService deviceAgentManagementService;
+
+    @BeforeEach
+    void setUp() {
+        deviceAgentManagementService = Mockito.mock(DeviceAgentManagementService.class);
+        when(deviceAgentManagementService.queryDeviceByGroup(anyString())).thenReturn(new HashSet<>());
+        when(deviceAgentManagementService.queryGroupByDevice(anyString())).thenReturn(new HashSet<>());
+        when(deviceAgentManagementService.runTestTaskBySpec(any(TestTaskSpec.class))).thenAnswer(invocation -> {
+            TestTaskSpec spec = invocation.getArgument(0);
+            JSONObject result = new JSONObject();
+            Set<String> devices = spec.deviceIdentifier.startsWith(Const.DeviceGroup.GROUP_NAME_PREFIX)
+                    ? deviceAgentManagementService.queryDeviceByGroup(spec.deviceIdentifier)
+                    : Set.of(spec.deviceIdentifier);
+            synchronized (busyDevices) {
+                for (String device : devices) {
+                    if (busyDevices.contains(device)) {
+                        return result;
+                    }
+                }
+                busyDevices.addAll(devices);
+                devices.forEach(device -> runningTaskIds.put(device, spec.testTaskId));
+            }
+            Assertions.assertTrue(dispatchedTaskIds.add(spec.testTaskId), "Task is dispatched twice: " + spec.testTaskId);
+            result.put(Const.Param.TEST_DEVICE_SN, String.join(",", devices));
+            return result;
+        });
+
+        when(deviceAgentManagementService.getAllDevice()).thenAnswer(invocation -> {
+            List<DeviceInfo> devices = new ArrayList<>();
+            for (String device : busyDevices) {
+                DeviceInfo deviceInfo = new DeviceInfo();
+                deviceInfo.setSerialNum(device);
+                deviceInfo.setStatus(DeviceInfo.TESTING);
+                deviceInfo.setRunningTaskId(runningTaskIds.get(device));
+                devices.add(deviceInfo);
+            }
+            return devices;
+        });
+
+        TeamFairShareService teamFairShareService = new TeamFairShareService();
+        teamFairShareService.deviceAgentManagementService = deviceAgentManagementService;
+        teamFairShareService.taskScheduleProperty = taskScheduleProperty;
+        teamFairShareService.meterRegistry = new SimpleMeterRegistry();
+        testTaskService = new TestTaskService();
+        testTaskService.deviceAgentManagementService = deviceAgentManagementService;
+        testTaskService.testDataService = Mockito.mock(TestDataService.class);
+        testTaskService.teamFairShareService = teamFairShareService;
+    }
+
+    @Test
+    void testBusyHeadDoesNotBlockIdleDevices() {
+        busyDevices.add("device-0");
+        testTaskService.addTask(createSpec("device-0"));
+        testTaskService.addTask(createSpec("device-1"));
+        testTaskService.addTask(createSpec("device-2"));
+
+        testTaskService.runTask();
+
+        Assertions.assertEquals(2, dispatchedTaskIds.size(), "Tasks behind a busy device should be dispatched");
+        List<TestTaskSpec> waitingTasks = testTaskService.getTestQueueCopy();
+        Assertions.assertEquals(1, waitingTasks.size());
+        Assertions.assertEquals("device-0", waitingTasks.get(0).deviceIdentifier);
+        Assertions.assertFalse(testTaskService.isDeviceFree("device-0"));
+        Assertions.assertTrue(testTaskService.isDeviceFree("device-1"));
+    }
+
+    @Test
+    void testWaitingGroupTaskKeepsItsDevices() {
+        String groupName = Const.DeviceGroup.GROUP_NAME_PREFIX + "group";
+        when(deviceAgentManagementService.queryDeviceByGroup(groupName)).thenReturn(new HashSet<>(Arrays.asList("device-1", "device-2")));
+        busyDevices.add("device-1");
+        TestTaskSpec groupTask = createSpec(groupName);
+        TestTaskSpec deviceTask = createSpec("device-2");
+        TestTaskSpec otherTask = createSpec("device-3");
+        testTaskService.addTask(groupTask);
+        testTaskService.addTask(deviceTask);
+        testTaskService.addTask(otherTask);
+
+        testTaskService.runTask();
+        Assertions.assertEquals(Set.of(otherTask.testTaskId), dispatchedTaskIds, "Younger task should not take the device of a waiting group task");
+        Assertions.assertEquals(1, testTaskService.getTestQueuedInfo(groupTask.testTaskId).getQueuedInfo()[0]);
+        Assertions.assertEquals(2, testTaskService.getTestQueuedInfo(deviceTask.testTaskId).getQueuedInfo()[0]);
+
+        busyDevices.remove("device-1");
+        testTaskService.runTask();
+        Assertions.assertTrue(dispatchedTaskIds.contains(groupTask.testTaskId));
+        Assertions.assertFalse(dispatchedTaskIds.contains(deviceTask.testTaskId));
+
+        busyDevices.clear();
+        testTaskService.runTask();
+        Assertions.assertTrue(testTaskService.isQueueEmpty());
+    }
+
+    @Test
+    void testCancelQueuedTask() {
+        busyDevices.add("device-0");
+        TestTaskSpec first = createSpec("device-0");
+        TestTaskSpec second = createSpec("device-0");
+        testTaskService.addTask(first);
+        testTaskService.addTask(second);
+
+        testTaskService.cancelTask(first.testTaskId);
+        Assertions.assertNull(testTaskService.getTestQueuedInfo(first.testTaskId).getTestTaskSpec());
+        Assertions.assertEquals(1, testTaskService.getTestQueuedInfo(second.testTaskId).getQueuedInfo()[0]);
+
+        busyDevices.clear();
+        testTaskService.runTask();
+        Assertions.assertEquals(Set.of(second.testTaskId), dispatchedTaskIds);
+    }
+
+    @Test
+    void testTeamUsingFewerDevicesGoesFirst() {
+        testTaskService.addTask(createSpec("device-1", "team-a"));
+        testTaskService.runTask();
+
+        busyDevices.add("device-0");
+        TestTaskSpec busyTeamTask = createSpec("device-0", "team-a");
+        TestTaskSpec idleTeamTask = createSpec("device-0", "team-b");
+        testTaskService.addTask(busyTeamTask);
+        testTaskService.addTask(idleTeamTask);
+        busyDevices.remove("device-0");
+        testTaskService.runTask();
+
+        Assertions.assertTrue(dispatchedTaskIds.contains(idleTeamTask.testTaskId), "The team running nothing should go first");
+        Assertions.assertFalse(dispatchedTaskIds.contains(busyTeamTask.testTaskId));
+    }
+
+    @Test
+    void testInteractiveTasksGoBeforeBatchTasks() {
+        busyDevices.add("device-0");
+        TestTaskSpec batchTask = createSpec("device-0", "team-a");
+        batchTask.type = TestTask.TestType.Schedule;
+        TestTaskSpec interactiveTask = createSpec("device-0", "team-a");
+        testTaskService.addTask(batchTask);
+        testTaskService.addTask(interactiveTask);
+
+        Assertions.assertEquals(2, testTaskService.getTestQueuedInfo(batchTask.testTaskId).getTeamQueuedIndex());
+        Assertions.assertEquals(1, testTaskService.getTestQueuedInfo(interactiveTask.testTaskId).getTeamQueuedIndex());
+        Assertions.assertEquals(-1, testTaskService.getTestQueuedInfo(interactiveTask.testTaskId).getExpectedWaitSeconds());
+
+        busyDevices.clear();
+        testTaskService.runTask();
+        Assertions.assertEquals(Set.of(interactiveTask.testTaskId), dispatchedTaskIds);
+        TestTaskQueuedInfo queuedInfo = testTaskService.getTestQueuedInfoList().get(0);
+        Assertions.assertEquals(batchTask.testTaskId, queuedInfo.getTestTaskSpec().testTaskId);
+        Assertions.assertEquals(1, queuedInfo.getTeamQueuedIndex());
+    }
+
+    @Test
+    void testRenamedTeamKeepsItsLane() {
+        busyDevices.add("device-0");
+        TestTaskSpec firstTask = createSpec("device-0", "team-a");
+        TestTaskSpec secondTask = createSpec("device-0", "team-a");
+        // queued after the team was renamed, the team id stays the same
+        secondTask.teamName = "team-a-renamed";
+        testTaskService.addTask(firstTask);
+        testTaskService.addTask(secondTask);
+        Assertions.assertEquals(2, testTaskService.getTestQueuedInfo(secondTask.testTaskId).getTeamQueuedIndex());
+
+        // the devices it runs on still count, against the quota configured for its new name
+        TaskScheduleProperty.TeamShare teamShare = new TaskScheduleProperty.TeamShare();
+        teamShare.setMaxRunningDevices(1);
+        taskScheduleProperty.getTeams().put("team-a-renamed", teamShare);
+        testTaskService.addTask(createSpec("device-1", "team-a"));
+        testTaskService.runTask();
+        TestTaskSpec renamedTeamTask = createSpec("device-2", "team-a");
+        renamedTeamTask.teamName = "team-a-renamed";
+        Assertions.assertFalse(testTaskService.isUnderDeviceQuota(renamedTeamTask));
+    }
+
+    @Test
+    void testTeamOverQuotaLeavesDevicesToOthers() {
+        TaskScheduleProperty.TeamShare teamShare = new TaskScheduleProperty.TeamShare();
+        teamShare.setMaxRunningDevices(1);
+        taskScheduleProperty.getTeams().put("team-a", teamShare);
+        testTaskService.addTask(createSpec("device-1", "team-a"));
+        testTaskService.runTask();
+        Assertions.assertFalse(testTaskService.isUnderDeviceQuota(createSpec("device-2", "team-a")));
+
+        TestTaskSpec overQuotaTask = createSpec("device-2", "team-a");
+        TestTaskSpec otherTeamTask = createSpec("device-2", "team-b");
+        testTaskService.addTask(overQuotaTask);
+        testTaskService.addTask(otherTeamTask);
+        testTaskService.runTask();
+        Assertions.assertTrue(dispatchedTaskIds.contains(otherTeamTask.testTaskId), "A team over its quota should not hold the device");
+        Assertions.assertFalse(dispatchedTaskIds.contains(overQuotaTask.testTaskId));
+
+        busyDevices.remove("device-1");
+        busyDevices.remove("device-2");
+        testTaskService.runTask();
+        Assertions.assertTrue(dispatchedTaskIds.contains(overQuotaTask.testTaskId));
+        Assertions.assertTrue(testTaskService.isQueueEmpty());
+    }
+
+    @Test
+    void testDeviceEventsTriggerCoalescedDispatch() {
+        ScheduledExecutorService dispatchExecutor = Mockito.mock(ScheduledExecutorService.class);
+        testTaskService.dispatchExecutor = dispatchExecutor;
+        busyDevices.add("device-0");
+        TestTaskSpec spec = createSpec("device-0");
+        testTaskService.addTask(spec);
+
+        // a burst of heartbeats reporting the device results in a single pass
+        for (int i = 0; i < 300; i++) {
+            testTaskService.onDevicesAvailable("agent", Collections.singletonList("device-0"));
+        }
+        runScheduledDispatch(dispatchExecutor);
+        verify(deviceAgentManagementService, times(1)).runTestTaskBySpec(any(TestTaskSpec.class));
+
+        // devices nobody is waiting for don't trigger anything
+        Mockito.clearInvocations(dispatchExecutor);
+        testTaskService.onDevicesAvailable("agent", Collections.singletonList("device-1"));
+        Mockito.verifyNoInteractions(dispatchExecutor);
+
+        busyDevices.clear();
+        testTaskService.onDevicesAvailable("agent", Collections.singletonList("device-0"));
+        long delayMillis = runScheduledDispatch(dispatchExecutor);
+        Assertions.assertTrue(dispatchedTaskIds.contains(spec.testTaskId), "Task should be dispatched once the device is released");
+        Assertions.assertTrue(delayMillis < 1000, "Queue wait after device release should be sub-second");
+    }
+
+    /**
+     * Run the single pass scheduled since the last call on the test thread.
+     *
+     * @return the delay the pass was scheduled with
+     */
+    private static long runScheduledDispatch(ScheduledExecutorService dispatchExecutor) {
+        ArgumentCaptor<Runnable> dispatch = ArgumentCaptor.forClass(Runnable.class);
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        ArgumentCaptor<TimeUnit> unit = ArgumentCaptor.forClass(TimeUnit.class);
+        verify(dispatchExecutor, times(1)).schedule(dispatch.capture(), delay.capture(), unit.capture());
+        Mockito.clearInvocations(dispatchExecutor);
+        dispatch.getValue().run();
+        return unit.getValue().toMillis(delay.getValue());
+    }
+
+    @Test
+    void testQueueThroughput() throws Exception {
+        int deviceCount = 500;
+        int taskCount = 10000;
+        busyDevices.add("device-0");
+        for (int i = 0; i < taskCount; i++) {
+            testTaskService.addTask(createSpec("device-" + (i % deviceCount)));
+        }
+
+        long start = System.currentTimeMillis();
+        testTaskService.runTask();
+        Assertions.assertEquals(deviceCount - 1, dispatchedTaskIds.size(), "Every idle device should get a task in one pass");
+
+        // producers keep queueing while devices are released and dispatch passes run concurrently
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < taskCount / 4; i++) {
+                    testTaskService.addTask(createSpec("device-" + (i % deviceCount)));
+                }
+            }));
+        }
+        for (int t = 0; t < 4; t++) {
+            futures.add(executor.submit(() -> {
+                while (!testTaskService.isQueueEmpty() || dispatchedTaskIds.size() < taskCount * 2) {
+                    busyDevices.clear();
+                    testTaskService.runTask();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        long cost = System.currentTimeMillis() - start;
+
+        Assertions.assertTrue(testTaskService.isQueueEmpty());
+        Assertions.assertEquals(taskCount * 2, dispatchedTaskIds.size());
+        logger.info("Dispatched {} queued tasks over {} devices in {} ms", dispatchedTaskIds.size(), deviceCount, cost);
+    }
+
+    private TestTaskSpec createSpec(String deviceIdentifier, String team) {
+        TestTaskSpec spec = createSpec(deviceIdentifier);
+        spec.teamId = team + "-id";
+        spec.teamName = team;
+        return spec;
+    }
+
+    private TestTaskSpec createSpec(String deviceIdentifier) {
+        TestTaskSpec spec = new TestTaskSpec();
+        spec.testTaskId = UUID.randomUUID().toString();
+        spec.deviceIdentifier = deviceIdentifier;
+        spec.runningType = TestTask.TestRunningType.INSTRUMENTATION;
+        spec.testFileSet = new TestFileSet();
+        return spec;
+    }
+}
@@ -0,0 +1,52 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.datasource;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+public final class BatchUpsertUtil {
+    // ids per IN query, well below the limit of bound parameters of SQLite
+    static final int ID_QUERY_CHUNK_SIZE = 500;
+
+    private BatchUpsertUtil() {
+    }
+
+    /**
+     * Save the entities within the current transaction. Unlike {@code saveAll}, which merges each entity after
+     * a SELECT of its own, the existing rows are looked up with one query per chunk of ids; new entities are
+     * persisted, so that Hibernate flushes them as JDBC batch inserts, and the others are merged.
+     * Of several entities with the same id, the last one is saved.
+     */
+    public static <T> void upsertAll(EntityManager entityManager, JpaRepository<T, String> repository,
+                                     Collection<T> entities, Function<T, String> idGetter) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        Map<String, T> entityMap = new LinkedHashMap<>();
+        entities.forEach(entity -> entityMap.put(idGetter.apply(entity), entity));
+
+        List<String> ids = new ArrayList<>(entityMap.keySet());
+        Set<String> existingIds = new HashSet<>();
+        for (int from = 0; from < ids.size(); from += ID_QUERY_CHUNK_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + ID_QUERY_CHUNK_SIZE, ids.size()));
+            repository.findAllById(chunk).forEach(entity -> existingIds.add(idGetter.apply(entity)));
+        }
+        entityMap.forEach((id, entity) -> {
+            if (existingIds.contains(id)) {
+                entityManager.merge(entity);
+            } else {
+                entityManager.persist(entity);
+            }
+        });
+    }
+}
@@ -0,0 +1,145 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs database writes on one dedicated writer thread. The writes queued while a transaction is being committed
+ * are committed together in the next transaction, so a burst of writes costs a single commit. If a write of a
+ * group fails, the others are committed one by one and only the failing write reports the error.
+ */
+@Component
+public class GroupCommitWriter {
+    static final int MAX_GROUP_SIZE = 64;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private final Logger classLogger = LoggerFactory.getLogger(GroupCommitWriter.class);
+    private final BlockingQueue<WriteTask<?>> queue = new LinkedBlockingQueue<>();
+    private final TransactionTemplate transactionTemplate;
+    private final Thread writerThread = new Thread(this::writeLoop, "GroupCommitWriter");
+    private volatile boolean running = true;
+
+    public GroupCommitWriter(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @PostConstruct
+    public void start() {
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        writerThread.join(SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Run the write on the writer thread and wait until it is committed. A write from within a read-write
+     * transaction joins that transaction instead, as its thread already holds the writer connection.
+     */
+    public <T> T write(Supplier<T> work) {
+        if (Thread.currentThread() == writerThread || TransactionSynchronizationManager.isActualTransactionActive()
+                && !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return work.get();
+        }
+        try {
+            return submit(work).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Queue the write for the writer thread.
+     *
+     * @return a future completed once the write is committed
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> work) {
+        if (!running) {
+            throw new IllegalStateException("GroupCommitWriter is stopped");
+        }
+        WriteTask<T> task = new WriteTask<>(work);
+        queue.add(task);
+        return task.future;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        List<WriteTask<?>> group = new ArrayList<>(MAX_GROUP_SIZE);
+        while (running || !queue.isEmpty()) {
+            WriteTask<?> first;
+            try {
+                first = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (first == null) {
+                continue;
+            }
+            group.add(first);
+            queue.drainTo(group, MAX_GROUP_SIZE - 1);
+            commit(group);
+            group.clear();
+        }
+        queue.forEach(task -> task.future.completeExceptionally(new IllegalStateException("GroupCommitWriter is stopped")));
+    }
+
+    private void commit(List<WriteTask<?>> group) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> group.forEach(WriteTask::run));
+        } catch (RuntimeException e) {
+            if (group.size() == 1) {
+                group.get(0).future.completeExceptionally(e);
+                return;
+            }
+            classLogger.warn("Group of {} writes failed, commit them one by one: {}", group.size(), e.getMessage());
+            group.forEach(task -> commit(Collections.singletonList(task)));
+            return;
+        }
+        group.forEach(WriteTask::complete);
+    }
+
+    private static final class WriteTask<T> {
+        private final Supplier<T> work;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T result;
+
+        private WriteTask(Supplier<T> work) {
+            this.work = work;
+        }
+
+        private void run() {
+            result = work.get();
+        }
+
+        private void complete() {
+            future.complete(result);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.datasource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out connections of the reader pool to read-only transactions and of the writer pool to everything else.
+ * The transaction is known only once it started, so this has to sit behind a
+ * {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}.
+ */
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource {
+    enum Route {
+        READER,
+        WRITER
+    }
+
+    public ReadWriteRoutingDataSource(DataSource readerDataSource, DataSource writerDataSource) {
+        Map<Object, Object> targetDataSources = new HashMap<>();
+        targetDataSources.put(Route.READER, readerDataSource);
+        targetDataSources.put(Route.WRITER, writerDataSource);
+        setTargetDataSources(targetDataSources);
+        setDefaultTargetDataSource(writerDataSource);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return TransactionSynchronizationManager.isCurrentTransactionReadOnly() ? Route.READER : Route.WRITER;
+    }
+}
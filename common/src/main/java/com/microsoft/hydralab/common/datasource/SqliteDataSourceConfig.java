@@ -0,0 +1,73 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.datasource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.PhysicalConnectionHandlingMode;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+/**
+ * SQLite in WAL mode lets readers run alongside the one writer it allows. Read-only transactions get a pool of
+ * reader connections, writes share a single writer connection, so they queue in the pool instead of failing
+ * with SQLITE_BUSY. A session gives its connection back after each transaction, so the next transaction of the
+ * same session (e.g. the write after a read of one request) gets a connection of its own pool.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "spring.datasource", name = "driver-class-name", havingValue = "org.sqlite.JDBC")
+public class SqliteDataSourceConfig implements DisposableBean {
+    // wait for a lock held by another process (or a checkpoint) instead of failing at once
+    private static final String BUSY_TIMEOUT_MILLIS = "10000";
+    @Value("${app.datasource.reader-pool-size:4}")
+    private int readerPoolSize;
+    // the pools are not beans of their own, the application sees a single DataSource
+    private HikariDataSource readerDataSource;
+    private HikariDataSource writerDataSource;
+
+    @Bean
+    @Primary
+    public DataSource dataSource(DataSourceProperties properties) {
+        writerDataSource = createDataSource(properties, "SqliteWriter", 1);
+        readerDataSource = createDataSource(properties, "SqliteReader", readerPoolSize);
+        readerDataSource.setConnectionInitSql("PRAGMA query_only = true");
+        return new LazyConnectionDataSourceProxy(new ReadWriteRoutingDataSource(readerDataSource, writerDataSource));
+    }
+
+    @Bean
+    public HibernatePropertiesCustomizer connectionHandlingCustomizer() {
+        return hibernateProperties -> hibernateProperties.put(AvailableSettings.CONNECTION_HANDLING,
+                PhysicalConnectionHandlingMode.DELAYED_ACQUISITION_AND_RELEASE_AFTER_TRANSACTION);
+    }
+
+    @Override
+    public void destroy() {
+        if (readerDataSource != null) {
+            readerDataSource.close();
+        }
+        if (writerDataSource != null) {
+            writerDataSource.close();
+        }
+    }
+
+    private static HikariDataSource createDataSource(DataSourceProperties properties, String poolName, int poolSize) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName(poolName);
+        dataSource.setMaximumPoolSize(poolSize);
+        // connection properties of sqlite-jdbc, applied as pragmas to each connection;
+        // with WAL a commit appends to the log and synchronous=NORMAL leaves the fsync to the checkpoint
+        dataSource.addDataSourceProperty("journal_mode", "WAL");
+        dataSource.addDataSourceProperty("synchronous", "NORMAL");
+        dataSource.addDataSourceProperty("busy_timeout", BUSY_TIMEOUT_MILLIS);
+        return dataSource;
+    }
+}
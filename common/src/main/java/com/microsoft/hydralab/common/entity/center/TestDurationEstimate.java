@@ -0,0 +1,38 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.entity.center;
+
+import lombok.Data;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.util.Date;
+
+/**
+ * The expected duration of a test method, a moving average of its past runs on any device.
+ */
+@Entity
+@Data
+@Table(name = "test_duration_estimate", indexes = {
+        @Index(name = "suite_class_index", columnList = "test_suite, test_class")})
+public class TestDurationEstimate {
+    // suite, class and method
+    @Id
+    private String id;
+    // the test package
+    @Column(name = "test_suite")
+    private String testSuite;
+    @Column(name = "test_class")
+    private String testClass;
+    private String testMethod;
+    private double durationMillis;
+    private int sampleCount;
+    private Date updateTime;
+
+    public static String getId(String testSuite, String testClass, String testMethod) {
+        return testSuite + "#" + testClass + "#" + testMethod;
+    }
+}
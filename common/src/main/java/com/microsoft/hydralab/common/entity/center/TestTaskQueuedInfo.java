@@ -9,4 +9,8 @@ import lombok.Data;
 public class TestTaskQueuedInfo {
     private TestTaskSpec testTaskSpec;
     private int[] queuedInfo = new int[2];
+    // 1-based position among the queued tasks of the same team, in the order they are offered to the devices
+    private int teamQueuedIndex = -1;
+    // from the recent waits of the team, -1 if unknown
+    private long expectedWaitSeconds = -1;
 }
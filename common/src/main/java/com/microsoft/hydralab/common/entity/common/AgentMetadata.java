@@ -16,4 +16,8 @@ public class AgentMetadata {
     AgentUser agentUser;
     String pushgatewayUsername;
     String pushgatewayPassword;
+    // name of the MessageCodec the center uses for this agent
+    String messageCodec;
+    // whether the center accepts DeviceStateDiff updates instead of full device lists
+    boolean deviceStateDiffEnabled;
 }
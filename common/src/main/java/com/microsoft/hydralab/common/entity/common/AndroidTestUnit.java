@@ -43,6 +43,9 @@ public class AndroidTestUnit implements Serializable {
     @Column(name = "test_task_id")
     protected String testTaskId;
     protected String testName;
+    // failed, then passed when run again
+    @Column(nullable = true)
+    protected Boolean flaky = false;
     @Transient
     protected String stack;
 
@@ -90,6 +93,12 @@ public class AndroidTestUnit implements Serializable {
         int OK = 0;
     }
 
+    @JSONField(serialize = false)
+    @Transient
+    public boolean isFailed() {
+        return statusCode == StatusCodes.FAILURE || statusCode == StatusCodes.ERROR;
+    }
+
     public String getStatusDesc() {
         switch (statusCode) {
             case StatusCodes.OK:
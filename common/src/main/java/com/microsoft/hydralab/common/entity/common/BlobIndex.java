@@ -0,0 +1,41 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.entity.common;
+
+import lombok.Data;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.io.Serializable;
+
+/**
+ * Where the compressed content of a key is in the segment files of the blob store.
+ */
+@Data
+@Entity
+@Table(name = "blob_index", indexes = {
+        @Index(name = "blob_hash_index", columnList = "hash", unique = false)})
+public class BlobIndex implements Serializable {
+    @Id
+    private String keyid;
+    // SHA-256 of the content, keys of the same content share its location
+    private String hash;
+    private long segment;
+    @Column(name = "segment_offset")
+    private long offset;
+    private int length;
+
+    public BlobIndex() {
+    }
+
+    public BlobIndex(String keyid, String hash, long segment, long offset, int length) {
+        this.keyid = keyid;
+        this.hash = hash;
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+    }
+}
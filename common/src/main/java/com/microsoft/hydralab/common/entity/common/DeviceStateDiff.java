@@ -0,0 +1,24 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.entity.common;
+
+import com.alibaba.fastjson.JSONObject;
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Changes of the devices of an agent since the device state of sequence {@link #baseSequence}.
+ * Only the changed fields are carried, a device seen for the first time carries all of them.
+ */
+@Data
+public class DeviceStateDiff {
+    private long baseSequence;
+    private long sequence;
+    // <deviceSerial, changed fields>
+    private Map<String, JSONObject> changedDevices = new HashMap<>();
+    // <deviceSerial, names of the fields set back to null>
+    private Map<String, Set<String>> clearedFields = new HashMap<>();
+}
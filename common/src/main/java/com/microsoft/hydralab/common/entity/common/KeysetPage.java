@@ -0,0 +1,28 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.entity.common;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A page of a list browsed by cursor: the next page starts right after the last row of this one instead of at
+ * an offset, so every page costs the same however deep it is.
+ */
+@Data
+public class KeysetPage<T> {
+    private List<T> content;
+    // opaque, null on the last page
+    private String nextCursor;
+    // only counted on request, and up to a limit
+    private Long approximateCount;
+
+    public KeysetPage() {
+    }
+
+    public KeysetPage(List<T> content, String nextCursor) {
+        this.content = content;
+        this.nextCursor = nextCursor;
+    }
+}
@@ -0,0 +1,31 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.entity.common;
+
+import org.apache.commons.lang3.StringUtils;
+
+import javax.persistence.AttributeConverter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stores a set of ids, which contain no comma, as a comma separated string.
+ */
+public class StringSetConverter implements AttributeConverter<Set<String>, String> {
+    private static final String SEPARATOR = ",";
+
+    @Override
+    public String convertToDatabaseColumn(Set<String> attribute) {
+        return attribute == null ? null : String.join(SEPARATOR, attribute);
+    }
+
+    @Override
+    public Set<String> convertToEntityAttribute(String dbData) {
+        Set<String> attribute = new HashSet<>();
+        if (StringUtils.isNotEmpty(dbData)) {
+            attribute.addAll(Arrays.asList(dbData.split(SEPARATOR)));
+        }
+        return attribute;
+    }
+}
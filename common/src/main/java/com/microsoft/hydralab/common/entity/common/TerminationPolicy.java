@@ -0,0 +1,39 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.entity.common;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * Limits on a running task, the remaining tests of a task tripping one of them are not run. A limit of 0 is no limit.
+ * The limits apply to the task as a whole: the agents report the counts of their devices and center checks their sum.
+ */
+@Data
+public class TerminationPolicy implements Serializable {
+    // app crashes seen by the test runners
+    private int maxCrashCount;
+    private int maxFailurePercent;
+    // tests to run before the failure percentage is taken into account
+    private int minTestCount = 10;
+    // time of all the devices running the task together, checked by center
+    private int maxDeviceMinutes;
+
+    /**
+     * @return why the task has to stop, null if it can go on
+     */
+    public String check(int crashCount, int failCount, int testCount) {
+        if (maxCrashCount > 0 && crashCount >= maxCrashCount) {
+            return String.format("The app crashed %d times", crashCount);
+        }
+        if (maxFailurePercent > 0 && testCount >= Math.max(1, minTestCount) && failCount * 100 >= maxFailurePercent * testCount) {
+            return String.format("%d of %d tests failed", failCount, testCount);
+        }
+        return null;
+    }
+
+    public boolean hasRunLimit() {
+        return maxCrashCount > 0 || maxFailurePercent > 0;
+    }
+}
@@ -48,6 +48,9 @@ public class TestRun implements Serializable, ITestRun {
 
     private int totalCount;
     private int failCount;
+    // app crashes seen while running
+    @Transient
+    private int crashCount;
     private boolean success;
     private long testStartTimeMillis;
     private long testEndTimeMillis;
@@ -117,6 +120,10 @@ public class TestRun implements Serializable, ITestRun {
         }
     }
 
+    public synchronized void oneMoreCrash() {
+        crashCount++;
+    }
+
     public void oneMoreFailure() {
         success = false;
         failCount++;
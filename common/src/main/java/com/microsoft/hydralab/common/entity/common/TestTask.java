@@ -19,8 +19,8 @@ import java.util.regex.Pattern;
 @Data
 @Entity
 @Table(indexes = {
-        @Index(name = "start_date_index", columnList = "start_date", unique = false),
-        @Index(columnList = "team_id")})
+        @Index(name = "start_date_id_index", columnList = "start_date, id", unique = false),
+        @Index(name = "team_start_date_id_index", columnList = "team_id, start_date, id", unique = false)})
 public class TestTask implements Serializable {
     static final Pattern pIdMatch = Pattern.compile("\\d{3,7}");
     @Transient
@@ -34,7 +34,9 @@ public class TestTask implements Serializable {
     public transient File testAppFile;
     @Transient
     public transient List<File> testJsonFileList = new ArrayList<>();
-    @Transient
+    // agents running the task, an agent is removed once its result is saved
+    @Convert(converter = StringSetConverter.class)
+    @Column(length = 4000)
     public Set<String> agentIds = new HashSet<>();
     @Id
     private String id = UUID.randomUUID().toString();
@@ -70,6 +72,13 @@ public class TestTask implements Serializable {
     private transient String title;
     @Transient
     private transient Map<String, String> instrumentationArgs;
+    // set on a SHARD group run, see TestShardUtil
+    @Transient
+    private transient Map<String, Integer> shardIndexes;
+    @Transient
+    private transient int shardCount;
+    @Transient
+    private transient List<String> shardTestSuites;
     @Transient
     private List<TestRun> deviceTestResults = new ArrayList<>();
     @Transient
@@ -85,6 +94,17 @@ public class TestTask implements Serializable {
     private int deviceTestCount;
     @Transient
     private int retryTime = 0;
+    @Transient
+    private int failedTestRetryTime = 0;
+    // the task whose failed tests this one runs again
+    private String retriedTaskId;
+    @Transient
+    private TerminationPolicy terminationPolicy;
+    @Transient
+    private String priority;
+    // why the remaining tests were not run, set once
+    @Transient
+    private volatile String terminationReason;
     private String frameworkType;
     @Column(name = "team_id")
     private String teamId;
@@ -120,6 +140,9 @@ public class TestTask implements Serializable {
         else {
             testTask.setInstrumentationArgs(testTaskSpec.testRunArgs);
         }
+        testTask.setShardIndexes(testTaskSpec.shardIndexes);
+        testTask.setShardCount(testTaskSpec.shardCount);
+        testTask.setShardTestSuites(testTaskSpec.shardTestSuites);
         testTask.setFileSetId(testTaskSpec.fileSetId);
         testTask.setPkgName(testTaskSpec.pkgName);
         testTask.setTestPkgName(testTaskSpec.testPkgName);
@@ -138,6 +161,10 @@ public class TestTask implements Serializable {
             testTask.setRunningType(testTaskSpec.runningType);
         }
         testTask.setRetryTime(testTaskSpec.retryTime);
+        testTask.setFailedTestRetryTime(testTaskSpec.failedTestRetryTime);
+        testTask.setRetriedTaskId(testTaskSpec.retriedTaskId);
+        testTask.setTerminationPolicy(testTaskSpec.terminationPolicy);
+        testTask.setPriority(testTaskSpec.priority);
         testTask.setFrameworkType(testTaskSpec.frameworkType);
         testTask.setTeamId(testTaskSpec.teamId);
         testTask.setTeamName(testTaskSpec.teamName);
@@ -180,6 +207,10 @@ public class TestTask implements Serializable {
         testTaskSpec.testRunnerName = testTask.getTestRunnerName();
         testTaskSpec.testScope = testTask.getTestScope();
         testTaskSpec.inspectionStrategies = testTask.getInspectionStrategies();
+        testTaskSpec.failedTestRetryTime = testTask.getFailedTestRetryTime();
+        testTaskSpec.retriedTaskId = testTask.getRetriedTaskId();
+        testTaskSpec.terminationPolicy = testTask.getTerminationPolicy();
+        testTaskSpec.priority = testTask.getPriority();
 
         return testTaskSpec;
     }
@@ -209,6 +240,22 @@ public class TestTask implements Serializable {
         return TestStatus.CANCELED.equals(status);
     }
 
+    @Transient
+    public boolean isTerminated() {
+        return terminationReason != null;
+    }
+
+    /**
+     * @return false if the task was already terminated
+     */
+    public synchronized boolean terminate(String reason) {
+        if (terminationReason != null) {
+            return false;
+        }
+        terminationReason = reason;
+        return true;
+    }
+
     @JSONField(serialize = false)
     @Transient
     public String getDisplayStartTime() {
@@ -294,6 +341,13 @@ public class TestTask implements Serializable {
         String T2C_JSON_TEST = "T2C_JSON";
     }
 
+    public interface TestPriority {
+        // waited on by someone, e.g. a PR validation, runs before the batch tasks
+        String INTERACTIVE = "INTERACTIVE";
+        // the default of the scheduled tasks
+        String BATCH = "BATCH";
+    }
+
     public interface TestFrameworkType {
         String JUNIT4 = "JUnit4";
         String JUNIT5 = "JUnit5";
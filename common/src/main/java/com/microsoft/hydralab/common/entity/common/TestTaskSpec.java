@@ -16,6 +16,11 @@ public class TestTaskSpec {
     public String deviceIdentifier;
     public String groupTestType;
     public String groupDevices;
+    // the shard of the suite run by each device of a SHARD group run, by device serial
+    public Map<String, Integer> shardIndexes;
+    public int shardCount;
+    // the classes of each shard when planned by the center, by shard index
+    public List<String> shardTestSuites;
     public String accessKey;
     public String reportAudience;
     public String pkgName;
@@ -37,6 +42,15 @@ public class TestTaskSpec {
     public int deviceTestCount = 1;
     public String pipelineLink;
     public int retryTime = 0;
+    // rounds of rerunning the tests that failed, only these tests are run again
+    public int failedTestRetryTime = 0;
+    // set on a rerun of failed tests, the task whose results it completes
+    public String retriedTaskId;
+    // devices to run on only if the others of the group are busy, the ones the tests failed on
+    public Set<String> avoidedDeviceSerials;
+    public TerminationPolicy terminationPolicy;
+    // INTERACTIVE or BATCH, see TestTask.TestPriority
+    public String priority;
     public String frameworkType;
     public List<String> neededPermissions;
     public String teamId;
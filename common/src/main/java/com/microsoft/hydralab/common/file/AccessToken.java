@@ -2,8 +2,13 @@
 // Licensed under the MIT License.
 package com.microsoft.hydralab.common.file;
 
+import java.time.OffsetDateTime;
+
 public interface AccessToken {
     String getToken();
+
+    OffsetDateTime getExpiredTime();
+
     @Deprecated
     void copySignature();
 }
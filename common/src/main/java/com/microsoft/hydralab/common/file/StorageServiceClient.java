@@ -22,6 +22,13 @@ public abstract class StorageServiceClient {
 
     public abstract boolean isAccessTokenExpired(AccessToken token);
 
+    /**
+     * @return whether the token was issued by this client and hasn't expired, false if the storage checks its tokens itself
+     */
+    public boolean verifyAccessToken(String token) {
+        return false;
+    }
+
     public abstract StorageFileInfo upload(File file, StorageFileInfo fileInfo);
 
     public abstract StorageFileInfo download(File file, StorageFileInfo fileInfo);
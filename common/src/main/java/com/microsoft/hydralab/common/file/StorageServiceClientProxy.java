@@ -80,6 +80,11 @@ public class StorageServiceClientProxy extends StorageServiceClient {
         return storageServiceClient.isAccessTokenExpired(token);
     }
 
+    @Override
+    public boolean verifyAccessToken(String token) {
+        return storageServiceClient.verifyAccessToken(token);
+    }
+
     @Override
     public StorageFileInfo upload(File file, StorageFileInfo storageFileInfo) {
         return storageServiceClient.upload(file, storageFileInfo);
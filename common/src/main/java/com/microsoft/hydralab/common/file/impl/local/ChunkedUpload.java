@@ -0,0 +1,21 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+
+package com.microsoft.hydralab.common.file.impl.local;
+
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * State of a chunked upload to the local storage, shared by center and the client to resume an upload.
+ */
+@Data
+public class ChunkedUpload {
+    private String uploadId;
+    private String fileUri;
+    private long size;
+    // <offset, base64 MD5 of the chunk> of the chunks received by center
+    private Map<Long, String> uploadedChunks = new HashMap<>();
+}
@@ -8,16 +8,33 @@ import com.microsoft.hydralab.common.file.AccessToken;
 import com.microsoft.hydralab.common.file.StorageProperties;
 import com.microsoft.hydralab.common.file.StorageServiceClient;
 import com.microsoft.hydralab.common.file.impl.local.client.LocalStorageClient;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
 import java.util.UUID;
 
 public class LocalStorageClientAdapter extends StorageServiceClient {
+    private static final String TOKEN_PREFIX = "token=";
+    private static final String TOKEN_SIGNATURE_ALGORITHM = "HmacSHA256";
     private boolean isInitiated = false;
     private LocalStorageClient localStorageClient;
+    private long tokenExpiryTime;
+    private long tokenExpiryUpdate;
+    // the configured center token, the issued tokens are signed with it so that they stay verifiable after a restart
+    private byte[] tokenSigningKey;
     Logger classLogger = LoggerFactory.getLogger(StorageServiceClient.class);
 
     public LocalStorageClientAdapter() {
@@ -26,19 +43,26 @@ public class LocalStorageClientAdapter extends StorageServiceClient {
     public LocalStorageClientAdapter(StorageProperties storageProperties) {
         LocalStorageProperty localStorageProperty = (LocalStorageProperty) storageProperties;
         this.localStorageClient = new LocalStorageClient(localStorageProperty);
+        this.tokenExpiryTime = localStorageProperty.getTokenExpiryTime();
+        this.tokenExpiryUpdate = localStorageProperty.getTokenExpiryUpdate();
+        if (StringUtils.isNotBlank(localStorageProperty.getToken())) {
+            this.tokenSigningKey = localStorageProperty.getToken().getBytes(StandardCharsets.UTF_8);
+        }
         classLogger.info("Init Center local storage client successfully!");
     }
 
     @Override
     public void updateAccessToken(AccessToken accessToken) {
-        if (isInitiated) {
-            return;
-        }
         if (!(accessToken instanceof LocalStorageToken)) {
             return;
         }
 
         LocalStorageToken localStorageToken = (LocalStorageToken) accessToken;
+        if (isInitiated) {
+            // center renews the token before it expires, the previous one stays valid for the transfers in progress
+            localStorageClient.setToken(localStorageToken.getToken());
+            return;
+        }
         localStorageClient = new LocalStorageClient(localStorageToken);
         isInitiated = true;
         classLogger.info("Init Agent local storage client successfully!");
@@ -48,21 +72,69 @@ public class LocalStorageClientAdapter extends StorageServiceClient {
     public AccessToken generateAccessToken(String permissionType) {
         LocalStoragePermission permission = LocalStoragePermission.valueOf(permissionType);
 
-        // todo: generate token with specific permissions (WRITE/READ) and expiry time
+        // todo: generate token with specific permissions (WRITE/READ)
+        Instant expiredTime = Instant.now().plus(tokenExpiryTime, ChronoUnit.MINUTES);
         LocalStorageToken localStorageToken = new LocalStorageToken();
         localStorageToken.setEndpoint(localStorageClient.getEndpoint());
-        localStorageToken.setToken("token=" + UUID.randomUUID());
+        localStorageToken.setToken(signToken(expiredTime.toEpochMilli() + "." + UUID.randomUUID()));
+        localStorageToken.setExpiredTime(OffsetDateTime.ofInstant(expiredTime, ZoneId.systemDefault()));
         return localStorageToken;
     }
 
+    /**
+     * A token is "token=" + expiry time in milliseconds + "." + nonce + "." + signature of both, so that it can be
+     * checked without knowing it was issued.
+     */
+    @Override
+    public boolean verifyAccessToken(String token) {
+        if (tokenSigningKey == null || token == null || !token.startsWith(TOKEN_PREFIX)) {
+            return false;
+        }
+        String value = token.substring(TOKEN_PREFIX.length());
+        int signatureIndex = value.lastIndexOf('.');
+        int nonceIndex = value.indexOf('.');
+        if (nonceIndex <= 0 || signatureIndex <= nonceIndex) {
+            return false;
+        }
+        String signedValue = value.substring(0, signatureIndex);
+        byte[] signature = value.substring(signatureIndex + 1).getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(sign(signedValue).getBytes(StandardCharsets.UTF_8), signature)) {
+            return false;
+        }
+        try {
+            return Long.parseLong(value.substring(0, nonceIndex)) > System.currentTimeMillis();
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private String signToken(String value) {
+        if (tokenSigningKey == null) {
+            // nothing to sign with, center only accepts the token while it remembers issuing it
+            return TOKEN_PREFIX + value;
+        }
+        return TOKEN_PREFIX + value + "." + sign(value);
+    }
+
+    private String sign(String value) {
+        try {
+            Mac mac = Mac.getInstance(TOKEN_SIGNATURE_ALGORITHM);
+            mac.init(new SecretKeySpec(tokenSigningKey, TOKEN_SIGNATURE_ALGORITHM));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to sign the storage token", e);
+        }
+    }
+
     @Override
     public boolean isAccessTokenExpired(AccessToken accessToken) {
         Assert.isTrue(accessToken instanceof LocalStorageToken, "Current accessToken object: " + accessToken + " is not of LocalStorageToken class!");
         LocalStorageToken localStorageToken = (LocalStorageToken) accessToken;
         Assert.notNull(localStorageToken, "The localStorageToken can't be null!");
 
-        // todo: check if the token is expired
-        return true;
+        // expired a while before the actual expiry time, to renew the token while the holder can still use it
+        return localStorageToken.getExpiredTime() == null
+                || localStorageToken.getExpiredTime().isBefore(OffsetDateTime.ofInstant(Instant.now().plus(tokenExpiryUpdate, ChronoUnit.MINUTES), ZoneId.systemDefault()));
     }
 
     @Override
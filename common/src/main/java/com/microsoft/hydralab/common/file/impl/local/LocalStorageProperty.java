@@ -21,4 +21,7 @@ import org.springframework.stereotype.Component;
 public class LocalStorageProperty extends StorageProperties {
     private String endpoint;
     private String token;
+    // in minutes, the lifetime of the tokens given to agents and users, and how long before expiring they are renewed
+    private long tokenExpiryTime = 120;
+    private long tokenExpiryUpdate = 10;
 }
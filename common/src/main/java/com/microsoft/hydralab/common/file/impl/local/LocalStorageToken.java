@@ -6,6 +6,8 @@ package com.microsoft.hydralab.common.file.impl.local;
 import com.microsoft.hydralab.common.file.AccessToken;
 import lombok.Data;
 
+import java.time.OffsetDateTime;
+
 /**
  * @author Li Shen
  * @date 3/6/2023
@@ -17,6 +19,7 @@ public class LocalStorageToken implements AccessToken {
     private String signature;
     private String token;
     private String endpoint;
+    private OffsetDateTime expiredTime;
 
     @Override
     public String getToken() {
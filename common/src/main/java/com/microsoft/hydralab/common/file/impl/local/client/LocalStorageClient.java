@@ -5,27 +5,36 @@ package com.microsoft.hydralab.common.file.impl.local.client;
 
 import com.alibaba.fastjson.JSONObject;
 import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
+import com.microsoft.hydralab.common.file.impl.local.ChunkedUpload;
 import com.microsoft.hydralab.common.file.impl.local.LocalStorageProperty;
 import com.microsoft.hydralab.common.file.impl.local.LocalStorageToken;
 import com.microsoft.hydralab.common.util.Const;
 import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
 import com.microsoft.hydralab.common.util.RestTemplateConfig;
+import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import lombok.Data;
 import org.apache.commons.io.IOUtils;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
 import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Li Shen
@@ -34,9 +43,12 @@ import java.io.IOException;
 
 @Data
 public class LocalStorageClient {
+    private static final int MAX_TRANSFER_ATTEMPTS = 3;
+    private static final int UPLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
     RestTemplate restTemplate;
     private String endpoint;
-    private String token;
+    // replaced when center renews it, while uploads may be in progress
+    private volatile String token;
 
     public LocalStorageClient(LocalStorageToken localStorageToken) {
         this.endpoint = localStorageToken.getEndpoint();
@@ -53,6 +65,8 @@ public class LocalStorageClient {
 
     /**
      * Upload a file to the local storage. If the file already exists, overwrite it.
+     * The file is sent in chunks, several at a time, and each chunk is retried on failure. An upload that failed
+     * is resumed by the next call for the same file: the chunks already received by center are not sent again.
      * <p>
      * //     * @param file
      * //     * @param storageFileInfo
@@ -62,23 +76,84 @@ public class LocalStorageClient {
     public String upload(File file, StorageFileInfo storageFileInfo) {
         RestTemplate restTemplateHttps = RestTemplateConfig.getRestTemplateInstance();
 
+        String fileUri = storageFileInfo.getBlobContainer() + "/" + storageFileInfo.getBlobPath();
+        LinkedMultiValueMap<String, Object> initiateBody = new LinkedMultiValueMap<>();
+        initiateBody.add("fileUri", fileUri);
+        initiateBody.add("size", String.valueOf(file.length()));
+        ChunkedUpload upload = postForm(restTemplateHttps, this.getUploadInitiateUrl(), initiateBody)
+                .getJSONObject("content").toJavaObject(ChunkedUpload.class);
+
+        List<CompletableFuture<Void>> chunkFutures = new ArrayList<>();
+        for (long offset = 0; offset < upload.getSize(); offset += UPLOAD_CHUNK_SIZE) {
+            long chunkOffset = offset;
+            int chunkLength = (int) Math.min(UPLOAD_CHUNK_SIZE, upload.getSize() - offset);
+            chunkFutures.add(CompletableFuture.runAsync(() -> uploadChunk(restTemplateHttps, upload, file, chunkOffset, chunkLength),
+                    ThreadPoolUtil.UPLOAD_EXECUTOR));
+        }
+        try {
+            CompletableFuture.allOf(chunkFutures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to upload " + fileUri, e);
+        }
+
+        LinkedMultiValueMap<String, Object> commitBody = new LinkedMultiValueMap<>();
+        commitBody.add("uploadId", upload.getUploadId());
+        JSONObject responseObject = postForm(restTemplateHttps, this.getUploadCommitUrl(), commitBody);
+        return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_DOWNLOAD + "/" + responseObject.getString("content");
+    }
+
+    private void uploadChunk(RestTemplate restTemplateHttps, ChunkedUpload upload, File file, long offset, int length) {
+        byte[] chunk = new byte[length];
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            randomAccessFile.seek(offset);
+            randomAccessFile.readFully(chunk);
+        } catch (IOException e) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to read " + file.getName(), e);
+        }
+        String md5 = Base64.getEncoder().encodeToString(DigestUtils.md5Digest(chunk));
+        if (md5.equals(upload.getUploadedChunks().get(offset))) {
+            return;
+        }
+
         HttpHeaders headers = new HttpHeaders();
         headers.add("Authorization", "Bearer " + token);
-        headers.add("Content-Type", MediaType.MULTIPART_FORM_DATA.toString());
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.add("Content-MD5", md5);
+        HttpEntity<byte[]> entity = new HttpEntity<>(chunk, headers);
+        String url = this.getUploadChunkUrl() + "?uploadId=" + upload.getUploadId() + "&offset=" + offset;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                checkResult(restTemplateHttps.exchange(url, HttpMethod.PUT, entity, String.class));
+                return;
+            } catch (ResourceAccessException | HydraLabRuntimeException e) {
+                if (attempt >= MAX_TRANSFER_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
 
-        String fileUri = storageFileInfo.getBlobContainer() + "/" + storageFileInfo.getBlobPath();
-        LinkedMultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
-        body.add("file", new FileSystemResource(file));
-        body.add("fileUri", fileUri);
+    private JSONObject postForm(RestTemplate restTemplateHttps, String url, LinkedMultiValueMap<String, Object> body) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Authorization", "Bearer " + token);
+        headers.add("Content-Type", MediaType.MULTIPART_FORM_DATA.toString());
         HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<>(body, headers);
+        return checkResult(restTemplateHttps.exchange(url, HttpMethod.POST, entity, String.class));
+    }
 
-        ResponseEntity<String> responseAsStr = restTemplateHttps.exchange(this.getUploadUrl(), HttpMethod.POST, entity, String.class);
+    private static JSONObject checkResult(ResponseEntity<String> responseAsStr) {
         JSONObject responseObject = JSONObject.parseObject(responseAsStr.getBody());
-        return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_DOWNLOAD + "/" + responseObject.getString("content");
+        int code = responseObject.getIntValue("code");
+        if (code != HttpStatus.OK.value()) {
+            throw new HydraLabRuntimeException(code, responseObject.getString("message"));
+        }
+        return responseObject;
     }
 
     /**
      * Download a file from the local storage. If the file already exists, overwrite it.
+     * The response is streamed to the file, and a broken transfer is resumed from the bytes already received
+     * as long as the file on the storage has not changed.
      * <p>
      * //     * @param file
      * //     * @storageFileInfo
@@ -92,21 +167,38 @@ public class LocalStorageClient {
         }
 
         RestTemplate restTemplateHttps = RestTemplateConfig.getRestTemplateInstance();
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Authorization", "Bearer " + token);
-        headers.add("Content-Type", MediaType.MULTIPART_FORM_DATA.toString());
-
         String fileUri = storageFileInfo.getBlobContainer() + "/" + storageFileInfo.getBlobPath();
         LinkedMultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
         body.add("fileUri", fileUri);
-        HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<>(body, headers);
-
-        ResponseEntity<Resource> response = restTemplateHttps.exchange(this.getDownloadUrl(), HttpMethod.POST, entity, Resource.class);
-        try {
-            IOUtils.copy(response.getBody().getInputStream(), new FileOutputStream(file));
-        } catch (IOException e) {
-            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "File stream downloaded, but saved to local failed.", e);
+        // ETag of the file being downloaded, known once a response arrived
+        AtomicReference<String> eTag = new AtomicReference<>();
+
+        for (int attempt = 1; ; attempt++) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.add("Authorization", "Bearer " + token);
+            headers.add("Content-Type", MediaType.MULTIPART_FORM_DATA.toString());
+            if (eTag.get() != null && file.length() > 0) {
+                headers.set(HttpHeaders.RANGE, "bytes=" + file.length() + "-");
+                headers.set(HttpHeaders.IF_RANGE, eTag.get());
+            }
+            HttpEntity<LinkedMultiValueMap<String, Object>> entity = new HttpEntity<>(body, headers);
+
+            try {
+                restTemplateHttps.execute(this.getDownloadUrl(), HttpMethod.POST, restTemplateHttps.httpEntityCallback(entity), response -> {
+                    eTag.set(response.getHeaders().getETag());
+                    // the server answers with the whole file if it changed since the last attempt
+                    boolean append = response.getStatusCode() == HttpStatus.PARTIAL_CONTENT;
+                    try (FileOutputStream fileOutputStream = new FileOutputStream(file, append)) {
+                        IOUtils.copyLarge(response.getBody(), fileOutputStream);
+                    }
+                    return null;
+                });
+                return;
+            } catch (ResourceAccessException e) {
+                if (attempt >= MAX_TRANSFER_ATTEMPTS) {
+                    throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "File stream downloaded, but saved to local failed.", e);
+                }
+            }
         }
     }
 
@@ -114,6 +206,18 @@ public class LocalStorageClient {
         return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD;
     }
 
+    public String getUploadInitiateUrl() {
+        return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD_INITIATE;
+    }
+
+    public String getUploadChunkUrl() {
+        return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD_CHUNK;
+    }
+
+    public String getUploadCommitUrl() {
+        return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_UPLOAD_COMMIT;
+    }
+
     public String getDownloadUrl() {
         return this.endpoint + Const.LocalStorageURL.CENTER_LOCAL_STORAGE_DOWNLOAD;
     }
@@ -5,19 +5,16 @@ package com.microsoft.hydralab.common.logger.impl;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.logger.LogCollector;
+import com.microsoft.hydralab.common.logger.MultiLineNoCancelLoggingReceiver;
+import com.microsoft.hydralab.common.logger.MultiLineNoCancelReceiver;
 import com.microsoft.hydralab.common.management.device.TestDeviceManager;
 import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.LogUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
 public class ADBLogcatCollector implements LogCollector {
     private final DeviceInfo connectedDevice;
@@ -49,18 +46,7 @@ public class ADBLogcatCollector implements LogCollector {
     }
 
     private void runCommand(String comm) {
-        Process process = null;
-        try {
-            process = adbOperateUtil.executeDeviceCommandOnPC(connectedDevice, comm, infoLogger);
-            process.waitFor(3, TimeUnit.SECONDS);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (process != null) {
-                process.destroy();
-            }
-        }
+        adbOperateUtil.execOnDevice(connectedDevice, comm, new MultiLineNoCancelLoggingReceiver(infoLogger), infoLogger);
     }
 
     @Override
@@ -70,43 +56,41 @@ public class ADBLogcatCollector implements LogCollector {
                 LOGGER_PREFIX + "logcat_" + connectedDevice.getSerialNum(),
                 loggerFilePath,
                 "%logger{0}>> %m%n");
-        Process process = null;
         try {
-            // AlarmManager:S System:S
-            process = adbOperateUtil.executeDeviceCommandOnPC(connectedDevice, "logcat -d Finsky:S MirrorLink:S *:D", infoLogger);
+            StringBuilder crashLines = new StringBuilder();
+            MultiLineNoCancelReceiver receiver = new MultiLineNoCancelReceiver() {
+                private boolean collectCrash = false;
 
-            try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                boolean collectCrash = false;
-                StringBuilder crashLines = new StringBuilder();
-                while ((line = bufferedReader.readLine()) != null) {
-                    if (collectCrash) {
-                        if (!line.contains(" E ") && !line.contains(" F ")) {
-                            collectCrash = false;
-                        } else {
-                            if (line.contains(pkgName)) {
-                                crashLines.append("<b>").append(line).append("</b>").append("\n");
+                @Override
+                public void processNewLines(String[] lines) {
+                    for (String line : lines) {
+                        if (collectCrash) {
+                            if (!line.contains(" E ") && !line.contains(" F ")) {
+                                collectCrash = false;
                             } else {
-                                crashLines.append(line).append("\n");
+                                if (line.contains(pkgName)) {
+                                    crashLines.append("<b>").append(line).append("</b>").append("\n");
+                                } else {
+                                    crashLines.append(line).append("\n");
+                                }
                             }
                         }
+                        if (line.contains("beginning of crash") || line.contains("AndroidRuntime: FATAL EXCEPTION")) {
+                            collectCrash = true;
+                        }
+                        logger.info(line);
                     }
-                    if (line.contains("beginning of crash") || line.contains("AndroidRuntime: FATAL EXCEPTION")) {
-                        collectCrash = true;
-                    }
-                    logger.info(line);
-                }
-                if (crashLines.length() > 0) {
-                    testRun.setCrashStack(crashLines.toString());
-                    testRun.setCrashStackId(UUID.randomUUID().toString());
                 }
+            };
+            // keep the indentation of stack traces
+            receiver.setTrimLine(false);
+            // AlarmManager:S System:S
+            adbOperateUtil.execOnDevice(connectedDevice, "logcat -d Finsky:S MirrorLink:S *:D", receiver, infoLogger);
+            if (crashLines.length() > 0) {
+                testRun.setCrashStack(crashLines.toString());
+                testRun.setCrashStackId(UUID.randomUUID().toString());
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         } finally {
-            if (process != null) {
-                process.destroy();
-            }
             LogUtils.releaseLogger(logger);
         }
     }
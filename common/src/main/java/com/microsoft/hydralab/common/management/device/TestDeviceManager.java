@@ -7,8 +7,9 @@ import com.android.ddmlib.InstallException;
 import com.android.ddmlib.TimeoutException;
 import com.microsoft.hydralab.agent.runner.ITestRun;
 import com.microsoft.hydralab.agent.runner.TestRunThreadContext;
-import com.microsoft.hydralab.common.entity.common.AgentUser;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.EntityType;
+import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.logger.LogCollector;
@@ -17,6 +18,7 @@ import com.microsoft.hydralab.common.management.AppiumServerManager;
 import com.microsoft.hydralab.common.management.listener.MobileDeviceState;
 import com.microsoft.hydralab.common.screen.ScreenRecorder;
 import com.microsoft.hydralab.common.util.IOSUtils;
+import com.microsoft.hydralab.common.util.ImageUtil;
 import com.microsoft.hydralab.common.util.LogUtils;
 import com.microsoft.hydralab.common.util.ShellUtils;
 import com.microsoft.hydralab.common.util.ThreadPoolUtil;
@@ -39,14 +41,19 @@ import org.springframework.util.StringUtils;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.android.ddmlib.IDevice.DeviceState;
 
 
 public abstract class TestDeviceManager {
     static final Logger classLogger = LoggerFactory.getLogger(TestDeviceManager.class);
+    // max distance between the hashes of two screenshots to consider them the same
+    static final int SCREENSHOT_UNCHANGED_HASH_DISTANCE = 2;
+    // <screenshot file path, hash of the last uploaded content>
+    private final Map<String, Long> uploadedScreenshotHashes = new ConcurrentHashMap<>();
     protected AgentManagementService agentManagementService;
     protected AppiumServerManager appiumServerManager;
 
@@ -75,23 +82,36 @@ public abstract class TestDeviceManager {
 
     public abstract File getScreenShot(@NotNull DeviceInfo deviceInfo, @Nullable Logger logger) throws Exception;
 
-    public File getScreenShotWithStrategy(@NotNull DeviceInfo deviceInfo, @Nullable Logger logger,
-                                          @NotNull AgentUser.BatteryStrategy batteryStrategy) throws Exception {
-        File screenshotImageFile = deviceInfo.getScreenshotImageFile();
-        if (screenshotImageFile == null || StringUtils.isEmpty(deviceInfo.getScreenshotImageUrl())) {
-            return getScreenShot(deviceInfo, logger);
-        } else if (batteryStrategy.wakeUpInterval > 0) {
-            synchronized (deviceInfo.getLock()) {
-                long now = System.currentTimeMillis();
-                if (now - deviceInfo.getScreenshotUpdateTimeMilli() <
-                        TimeUnit.SECONDS.toMillis(batteryStrategy.wakeUpInterval)) {
-                    classLogger.warn("skip screen shot for too short interval {}", deviceInfo.getName());
-                    return screenshotImageFile;
-                }
-                getScreenShot(deviceInfo, logger);
-            }
+    /**
+     * Upload the screenshot unless it looks the same as the content uploaded last time from this file.
+     *
+     * @return the url of the uploaded image, or currentUrl if the upload is skipped
+     */
+    protected String uploadScreenshotIfChanged(@NotNull File screenshotFile, @Nullable String currentUrl) {
+        String filePath = screenshotFile.getAbsolutePath();
+        Long hash = null;
+        try {
+            hash = ImageUtil.getDifferenceHash(screenshotFile);
+        } catch (IOException e) {
+            classLogger.warn("Failed to hash screenshot {}: {}", screenshotFile.getName(), e.getMessage());
+        }
+        Long uploadedHash = uploadedScreenshotHashes.get(filePath);
+        if (hash != null && uploadedHash != null && !StringUtils.isEmpty(currentUrl)
+                && ImageUtil.getHammingDistance(hash, uploadedHash) <= SCREENSHOT_UNCHANGED_HASH_DISTANCE) {
+            return currentUrl;
+        }
+
+        StorageFileInfo fileInfo =
+                new StorageFileInfo(screenshotFile, "device/screenshots/" + screenshotFile.getName(),
+                        StorageFileInfo.FileType.SCREENSHOT, EntityType.SCREENSHOT);
+        String fileDownloadUrl =
+                agentManagementService.getStorageServiceClientProxy().upload(screenshotFile, fileInfo).getBlobUrl();
+        if (hash == null) {
+            uploadedScreenshotHashes.remove(filePath);
+        } else {
+            uploadedScreenshotHashes.put(filePath, hash);
         }
-        return screenshotImageFile;
+        return fileDownloadUrl;
     }
 
     public abstract void wakeUpDevice(@NotNull DeviceInfo deviceInfo, @Nullable Logger logger);
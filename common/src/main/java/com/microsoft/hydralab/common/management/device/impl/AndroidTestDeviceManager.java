@@ -12,8 +12,6 @@ import com.android.ddmlib.RawImage;
 import com.microsoft.hydralab.agent.runner.ITestRun;
 import com.microsoft.hydralab.agent.runner.TestRunThreadContext;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
-import com.microsoft.hydralab.common.entity.common.EntityType;
-import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.TestTask;
 import com.microsoft.hydralab.common.logger.MultiLineNoCancelLoggingReceiver;
@@ -387,12 +385,7 @@ public class AndroidTestDeviceManager extends TestDeviceManager {
         deviceInfo.setScreenshotUpdateTimeMilli(System.currentTimeMillis());
         sendKeyEvent(deviceInfo, KEYCODE_WAKEUP, logger);
         screenCapture(deviceInfo, screenshotImageFile.getAbsolutePath(), null);
-        StorageFileInfo fileInfo =
-                new StorageFileInfo(screenshotImageFile, "device/screenshots/" + screenshotImageFile.getName(),
-                        StorageFileInfo.FileType.SCREENSHOT, EntityType.SCREENSHOT);
-        String fileDownloadUrl =
-                agentManagementService.getStorageServiceClientProxy().upload(screenshotImageFile, fileInfo)
-                        .getBlobUrl();
+        String fileDownloadUrl = uploadScreenshotIfChanged(screenshotImageFile, deviceInfo.getScreenshotImageUrl());
         if (StringUtils.isBlank(fileDownloadUrl)) {
             classLogger.warn("Screenshot download url is empty for device {}", deviceInfo.getName());
         } else {
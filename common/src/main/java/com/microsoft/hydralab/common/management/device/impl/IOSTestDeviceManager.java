@@ -7,8 +7,6 @@ import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
-import com.microsoft.hydralab.common.entity.common.EntityType;
-import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.logger.LogCollector;
 import com.microsoft.hydralab.common.logger.impl.IOSLogCollector;
@@ -80,12 +78,7 @@ public class IOSTestDeviceManager extends TestDeviceManager {
         }
         IOSUtils.takeScreenshot(deviceInfo.getSerialNum(), screenshotImageFile.getAbsolutePath(), classLogger);
         deviceInfo.setScreenshotUpdateTimeMilli(System.currentTimeMillis());
-        StorageFileInfo fileInfo =
-                new StorageFileInfo(screenshotImageFile, "device/screenshots/" + screenshotImageFile.getName(),
-                        StorageFileInfo.FileType.SCREENSHOT, EntityType.SCREENSHOT);
-        String fileDownloadUrl =
-                agentManagementService.getStorageServiceClientProxy().upload(screenshotImageFile, fileInfo)
-                        .getBlobUrl();
+        String fileDownloadUrl = uploadScreenshotIfChanged(screenshotImageFile, deviceInfo.getScreenshotImageUrl());
         if (StringUtils.isBlank(fileDownloadUrl)) {
             classLogger.warn("Screenshot download url is empty for device {}", deviceInfo.getName());
         } else {
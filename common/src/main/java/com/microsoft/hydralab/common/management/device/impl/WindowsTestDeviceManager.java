@@ -5,8 +5,6 @@ package com.microsoft.hydralab.common.management.device.impl;
 import cn.hutool.core.img.ImgUtil;
 import com.android.ddmlib.TimeoutException;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
-import com.microsoft.hydralab.common.entity.common.EntityType;
-import com.microsoft.hydralab.common.entity.common.StorageFileInfo;
 import com.microsoft.hydralab.common.screen.AppiumE2ETestRecorder;
 import com.microsoft.hydralab.common.screen.ScreenRecorder;
 import com.microsoft.hydralab.common.util.ThreadPoolUtil;
@@ -56,12 +54,7 @@ public class WindowsTestDeviceManager extends AndroidTestDeviceManager {
         } catch (IOException e) {
             classLogger.error("Screen capture failed for device: {}", deviceInfo, e);
         }
-        StorageFileInfo fileInfo =
-                new StorageFileInfo(pcScreenShotImageFile, "device/screenshots/" + pcScreenShotImageFile.getName(),
-                        StorageFileInfo.FileType.SCREENSHOT, EntityType.SCREENSHOT);
-        String fileDownloadUrl =
-                agentManagementService.getStorageServiceClientProxy().upload(pcScreenShotImageFile, fileInfo)
-                        .getBlobUrl();
+        String fileDownloadUrl = uploadScreenshotIfChanged(pcScreenShotImageFile, deviceInfo.getPcScreenshotImageUrl());
         if (StringUtils.isBlank(fileDownloadUrl)) {
             classLogger.warn("Screenshot download url is empty for device {}", deviceInfo.getName());
         } else {
@@ -8,11 +8,14 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface AndroidTestUnitRepository extends JpaRepository<AndroidTestUnit, String> {
     List<AndroidTestUnit> findByDeviceTestResultId(String id);
 
+    List<AndroidTestUnit> findByDeviceTestResultIdIn(Collection<String> ids);
+
     Page<AndroidTestUnit> findBySuccess(boolean success, Pageable pageable);
 }
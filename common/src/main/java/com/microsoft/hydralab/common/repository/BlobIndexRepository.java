@@ -0,0 +1,15 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.repository;
+
+import com.microsoft.hydralab.common.entity.common.BlobIndex;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface BlobIndexRepository extends JpaRepository<BlobIndex, String> {
+    List<BlobIndex> findByHashIn(Collection<String> hashes);
+}
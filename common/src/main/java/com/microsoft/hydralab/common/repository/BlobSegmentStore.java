@@ -0,0 +1,135 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.repository;
+
+import com.microsoft.hydralab.common.datasource.BatchUpsertUtil;
+import com.microsoft.hydralab.common.entity.common.BlobIndex;
+import com.microsoft.hydralab.common.util.HydraLabRuntimeException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-addressed store of large text values. The values are gzipped and appended to segment files, SQLite only
+ * keeps the location of each key; keys of the same content share a single copy of it.
+ */
+@Repository
+public class BlobSegmentStore {
+    static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // hashes per IN query, well below the limit of bound parameters of SQLite
+    private static final int HASH_QUERY_CHUNK_SIZE = 500;
+    @Resource
+    BlobIndexRepository blobIndexRepository;
+    @Resource
+    EntityManager entityManager;
+    @Value("${app.blob-store.location:${app.location}/storage/blob}")
+    String location;
+    private SegmentFileStore segmentFileStore;
+
+    @PostConstruct
+    public void init() {
+        segmentFileStore = new SegmentFileStore(new File(location), MAX_SEGMENT_SIZE);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        segmentFileStore.close();
+    }
+
+    public void put(String key, String value) {
+        putAll(Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Store the values of the keys; only the content not stored yet is appended to the segment files.
+     */
+    @Transactional
+    public void putAll(Map<String, String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        Map<String, String> keyHashes = new HashMap<>();
+        Map<String, byte[]> contents = new HashMap<>();
+        values.forEach((key, value) -> {
+            byte[] content = value.getBytes(StandardCharsets.UTF_8);
+            String hash = DigestUtils.sha256Hex(content);
+            keyHashes.put(key, hash);
+            contents.put(hash, content);
+        });
+
+        Map<String, BlobIndex> locations = new HashMap<>();
+        List<String> hashes = new ArrayList<>(contents.keySet());
+        for (int from = 0; from < hashes.size(); from += HASH_QUERY_CHUNK_SIZE) {
+            blobIndexRepository.findByHashIn(hashes.subList(from, Math.min(from + HASH_QUERY_CHUNK_SIZE, hashes.size())))
+                    .forEach(blobIndex -> locations.put(blobIndex.getHash(), blobIndex));
+        }
+        try {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                if (locations.containsKey(entry.getKey())) {
+                    continue;
+                }
+                // the record of a rolled back transaction is left unreferenced in the segment
+                byte[] record = compress(entry.getValue());
+                long[] position = segmentFileStore.append(record);
+                locations.put(entry.getKey(), new BlobIndex(null, entry.getKey(), position[0], position[1], record.length));
+            }
+        } catch (IOException e) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to append to the blob store", e);
+        }
+
+        List<BlobIndex> blobIndexes = new ArrayList<>(keyHashes.size());
+        keyHashes.forEach((key, hash) -> {
+            BlobIndex location = locations.get(hash);
+            blobIndexes.add(new BlobIndex(key, hash, location.getSegment(), location.getOffset(), location.getLength()));
+        });
+        BatchUpsertUtil.upsertAll(entityManager, blobIndexRepository, blobIndexes, BlobIndex::getKeyid);
+    }
+
+    /**
+     * @return the decompressed content of the key read from its segment file, null if the key is not stored
+     */
+    public InputStream openStream(String key) throws IOException {
+        Optional<BlobIndex> blobIndex = blobIndexRepository.findById(key);
+        if (blobIndex.isEmpty()) {
+            return null;
+        }
+        return new GZIPInputStream(segmentFileStore.openStream(blobIndex.get().getSegment(), blobIndex.get().getOffset(), blobIndex.get().getLength()));
+    }
+
+    public String getString(String key) {
+        try (InputStream inputStream = openStream(key)) {
+            return inputStream == null ? null : IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to read " + key + " from the blob store", e);
+        }
+    }
+
+    private static byte[] compress(byte[] content) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(content.length / 4 + 32);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(content);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -5,8 +5,11 @@ package com.microsoft.hydralab.common.repository;
 import com.microsoft.hydralab.common.entity.common.EntityFileRelation;
 import org.springframework.data.jpa.repository.JpaRepository;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface EntityFileRelationRepository extends JpaRepository<EntityFileRelation, String> {
     List<EntityFileRelation> queryAllByEntityIdAndAndEntityType(String entityId, String entityType);
+
+    List<EntityFileRelation> queryAllByEntityIdInAndEntityType(Collection<String> entityIds, String entityType);
 }
\ No newline at end of file
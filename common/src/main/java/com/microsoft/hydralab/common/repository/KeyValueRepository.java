@@ -8,48 +8,44 @@ import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
 import com.microsoft.hydralab.common.entity.common.TestRun;
 import com.microsoft.hydralab.common.entity.common.KeyValue;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.cache.annotation.CacheConfig;
-import org.springframework.cache.annotation.CachePut;
-import org.springframework.cache.annotation.Cacheable;
-import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Unit details, video time tags and crash stacks of the test runs. They are kept in the {@link BlobSegmentStore},
+ * the values saved to the key value table before it are still read from there.
+ */
 @Repository
-@CacheConfig(cacheNames = "keyValueCache")
 public class KeyValueRepository {
     public final static String UNIT_TEST_DETAIL = "UNIT_TEST_DETAIL:";
     public static final String DEVICE_RES_INFO = "Device_Res_Info:";
     public final static String CRASH_STACK_IN_DEVICE = "CRASH_STACK:";
     @Resource
     KeyValueDBRepository keyValueDBRepository;
-    @Lazy
     @Resource
-    KeyValueRepository keyValueRepository;
+    BlobSegmentStore blobSegmentStore;
 
-
-    @CachePut(key = "#result.keyid")
-    public KeyValue putKeyValuePairDB(String key, String value) {
-        KeyValue result = new KeyValue(key, value);
-        keyValueDBRepository.save(result);
-        return result;
-    }
-
-    @Cacheable(key = "#key")
-    public KeyValue getKeyValuePairDB(String key) {
-        return keyValueDBRepository.getOne(key);
+    public void putKeyValuePairDB(String key, String value) {
+        blobSegmentStore.put(key, value);
     }
 
     public String getValueByKeyDB(String key) {
-        return keyValueRepository.getKeyValuePairDB(key).getValue();
+        String value = blobSegmentStore.getString(key);
+        if (value != null) {
+            return value;
+        }
+        return keyValueDBRepository.findById(key).map(KeyValue::getValue).orElse(null);
     }
 
     public void saveCrashStack(String crashStackId, String crashStack) {
         if (StringUtils.isBlank(crashStack)) {
             return;
         }
-        keyValueRepository.putKeyValuePairDB(CRASH_STACK_IN_DEVICE + crashStackId, crashStack.replace("\n", "<br>"));
+        putKeyValuePairDB(CRASH_STACK_IN_DEVICE + crashStackId, crashStack);
     }
 
     public void saveDeviceTestResultResInfo(TestRun result) {
@@ -57,11 +53,38 @@ public class KeyValueRepository {
         if (videoTimeTagArr == null) {
             return;
         }
-        keyValueRepository.putKeyValuePairDB(DEVICE_RES_INFO + result.getId(), videoTimeTagArr.toJSONString());
+        putKeyValuePairDB(DEVICE_RES_INFO + result.getId(), videoTimeTagArr.toJSONString());
     }
 
     public void saveAndroidTestUnit(AndroidTestUnit androidTestUnit) {
-        keyValueRepository.putKeyValuePairDB(UNIT_TEST_DETAIL + androidTestUnit.getId(), JSON.toJSONString(androidTestUnit));
+        putKeyValuePairDB(UNIT_TEST_DETAIL + androidTestUnit.getId(), JSON.toJSONString(androidTestUnit));
+    }
+
+    /**
+     * Save the failed units, video time tags and crash stacks of the runs as one batch of statements,
+     * to be called within a transaction.
+     *
+     * @return the number of failed units saved
+     */
+    public int saveTestRunsKeyValues(Collection<TestRun> testRuns) {
+        Map<String, String> values = new LinkedHashMap<>();
+        int failedUnitCount = 0;
+        for (TestRun testRun : testRuns) {
+            for (AndroidTestUnit androidTestUnit : testRun.getTestUnitList()) {
+                if (!androidTestUnit.isSuccess()) {
+                    values.put(UNIT_TEST_DETAIL + androidTestUnit.getId(), JSON.toJSONString(androidTestUnit));
+                    failedUnitCount++;
+                }
+            }
+            if (testRun.getVideoTimeTagArr() != null) {
+                values.put(DEVICE_RES_INFO + testRun.getId(), testRun.getVideoTimeTagArr().toJSONString());
+            }
+            if (StringUtils.isNotBlank(testRun.getCrashStack())) {
+                values.put(CRASH_STACK_IN_DEVICE + testRun.getCrashStackId(), testRun.getCrashStack());
+            }
+        }
+        blobSegmentStore.putAll(values);
+        return failedUnitCount;
     }
 
     public AndroidTestUnit getAndroidTestUnit(String testCaseId) {
@@ -69,7 +92,9 @@ public class KeyValueRepository {
     }
 
     public String getCrashStack(String crashStackId) {
-        return getValueByKeyDB(CRASH_STACK_IN_DEVICE + crashStackId);
+        String crashStack = getValueByKeyDB(CRASH_STACK_IN_DEVICE + crashStackId);
+        // the legacy values were saved with the line breaks replaced already
+        return crashStack == null ? null : crashStack.replace("\n", "<br>");
     }
 
     public JSONArray getDeviceTestResInfo(String id) {
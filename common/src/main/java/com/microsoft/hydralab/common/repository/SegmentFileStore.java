@@ -0,0 +1,84 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.repository;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only segment files: records are appended to the last segment until it reaches the maximum size, then
+ * a new segment is started. Records are never rewritten, so they are read concurrently without locking.
+ */
+public class SegmentFileStore implements Closeable {
+    private static final String SEGMENT_PREFIX = "blob-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private final File dir;
+    private final long maxSegmentSize;
+    // guarded by this
+    private FileChannel writeChannel;
+    private long writeSegment;
+
+    public SegmentFileStore(File dir, long maxSegmentSize) {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        String[] names = dir.list((parent, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (names != null) {
+            for (String name : names) {
+                writeSegment = Math.max(writeSegment, Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+    }
+
+    /**
+     * @return the segment and the offset of the record
+     */
+    public synchronized long[] append(byte[] record) throws IOException {
+        if (writeChannel == null) {
+            openWriteChannel(Math.max(writeSegment, 1));
+        }
+        if (writeChannel.size() > 0 && writeChannel.size() + record.length > maxSegmentSize) {
+            writeChannel.close();
+            openWriteChannel(writeSegment + 1);
+        }
+        // the end of the file rather than the position, a crash may have left part of a record behind
+        long offset = writeChannel.size();
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            writeChannel.write(buffer, offset + buffer.position());
+        }
+        return new long[]{writeSegment, offset};
+    }
+
+    private void openWriteChannel(long segment) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("mkdirs failed: " + dir);
+        }
+        writeChannel = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        writeSegment = segment;
+    }
+
+    public InputStream openStream(long segment, long offset, int length) throws IOException {
+        FileChannel readChannel = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.READ);
+        return new BoundedInputStream(Channels.newInputStream(readChannel.position(offset)), length);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writeChannel != null) {
+            writeChannel.close();
+            writeChannel = null;
+        }
+    }
+
+    File getSegmentFile(long segment) {
+        return new File(dir, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+}
@@ -3,32 +3,45 @@
 package com.microsoft.hydralab.common.screen;
 
 import cn.hutool.core.thread.ThreadUtil;
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.DateUtil;
 import com.microsoft.hydralab.common.util.ThreadUtils;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class ADBScreenRecorder implements ScreenRecorder {
-    public final Object lock = new Object();
+    private static final int RECORDING_TIMEOUT_MARGIN_SECONDS = 30;
     private final DeviceInfo deviceInfo;
     private final Logger logger;
     private final File baseFolder;
     public int preSleepSeconds = 0;
     ADBOperateUtil adbOperateUtil;
-    private Process recordingProcess;
     private Thread recordingThread;
-    private boolean shouldStop = true;
-    private boolean shouldInterrupt = false;
+    private volatile boolean shouldStop = true;
+    private final MultiLineReceiver recordingReceiver = new MultiLineReceiver() {
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                logger.info(line);
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return shouldStop || !deviceInfo.isAlive();
+        }
+    };
 
     public ADBScreenRecorder(ADBOperateUtil adbOperateUtil, DeviceInfo deviceInfo, Logger logger, File baseFolder) {
         this.adbOperateUtil = adbOperateUtil;
@@ -70,45 +83,32 @@ public class ADBScreenRecorder implements ScreenRecorder {
                 List<File> list = new ArrayList<>();
                 while (totalTime < maxTimeInSecond && !shouldStop) {
                     String fileName = String.format("/sdcard/scr_rec_%d_%d.mp4", totalTime, totalTime + timeSpan);
-                    String command = String.format("shell screenrecord --bit-rate 3200000 --time-limit %d %s", timeSpan, fileName);
+                    String command = String.format("screenrecord --bit-rate 3200000 --time-limit %d %s", timeSpan, fileName);
                     deviceInfo.addCurrentCommand(command);
-                    // Blocking command
-                    recordingProcess = adbOperateUtil.executeDeviceCommandOnPC(deviceInfo, command, logger);
                     logger.info("ADBDeviceScreenRecorder>> command: " + command);
-                    logger.info(IOUtils.toString(recordingProcess.getInputStream(), StandardCharsets.UTF_8));
-                    logger.error(IOUtils.toString(recordingProcess.getErrorStream(), StandardCharsets.UTF_8));
-                    deviceInfo.addCurrentProcess(recordingProcess);
-
                     try {
-                        logger.info("waiting for recording");
-                        shouldInterrupt = true;
-                        recordingProcess.waitFor(3, TimeUnit.MINUTES);
-                    } catch (InterruptedException e) {
-                        logger.warn("InterruptedException from recordingProcess.waitFor {} {}", e.getClass().getName(), e.getMessage());
-                    }
-
-                    if (recordingProcess.isAlive()) {
-                        recordingProcess.destroy();
+                        // Blocking command, ends at the time limit or when the recording is cancelled
+                        adbOperateUtil.executeShellCommandOnDevice(deviceInfo, command, recordingReceiver,
+                                timeSpan + RECORDING_TIMEOUT_MARGIN_SECONDS, 0);
+                    } catch (TimeoutException | ShellCommandUnresponsiveException | AdbCommandRejectedException e) {
+                        logger.warn("Exception from screenrecord {} {}", e.getClass().getName(), e.getMessage());
                     }
                     deviceInfo.finishCommand();
 
                     String outputFilePrefix = new File(baseFolder, DateUtil.fileNameDateDashFormat.format(new Date())).getAbsolutePath();
 
                     final String outFileFullPath = outputFilePrefix + "_" + totalTime + "_" + (totalTime + timeSpan) + ".mp4";
-                    String pullComm = String.format("pull %s %s", fileName, outFileFullPath);
-                    Process process = adbOperateUtil.executeDeviceCommandOnPC(deviceInfo, pullComm, logger);
-
-                    logger.info(IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8));
-                    logger.error(IOUtils.toString(process.getErrorStream(), StandardCharsets.UTF_8));
-                    process.destroy();
-
-                    list.add(new File(outFileFullPath));
+                    try {
+                        adbOperateUtil.pullFileToDir(deviceInfo, outFileFullPath, fileName, logger);
+                        list.add(new File(outFileFullPath));
+                    } catch (IOException e) {
+                        logger.error("Failed to pull the recorded video {}: {}", fileName, e.getMessage());
+                    }
 
                     totalTime += timeSpan;
                     logger.info("ADBDeviceScreenRecorder>> Time recorded {}", totalTime);
                 }
 
-                shouldInterrupt = false;
                 final File mergedVideo = FFmpegConcatUtil.concatVideos(list, baseFolder, logger);
                 ThreadUtil.safeSleep(2000);
                 if (mergedVideo != null && mergedVideo.exists()) {
@@ -118,17 +118,6 @@ public class ADBScreenRecorder implements ScreenRecorder {
 
             } catch (IOException e) {
                 logger.warn("Exception from recordingThread {} {}", e.getClass().getName(), e.getMessage());
-            } finally {
-                if (recordingProcess != null) {
-                    if (recordingProcess.isAlive()) {
-                        recordingProcess.destroy();
-                    }
-                }
-                try {
-                    lock.notifyAll();
-                } catch (Exception e) {
-                    logger.warn("Exception from notifyAll {} {}", e.getClass().getName(), e.getMessage());
-                }
             }
         });
         recordingThread.start();
@@ -139,20 +128,13 @@ public class ADBScreenRecorder implements ScreenRecorder {
         if (shouldStop) {
             return false;
         }
+        // cancels the running screenrecord command, see recordingReceiver
         shouldStop = true;
-        if (recordingThread != null && shouldInterrupt) {
-            if (!recordingThread.isInterrupted()) {
-                recordingThread.interrupt();
-            }
-        }
-        if (recordingProcess != null && recordingProcess.isAlive()) {
-            recordingProcess.destroy();
-        }
         logger.info("start to wait for recording finish");
         long time = System.currentTimeMillis();
         try {
-            synchronized (lock) {
-                lock.wait(TimeUnit.MINUTES.toMillis(2));
+            if (recordingThread != null) {
+                recordingThread.join(TimeUnit.MINUTES.toMillis(2));
             }
         } catch (Exception e) {
             logger.warn("Exception from recordingThread {} {}", e.getClass().getName(), e.getMessage());
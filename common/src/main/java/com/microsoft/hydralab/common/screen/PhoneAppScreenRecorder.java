@@ -128,7 +128,7 @@ public class PhoneAppScreenRecorder implements ScreenRecorder {
             }
             try {
                 adbOperateUtil.pullFileToDir(deviceInfo, pathOnAgent, pathOnDevice, logger);
-            } catch (IOException | InterruptedException e) {
+            } catch (IOException e) {
                 logger.error(e.getMessage(), e);
             }
             ThreadUtils.safeSleep(5000);
@@ -15,19 +15,25 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 @Service
 public class ADBOperateUtil {
     private static final int ADB_WAIT_TIMEOUT_SECONDS = 120;
+    // S_IFMT and S_IFDIR of the file mode returned by the sync STAT request
+    private static final int FILE_TYPE_MASK = 0170000;
+    private static final int FILE_TYPE_DIRECTORY = 0040000;
     private final Logger instanceLogger = LoggerFactory.getLogger(ADBOperateUtil.class);
-    Runtime runtime = Runtime.getRuntime();
     private String mAndroidHome;
     private File mAdbPath;
     private String adbServerHost = DdmPreferences.DEFAULT_ADBHOST_VALUE;
@@ -90,8 +96,12 @@ public class ADBOperateUtil {
     }
 
     private IDevice getDeviceByInfo(DeviceInfo deviceInfo) {
+        return getDeviceBySerial(deviceInfo.getSerialNum());
+    }
+
+    private IDevice getDeviceBySerial(String serialNum) {
         for (IDevice device : mAndroidDebugBridge.getDevices()) {
-            if (device.isOnline() && device.getSerialNumber().equals(deviceInfo.getSerialNum())) {
+            if (device.isOnline() && device.getSerialNumber().equals(serialNum)) {
                 return device;
             }
         }
@@ -130,23 +140,56 @@ public class ADBOperateUtil {
         }
     }
 
-    public void executeShellCommandOnDevice(DeviceInfo deviceInfo, String command, IShellOutputReceiver receiver, int testTimeOutSec) throws ShellCommandUnresponsiveException, AdbCommandRejectedException, IOException, TimeoutException {
-        IDevice device = getDeviceByInfo(deviceInfo);
-        Assert.notNull(device, "Not such device is available " + deviceInfo.getSerialNum());
-        device.executeShellCommand(command, receiver, testTimeOutSec, 120, TimeUnit.SECONDS);
+    public void execOnDevice(String serialNum, String comm, IShellOutputReceiver receiver, @Nullable Logger logger) {
+        Logger localLogger = getNotNullLogger(logger);
+        IDevice device = getDeviceBySerial(serialNum);
+        if (device == null) {
+            localLogger.error("No such device: {}", serialNum);
+            return;
+        }
+        localLogger.info(">> adb -s {} shell {}", serialNum, comm);
+        try {
+            device.executeShellCommand(comm, receiver);
+        } catch (TimeoutException | ShellCommandUnresponsiveException | AdbCommandRejectedException | IOException e) {
+            localLogger.error("{} in execOnDevice: {}", e.getClass().getSimpleName(), e.getMessage(), e);
+        }
     }
 
-    public Process executeDeviceCommandOnPC(DeviceInfo deviceInfo, String command, Logger logger) throws IOException {
-        String commandLine = String.format("%s -H %s -s %s %s", mAdbPath.getAbsolutePath(), adbServerHost, deviceInfo.getSerialNum(), command);
-        getNotNullLogger(logger).info("executeDeviceCommandOnPC: {}", commandLine);
-        return runtime.exec(commandLine);
+    public void executeShellCommandOnDevice(DeviceInfo deviceInfo, String command, IShellOutputReceiver receiver, int testTimeOutSec) throws ShellCommandUnresponsiveException, AdbCommandRejectedException, IOException, TimeoutException {
+        executeShellCommandOnDevice(deviceInfo, command, receiver, testTimeOutSec, 120);
     }
 
+    /**
+     * @param maxTimeoutSec                 max time for the whole command, 0 for no limit
+     * @param maxTimeToOutputResponseSec    max time between two outputs of the command, 0 for no limit
+     */
+    public void executeShellCommandOnDevice(DeviceInfo deviceInfo, String command, IShellOutputReceiver receiver, int maxTimeoutSec,
+                                            int maxTimeToOutputResponseSec) throws ShellCommandUnresponsiveException, AdbCommandRejectedException, IOException, TimeoutException {
+        IDevice device = getDeviceByInfo(deviceInfo);
+        Assert.notNull(device, "Not such device is available " + deviceInfo.getSerialNum());
+        device.executeShellCommand(command, receiver, maxTimeoutSec, maxTimeToOutputResponseSec, TimeUnit.SECONDS);
+    }
 
-    public Process executeCommandOnPC(String command, Logger logger) throws IOException {
-        String commandLine = String.format("%s -H %s %s", mAdbPath.getAbsolutePath(), adbServerHost, command);
-        getNotNullLogger(logger).info(commandLine);
-        return runtime.exec(commandLine);
+    /**
+     * Write the raw output of a shell command to a file, without going through a local adb process.
+     */
+    public void executeShellCommandToFile(String serialNum, String command, File outputFile, Logger logger) {
+        Logger localLogger = getNotNullLogger(logger);
+        IDevice device = getDeviceBySerial(serialNum);
+        if (device == null) {
+            localLogger.error("No such device: {}", serialNum);
+            return;
+        }
+        localLogger.info(">> adb -s {} shell {} > {}", serialNum, command, outputFile.getAbsolutePath());
+        try (OutputStream outputStream = new FileOutputStream(outputFile)) {
+            OutputStreamReceiver receiver = new OutputStreamReceiver(outputStream);
+            device.executeShellCommand(command, receiver);
+            if (receiver.exception != null) {
+                throw receiver.exception;
+            }
+        } catch (IOException | TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException e) {
+            localLogger.error("{} in executeShellCommandToFile: {}", e.getClass().getSimpleName(), e.getMessage(), e);
+        }
     }
 
     public void clickOnDeviceAbsoluteXY(DeviceInfo deviceInfo, int xPos, int yPos, @Nullable Logger logger) {
@@ -192,30 +235,105 @@ public class ADBOperateUtil {
         return true;
     }
 
-    public void pushFileToDevice(DeviceInfo deviceInfo, String pathOnAgent, String pathOnDevice, Logger logger) throws IOException, InterruptedException {
+    /**
+     * Same as adb push: a file or a folder is pushed into pathOnDevice if it is an existing folder, or to pathOnDevice otherwise.
+     * All the files go through a single sync connection to the adb server.
+     */
+    public void pushFileToDevice(DeviceInfo deviceInfo, String pathOnAgent, String pathOnDevice, Logger logger) throws IOException {
         IDevice deviceByInfo = getDeviceByInfo(deviceInfo);
         Assert.notNull(deviceByInfo, "No such device: " + deviceInfo);
+        File localFile = new File(pathOnAgent);
+        Assert.isTrue(localFile.exists(), "No such file on agent: " + pathOnAgent);
+        getNotNullLogger(logger).info("adb -H {} -s {} push {} {}", adbServerHost, deviceInfo.getSerialNum(), pathOnAgent, pathOnDevice);
 
-        String comm = String.format("push %s %s", pathOnAgent, pathOnDevice);
-        Process process = executeDeviceCommandOnPC(deviceInfo, comm, logger);
-        CommandOutputReceiver err = new CommandOutputReceiver(process.getErrorStream(), logger);
-        CommandOutputReceiver out = new CommandOutputReceiver(process.getInputStream(), logger);
-        err.start();
-        out.start();
-        process.waitFor(60, TimeUnit.SECONDS);
+        SyncService syncService = getSyncService(deviceByInfo);
+        try {
+            String remotePath = pathOnDevice;
+            if (pathOnDevice.endsWith("/") || isDirectoryOnDevice(syncService, pathOnDevice)) {
+                remotePath = StringUtils.removeEnd(pathOnDevice, "/") + "/" + localFile.getName();
+            }
+            List<String> pushedFiles = new ArrayList<>();
+            pushFile(syncService, localFile, remotePath, pushedFiles);
+            getNotNullLogger(logger).info("{} file(s) pushed to {}", pushedFiles.size(), remotePath);
+        } catch (SyncException | TimeoutException e) {
+            throw new IOException("Failed to push " + pathOnAgent + " to " + pathOnDevice, e);
+        } finally {
+            syncService.close();
+        }
     }
 
-    public void pullFileToDir(DeviceInfo deviceInfo, String pathOnAgent, String pathOnDevice, Logger logger) throws IOException, InterruptedException {
+    private void pushFile(SyncService syncService, File localFile, String remotePath, List<String> pushedFiles)
+            throws SyncException, IOException, TimeoutException {
+        File[] children = localFile.listFiles();
+        if (children == null) {
+            // adbd creates the missing parent folders
+            syncService.pushFile(localFile.getAbsolutePath(), remotePath, SyncService.getNullProgressMonitor());
+            pushedFiles.add(remotePath);
+            return;
+        }
+        for (File child : children) {
+            pushFile(syncService, child, remotePath + "/" + child.getName(), pushedFiles);
+        }
+    }
+
+    /**
+     * Same as adb pull: a file or a folder is pulled into pathOnAgent if it is an existing folder or ends with a separator,
+     * or to pathOnAgent otherwise. All the files go through a single sync connection to the adb server.
+     */
+    public void pullFileToDir(DeviceInfo deviceInfo, String pathOnAgent, String pathOnDevice, Logger logger) throws IOException {
         IDevice deviceByInfo = getDeviceByInfo(deviceInfo);
         Assert.notNull(deviceByInfo, "No such device: " + deviceInfo);
+        getNotNullLogger(logger).info("adb -H {} -s {} pull {} {}", adbServerHost, deviceInfo.getSerialNum(), pathOnDevice, pathOnAgent);
+
+        String remoteRoot = StringUtils.removeEnd(pathOnDevice, "/");
+        File localRoot = new File(pathOnAgent);
+        if (localRoot.isDirectory() || pathOnAgent.endsWith("/") || pathOnAgent.endsWith(File.separator)) {
+            localRoot = new File(localRoot, remoteRoot.substring(remoteRoot.lastIndexOf('/') + 1));
+        }
+
+        SyncService syncService = getSyncService(deviceByInfo);
+        try {
+            List<String> remoteFiles = new ArrayList<>();
+            if (isDirectoryOnDevice(syncService, remoteRoot)) {
+                CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+                deviceByInfo.executeShellCommand(String.format("find \"%s\" -type f", remoteRoot), receiver);
+                for (String line : receiver.getOutput().split("\\r?\\n")) {
+                    if (line.startsWith(remoteRoot + "/")) {
+                        remoteFiles.add(line);
+                    }
+                }
+            } else {
+                remoteFiles.add(remoteRoot);
+            }
+            for (String remoteFile : remoteFiles) {
+                File localFile = remoteFile.equals(remoteRoot) ? localRoot : new File(localRoot, remoteFile.substring(remoteRoot.length() + 1));
+                File parentFolder = localFile.getParentFile();
+                Assert.isTrue(parentFolder.exists() || parentFolder.mkdirs(), "Failed to create folder " + parentFolder.getAbsolutePath());
+                syncService.pullFile(remoteFile, localFile.getAbsolutePath(), SyncService.getNullProgressMonitor());
+            }
+            getNotNullLogger(logger).info("{} file(s) pulled to {}", remoteFiles.size(), localRoot.getAbsolutePath());
+        } catch (SyncException | TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException e) {
+            throw new IOException("Failed to pull " + pathOnDevice + " to " + pathOnAgent, e);
+        } finally {
+            syncService.close();
+        }
+    }
+
+    private SyncService getSyncService(IDevice device) throws IOException {
+        try {
+            SyncService syncService = device.getSyncService();
+            if (syncService == null) {
+                throw new IOException("Failed to open sync connection to " + device.getSerialNumber());
+            }
+            return syncService;
+        } catch (TimeoutException | AdbCommandRejectedException e) {
+            throw new IOException("Failed to open sync connection to " + device.getSerialNumber(), e);
+        }
+    }
 
-        String comm = String.format("pull %s %s", pathOnDevice, pathOnAgent);
-        Process process = executeDeviceCommandOnPC(deviceInfo, comm, logger);
-        CommandOutputReceiver err = new CommandOutputReceiver(process.getErrorStream(), logger);
-        CommandOutputReceiver out = new CommandOutputReceiver(process.getInputStream(), logger);
-        err.start();
-        out.start();
-        process.waitFor(60, TimeUnit.SECONDS);
+    private boolean isDirectoryOnDevice(SyncService syncService, String pathOnDevice) throws IOException, TimeoutException {
+        SyncService.FileStat fileStat = syncService.statFile(pathOnDevice);
+        return fileStat != null && (fileStat.getMode() & FILE_TYPE_MASK) == FILE_TYPE_DIRECTORY;
     }
 
     public long getFileLength(DeviceInfo deviceInfo, Logger logger, String filePath) {
@@ -269,4 +387,31 @@ public class ADBOperateUtil {
         }, getNotNullLogger(logger));
         return pid[0];
     }
+
+    private static class OutputStreamReceiver implements IShellOutputReceiver {
+        private final OutputStream outputStream;
+        private IOException exception;
+
+        OutputStreamReceiver(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            try {
+                outputStream.write(data, offset, length);
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return exception != null;
+        }
+    }
 }
@@ -27,10 +27,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
 public class AttachmentService {
@@ -154,13 +160,31 @@ public class AttachmentService {
     }
 
     public List<StorageFileInfo> getAttachments(String entityId, EntityType entityType) {
-        List<StorageFileInfo> result = new ArrayList<>();
+        return getAttachments(List.of(entityId), entityType).getOrDefault(entityId, new ArrayList<>());
+    }
+
+    /**
+     * Load the attachments of several entities with one query for the relations and one for the files.
+     *
+     * @return <entityId, attachments>, entities without attachments are absent
+     */
+    public Map<String, List<StorageFileInfo>> getAttachments(Collection<String> entityIds, EntityType entityType) {
+        Map<String, List<StorageFileInfo>> result = new HashMap<>();
+        if (entityIds.isEmpty()) {
+            return result;
+        }
+        List<EntityFileRelation> fileRelations = entityFileRelationRepository.queryAllByEntityIdInAndEntityType(entityIds, entityType.typeName);
+        if (fileRelations.isEmpty()) {
+            return result;
+        }
 
-        List<EntityFileRelation> fileRelations = entityFileRelationRepository.queryAllByEntityIdAndAndEntityType(entityId, entityType.typeName);
+        Set<String> fileIds = fileRelations.stream().map(EntityFileRelation::getFileId).collect(Collectors.toSet());
+        Map<String, StorageFileInfo> fileInfoMap = storageFileInfoRepository.findAllById(fileIds).stream()
+                .collect(Collectors.toMap(StorageFileInfo::getFileId, Function.identity()));
         for (EntityFileRelation fileRelation : fileRelations) {
-            StorageFileInfo tempFileInfo = storageFileInfoRepository.findById(fileRelation.getFileId()).get();
-            if (tempFileInfo != null) {
-                result.add(tempFileInfo);
+            StorageFileInfo fileInfo = fileInfoMap.get(fileRelation.getFileId());
+            if (fileInfo != null) {
+                result.computeIfAbsent(fileRelation.getEntityId(), k -> new ArrayList<>()).add(fileInfo);
             }
         }
         return result;
@@ -0,0 +1,330 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.util;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.SerializeConfig;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.microsoft.hydralab.common.entity.common.AccessInfo;
+import com.microsoft.hydralab.common.entity.common.AgentMetadata;
+import com.microsoft.hydralab.common.entity.common.AgentUpdateTask;
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.entity.common.DeviceStateDiff;
+import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.entity.common.TestTaskSpec;
+import com.microsoft.hydralab.common.file.impl.azure.SASData;
+import com.microsoft.hydralab.common.file.impl.local.LocalStorageToken;
+import org.springframework.http.HttpStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact framing of {@link Message}:
+ * <pre>
+ * 'H' 'L' | version | flags | header fields | body type | body
+ * </pre>
+ * Header fields are length-prefixed UTF-8, the body type is a registered id instead of a class name
+ * and the body is plain JSON decoded straight into its type. Only the implementations of the interface typed
+ * fields, i.e. the access tokens, keep their class name, the rest of the body is typed by its declared fields.
+ * The values derived by getters without a field are left out, they can't be set when decoding anyway.
+ * Payloads above {@link #COMPRESS_THRESHOLD} are deflated, the fastest way for the frequent small ones and
+ * at the default level above {@link #LARGE_FRAME_THRESHOLD}, i.e. the test results: with the smaller body,
+ * that is both smaller and cheaper to encode than the gzipped JSON of the original format.
+ * Buffers, deflaters and inflaters are pooled per thread.
+ * <p>
+ * Type ids are part of the protocol: never reuse or renumber them, only append.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final String NAME = "BINARY_V1";
+    static final int COMPRESS_THRESHOLD = 1024;
+    static final int LARGE_FRAME_THRESHOLD = 64 * 1024;
+    private static final byte MAGIC_0 = 'H';
+    private static final byte MAGIC_1 = 'L';
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 4;
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int MAX_POOLED_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final String ENTITY_PACKAGE = "com.microsoft.hydralab.common.entity.";
+
+    private static final int BODY_NULL = 0;
+    private static final int BODY_JSON_OBJECT = 1;
+    private static final int BODY_JSON_ARRAY = 2;
+    private static final int BODY_TYPE_ID = 3;
+    private static final int BODY_CLASS_NAME = 4;
+
+    private static final Map<Integer, Class<?>> ID_TO_TYPE = new HashMap<>();
+    private static final Map<Class<?>, Integer> TYPE_TO_ID = new HashMap<>();
+
+    // the fields typed by an interface can't be decoded from their declared type alone
+    private static final SerializeConfig SERIALIZE_CONFIG = new SerializeConfig();
+    private static final int SERIALIZE_FEATURES = JSON.DEFAULT_GENERATE_FEATURE | SerializerFeature.IgnoreNonFieldGetter.mask;
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    static {
+        registerType(1, AgentUser.class);
+        registerType(2, AgentMetadata.class);
+        registerType(3, DeviceInfo.class);
+        registerType(4, TestTaskSpec.class);
+        registerType(5, TestTask.class);
+        registerType(6, AgentUpdateTask.class);
+        registerType(7, AgentUpdateTask.UpdateMsg.class);
+        registerType(8, AccessInfo.class);
+        registerType(9, DeviceStateDiff.class);
+
+        SERIALIZE_CONFIG.config(LocalStorageToken.class, SerializerFeature.WriteClassName, true);
+        SERIALIZE_CONFIG.config(SASData.class, SerializerFeature.WriteClassName, true);
+    }
+
+    private static void registerType(int id, Class<?> type) {
+        ID_TO_TYPE.put(id, type);
+        TYPE_TO_ID.put(type, id);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Message message) {
+        Buffers buffers = BUFFERS.get();
+        PooledByteArrayOutputStream raw = buffers.raw;
+        raw.reset();
+        try {
+            DataOutputStream out = new DataOutputStream(raw);
+            writeString(out, message.getMethod());
+            writeString(out, message.getSessionId());
+            writeVarInt(out, message.getCode());
+            writeString(out, message.getMessage());
+            writeString(out, message.getAgentId());
+            writeString(out, message.getType());
+            writeString(out, message.getPath());
+            writeString(out, message.getParams() == null ? null : JSON.toJSONString(message.getParams()));
+            writeBody(out, message.getBody());
+            out.flush();
+        } catch (IOException e) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to encode message " + message.getPath(), e);
+        }
+
+        byte[] result;
+        if (raw.size() > COMPRESS_THRESHOLD) {
+            PooledByteArrayOutputStream compressed = buffers.compressed;
+            compressed.reset();
+            writeFrameHeader(compressed, FLAG_COMPRESSED);
+            Deflater deflater = raw.size() > LARGE_FRAME_THRESHOLD ? buffers.largeFrameDeflater : buffers.deflater;
+            deflater.reset();
+            deflater.setInput(raw.buffer(), 0, raw.size());
+            deflater.finish();
+            byte[] chunk = buffers.chunk;
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                compressed.write(chunk, 0, count);
+            }
+            result = compressed.toByteArray();
+            compressed.trim();
+        } else {
+            result = new byte[HEADER_LENGTH + raw.size()];
+            result[0] = MAGIC_0;
+            result[1] = MAGIC_1;
+            result[2] = VERSION;
+            result[3] = 0;
+            System.arraycopy(raw.buffer(), 0, result, HEADER_LENGTH, raw.size());
+        }
+        raw.trim();
+        return result;
+    }
+
+    @Override
+    public Message decode(byte[] data) {
+        if (!accept(data)) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Unsupported message format");
+        }
+        InputStream in = new ByteArrayInputStream(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+        if ((data[3] & FLAG_COMPRESSED) != 0) {
+            Inflater inflater = BUFFERS.get().inflater;
+            inflater.reset();
+            in = new InflaterInputStream(in, inflater);
+        }
+        try {
+            DataInputStream dataIn = new DataInputStream(in);
+            Message message = new Message();
+            message.setMethod(readString(dataIn));
+            message.setSessionId(readString(dataIn));
+            message.setCode(readVarInt(dataIn));
+            message.setMessage(readString(dataIn));
+            message.setAgentId(readString(dataIn));
+            message.setType(readString(dataIn));
+            message.setPath(readString(dataIn));
+            String params = readString(dataIn);
+            if (params != null) {
+                message.setParams(JSON.parseObject(params));
+            }
+            message.setBody(readBody(dataIn));
+            return message;
+        } catch (IOException e) {
+            throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Failed to decode message", e);
+        }
+    }
+
+    @Override
+    public boolean accept(byte[] data) {
+        return data.length >= HEADER_LENGTH && data[0] == MAGIC_0 && data[1] == MAGIC_1 && data[2] == VERSION;
+    }
+
+    private static void writeFrameHeader(ByteArrayOutputStream out, int flags) {
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        out.write(flags);
+    }
+
+    private static void writeBody(DataOutputStream out, Object body) throws IOException {
+        if (body == null) {
+            out.writeByte(BODY_NULL);
+            return;
+        }
+        Integer typeId = TYPE_TO_ID.get(body.getClass());
+        if (typeId != null) {
+            out.writeByte(BODY_TYPE_ID);
+            writeVarInt(out, typeId);
+        } else if (body instanceof Map) {
+            out.writeByte(BODY_JSON_OBJECT);
+        } else if (body instanceof Collection || body.getClass().isArray()) {
+            out.writeByte(BODY_JSON_ARRAY);
+        } else {
+            out.writeByte(BODY_CLASS_NAME);
+            writeString(out, body.getClass().getName());
+        }
+        JSON.writeJSONString(out, StandardCharsets.UTF_8, body, SERIALIZE_CONFIG, null, null, SERIALIZE_FEATURES);
+    }
+
+    private static Object readBody(DataInputStream in) throws IOException {
+        int bodyType = in.readUnsignedByte();
+        Type type;
+        switch (bodyType) {
+            case BODY_NULL:
+                return null;
+            case BODY_JSON_OBJECT:
+                type = JSONObject.class;
+                break;
+            case BODY_JSON_ARRAY:
+                type = JSONArray.class;
+                break;
+            case BODY_TYPE_ID:
+                int typeId = readVarInt(in);
+                type = ID_TO_TYPE.get(typeId);
+                if (type == null) {
+                    throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Unknown message body type id " + typeId);
+                }
+                break;
+            case BODY_CLASS_NAME:
+                type = resolveClass(readString(in));
+                break;
+            default:
+                throw new HydraLabRuntimeException(HttpStatus.INTERNAL_SERVER_ERROR.value(), "Unknown message body type " + bodyType);
+        }
+        return JSON.parseObject(in, StandardCharsets.UTF_8, type);
+    }
+
+    // only entities are materialized by name, anything else stays a JSONObject
+    private static Type resolveClass(String className) {
+        if (className == null || !className.startsWith(ENTITY_PACKAGE)) {
+            return JSONObject.class;
+        }
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            return JSONObject.class;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // zigzag varint, so the negative codes stay short as well
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte(zigzag);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            zigzag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static final class Buffers {
+        private final PooledByteArrayOutputStream raw = new PooledByteArrayOutputStream();
+        private final PooledByteArrayOutputStream compressed = new PooledByteArrayOutputStream();
+        private final byte[] chunk = new byte[8192];
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Deflater largeFrameDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final Inflater inflater = new Inflater();
+    }
+
+    private static final class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+        private PooledByteArrayOutputStream() {
+            super(8192);
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+
+        // don't keep the buffer of an unusually large message around
+        private void trim() {
+            if (buf.length > MAX_POOLED_BUFFER_SIZE) {
+                buf = new byte[8192];
+            }
+        }
+    }
+}
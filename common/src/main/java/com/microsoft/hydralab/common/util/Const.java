@@ -11,6 +11,7 @@ public interface Const {
         String AGENT_INIT = "/agentInit";
         String HEARTBEAT = "/heartbeat";
         String DEVICE_LIST = "/api/device/list";
+        String DEVICE_DIFF = "/api/device/diff";
         String DEVICE_UPDATE = "/api/device/update";
         String DEVICE_STATUS = "/api/device/status";
         String ACCESS_INFO = "/api/device/access";
@@ -18,6 +19,10 @@ public interface Const {
         String TEST_TASK_UPDATE = "/api/test/task/update";
         String TEST_TASK_CANCEL = "/api/test/task/cancel";
         String TEST_TASK_RETRY = "/api/test/task/retry";
+        // stop the remaining tests of a task and report what has run
+        String TEST_TASK_TERMINATE = "/api/test/task/terminate";
+        // run counts of a task on one agent, center checks the limits of the task against their sum
+        String TEST_TASK_PROGRESS = "/api/test/task/progress";
         String AGENT_UPDATE = "/api/agent/update";
         String AGENT_RESTART = "/api/agent/restart";
         String DEFAULT_PHOTO = "static/dist/images/default_user.png";
@@ -32,15 +37,23 @@ public interface Const {
         String SINGLE_TYPE = "SINGLE";
         String REST_TYPE = "REST";
         String ALL_TYPE = "ALL";
+        // the suite is split between the free devices of the group
+        String SHARD_TYPE = "SHARD";
     }
 
     interface AgentConfig {
         int RETRY_TIME = 5;
         int PHOTO_UPDATE_SEC = 15;
         String TASK_ID_PARAM = "testTaskId";
+        String REASON_PARAM = "reason";
+        String CRASH_COUNT_PARAM = "crashCount";
+        String FAIL_COUNT_PARAM = "failCount";
+        String TEST_COUNT_PARAM = "testCount";
         String SERIAL_PARAM = "serialNum";
         String STATUS_PARAM = "status";
         String SCOPE_PARAM = "isPrivate";
+        String MESSAGE_CODEC_PARAM = "messageCodec";
+        String DEVICE_STATE_SEQ_PARAM = "deviceStateSeq";
         String RESTART_FILE_MAC = "restartAgent.sh";
         String RESTART_FILE_WIN = "restartAgent.bat";
     }
@@ -164,7 +177,12 @@ public interface Const {
     final class LocalStorageURL {
         public static final String CENTER_LOCAL_STORAGE_UPLOAD = "/api/storage/local/upload";
         public static final String CENTER_LOCAL_STORAGE_DOWNLOAD = "/api/storage/local/download";
+        public static final String CENTER_LOCAL_STORAGE_UPLOAD_INITIATE = "/api/storage/local/upload/initiate";
+        public static final String CENTER_LOCAL_STORAGE_UPLOAD_CHUNK = "/api/storage/local/upload/chunk";
+        public static final String CENTER_LOCAL_STORAGE_UPLOAD_COMMIT = "/api/storage/local/upload/commit";
         public static final String CENTER_LOCAL_STORAGE_ROOT = "storage/local/";
+        // unfinished chunked uploads, outside the paths reachable by fileUri
+        public static final String CENTER_LOCAL_STORAGE_UPLOADING_DIR = "storage/uploading/";
     }
 
     final class LocalStorageConst {
@@ -8,17 +8,31 @@ import com.microsoft.hydralab.common.entity.common.CriteriaType.LikeRuleType;
 import com.microsoft.hydralab.common.entity.common.CriteriaType.OpType;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.StringUtils;
 
 import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Compiles {@link CriteriaType}s into predicates on the attributes of their own types, so that the values are
+ * compared as stored and the indexes on the columns can be used, rather than as the text of each value.
+ */
 public class CriteriaTypeUtil<T> {
+    // the attribute types of each entity, resolved once from the metamodel
+    private static final Map<Class<?>, Map<String, Class<?>>> ATTRIBUTE_TYPES = new ConcurrentHashMap<>();
+    private static final Set<Class<?>> NATIVE_TYPES = Set.of(String.class, Integer.class, Long.class, Double.class, Float.class, Short.class, Boolean.class);
+    private static final ThreadLocal<Map<String, SimpleDateFormat>> DATE_FORMATS = ThreadLocal.withInitial(HashMap::new);
 
     public Specification<T> transferToSpecification(List<CriteriaType> criteriaTypes, boolean isQueryOr) {
         return (root, criteriaQuery, criteriaBuilder) -> {
@@ -40,6 +54,7 @@ public class CriteriaTypeUtil<T> {
         return predicates;
     }
 
+    @SuppressWarnings({"unchecked", "rawtypes"})
     private Predicate analysisCriteria(Root<T> root, CriteriaBuilder criteriaBuilder, CriteriaType criteriaType) {
 
         Predicate predicate = null;
@@ -47,39 +62,36 @@ public class CriteriaTypeUtil<T> {
         String op = criteriaType.getOp();
         String value = criteriaType.getValue();
         String dateFormatString = criteriaType.getDateFormatString();
-        Date dateValue = null;
 
         Assert.isTrue(!StringUtils.isEmpty(key), "The key of criteriaType can't be empty!");
         Assert.isTrue(!StringUtils.isEmpty(op), "The op of criteriaType can't be empty!");
 
+        Class<?> type = getAttributeType(root, key);
+        // the attributes of other types are still compared as text
+        Expression path = isComparable(type) ? root.get(key) : root.get(key).as(String.class);
+        if (!isComparable(type)) {
+            type = String.class;
+        }
+
         switch (op) {
             case OpType.Equal:
-                predicate = criteriaBuilder.equal(root.get(key).as(String.class), value);
+                predicate = value == null ? criteriaBuilder.isNull(path) : criteriaBuilder.equal(path, parseValue(value, type, dateFormatString));
                 break;
             case OpType.NotEqual:
-                predicate = criteriaBuilder.notEqual(root.get(key).as(String.class), value);
+                predicate = value == null ? criteriaBuilder.isNotNull(path) : criteriaBuilder.notEqual(path, parseValue(value, type, dateFormatString));
                 break;
             case OpType.GreaterThan:
                 Assert.isTrue(!StringUtils.isEmpty(value), "When querying with gt, the value of criteriaType can't be empty!");
-                dateValue = transferValueToDate(value, dateFormatString);
-                if (dateValue != null) {
-                    predicate = criteriaBuilder.greaterThan(root.get(key), dateValue);
-                } else {
-                    predicate = criteriaBuilder.greaterThan(root.get(key), value);
-                }
+                predicate = criteriaBuilder.greaterThan(path, (Comparable) parseValue(value, type, dateFormatString));
                 break;
             case OpType.LessThan:
                 Assert.isTrue(!StringUtils.isEmpty(value), "When querying with lt, the value of criteriaType can't be empty!");
-                dateValue = transferValueToDate(value, dateFormatString);
-                if (dateValue != null) {
-                    predicate = criteriaBuilder.lessThan(root.get(key), dateValue);
-                } else {
-                    predicate = criteriaBuilder.lessThan(root.get(key), value);
-                }
+                predicate = criteriaBuilder.lessThan(path, (Comparable) parseValue(value, type, dateFormatString));
                 break;
             case OpType.Like:
                 Assert.isTrue(!StringUtils.isEmpty(value), "When querying with like, the value of criteriaType can't be empty!");
                 String likeRule = criteriaType.getLikeRule();
+                Expression<String> stringPath = type == String.class ? path : root.get(key).as(String.class);
                 String likeString = value;
                 switch (likeRule) {
                     case LikeRuleType.Front:
@@ -87,11 +99,17 @@ public class CriteriaTypeUtil<T> {
                         break;
                     case LikeRuleType.End:
                         likeString = likeString + "%";
+                        Predicate prefixRange = prefixRange(criteriaBuilder, stringPath, value);
+                        if (prefixRange != null) {
+                            predicate = criteriaBuilder.and(prefixRange, criteriaBuilder.like(stringPath, likeString));
+                        }
                         break;
                     default:
                         likeString = "%" + likeString + "%";
                 }
-                predicate = criteriaBuilder.like(root.get(key).as(String.class), likeString);
+                if (predicate == null) {
+                    predicate = criteriaBuilder.like(stringPath, likeString);
+                }
                 break;
             case OpType.In:
                 Assert.isTrue(!StringUtils.isEmpty(value), "When querying with in, the value of criteriaType can't be empty!");
@@ -104,9 +122,9 @@ public class CriteriaTypeUtil<T> {
                 }
                 Assert.isTrue(values.size() > 0, "When querying with in, the value of criteriaType should contain 1 element at least!");
 
-                CriteriaBuilder.In<Object> tempPredicate = criteriaBuilder.in(root.get(key).as(String.class));
+                CriteriaBuilder.In<Object> tempPredicate = criteriaBuilder.in(path);
                 for (int i = 0; i < values.size(); i++) {
-                    tempPredicate.value(values.getString(i));
+                    tempPredicate.value(parseValue(values.getString(i), type, dateFormatString));
                 }
                 predicate = tempPredicate;
                 break;
@@ -117,20 +135,77 @@ public class CriteriaTypeUtil<T> {
         return predicate;
     }
 
-    private Date transferValueToDate(String value, String dateFormatString) {
-        Date date = null;
-        if (!StringUtils.isEmpty(dateFormatString)) {
-            Assert.isTrue(!StringUtils.isEmpty(value), "When the type is Date, the value of criteriaType can't be empty!");
-            try {
-                SimpleDateFormat format = new SimpleDateFormat(dateFormatString);
-                date = format.parse(value);
-            } catch (ParseException e) {
-                e.printStackTrace();
-                Assert.isTrue(false, "Transfer String to Date failed!");
-            }
+    private static Class<?> getAttributeType(Root<?> root, String key) {
+        return ATTRIBUTE_TYPES.computeIfAbsent(root.getJavaType(), entityType -> new ConcurrentHashMap<>())
+                .computeIfAbsent(key, attribute -> ClassUtils.resolvePrimitiveIfNecessary(root.getModel().getAttribute(attribute).getJavaType()));
+    }
+
+    private static boolean isComparable(Class<?> type) {
+        return NATIVE_TYPES.contains(type) || Date.class.isAssignableFrom(type) || type.isEnum();
+    }
+
+    /**
+     * LIKE matches ASCII letters regardless of case, so the values starting with the prefix sort between the prefix in
+     * upper case and the prefix in lower case with its last character incremented. The range lets the index narrow
+     * down the rows the LIKE is checked against.
+     *
+     * @return null if the prefix has wildcards or can't be incremented
+     */
+    private static Predicate prefixRange(CriteriaBuilder criteriaBuilder, Expression<String> path, String prefix) {
+        char last = prefix.charAt(prefix.length() - 1);
+        if (prefix.indexOf('%') >= 0 || prefix.indexOf('_') >= 0 || last == Character.MAX_VALUE || Character.isSurrogate(last)) {
+            return null;
         }
-        return date;
+        StringBuilder lowerBound = new StringBuilder(prefix.length());
+        StringBuilder upperBound = new StringBuilder(prefix.length());
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            boolean isAsciiLetter = c < 128 && Character.isLetter(c);
+            lowerBound.append(isAsciiLetter ? Character.toUpperCase(c) : c);
+            upperBound.append(isAsciiLetter ? Character.toLowerCase(c) : c);
+        }
+        upperBound.setCharAt(upperBound.length() - 1, (char) (upperBound.charAt(upperBound.length() - 1) + 1));
+        return criteriaBuilder.and(criteriaBuilder.greaterThanOrEqualTo(path, lowerBound.toString()),
+                criteriaBuilder.lessThan(path, upperBound.toString()));
     }
 
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object parseValue(String value, Class<?> type, String dateFormatString) {
+        try {
+            if (type == String.class) {
+                return value;
+            } else if (Date.class.isAssignableFrom(type)) {
+                // the time in milliseconds without a format
+                return StringUtils.isEmpty(dateFormatString) ? new Date(Long.parseLong(value)) : transferValueToDate(value, dateFormatString);
+            } else if (type == Integer.class) {
+                return Integer.valueOf(value);
+            } else if (type == Long.class) {
+                return Long.valueOf(value);
+            } else if (type == Double.class) {
+                return Double.valueOf(value);
+            } else if (type == Float.class) {
+                return Float.valueOf(value);
+            } else if (type == Short.class) {
+                return Short.valueOf(value);
+            } else if (type == Boolean.class) {
+                return Boolean.valueOf(value);
+            } else if (type.isEnum()) {
+                return Enum.valueOf((Class<Enum>) type, value);
+            }
+        } catch (NumberFormatException e) {
+            Assert.isTrue(false, "The value " + value + " is not a " + type.getSimpleName() + "!");
+        }
+        return value;
+    }
 
+    private static Date transferValueToDate(String value, String dateFormatString) {
+        Date date = null;
+        try {
+            date = DATE_FORMATS.get().computeIfAbsent(dateFormatString, SimpleDateFormat::new).parse(value);
+        } catch (ParseException e) {
+            e.printStackTrace();
+            Assert.isTrue(false, "Transfer String to Date failed!");
+        }
+        return date;
+    }
 }
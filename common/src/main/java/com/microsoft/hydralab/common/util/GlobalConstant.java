@@ -23,6 +23,8 @@ public interface GlobalConstant {
     String PROMETHEUS_METRIC_DISK_USAGE_RATIO = "agent_disk_usage_ratio";
     String PROMETHEUS_METRIC_WEBSOCKET_RECONNECT_RETRY_TIMES = "agent_ws_reconnect_retry_times";
     String PROMETHEUS_METRIC_RUNNING_TEST_NUM = "agent_running_test_num";
+    String PROMETHEUS_METRIC_DEVICE_TASK_QUEUE_DEPTH = "agent_device_task_queue_depth";
+    String PROMETHEUS_METRIC_DEVICE_TASK_ACTIVE_LANES = "agent_device_task_active_lanes";
     String PROMETHEUS_METRIC_DEVICE_STATE_CHANGE_TIMES = "agent_device_state_change_times";
     String PROMETHEUS_METRIC_TEST_DEVICE_UNSTABLE_SIGNAL = "agent_device_unstable_signal";
     String PROMETHEUS_METRIC_TEST_DEVICE_OFFLINE_SIGNAL = "agent_device_offline_signal";
@@ -32,4 +34,9 @@ public interface GlobalConstant {
     String PROMETHEUS_METRIC_WEBSOCKET_DISCONNECT_SIGNAL = "agent_ws_disconnect_signal";
     String PROMETHEUS_METRIC_ONLINE_AGENT_NUM = "agent_online_agent_num";
     String PROMETHEUS_METRIC_ONLINE_DEVICE_NUM = "agent_online_device_num";
+    String PROMETHEUS_METRIC_WEBSOCKET_SEND_LATENCY = "agent_ws_send_latency";
+    String PROMETHEUS_METRIC_WEBSOCKET_BACKLOG = "agent_ws_send_backlog";
+    String PROMETHEUS_METRIC_WEBSOCKET_COALESCED_NUM = "agent_ws_coalesced_message_num";
+    String PROMETHEUS_METRIC_WEBSOCKET_EVICTED_NUM = "agent_ws_evicted_session_num";
+    String PROMETHEUS_METRIC_TEST_TASK_QUEUE_WAIT = "center_test_task_queue_wait";
 }
@@ -0,0 +1,54 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.util;
+
+import cn.hutool.core.util.ZipUtil;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.parser.ParserConfig;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.microsoft.hydralab.common.entity.common.Message;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The original format: gzipped JSON with class names, understood by every center and agent version.
+ */
+public class GzipJsonMessageCodec implements MessageCodec {
+    public static final String NAME = "GZIP_JSON";
+
+    static {
+        // add auto type support for following entities
+        ParserConfig.getGlobalInstance().addAccept("com.microsoft.hydralab.common.entity.common.");
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Message message) {
+        return ZipUtil.gzip(JSON.toJSONString(message, SerializerFeature.WriteClassName), StandardCharsets.UTF_8.toString());
+    }
+
+    @Override
+    public Message decode(byte[] data) {
+        Message message = JSON.parseObject(new String(ZipUtil.unGzip(data), StandardCharsets.UTF_8), Message.class);
+        if (message.getBody() instanceof JSONObject && message.getBodyType() != null) {
+            JSONObject body = (JSONObject) message.getBody();
+            try {
+                message.setBody(body.toJavaObject(Class.forName(message.getBodyType())));
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return message;
+    }
+
+    @Override
+    public boolean accept(byte[] data) {
+        // gzip magic number
+        return data.length >= 2 && data[0] == (byte) 0x1f && data[1] == (byte) 0x8b;
+    }
+}
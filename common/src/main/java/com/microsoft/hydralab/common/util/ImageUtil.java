@@ -28,4 +28,49 @@ public class ImageUtil {
         }
         return foundWriter;
     }
+
+    /**
+     * Difference hash of an image: each bit tells whether a cell of the image divided into 9x8 cells
+     * is brighter than its right neighbour. Near-identical images get hashes within a few bits.
+     *
+     * @return the hash, or null if the file can't be read as an image
+     */
+    public static Long getDifferenceHash(File imageFile) throws IOException {
+        BufferedImage image = ImageIO.read(imageFile);
+        if (image == null) {
+            return null;
+        }
+        // average luminance of the 9x8 cells, scaling with drawImage would only sample a few pixels
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long[] luminance = new long[9 * 8];
+        int[] pixelCount = new int[9 * 8];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int cellRow = y * 8 / height * 9;
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                int cell = cellRow + x * 9 / width;
+                luminance[cell] += ((rgb >> 16) & 0xFF) * 299 + ((rgb >> 8) & 0xFF) * 587 + (rgb & 0xFF) * 114;
+                pixelCount[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                int cell = y * 9 + x;
+                hash <<= 1;
+                if (luminance[cell] * pixelCount[cell + 1] > luminance[cell + 1] * pixelCount[cell]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    public static int getHammingDistance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
 }
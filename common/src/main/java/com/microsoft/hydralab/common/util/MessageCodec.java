@@ -0,0 +1,22 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.util;
+
+import com.microsoft.hydralab.common.entity.common.Message;
+
+/**
+ * Wire format of the messages exchanged between center and agents over the WebSocket connection.
+ * The codec of a connection is negotiated during the AUTH/AGENT_INIT handshake, see {@link SerializeUtil}.
+ */
+public interface MessageCodec {
+    String getName();
+
+    byte[] encode(Message message);
+
+    Message decode(byte[] data);
+
+    /**
+     * @return whether the data has been produced by this codec
+     */
+    boolean accept(byte[] data);
+}
@@ -2,34 +2,75 @@
 // Licensed under the MIT License.
 package com.microsoft.hydralab.common.util;
 
-import cn.hutool.core.util.ZipUtil;
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
-import com.alibaba.fastjson.parser.ParserConfig;
-import com.alibaba.fastjson.serializer.SerializerFeature;
 import com.microsoft.hydralab.common.entity.common.Message;
 
-import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class SerializeUtil {
+    public static final MessageCodec DEFAULT_CODEC = new GzipJsonMessageCodec();
+    // supported codecs, most preferred first
+    private static final Map<String, MessageCodec> CODECS = new LinkedHashMap<>();
+
     static {
-        // add auto type support for following entities
-        ParserConfig.getGlobalInstance().addAccept("com.microsoft.hydralab.common.entity.common.");
+        registerCodec(new BinaryMessageCodec());
+        registerCodec(DEFAULT_CODEC);
+    }
+
+    private static void registerCodec(MessageCodec codec) {
+        CODECS.put(codec.getName(), codec);
     }
+
     public static byte[] messageToByteArr(Message message) {
-        return ZipUtil.gzip(JSON.toJSONString(message, SerializerFeature.WriteClassName), StandardCharsets.UTF_8.toString());
+        return DEFAULT_CODEC.encode(message);
     }
 
+    public static byte[] messageToByteArr(Message message, MessageCodec codec) {
+        return (codec == null ? DEFAULT_CODEC : codec).encode(message);
+    }
+
+    /**
+     * Decode with whichever codec produced the data, so a connection can switch codec at any message.
+     */
     public static Message byteArrToMessage(byte[] array) {
-        Message message = JSON.parseObject(new String(ZipUtil.unGzip(array), StandardCharsets.UTF_8), Message.class);
-        if (message.getBody() instanceof JSONObject && message.getBodyType() != null) {
-            JSONObject body = (JSONObject) message.getBody();
-            try {
-                message.setBody(body.toJavaObject(Class.forName(message.getBodyType())));
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
+        for (MessageCodec codec : CODECS.values()) {
+            if (codec.accept(array)) {
+                return codec.decode(array);
+            }
+        }
+        return DEFAULT_CODEC.decode(array);
+    }
+
+    /**
+     * @return the codec of the given name, or the default one if it is unknown
+     */
+    public static MessageCodec getCodec(String name) {
+        MessageCodec codec = name == null ? null : CODECS.get(name);
+        return codec == null ? DEFAULT_CODEC : codec;
+    }
+
+    /**
+     * @return comma separated names of the supported codecs, most preferred first
+     */
+    public static String getSupportedCodecs() {
+        return String.join(",", CODECS.keySet());
+    }
+
+    /**
+     * Pick the most preferred codec supported by both sides.
+     *
+     * @param offeredCodecs comma separated names offered by the peer, null for a peer not aware of codecs
+     */
+    public static MessageCodec negotiateCodec(String offeredCodecs) {
+        if (offeredCodecs == null) {
+            return DEFAULT_CODEC;
+        }
+        for (String name : offeredCodecs.split(",")) {
+            MessageCodec codec = CODECS.get(name.trim());
+            if (codec != null) {
+                return codec;
             }
         }
-        return message;
+        return DEFAULT_CODEC;
     }
 }
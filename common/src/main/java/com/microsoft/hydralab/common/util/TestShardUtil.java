@@ -0,0 +1,103 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.util;
+
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splitting of an instrumentation suite between the devices of a sharded group run. An explicit list of classes is
+ * dealt out class by class, anything else is split by the runner with its numShards and shardIndex arguments.
+ */
+public final class TestShardUtil {
+    public static final String NUM_SHARDS_ARG = "numShards";
+    public static final String SHARD_INDEX_ARG = "shardIndex";
+
+    private TestShardUtil() {
+    }
+
+    /**
+     * @return the classes listed in the suite, empty unless there are several of them
+     */
+    public static List<String> getClassList(String testScope, String testSuite) {
+        // the scope defaults to CLASS when a suite is given
+        if ((StringUtils.isNotEmpty(testScope) && !TestTask.TestScope.CLASS.equals(testScope)) || StringUtils.isBlank(testSuite)) {
+            return Collections.emptyList();
+        }
+        List<String> classes = new ArrayList<>();
+        for (String className : testSuite.split(",")) {
+            if (StringUtils.isNotBlank(className)) {
+                classes.add(className.trim());
+            }
+        }
+        return classes.size() > 1 ? classes : Collections.emptyList();
+    }
+
+    /**
+     * @return the most shards the suite can be split into, a device more would have nothing to run
+     */
+    public static int getMaxShardCount(String testScope, String testSuite) {
+        List<String> classes = getClassList(testScope, testSuite);
+        return classes.isEmpty() ? Integer.MAX_VALUE : classes.size();
+    }
+
+    /**
+     * Split the classes into shards of about the same expected duration: the longest classes first, each to the
+     * shard expected to end first. A class without estimate is expected to last as long as the average known one.
+     *
+     * @return the classes of each shard, in the order of the given list
+     */
+    public static List<List<String>> planShards(List<String> classes, Map<String, Double> classEstimates, int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Invalid shard count: " + shardCount);
+        }
+        double defaultEstimate = classEstimates.values().stream().mapToDouble(Double::doubleValue).average().orElse(1);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < classes.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingDouble((Integer i) -> classEstimates.getOrDefault(classes.get(i), defaultEstimate)).reversed());
+
+        double[] loads = new double[shardCount];
+        List<List<Integer>> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (int classIndex : order) {
+            int shardIndex = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (loads[i] < loads[shardIndex]) {
+                    shardIndex = i;
+                }
+            }
+            loads[shardIndex] += classEstimates.getOrDefault(classes.get(classIndex), defaultEstimate);
+            shards.get(shardIndex).add(classIndex);
+        }
+
+        List<List<String>> shardClasses = new ArrayList<>();
+        for (List<Integer> shard : shards) {
+            Collections.sort(shard);
+            List<String> names = new ArrayList<>();
+            shard.forEach(classIndex -> names.add(classes.get(classIndex)));
+            shardClasses.add(names);
+        }
+        return shardClasses;
+    }
+
+    public static String getShardClasses(List<String> classes, int shardCount, int shardIndex) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Invalid shard count: " + shardCount);
+        }
+        List<String> shardClasses = new ArrayList<>();
+        for (int i = shardIndex; i < classes.size(); i += shardCount) {
+            shardClasses.add(classes.get(i));
+        }
+        return String.join(",", shardClasses);
+    }
+}
@@ -10,16 +10,37 @@ public class ThreadPoolUtil {
     public static final ScheduledExecutorService PERFORMANCE_TEST_TIMER_EXECUTOR = Executors.newScheduledThreadPool(5 /* corePoolSize */);
     private static final AtomicInteger SCREENSHOT_THREAD_NUMBER = new AtomicInteger(1);
     public static final Executor SCREENSHOT_EXECUTOR = newThreadPoolExecutor(SCREENSHOT_THREAD_NUMBER, 20, 60L, "ScreenshotExecutor");
-    private static final AtomicInteger TEST_THREAD_NUMBER = new AtomicInteger(1);
-    public static final Executor TEST_EXECUTOR = newThreadPoolExecutor(TEST_THREAD_NUMBER, 30, 60L, "TestExecutor");
+    private static final AtomicInteger CONTROL_THREAD_NUMBER = new AtomicInteger(1);
+    // agent control-plane work (package update, etc.), kept apart from the device test threads
+    public static final Executor CONTROL_EXECUTOR = newBoundedThreadPoolExecutor(CONTROL_THREAD_NUMBER, 4, 60L, "ControlExecutor");
+
+    private static final AtomicInteger UPLOAD_THREAD_NUMBER = new AtomicInteger(1);
+    // chunks of local storage uploads
+    public static final Executor UPLOAD_EXECUTOR = newBoundedThreadPoolExecutor(UPLOAD_THREAD_NUMBER, 4, 60L, "UploadExecutor");
 
     public static Executor newThreadPoolExecutor(AtomicInteger threadCounter, int corePoolSize, long keepAliveTimeSeconds, String threadNamePrefix) {
         return new ThreadPoolExecutor(corePoolSize, Integer.MAX_VALUE, keepAliveTimeSeconds,
                 TimeUnit.SECONDS, new SynchronousQueue<>(),
-                runnable -> {
-                    Thread result = new Thread(runnable, threadNamePrefix + threadCounter.getAndIncrement());
-                    result.setDaemon(false);
-                    return result;
-                });
+                newThreadFactory(threadCounter, threadNamePrefix));
+    }
+
+    /**
+     * A pool of at most maxPoolSize threads; further tasks wait in the queue instead of starting new threads.
+     * Idle threads are released after keepAliveTimeSeconds.
+     */
+    public static ThreadPoolExecutor newBoundedThreadPoolExecutor(AtomicInteger threadCounter, int maxPoolSize, long keepAliveTimeSeconds, String threadNamePrefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, keepAliveTimeSeconds,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                newThreadFactory(threadCounter, threadNamePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory newThreadFactory(AtomicInteger threadCounter, String threadNamePrefix) {
+        return runnable -> {
+            Thread result = new Thread(runnable, threadNamePrefix + threadCounter.getAndIncrement());
+            result.setDaemon(false);
+            return result;
+        };
     }
 }
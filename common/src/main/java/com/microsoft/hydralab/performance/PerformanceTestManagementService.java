@@ -7,6 +7,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.hydralab.agent.runner.ITestRun;
 import com.microsoft.hydralab.agent.runner.TestRunThreadContext;
 import com.microsoft.hydralab.common.entity.common.DeviceInfo;
+import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.FileUtil;
 import com.microsoft.hydralab.common.util.ThreadPoolUtil;
 import com.microsoft.hydralab.performance.inspectors.AndroidBatteryInfoInspector;
@@ -36,12 +37,7 @@ public class PerformanceTestManagementService implements IPerformanceInspectionS
             INSPECTOR_WIN_BATTERY, PARSER_WIN_BATTERY,
             INSPECTOR_ANDROID_MEMORY_INFO, PARSER_ANDROID_MEMORY_INFO
     );
-    private final Map<PerformanceInspector.PerformanceInspectorType, PerformanceInspector> performanceInspectorMap = Map.of(
-            INSPECTOR_ANDROID_BATTERY_INFO, new AndroidBatteryInfoInspector(),
-            INSPECTOR_WIN_MEMORY, new WindowsMemoryInspector(),
-            INSPECTOR_WIN_BATTERY, new WindowsBatteryInspector(),
-            INSPECTOR_ANDROID_MEMORY_INFO, new AndroidMemoryInfoInspector()
-    );
+    private final Map<PerformanceInspector.PerformanceInspectorType, PerformanceInspector> performanceInspectorMap;
     private final Map<PerformanceResultParser.PerformanceResultParserType, PerformanceResultParser> performanceResultParserMap = Map.of(
             PARSER_ANDROID_BATTERY_INFO, new AndroidBatteryInfoResultParser(),
             PARSER_WIN_MEMORY, new WindowsMemoryResultParser(),
@@ -53,6 +49,15 @@ public class PerformanceTestManagementService implements IPerformanceInspectionS
     private final Map<String, List<InspectionStrategy>> testLifeCycleStrategyMap = new ConcurrentHashMap<>();
     private final Map<String, Map<String, PerformanceTestResult>> testRunPerfResultMap = new ConcurrentHashMap<>();
 
+    public PerformanceTestManagementService(ADBOperateUtil adbOperateUtil) {
+        performanceInspectorMap = Map.of(
+                INSPECTOR_ANDROID_BATTERY_INFO, new AndroidBatteryInfoInspector(adbOperateUtil),
+                INSPECTOR_WIN_MEMORY, new WindowsMemoryInspector(),
+                INSPECTOR_WIN_BATTERY, new WindowsBatteryInspector(),
+                INSPECTOR_ANDROID_MEMORY_INFO, new AndroidMemoryInfoInspector(adbOperateUtil)
+        );
+    }
+
     public void initialize() {
         PerformanceInspectionService.getInstance().swapImplementation(this);
     }
@@ -2,7 +2,8 @@
 // Licensed under the MIT License.
 package com.microsoft.hydralab.performance.inspectors;
 
-import com.microsoft.hydralab.common.util.ShellUtils;
+import com.microsoft.hydralab.common.logger.MultiLineNoCancelLoggingReceiver;
+import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.TimeUtils;
 import com.microsoft.hydralab.performance.PerformanceInspection;
 import com.microsoft.hydralab.performance.PerformanceInspectionResult;
@@ -16,6 +17,11 @@ import java.io.File;
 public class AndroidBatteryInfoInspector implements PerformanceInspector {
     private static final String RAW_RESULT_FILE_NAME_FORMAT = "%s_%s_%s.txt";
     protected Logger classLogger = LoggerFactory.getLogger(getClass());
+    private final ADBOperateUtil adbOperateUtil;
+
+    public AndroidBatteryInfoInspector(ADBOperateUtil adbOperateUtil) {
+        this.adbOperateUtil = adbOperateUtil;
+    }
 
     @Override
     public PerformanceInspectionResult inspect(PerformanceInspection performanceInspection) {
@@ -28,14 +34,14 @@ public class AndroidBatteryInfoInspector implements PerformanceInspector {
         File rawResultFile = new File(rawResultFolder,
                 String.format(RAW_RESULT_FILE_NAME_FORMAT, getClass().getSimpleName(), performanceInspection.appId, TimeUtils.getTimestampForFilename()));
 
-        ShellUtils.execLocalCommandWithResult(String.format("adb -s %s shell dumpsys batterystats %s | out-file %s -encoding utf8",
-                performanceInspection.deviceIdentifier, performanceInspection.appId, rawResultFile.getAbsolutePath()), classLogger);
+        adbOperateUtil.executeShellCommandToFile(performanceInspection.deviceIdentifier,
+                String.format("dumpsys batterystats %s", performanceInspection.appId), rawResultFile, classLogger);
         return new PerformanceInspectionResult(rawResultFile, performanceInspection);
     }
 
     private void initialize(PerformanceInspection performanceInspection) {
         String device = performanceInspection.deviceIdentifier;
-        ShellUtils.execLocalCommand(String.format("adb -s %s shell dumpsys battery unplug", device), classLogger);
-        ShellUtils.execLocalCommand(String.format("adb -s %s shell dumpsys batterystats --reset", device), classLogger);
+        adbOperateUtil.execOnDevice(device, "dumpsys battery unplug", new MultiLineNoCancelLoggingReceiver(classLogger), classLogger);
+        adbOperateUtil.execOnDevice(device, "dumpsys batterystats --reset", new MultiLineNoCancelLoggingReceiver(classLogger), classLogger);
     }
 }
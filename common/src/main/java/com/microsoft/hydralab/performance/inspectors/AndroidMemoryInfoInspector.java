@@ -1,6 +1,6 @@
 package com.microsoft.hydralab.performance.inspectors;
 
-import com.microsoft.hydralab.common.util.ShellUtils;
+import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.common.util.TimeUtils;
 import com.microsoft.hydralab.performance.PerformanceInspection;
 import com.microsoft.hydralab.performance.PerformanceInspectionResult;
@@ -15,6 +15,11 @@ public class AndroidMemoryInfoInspector implements PerformanceInspector  {
 
     private static final String RAW_RESULT_FILE_NAME_FORMAT = "%s_%s_%s_memory.txt";
     private final Logger classLogger = LoggerFactory.getLogger(getClass());
+    private final ADBOperateUtil adbOperateUtil;
+
+    public AndroidMemoryInfoInspector(ADBOperateUtil adbOperateUtil) {
+        this.adbOperateUtil = adbOperateUtil;
+    }
 
 
     @Override
@@ -25,18 +30,8 @@ public class AndroidMemoryInfoInspector implements PerformanceInspector  {
         File rawResultFile = new File(rawResultFolder,
                 String.format(RAW_RESULT_FILE_NAME_FORMAT, getClass().getSimpleName(), performanceInspection.appId, TimeUtils.getTimestampForFilename()));
 
-        ShellUtils.execLocalCommandWithResult(String.format(getMemInfoCommand(),
-                performanceInspection.deviceIdentifier, performanceInspection.appId, rawResultFile.getAbsolutePath()), classLogger);
+        adbOperateUtil.executeShellCommandToFile(performanceInspection.deviceIdentifier,
+                String.format("dumpsys meminfo %s", performanceInspection.appId), rawResultFile, classLogger);
         return new PerformanceInspectionResult(rawResultFile, performanceInspection);
     }
-
-    private String getMemInfoCommand() {
-        String format;
-        if (ShellUtils.isConnectedToWindowsOS) {
-            format = "adb -s %s shell dumpsys meminfo %s | out-file %s -encoding utf8";
-        } else {
-            format = "adb -s %s shell dumpsys meminfo %s > %s";
-        }
-        return format;
-    }
 }
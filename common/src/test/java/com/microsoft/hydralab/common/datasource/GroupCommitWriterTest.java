@@ -0,0 +1,111 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.datasource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GroupCommitWriterTest {
+    private final CountingTransactionManager transactionManager = new CountingTransactionManager();
+    private final GroupCommitWriter groupCommitWriter = new GroupCommitWriter(transactionManager);
+    private final CountDownLatch writerBlocked = new CountDownLatch(1);
+    private final CountDownLatch writerReleased = new CountDownLatch(1);
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        groupCommitWriter.start();
+        // hold the writer thread in a transaction so that the next writes pile up in the queue
+        groupCommitWriter.submit(() -> {
+            writerBlocked.countDown();
+            try {
+                return writerReleased.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assertions.assertTrue(writerBlocked.await(10, TimeUnit.SECONDS));
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        writerReleased.countDown();
+        groupCommitWriter.stop();
+    }
+
+    @Test
+    void testQueuedWritesShareOneCommit() throws ExecutionException, InterruptedException {
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int value = i;
+            futures.add(groupCommitWriter.submit(() -> value));
+        }
+        Assertions.assertEquals(10, groupCommitWriter.getQueueSize());
+
+        writerReleased.countDown();
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals(i, futures.get(i).get());
+        }
+        Assertions.assertEquals(2, transactionManager.commitCount.get());
+        Assertions.assertEquals(0, transactionManager.rollbackCount.get());
+    }
+
+    @Test
+    void testFailedWriteDoesNotFailItsGroup() throws ExecutionException, InterruptedException {
+        CompletableFuture<String> before = groupCommitWriter.submit(() -> "before");
+        CompletableFuture<String> failed = groupCommitWriter.submit(() -> {
+            throw new IllegalArgumentException("constraint violation");
+        });
+        CompletableFuture<String> after = groupCommitWriter.submit(() -> "after");
+
+        writerReleased.countDown();
+        Assertions.assertEquals("before", before.get());
+        Assertions.assertEquals("after", after.get());
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, failed::get);
+        Assertions.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        // the blocking write, then "before" and "after" on their own after the group rolled back
+        Assertions.assertEquals(3, transactionManager.commitCount.get());
+        Assertions.assertEquals(2, transactionManager.rollbackCount.get());
+
+        // a write that waits for its commit gets the original exception
+        Assertions.assertThrows(IllegalArgumentException.class, () -> groupCommitWriter.write(() -> {
+            throw new IllegalArgumentException("constraint violation");
+        }));
+    }
+
+    private static final class CountingTransactionManager extends AbstractPlatformTransactionManager {
+        private final AtomicInteger commitCount = new AtomicInteger();
+        private final AtomicInteger rollbackCount = new AtomicInteger();
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+            commitCount.incrementAndGet();
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+            rollbackCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.microsoft.hydralab.common.entity.common;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TerminationPolicyTest {
+    @Test
+    public void testLimitsAreChecked() {
+        TerminationPolicy terminationPolicy = new TerminationPolicy();
+        Assertions.assertFalse(terminationPolicy.hasRunLimit());
+        Assertions.assertNull(terminationPolicy.check(100, 100, 100));
+
+        terminationPolicy.setMaxCrashCount(3);
+        terminationPolicy.setMaxFailurePercent(50);
+        Assertions.assertTrue(terminationPolicy.hasRunLimit());
+        Assertions.assertNull(terminationPolicy.check(2, 0, 20));
+        Assertions.assertNotNull(terminationPolicy.check(3, 0, 20));
+        // too few tests run to tell
+        Assertions.assertNull(terminationPolicy.check(0, 5, 5));
+        Assertions.assertNull(terminationPolicy.check(0, 9, 20));
+        Assertions.assertNotNull(terminationPolicy.check(0, 10, 20));
+    }
+}
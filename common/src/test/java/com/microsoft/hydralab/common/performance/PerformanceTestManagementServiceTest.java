@@ -2,12 +2,13 @@
 // Licensed under the MIT License.
 package com.microsoft.hydralab.common.performance;
 
+import com.microsoft.hydralab.common.util.ADBOperateUtil;
 import com.microsoft.hydralab.performance.PerformanceTestManagementService;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 public class PerformanceTestManagementServiceTest {
-    private final PerformanceTestManagementService performanceTestManagementService = new PerformanceTestManagementService();
+    private final PerformanceTestManagementService performanceTestManagementService = new PerformanceTestManagementService(new ADBOperateUtil());
 
     @Test
     public void testInspect_ReturnNull() {
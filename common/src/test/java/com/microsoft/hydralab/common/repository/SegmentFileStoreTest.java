@@ -0,0 +1,64 @@
+// Copyright (c) Microsoft Corporation.
+// Licensed under the MIT License.
+package com.microsoft.hydralab.common.repository;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class SegmentFileStoreTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testAppendAndRead() throws IOException {
+        try (SegmentFileStore segmentFileStore = new SegmentFileStore(tempDir, 1024)) {
+            long[] first = segmentFileStore.append(bytes("first record"));
+            long[] second = segmentFileStore.append(bytes("second record"));
+            Assertions.assertEquals(first[0], second[0]);
+            Assertions.assertEquals(bytes("first record").length, second[1]);
+
+            Assertions.assertEquals("first record", read(segmentFileStore, first, "first record".length()));
+            Assertions.assertEquals("second record", read(segmentFileStore, second, "second record".length()));
+        }
+    }
+
+    @Test
+    void testRollToNewSegment() throws IOException {
+        long[] first;
+        long[] second;
+        try (SegmentFileStore segmentFileStore = new SegmentFileStore(tempDir, 16)) {
+            first = segmentFileStore.append(bytes("0123456789"));
+            // larger than the maximum size, still written to a segment of its own
+            second = segmentFileStore.append(bytes("0123456789abcdefghij"));
+            Assertions.assertEquals(first[0] + 1, second[0]);
+            Assertions.assertEquals(0, second[1]);
+        }
+
+        // continues with the last segment after a restart
+        try (SegmentFileStore segmentFileStore = new SegmentFileStore(tempDir, 16)) {
+            long[] third = segmentFileStore.append(bytes("abc"));
+            Assertions.assertEquals(second[0] + 1, third[0]);
+            Assertions.assertEquals("0123456789", read(segmentFileStore, first, 10));
+            Assertions.assertEquals("0123456789abcdefghij", read(segmentFileStore, second, 20));
+            Assertions.assertEquals("abc", read(segmentFileStore, third, 3));
+            Assertions.assertTrue(segmentFileStore.getSegmentFile(third[0]).exists());
+        }
+    }
+
+    private static String read(SegmentFileStore segmentFileStore, long[] position, int length) throws IOException {
+        try (InputStream inputStream = segmentFileStore.openStream(position[0], position[1], length)) {
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,35 @@
+package com.microsoft.hydralab.common.util;
+
+import com.microsoft.hydralab.common.test.BaseTest;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+class CriteriaTypeUtilTest extends BaseTest {
+
+    @Test
+    void parseValue() throws ParseException {
+        Assertions.assertEquals(0, CriteriaTypeUtil.parseValue("0", Integer.class, null));
+        Assertions.assertEquals(42L, CriteriaTypeUtil.parseValue("42", Long.class, null));
+        Assertions.assertEquals(true, CriteriaTypeUtil.parseValue("true", Boolean.class, null));
+        Assertions.assertEquals(TimeUnit.SECONDS, CriteriaTypeUtil.parseValue("SECONDS", TimeUnit.class, null));
+        Assertions.assertEquals("0", CriteriaTypeUtil.parseValue("0", String.class, null));
+        Assertions.assertEquals(new Date(1000), CriteriaTypeUtil.parseValue("1000", Date.class, null));
+
+        String dateFormatString = "yyyy-MM-dd HH:mm:ss.S";
+        Date expected = new SimpleDateFormat(dateFormatString).parse("2022-11-15 10:20:30.5");
+        logger.info("Parse date with format: " + dateFormatString);
+        Assertions.assertEquals(expected, CriteriaTypeUtil.parseValue("2022-11-15 10:20:30.5", Date.class, dateFormatString));
+        Assertions.assertEquals(expected, CriteriaTypeUtil.parseValue("2022-11-15 10:20:30.5", Date.class, dateFormatString));
+    }
+
+    @Test
+    void parseInvalidValue() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> CriteriaTypeUtil.parseValue("zero", Integer.class, null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> CriteriaTypeUtil.parseValue("yesterday", Date.class, "yyyy-MM-dd"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.microsoft.hydralab.common.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+public class ImageUtilTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void testDifferenceHash() throws IOException {
+        File screen = writeScreen("screen.jpg", 200, "10:00");
+        File sameScreen = writeScreen("same_screen.jpg", 200, "10:00");
+        File clockChanged = writeScreen("clock_changed.jpg", 200, "10:01");
+        File otherScreen = writeScreen("other_screen.jpg", 700, "10:00");
+
+        long hash = ImageUtil.getDifferenceHash(screen);
+        Assertions.assertEquals(0, ImageUtil.getHammingDistance(hash, ImageUtil.getDifferenceHash(sameScreen)));
+        Assertions.assertTrue(ImageUtil.getHammingDistance(hash, ImageUtil.getDifferenceHash(clockChanged)) <= 2);
+        Assertions.assertTrue(ImageUtil.getHammingDistance(hash, ImageUtil.getDifferenceHash(otherScreen)) > 8);
+    }
+
+    @Test
+    public void testDifferenceHashOfNonImage() throws IOException {
+        File file = new File(tempDir, "not_an_image.jpg");
+        Assertions.assertTrue(file.createNewFile());
+        Assertions.assertNull(ImageUtil.getDifferenceHash(file));
+    }
+
+    private File writeScreen(String name, int contentTop, String clock) throws IOException {
+        BufferedImage image = new BufferedImage(540, 1200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 540, 1200);
+        graphics.setColor(Color.BLACK);
+        graphics.drawString(clock, 10, 15);
+        graphics.setColor(Color.BLUE);
+        graphics.fillRect(40, contentTop, 300, 400);
+        graphics.setColor(Color.DARK_GRAY);
+        graphics.fillOval(300, 700, 200, 200);
+        graphics.dispose();
+        File file = new File(tempDir, name);
+        Assertions.assertTrue(ImageUtil.writeBufferedImageToFile(image, file));
+        return file;
+    }
+}
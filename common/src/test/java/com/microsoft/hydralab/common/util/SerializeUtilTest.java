@@ -2,11 +2,25 @@ package com.microsoft.hydralab.common.util;
 
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.microsoft.hydralab.common.entity.common.AgentMetadata;
+import com.microsoft.hydralab.common.entity.common.AgentUser;
+import com.microsoft.hydralab.common.entity.common.AndroidTestUnit;
+import com.microsoft.hydralab.common.entity.common.DeviceInfo;
 import com.microsoft.hydralab.common.entity.common.Message;
+import com.microsoft.hydralab.common.entity.common.TestRun;
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import com.microsoft.hydralab.common.file.AccessToken;
+import com.microsoft.hydralab.common.file.impl.azure.SASData;
+import com.microsoft.hydralab.common.file.impl.local.LocalStorageToken;
 import com.microsoft.hydralab.common.test.BaseTest;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 
@@ -54,4 +68,155 @@ public class SerializeUtilTest extends BaseTest {
         Assertions.assertEquals(str1, str2, "Serialize error!");
         Assertions.assertEquals(str1, str3, "Serialize error!");
     }
-}
\ No newline at end of file
+
+    @Test
+    void testBinaryCodecRoundTrip() {
+        MessageCodec codec = SerializeUtil.getCodec(BinaryMessageCodec.NAME);
+
+        TestTask testTask = createTestTask(500);
+        Message message = Message.ok(Const.Path.TEST_TASK_UPDATE, testTask);
+        Map<String, Object> params = new HashMap<>();
+        params.put(Const.AgentConfig.MESSAGE_CODEC_PARAM, BinaryMessageCodec.NAME);
+        message.setParams(params);
+        byte[] data = SerializeUtil.messageToByteArr(message, codec);
+        Message copy = SerializeUtil.byteArrToMessage(data);
+        Assertions.assertEquals(message.getPath(), copy.getPath());
+        Assertions.assertEquals(message.getSessionId(), copy.getSessionId());
+        Assertions.assertEquals(message.getCode(), copy.getCode());
+        Assertions.assertEquals(BinaryMessageCodec.NAME, copy.getParams().get(Const.AgentConfig.MESSAGE_CODEC_PARAM));
+        Assertions.assertTrue(copy.getBody() instanceof TestTask);
+        TestTask testTaskCopy = (TestTask) copy.getBody();
+        Assertions.assertEquals(testTask.getId(), testTaskCopy.getId());
+        Assertions.assertEquals(testTask.getStartDate(), testTaskCopy.getStartDate());
+        Assertions.assertEquals(500, testTaskCopy.getDeviceTestResults().get(0).getTestUnitList().size());
+        Assertions.assertEquals(testTask.getDeviceTestResults().get(0).getTestUnitList().get(42).getTestName(),
+                testTaskCopy.getDeviceTestResults().get(0).getTestUnitList().get(42).getTestName());
+
+        // small messages are left uncompressed, bodies without a type id are kept generic
+        Message error = Message.error(message, 500, "error");
+        Message errorCopy = SerializeUtil.byteArrToMessage(SerializeUtil.messageToByteArr(error, codec));
+        Assertions.assertEquals(500, errorCopy.getCode());
+        Assertions.assertEquals("error", errorCopy.getMessage());
+        Assertions.assertNull(errorCopy.getBody());
+        Assertions.assertNull(errorCopy.getParams());
+
+        List<DeviceInfo> devices = new ArrayList<>();
+        devices.add(createDevice("serial-1"));
+        devices.add(createDevice("serial-2"));
+        Message deviceList = new Message();
+        deviceList.setPath(Const.Path.DEVICE_LIST);
+        deviceList.setBody(devices);
+        Message deviceListCopy = SerializeUtil.byteArrToMessage(SerializeUtil.messageToByteArr(deviceList, codec));
+        Assertions.assertTrue(deviceListCopy.getBody() instanceof JSONArray);
+        List<DeviceInfo> devicesCopy = ((JSONArray) deviceListCopy.getBody()).toJavaList(DeviceInfo.class);
+        Assertions.assertEquals("serial-2", devicesCopy.get(1).getSerialNum());
+        Assertions.assertEquals(DeviceInfo.ONLINE, devicesCopy.get(1).getStatus());
+
+        JSONObject cancelData = new JSONObject();
+        cancelData.put(Const.AgentConfig.TASK_ID_PARAM, testTask.getId());
+        Message cancel = new Message();
+        cancel.setPath(Const.Path.TEST_TASK_CANCEL);
+        cancel.setBody(cancelData);
+        Message cancelCopy = SerializeUtil.byteArrToMessage(SerializeUtil.messageToByteArr(cancel, codec));
+        Assertions.assertEquals(testTask.getId(), ((JSONObject) cancelCopy.getBody()).getString(Const.AgentConfig.TASK_ID_PARAM));
+    }
+
+    @Test
+    void testCodecNegotiation() {
+        Assertions.assertEquals(BinaryMessageCodec.NAME, SerializeUtil.negotiateCodec(SerializeUtil.getSupportedCodecs()).getName());
+        Assertions.assertEquals(GzipJsonMessageCodec.NAME, SerializeUtil.negotiateCodec(null).getName());
+        Assertions.assertEquals(GzipJsonMessageCodec.NAME, SerializeUtil.negotiateCodec("UNKNOWN," + GzipJsonMessageCodec.NAME).getName());
+        Assertions.assertEquals(GzipJsonMessageCodec.NAME, SerializeUtil.getCodec(null).getName());
+
+        // both formats are recognized, whatever the codec of the connection is, and keep the type of the token
+        LocalStorageToken localStorageToken = new LocalStorageToken();
+        localStorageToken.setToken("local-token");
+        localStorageToken.setExpiredTime(OffsetDateTime.now().plusHours(1));
+        SASData sasData = new SASData();
+        sasData.setToken("sas-token");
+        sasData.setExpiredTime(OffsetDateTime.now().plusHours(2));
+        sasData.setFileLimitDay(7);
+        for (AccessToken accessToken : new AccessToken[]{localStorageToken, sasData}) {
+            AgentMetadata agentMetadata = new AgentMetadata();
+            agentMetadata.setAgentUser(new AgentUser());
+            agentMetadata.setMessageCodec(BinaryMessageCodec.NAME);
+            agentMetadata.setAccessToken(accessToken);
+            Message message = Message.ok(Const.Path.AGENT_INIT, agentMetadata);
+            for (String name : SerializeUtil.getSupportedCodecs().split(",")) {
+                Message copy = SerializeUtil.byteArrToMessage(SerializeUtil.messageToByteArr(message, SerializeUtil.getCodec(name)));
+                Assertions.assertTrue(copy.getBody() instanceof AgentMetadata, name);
+                AgentMetadata agentMetadataCopy = (AgentMetadata) copy.getBody();
+                Assertions.assertEquals(BinaryMessageCodec.NAME, agentMetadataCopy.getMessageCodec(), name);
+                Assertions.assertEquals(accessToken.getClass(), agentMetadataCopy.getAccessToken().getClass(), name);
+                Assertions.assertEquals(accessToken.getToken(), agentMetadataCopy.getAccessToken().getToken(), name);
+                Assertions.assertEquals(accessToken.getExpiredTime().toInstant(), agentMetadataCopy.getAccessToken().getExpiredTime().toInstant(), name);
+            }
+        }
+    }
+
+    @Test
+    void testCodecPerformance() {
+        Message message = Message.ok(Const.Path.TEST_TASK_UPDATE, createTestTask(3000));
+        int rounds = 50;
+        Map<String, Integer> frameSizes = new HashMap<>();
+        Map<String, Long> encodeCosts = new HashMap<>();
+        for (String name : SerializeUtil.getSupportedCodecs().split(",")) {
+            MessageCodec codec = SerializeUtil.getCodec(name);
+            byte[] data = null;
+            // warm up
+            for (int i = 0; i < rounds; i++) {
+                data = codec.encode(message);
+                codec.decode(data);
+            }
+            // the fastest round, the least disturbed by the other work of the host
+            long encodeCost = Long.MAX_VALUE;
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                data = codec.encode(message);
+                encodeCost = Math.min(encodeCost, System.nanoTime() - start);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                codec.decode(data);
+            }
+            long decodeCost = System.nanoTime() - start;
+            logger.info("{}: {} bytes, encode {} us/op, decode {} us/op", name, data.length,
+                    encodeCost / 1000, decodeCost / rounds / 1000);
+            frameSizes.put(name, data.length);
+            encodeCosts.put(name, encodeCost);
+        }
+        // the preferred codec must cost less than the default one, both on the wire and to encode
+        Assertions.assertTrue(frameSizes.get(BinaryMessageCodec.NAME) < frameSizes.get(SerializeUtil.DEFAULT_CODEC.getName()), frameSizes.toString());
+        Assertions.assertTrue(encodeCosts.get(BinaryMessageCodec.NAME) < encodeCosts.get(SerializeUtil.DEFAULT_CODEC.getName()), encodeCosts.toString());
+    }
+
+    private static TestTask createTestTask(int unitCount) {
+        TestTask testTask = new TestTask();
+        testTask.setPkgName("com.microsoft.hydralab.sample");
+        testTask.setTestPkgName("com.microsoft.hydralab.sample.test");
+        TestRun testRun = new TestRun("serial-1", "Pixel", testTask.getId());
+        for (int i = 0; i < unitCount; i++) {
+            AndroidTestUnit unit = new AndroidTestUnit();
+            unit.setTestedClass("com.microsoft.hydralab.sample.SampleTest" + i % 20);
+            unit.setTestName("testCase" + i);
+            unit.setCurrentIndexNum(i);
+            unit.setNumtests(unitCount);
+            unit.setStatusCode(AndroidTestUnit.StatusCodes.OK);
+            unit.setSuccess(true);
+            unit.setStartTimeMillis(System.currentTimeMillis());
+            unit.setEndTimeMillis(System.currentTimeMillis() + i);
+            unit.setTestTaskId(testTask.getId());
+            unit.setDeviceTestResultId(testRun.getId());
+            testRun.getTestUnitList().add(unit);
+        }
+        testTask.getDeviceTestResults().add(testRun);
+        return testTask;
+    }
+
+    private static DeviceInfo createDevice(String serialNum) {
+        DeviceInfo deviceInfo = new DeviceInfo();
+        deviceInfo.setSerialNum(serialNum);
+        deviceInfo.setStatus(DeviceInfo.ONLINE);
+        return deviceInfo;
+    }
+}
@@ -0,0 +1,47 @@
+package com.microsoft.hydralab.common.util;
+
+import com.microsoft.hydralab.common.entity.common.TestTask;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class TestShardUtilTest {
+    @Test
+    public void testClassListIsDealtOut() {
+        List<String> classes = TestShardUtil.getClassList(null, "com.a.ATest, com.a.BTest,com.a.CTest,,com.a.DTest,com.a.ETest");
+        Assertions.assertEquals(5, classes.size());
+        Assertions.assertEquals(5, TestShardUtil.getMaxShardCount(TestTask.TestScope.CLASS, String.join(",", classes)));
+        Assertions.assertEquals("com.a.ATest,com.a.DTest", TestShardUtil.getShardClasses(classes, 3, 0));
+        Assertions.assertEquals("com.a.BTest,com.a.ETest", TestShardUtil.getShardClasses(classes, 3, 1));
+        Assertions.assertEquals("com.a.CTest", TestShardUtil.getShardClasses(classes, 3, 2));
+    }
+
+    @Test
+    public void testSuiteIsSplitByRunner() {
+        Assertions.assertTrue(TestShardUtil.getClassList(null, "com.a.ATest").isEmpty());
+        Assertions.assertTrue(TestShardUtil.getClassList(TestTask.TestScope.PACKAGE, "com.a,com.b").isEmpty());
+        Assertions.assertTrue(TestShardUtil.getClassList(TestTask.TestScope.TEST_APP, null).isEmpty());
+        Assertions.assertEquals(Integer.MAX_VALUE, TestShardUtil.getMaxShardCount(TestTask.TestScope.TEST_APP, null));
+    }
+
+    @Test
+    public void testShardsAreBalancedByDuration() {
+        List<String> classes = List.of("ATest", "BTest", "CTest", "DTest", "ETest", "FTest");
+        // FTest has never run, it is expected to last the average 240
+        Map<String, Double> classEstimates = Map.of("ATest", 600.0, "BTest", 100.0, "CTest", 100.0, "DTest", 200.0, "ETest", 200.0);
+        // 700 and 740, where dealing the classes out would give 900 and 540
+        Assertions.assertEquals(List.of(List.of("ATest", "BTest"), List.of("CTest", "DTest", "ETest", "FTest")),
+                TestShardUtil.planShards(classes, classEstimates, 2));
+        Assertions.assertEquals(List.of(List.of("ATest", "DTest"), List.of("BTest", "ETest"), List.of("CTest", "FTest")),
+                TestShardUtil.planShards(classes, Map.of(), 3));
+    }
+
+    @Test
+    public void testShardCountMustBePositive() {
+        List<String> classes = List.of("ATest", "BTest");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> TestShardUtil.planShards(classes, Map.of(), 0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> TestShardUtil.getShardClasses(classes, 0, 0));
+    }
+}
@@ -517,7 +517,7 @@ export default class RunnerView extends BaseView {
     }
 
     renderSwitch() {
-        const groupTestTypes = ["SINGLE", "REST", "ALL"]
+        const groupTestTypes = ["SINGLE", "REST", "ALL", "SHARD"]
 
         const { deviceList, groupList, agentList } = this.state
         const { runTestType, groupTestType, testScope } = this.state
@@ -462,6 +462,10 @@ class TasksView extends BaseView {
             <TableCell id={task.testTaskSpec.testTaskId} align="center">
                 <span className='badge badge-success'
                       style={{fontSize: 16}}>Queue Position : {task.queuedInfo[0]}</span>
+                {task.teamQueuedIndex > 0 ?
+                    <div style={{fontSize: 12}}>
+                        In team : {task.teamQueuedIndex}{task.expectedWaitSeconds >= 0 ? `, ~${Math.ceil(task.expectedWaitSeconds / 60)} min` : ''}
+                    </div> : null}
             </TableCell>
             <TableCell id={task.testTaskSpec.testTaskId} align="center">
                 {task.testTaskSpec.testSuiteClass}
@@ -299,6 +299,7 @@ export default class TestReportView extends React.Component {
                                                             <Link style={inTop ? {color: 'red'} : null}
                                                                   to={"/info/case/" + fu.id}
                                                                   target='_blank' rel="noopener noreferrer">.{_.truncate(fu.testName, 32)}</Link>
+                                                            {fu.flaky ? <span className='badge badge-warning ml-1'>flaky</span> : null}
                                                             {fu.ownerName ?
                                                                 <a target='_blank'
                                                                    href={"mailto:" + fu.ownerEmail}